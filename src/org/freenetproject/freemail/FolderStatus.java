@@ -0,0 +1,59 @@
+/*
+ * FolderStatus.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+/**
+ * The number of messages in a folder and how many of them have some of the flags, as reported by
+ * the IMAP STATUS command. The counts are kept up to date by the folder index as messages are
+ * added, removed and flagged, so getting them doesn't look at any of the messages.
+ */
+public final class FolderStatus {
+	/** The number of messages in the folder */
+	public final int messages;
+
+	/** The number of messages with the \Recent flag */
+	public final int recent;
+
+	/** The number of messages without the \Seen flag */
+	public final int unseen;
+
+	/** The number of messages with the \Deleted flag */
+	public final int deleted;
+
+	/** The total RFC822 size of the messages, leaving out messages whose size isn't known yet */
+	public final long size;
+
+	/** The lowest uid that a new message in the folder can get */
+	public final long uidNext;
+
+	/** The mod-sequence of the last change to the folder */
+	public final long highestModSeq;
+
+	FolderStatus(int messages, int recent, int unseen, int deleted, long size, long uidNext,
+			long highestModSeq) {
+		this.messages = messages;
+		this.recent = recent;
+		this.unseen = unseen;
+		this.deleted = deleted;
+		this.size = size;
+		this.uidNext = uidNext;
+		this.highestModSeq = highestModSeq;
+	}
+}
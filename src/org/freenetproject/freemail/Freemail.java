@@ -39,14 +39,19 @@ import org.freenetproject.freemail.imap.IMAPListener;
 import org.freenetproject.freemail.smtp.SMTPListener;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.Timer;
+import org.freenetproject.freemail.utils.VirtualThreads;
 import org.freenetproject.freemail.wot.WoTConnection;
 
 
 public abstract class Freemail implements ConfigClient {
-	private static final ScheduledThreadPoolExecutor defaultExecutor =
-			new ScheduledThreadPoolExecutor(10, new FreemailThreadFactory("Freemail executor thread"));
-	private static final ScheduledThreadPoolExecutor senderExecutor =
-			new ScheduledThreadPoolExecutor(10, new FreemailThreadFactory("Freemail sender thread"));
+	private static final int EXECUTOR_THREADS = 10;
+
+	/**
+	 * The number of threads the executors and the server may use when running on virtual threads.
+	 * Most of the tasks spend their time waiting for the node, so this is much higher than for
+	 * platform threads.
+	 */
+	private static final int VIRTUAL_EXECUTOR_THREADS = 1000;
 
 	private static final String BASEDIR = "freemail-wot";
 	private static final String TEMPDIRNAME = BASEDIR + "/temp";
@@ -62,10 +67,19 @@ public abstract class Freemail implements ConfigClient {
 	private Thread smtpThread;
 	private Thread imapThread;
 
+	private final ScheduledThreadPoolExecutor defaultExecutor;
+	private final ScheduledThreadPoolExecutor senderExecutor;
+
+	/** Set if the executors and the servers should use virtual threads when they are supported */
+	private boolean useVirtualThreads = false;
+
 	private final AccountManager accountManager;
 	private final SMTPListener smtpl;
 	private final IMAPListener imapl;
 
+	/** Handles the connections of both the SMTP and the IMAP server */
+	private final SelectorServer selectorServer;
+
 	protected final Configurator configurator;
 	
 	private static SecureRandom srng;
@@ -87,6 +101,14 @@ public abstract class Freemail implements ConfigClient {
 			throw new IOException("Couldn't create data dir");
 		}
 
+		configurator.register(Configurator.VIRTUAL_THREADS, this, "false");
+		if(useVirtualThreads && !VirtualThreads.isSupported()) {
+			Logger.warning(this, "Virtual threads aren't supported by this JVM, using platform threads");
+			useVirtualThreads = false;
+		}
+		defaultExecutor = createExecutor("Freemail executor thread");
+		senderExecutor = createExecutor("Freemail sender thread");
+
 		/*
 		 * We want the executor to vary the pool size even if the queue isn't
 		 * full since the queue is unbounded. We do this by setting
@@ -115,8 +137,23 @@ public abstract class Freemail implements ConfigClient {
 
 		accountManager = new AccountManager(datadir, this);
 
-		imapl = new IMAPListener(accountManager, configurator);
-		smtpl = new SMTPListener(accountManager, configurator, this);
+		ThreadFactory serverFactory = useVirtualThreads ? VirtualThreads.newFactory("Freemail server worker") : null;
+		if(serverFactory != null) {
+			selectorServer = new SelectorServer(serverFactory, VIRTUAL_EXECUTOR_THREADS);
+		} else {
+			selectorServer = new SelectorServer();
+		}
+		imapl = new IMAPListener(accountManager, configurator, selectorServer);
+		smtpl = new SMTPListener(accountManager, configurator, this, selectorServer);
+	}
+
+	private ScheduledThreadPoolExecutor createExecutor(String threadName) {
+		//The factory is null if it couldn't be created, so fall back to platform threads then too
+		ThreadFactory virtualFactory = useVirtualThreads ? VirtualThreads.newFactory(threadName) : null;
+		if(virtualFactory != null) {
+			return new ScheduledThreadPoolExecutor(VIRTUAL_EXECUTOR_THREADS, virtualFactory);
+		}
+		return new ScheduledThreadPoolExecutor(EXECUTOR_THREADS, new FreemailThreadFactory(threadName));
 	}
 
 	public WoTConnection getWotConnection() {
@@ -141,6 +178,8 @@ public abstract class Freemail implements ConfigClient {
 			datadir = new File(val);
 		} else if(key.equalsIgnoreCase(Configurator.TEMP_DIR)) {
 			tempdir = new File(val);
+		} else if(key.equalsIgnoreCase(Configurator.VIRTUAL_THREADS)) {
+			useVirtualThreads = val.equalsIgnoreCase("true");
 		}
 	}
 
@@ -163,6 +202,8 @@ public abstract class Freemail implements ConfigClient {
 	// note that this relies on sender being initialized
 	// (so startWorkers has to be called before)
 	protected void startServers(boolean daemon) {
+		selectorServer.start();
+
 		// start the SMTP Listener
 
 		smtpThread = new Thread(smtpl, "Freemail SMTP Listener");
@@ -221,7 +262,6 @@ public abstract class Freemail implements ConfigClient {
 			Timer smtpThreadJoin = terminateTimer.startSubTimer();
 			if(smtpThread != null) {
 				smtpThread.join();
-				smtpl.joinClientThreads();
 				smtpThread = null;
 			}
 			smtpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining SMTP thread");
@@ -229,7 +269,6 @@ public abstract class Freemail implements ConfigClient {
 			Timer imapThreadJoin = terminateTimer.startSubTimer();
 			if(imapThread != null) {
 				imapThread.join();
-				imapl.joinClientThreads();
 				imapThread = null;
 			}
 			imapThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining IMAP thread");
@@ -243,6 +282,7 @@ public abstract class Freemail implements ConfigClient {
 		} catch (InterruptedException ie) {
 
 		}
+		selectorServer.shutdown();
 
 		Timer executorTermination = terminateTimer.startSubTimer();
 		try {
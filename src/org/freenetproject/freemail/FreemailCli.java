@@ -37,6 +37,7 @@ public class FreemailCli extends Freemail {
 		String action = "";
 		String username = null;
 		String newpasswd = null;
+		String storeType = null;
 		String cfgfile = CFGFILE;
 
 		for(int i = 0; i < args.length; i++) {
@@ -58,6 +59,19 @@ public class FreemailCli extends Freemail {
 				}
 				username = args[i - 1];
 				newpasswd = args[i];
+			} else if(args[i].equals("--convert-folders")) {
+				action = args[i];
+				i = i + 2;
+				if(args.length - 1 < i) {
+					System.out.println("Usage: --convert-folders <account name> <maildir|segments>[-deflate]");
+					return;
+				}
+				username = args[i - 1];
+				storeType = args[i];
+				if(!MessageBank.isValidStoreType(storeType)) {
+					System.out.println("Unknown folder format: '" + storeType + "'");
+					return;
+				}
 			} else if(args[i].equals("-c")) {
 				i++;
 				if(args.length - 1 < i) {
@@ -73,6 +87,10 @@ public class FreemailCli extends Freemail {
 				System.out.println("  Creates an account");
 				System.out.println(" java -jar Freemail.jar [-c config] --passwd <account name> <password>");
 				System.out.println("  Changes the password for the given account");
+				System.out.println(" java -jar Freemail.jar [-c config] --convert-folders <account name> <maildir|segments>[-deflate]");
+				System.out.println("  Converts the folders of the given account to one file per message (maildir)");
+				System.out.println("  or to a few large segment files (segments), optionally compressing the");
+				System.out.println("  messages (e.g. segments-deflate). Freemail must not be running");
 				return;
 			} else {
 				System.out.println("Unknown option: '"+args[i]+"'");
@@ -99,6 +117,21 @@ public class FreemailCli extends Freemail {
 			AccountManager.changePassword(account, newpasswd);
 			System.out.println("Password changed.");
 			return;
+		} else if(action.equals("--convert-folders")) {
+			FreemailAccount account = freemail.getAccountManager().getAccount(username);
+			if(account == null) {
+				System.out.println("No such account: " + username);
+				return;
+			}
+
+			try {
+				int converted = account.getMessageBank().convertStore(storeType);
+				System.out.println("Converted " + converted + " folders.");
+			} catch(IOException e) {
+				Logger.error(FreemailCli.class, "Folder conversion failed: " + e.getMessage(), e);
+				System.out.println("Folder conversion failed: " + e.getMessage());
+			}
+			return;
 		}
 
 		System.out.println("This is Freemail version "+Version.getVersionString());
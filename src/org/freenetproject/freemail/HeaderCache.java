@@ -0,0 +1,412 @@
+/*
+ * HeaderCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.freenetproject.freemail.utils.FileUtils;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Cache of the parsed headers of the messages in a single folder, so the message files don't have
+ * to be read and parsed every time the headers are needed. The headers are stored in a file in
+ * the folder when a message is delivered or its headers are read for the first time, and the most
+ * recently used headers are also kept in memory.
+ *
+ * Each cached entry records the length and modification time of the stored message, and is
+ * ignored if the message has changed since the headers were stored.
+ */
+class HeaderCache {
+	private static final String CACHEFILE = ".headers";
+	private static final String CACHETMPFILE = ".headers-tmp";
+
+	private static final int MAGIC = 0x464d4843; //"FMHC"
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_HEADERS = 'H';
+	private static final byte RECORD_REMOVE = 'R';
+
+	/** The number of entries kept in memory */
+	private static final int MEMORY_CACHE_SIZE = 500;
+
+	/** Headers longer than this aren't written to the cache file */
+	private static final int MAX_HEADER_LENGTH = 16 * 1024;
+
+	/** The minimum number of dead records before the cache file is compacted */
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	private final File dir;
+	private final File cacheFile;
+
+	/** Offset of the newest record for each uid, or {@code null} before the file has been read */
+	private Map<Integer, Long> offsets = null;
+	private int deadRecords = 0;
+
+	private final Map<Integer, CachedHeaders> memoryCache =
+			new LinkedHashMap<Integer, CachedHeaders>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, CachedHeaders> eldest) {
+			return size() > MEMORY_CACHE_SIZE;
+		}
+	};
+
+	private DataOutputStream out = null;
+	private long outOffset;
+	private RandomAccessFile in = null;
+
+	HeaderCache(File dir) {
+		this.dir = dir;
+		this.cacheFile = new File(dir, CACHEFILE);
+	}
+
+	/**
+	 * Returns the cached headers of the given message as an array of alternating names and
+	 * values, or {@code null} if they aren't cached or the message has changed.
+	 * @param uid the uid of the message
+	 * @param length the current length of the stored message
+	 * @param lastModified the time the stored message was last written
+	 * @return the cached headers of the message, or {@code null}
+	 */
+	synchronized String[] get(int uid, long length, long lastModified) {
+		Integer key = Integer.valueOf(uid);
+		CachedHeaders cached = memoryCache.get(key);
+		if(cached == null) {
+			cached = readRecord(key);
+			if(cached == null) {
+				return null;
+			}
+			memoryCache.put(key, cached);
+		}
+
+		if(cached.length != length || cached.lastModified != lastModified) {
+			memoryCache.remove(key);
+			return null;
+		}
+		return cached.headers;
+	}
+
+	/**
+	 * Stores the headers of the given message.
+	 * @param uid the uid of the message
+	 * @param length the length of the stored message
+	 * @param lastModified the time the stored message was last written
+	 * @param headers the headers as an array of alternating names and values
+	 */
+	synchronized void put(int uid, long length, long lastModified, String[] headers) {
+		Integer key = Integer.valueOf(uid);
+		CachedHeaders cached = new CachedHeaders(length, lastModified, headers);
+		memoryCache.put(key, cached);
+
+		for(String s : headers) {
+			if(s.length() > MAX_HEADER_LENGTH) {
+				return;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		try {
+			record.writeLong(cached.length);
+			record.writeLong(cached.lastModified);
+			record.writeInt(headers.length);
+			for(String s : headers) {
+				record.writeUTF(s);
+			}
+		} catch(IOException e) {
+			//Can't happen when writing to a byte array
+			throw new AssertionError(e);
+		}
+
+		loadOffsets();
+		long offset = appendRecord(RECORD_HEADERS, uid, bytes.toByteArray());
+		if(offset >= 0 && offsets.put(key, Long.valueOf(offset)) != null) {
+			deadRecords++;
+			compactIfMostlyDead();
+		}
+	}
+
+	synchronized void remove(int uid) {
+		Integer key = Integer.valueOf(uid);
+		memoryCache.remove(key);
+
+		if(!loadOffsets() || offsets.remove(key) == null) {
+			return;
+		}
+		//Both the old record and the remove record are dead now
+		deadRecords += 2;
+		if(appendRecord(RECORD_REMOVE, uid, new byte[0]) >= 0) {
+			compactIfMostlyDead();
+		}
+	}
+
+	synchronized void close() {
+		closeStreams();
+		offsets = null;
+		memoryCache.clear();
+	}
+
+	private CachedHeaders readRecord(Integer uid) {
+		if(!loadOffsets()) {
+			return null;
+		}
+
+		Long offset = offsets.get(uid);
+		if(offset == null) {
+			return null;
+		}
+
+		try {
+			if(out != null) {
+				out.flush();
+			}
+			if(in == null) {
+				in = new RandomAccessFile(cacheFile, "r");
+			}
+
+			in.seek(offset.longValue());
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+			long length = record.readLong();
+			long lastModified = record.readLong();
+			String[] headers = new String[record.readInt()];
+			for(int i = 0; i < headers.length; i++) {
+				headers[i] = record.readUTF();
+			}
+			return new CachedHeaders(length, lastModified, headers);
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read header cache " + cacheFile + ": " + e.getMessage());
+			offsets.remove(uid);
+			return null;
+		}
+	}
+
+	/**
+	 * Appends a record to the cache file and returns its offset, or -1 if it couldn't be written.
+	 */
+	private long appendRecord(byte type, int uid, byte[] data) {
+		try {
+			if(out == null) {
+				if(!cacheFile.exists()) {
+					DataOutputStream header = new DataOutputStream(new FileOutputStream(cacheFile));
+					try {
+						header.writeInt(MAGIC);
+						header.writeInt(VERSION);
+					} finally {
+						header.close();
+					}
+				}
+				outOffset = cacheFile.length();
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile, true)));
+			}
+
+			long recordOffset = outOffset + 1 + 4;
+			out.writeByte(type);
+			out.writeInt(uid);
+			out.writeInt(data.length);
+			out.write(data);
+			out.flush();
+			outOffset += 1 + 4 + 4 + data.length;
+			return recordOffset;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write header cache " + cacheFile + ": " + e.getMessage());
+
+			//The file might end with a partial record now, so start over
+			closeStreams();
+			cacheFile.delete();
+			offsets = null;
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the offsets of the records in the cache file if that hasn't been done already.
+	 * @return {@code true} if the offsets are available
+	 */
+	private boolean loadOffsets() {
+		if(offsets != null) {
+			return true;
+		}
+
+		offsets = new HashMap<Integer, Long>();
+		deadRecords = 0;
+		if(!cacheFile.exists()) {
+			return true;
+		}
+
+		boolean damaged = false;
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			try {
+				if(input.readInt() != MAGIC || input.readInt() != VERSION) {
+					throw new IOException("Unknown header cache format");
+				}
+
+				long offset = 8;
+				int type;
+				while((type = input.read()) != -1) {
+					Integer uid = Integer.valueOf(input.readInt());
+					int length = input.readInt();
+					if(input.skipBytes(length) != length) {
+						throw new EOFException();
+					}
+
+					Long old;
+					if(type == RECORD_HEADERS) {
+						old = offsets.put(uid, Long.valueOf(offset + 1 + 4));
+					} else if(type == RECORD_REMOVE) {
+						old = offsets.remove(uid);
+						deadRecords++;
+					} else {
+						throw new IOException("Unknown record type " + type);
+					}
+					if(old != null) {
+						deadRecords++;
+					}
+					offset += 1 + 4 + 4 + length;
+				}
+			} finally {
+				input.close();
+			}
+		} catch(EOFException e) {
+			//Crashed while writing the last record, the rest is fine
+			damaged = true;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read header cache " + cacheFile + ", discarding it: " + e.getMessage());
+			cacheFile.delete();
+			offsets.clear();
+			return true;
+		}
+
+		if(damaged) {
+			compact();
+		} else {
+			compactIfMostlyDead();
+		}
+		return true;
+	}
+
+	private void compactIfMostlyDead() {
+		if(deadRecords > Math.max(MIN_COMPACT_RECORDS, offsets.size())) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the cache file with only the newest record for each message.
+	 */
+	private void compact() {
+		File tmpFile = new File(dir, CACHETMPFILE);
+		Map<Integer, Long> newOffsets = new HashMap<Integer, Long>();
+		try {
+			RandomAccessFile input = new RandomAccessFile(cacheFile, "r");
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				long offset = 8;
+				for(Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+					input.seek(entry.getValue().longValue());
+					byte[] data = new byte[input.readInt()];
+					input.readFully(data);
+
+					output.writeByte(RECORD_HEADERS);
+					output.writeInt(entry.getKey().intValue());
+					output.writeInt(data.length);
+					output.write(data);
+					newOffsets.put(entry.getKey(), Long.valueOf(offset + 1 + 4));
+					offset += 1 + 4 + 4 + data.length;
+				}
+			} finally {
+				input.close();
+				output.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't compact header cache " + cacheFile + ", discarding it: " + e.getMessage());
+			tmpFile.delete();
+			cacheFile.delete();
+			offsets.clear();
+			deadRecords = 0;
+			return;
+		}
+
+		closeStreams();
+		try {
+			FileUtils.replace(tmpFile, cacheFile);
+		} catch(IOException e) {
+			//The old file is still there, so the offsets are still right
+			Logger.error(this, e.getMessage());
+			tmpFile.delete();
+			deadRecords = 0;
+			return;
+		}
+		offsets = newOffsets;
+		deadRecords = 0;
+	}
+
+	private void closeStreams() {
+		try {
+			if(out != null) {
+				out.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't close header cache " + cacheFile + ": " + e.getMessage());
+		}
+		out = null;
+
+		try {
+			if(in != null) {
+				in.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't close header cache " + cacheFile + ": " + e.getMessage());
+		}
+		in = null;
+	}
+
+	private static class CachedHeaders {
+		private final long length;
+		private final long lastModified;
+		private final String[] headers;
+
+		private CachedHeaders(long length, long lastModified, String[] headers) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.headers = headers;
+		}
+	}
+}
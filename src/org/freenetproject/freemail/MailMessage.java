@@ -21,7 +21,10 @@
 
 package org.freenetproject.freemail;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.FileOutputStream;
@@ -29,11 +32,13 @@ import java.io.BufferedReader;
 import java.io.PrintStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
@@ -49,10 +54,14 @@ import java.util.Locale;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
 import org.freenetproject.freemail.imap.IMAPMessageFlags;
+import org.freenetproject.freemail.utils.FileUtils;
 import org.freenetproject.freemail.utils.Logger;
 
 
@@ -67,6 +76,7 @@ public class MailMessage {
 
 	private File file;
 	private OutputStream os;
+	private CRLFOutputStream crlfStream;
 	private PrintStream ps;
 	private final List<MailMessageHeader> headers;
 	private BufferedReader brdr;
@@ -74,24 +84,50 @@ public class MailMessage {
 	public IMAPMessageFlags flags;
 	private static final Random messageIdRandom = new Random();
 
+	/** The index of the folder this message belongs to, or {@code null} */
+	private final MessageIndex index;
+
+	/** Values of the indexed headers, used until the headers have been read */
+	private final String[] indexedHeaders;
+
+	/** The sort keys of the message, or {@code null} if they haven't been looked up yet */
+	private SortKeys sortKeys = null;
+
+	/** {@code true} if the file is stored exactly as it is sent to clients, i.e. with CRLF line endings */
+	private final boolean crlf;
+
+	/** {@code true} if the message is stored deflate compressed */
+	private final boolean compressed;
+
 	public MailMessage(File f, int msg_seqnum) {
+		this(f, msg_seqnum, null);
+	}
+
+	MailMessage(File f, int msg_seqnum, MessageIndex index) {
 		this.file = f;
 		this.headers = new Vector<MailMessageHeader>();
 		this.msg_seqnum=msg_seqnum;
+		this.index = index;
+		this.indexedHeaders = null;
+		this.crlf = (index != null);
+		this.compressed = (index != null) && MessageIndex.isCompressedName(f.getName());
 
 		// initialize flags from filename
-		String[] parts = f.getName().split(",");
-		if(parts.length < 2 && !f.getName().endsWith(",")) {
-			// treat it as a new message
-			this.flags = new IMAPMessageFlags();
-			this.flags.set("\\Recent", true);
-		} else if(parts.length < 2) {
-			// just doesn't have any flags set
-			this.flags = new IMAPMessageFlags();
-		} else {
-			this.flags = new IMAPMessageFlags(parts[1]);
-		}
+		this.flags = new IMAPMessageFlags(MessageIndex.flagsFromFilename(f.getName()));
+		this.brdr = null;
+	}
+
+	MailMessage(MessageIndex index, MessageIndex.Entry entry, int msg_seqnum) {
+		this.file = new File(index.getDir(), entry.filename);
+		this.headers = new Vector<MailMessageHeader>();
+		this.msg_seqnum = msg_seqnum;
+		this.flags = new IMAPMessageFlags(entry.flags);
 		this.brdr = null;
+		this.index = index;
+		this.indexedHeaders = entry.headers;
+		this.sortKeys = entry.sortKeys;
+		this.crlf = entry.crlf;
+		this.compressed = MessageIndex.isCompressedName(entry.filename);
 	}
 
 	public void addHeader(String name, String val) {
@@ -106,9 +142,27 @@ public class MailMessage {
 			}
 		}
 
+		if(headers.isEmpty() && indexedHeaders != null) {
+			for(int i = 0; i < MessageIndex.INDEXED_HEADERS.length; i++) {
+				if(MessageIndex.INDEXED_HEADERS[i].equalsIgnoreCase(name)) {
+					return indexedHeaders[i];
+				}
+			}
+		}
+
 		return null;
 	}
 
+	/**
+	 * Returns {@code true} if the headers kept in the folder index (Date, From, To, Subject and
+	 * Message-ID) can be read using {@link #getFirstHeader(String)} without calling
+	 * {@link #readHeaders()} first.
+	 * @return {@code true} if the indexed headers are available
+	 */
+	public boolean hasIndexedHeaders() {
+		return indexedHeaders != null || !headers.isEmpty();
+	}
+
 	public String getHeaders(String name) {
 		StringBuffer buf = new StringBuffer("");
 
@@ -193,7 +247,7 @@ public class MailMessage {
 	}
 
 	public PrintStream writeHeadersAndGetStream() throws FileNotFoundException {
-		this.os = new FileOutputStream(this.file);
+		this.os = openOutputStream();
 		this.ps = new PrintStream(this.os);
 
 		for(MailMessageHeader header : headers) {
@@ -213,13 +267,40 @@ public class MailMessage {
 	 * @throws FileNotFoundException if the backing file doesn't exist
 	 */
 	public PrintStream getRawStream() throws FileNotFoundException {
-		this.os = new FileOutputStream(this.file);
+		this.os = openOutputStream();
 		this.ps = new PrintStream(this.os);
 
 		return this.ps;
 	}
 
+	private OutputStream openOutputStream() throws FileNotFoundException {
+		OutputStream out;
+		if(index != null) {
+			out = index.getStore().openOutputStream(getUID());
+		} else {
+			out = new FileOutputStream(this.file);
+		}
+		if(compressed) {
+			out = new DeflaterOutputStream(out);
+		}
+		if(!crlf) {
+			return out;
+		}
+
+		//Count the bytes before they are compressed, since that is the size sent to clients
+		this.crlfStream = new CRLFOutputStream(new BufferedOutputStream(out));
+		return crlfStream;
+	}
+
 	public void commit() {
+		commit(null);
+	}
+
+	/**
+	 * Stores the message.
+	 * @param source the message this is a copy of, or {@code null}
+	 */
+	private void commit(MailMessage source) {
 		try {
 			this.os.close();
 			// also potentially move from a temp dir to real inbox
@@ -227,6 +308,53 @@ public class MailMessage {
 		} catch (IOException ioe) {
 
 		}
+
+		if(index != null) {
+			try {
+				index.getStore().commit(getUID());
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't store " + file + ": " + e.getMessage(), e);
+				index.getStore().delete(getUID());
+				return;
+			}
+
+			addToIndex((crlfStream != null) ? crlfStream.getBytesWritten() : -1, source);
+		}
+	}
+
+	/**
+	 * Adds this message to the folder index once it has been stored. A copy takes its words from
+	 * the text index of the source folder, or is left to be indexed when the folder is searched.
+	 * @param size the RFC822 size of the message, or -1 if it must be read from the stored message
+	 * @param source the message this is a copy of, or {@code null}
+	 */
+	private void addToIndex(long size, MailMessage source) {
+		if(headers.isEmpty()) {
+			//Written using the raw stream, so read the headers back for the index. This also
+			//adds them to the header cache
+			try {
+				readHeaders();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read headers of " + file + ": " + e.getMessage());
+			}
+		} else {
+			putCachedHeaders();
+		}
+
+		if(size < 0) {
+			try {
+				size = readSize();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read size of " + file + ": " + e.getMessage());
+			}
+		}
+
+		index.add(this, size, crlf);
+		if(source == null) {
+			index.getTextIndex().add(this);
+		} else if(source.index != null) {
+			index.getTextIndex().copy(source.index.getTextIndex(), source.getUID(), getUID());
+		}
 	}
 
 	public void cancel() {
@@ -234,14 +362,56 @@ public class MailMessage {
 			this.os.close();
 		} catch (IOException ioe) {
 		}
-		this.file.delete();
+
+		if(index != null) {
+			index.getStore().delete(getUID());
+		} else {
+			this.file.delete();
+		}
 	}
 
 	public void readHeaders() throws IOException {
-		BufferedReader bufrdr = new BufferedReader(new InputStreamReader(new FileInputStream(this.file),"UTF-8"));
+		if(this.headers.size() > 0) return;
+
+		if(index != null) {
+			MessageStore store = index.getStore();
+			int uid = getUID();
+			String[] cached = index.getHeaderCache().get(uid, store.length(uid), store.lastModified(uid));
+			if(cached != null) {
+				for(int i = 0; i < cached.length; i += 2) {
+					this.addHeader(cached[i], cached[i + 1]);
+				}
+				return;
+			}
+		}
+
+		BufferedReader bufrdr = new BufferedReader(new InputStreamReader(openInputStream(),"UTF-8"));
 
 		this.readHeaders(bufrdr);
 		bufrdr.close();
+
+		if(index != null) {
+			putCachedHeaders();
+		}
+	}
+
+	private void putCachedHeaders() {
+		MessageStore store = index.getStore();
+		int uid = getUID();
+		index.getHeaderCache().put(uid, store.length(uid), store.lastModified(uid), getHeaderArray());
+	}
+
+	/**
+	 * Returns the headers as an array of alternating names and values.
+	 */
+	String[] getHeaderArray() {
+		String[] array = new String[headers.size() * 2];
+		int i = 0;
+		for(MailMessageHeader header : headers) {
+			array[i++] = header.name;
+			array[i++] = header.val;
+		}
+		return array;
 	}
 
 	public void readHeaders(BufferedReader bufrdr) throws IOException {
@@ -277,9 +447,7 @@ public class MailMessage {
 	}
 
 	public int getUID() {
-		String[] parts = this.file.getName().split(",");
-
-		return Integer.parseInt(parts[0]);
+		return MessageIndex.parseUid(this.file.getName());
 	}
 
 	public int getSeqNum() {
@@ -287,9 +455,66 @@ public class MailMessage {
 	}
 
 	public long getSize() throws IOException {
+		if(index != null) {
+			long size = index.getSize(getUID());
+			if(size >= 0) {
+				return size;
+			}
+		}
+
+		long size = readSize();
+		if(index != null) {
+			index.setSize(getUID(), size);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the values used to sort and thread this message. They are normally kept in the
+	 * folder index, otherwise they are read from the message and then added to the index.
+	 * @return the sort keys of the message
+	 * @throws IOException if the headers of the message couldn't be read
+	 */
+	public SortKeys getSortKeys() throws IOException {
+		if(sortKeys == null && index != null) {
+			sortKeys = index.getSortKeys(getUID());
+		}
+		if(sortKeys == null) {
+			readHeaders();
+			sortKeys = SortKeys.fromMessage(this, getInternalDate());
+			if(index != null) {
+				index.setSortKeys(getUID(), sortKeys);
+			}
+		}
+		return sortKeys;
+	}
+
+	/**
+	 * Returns the time the message was added to its folder, in milliseconds since the epoch.
+	 * @return the internal date of the message
+	 */
+	public long getInternalDate() {
+		if(index != null) {
+			return index.getInternalDate(getUID());
+		}
+		return file.lastModified();
+	}
+
+	/**
+	 * Returns the mod-sequence of the last change to this message.
+	 * @return the mod-sequence of the message, or 0 if it hasn't been added to a folder yet
+	 */
+	public long getModSeq() {
+		if(index != null) {
+			return index.getModSeq(getUID());
+		}
+		return 0;
+	}
+
+	private long readSize() throws IOException {
 		// this is quite arduous since we have to send the message
 		// with \r\n's, and hence it may not be the size it is on disk
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.file),"UTF-8"));
+		BufferedReader br = new BufferedReader(new InputStreamReader(openInputStream(),"UTF-8"));
 		try {
 			long counter = 0;
 			String line;
@@ -305,6 +530,71 @@ public class MailMessage {
 		}
 	}
 
+	/**
+	 * Returns {@code true} if the message is stored exactly as it should be sent to IMAP clients,
+	 * in which case {@link #transferTo(long, long, WritableByteChannel)} can be used to send it.
+	 * @return {@code true} if the message is stored with CRLF line endings
+	 */
+	public boolean isStoredAsCRLF() {
+		return crlf;
+	}
+
+	/**
+	 * Writes {@code count} bytes of the message file starting at {@code position} to the given
+	 * channel. This only makes sense for messages where {@link #isStoredAsCRLF()} is {@code true}.
+	 * Compressed messages are only decompressed up to the last byte that is sent.
+	 * @param position the offset of the first byte that should be sent
+	 * @param count the number of bytes to send
+	 * @param target the channel the bytes are written to
+	 * @throws IOException if the file couldn't be read or the channel couldn't be written to
+	 */
+	public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		if(compressed) {
+			transferDecompressed(position, count, target);
+			return;
+		}
+		if(index != null) {
+			index.getStore().transferTo(getUID(), position, count, target);
+			return;
+		}
+
+		FileInputStream in = new FileInputStream(this.file);
+		try {
+			FileUtils.transfer(in.getChannel(), position, count, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void transferDecompressed(long position, long count, WritableByteChannel target) throws IOException {
+		InputStream in = openInputStream();
+		try {
+			while(position > 0) {
+				long skipped = in.skip(position);
+				if(skipped <= 0) {
+					throw new EOFException("Reached end of " + file + " before offset " + position);
+				}
+				position -= skipped;
+			}
+
+			byte[] buf = new byte[8192];
+			while(count > 0) {
+				int read = in.read(buf, 0, (int)Math.min(buf.length, count));
+				if(read == -1) {
+					throw new EOFException("Reached end of " + file + " with " + count + " bytes left");
+				}
+
+				ByteBuffer data = ByteBuffer.wrap(buf, 0, read);
+				while(data.hasRemaining()) {
+					target.write(data);
+				}
+				count -= read;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 	public void closeStream() {
 		try {
 			if(this.brdr != null) this.brdr.close();
@@ -316,7 +606,7 @@ public class MailMessage {
 
 	public String readLine() throws IOException {
 		if(this.brdr == null) {
-			this.brdr = new BufferedReader(new InputStreamReader(new FileInputStream(this.file),"UTF-8"));
+			this.brdr = new BufferedReader(new InputStreamReader(openInputStream(),"UTF-8"));
 		}
 
 		return this.brdr.readLine();
@@ -324,17 +614,28 @@ public class MailMessage {
 
 	public boolean copyTo(MailMessage msg) {
 		this.closeStream();
+		if(linkTo(msg)) {
+			msg.flags = this.flags;
+			msg.storeFlags();
+			return true;
+		}
+
 		String line;
 		try {
 			PrintStream copyps = msg.getRawStream();
 			try {
-				while((line = this.readLine()) != null) {
-					copyps.println(line);
+				if(msg.crlf) {
+					//The line endings are converted while writing, so copy the file as is
+					copyRaw(copyps);
+				} else {
+					while((line = this.readLine()) != null) {
+						copyps.println(line);
+					}
 				}
 			} finally {
 				copyps.close();
 			}
-			msg.commit();
+			msg.commit(this);
 		} catch (IOException ioe) {
 			msg.cancel();
 			return false;
@@ -347,14 +648,101 @@ public class MailMessage {
 		return true;
 	}
 
+	/**
+	 * Makes {@code msg} share the stored data of this message instead of writing a copy, if the
+	 * messages are stored the same way and the stores support it.
+	 * @return {@code true} if {@code msg} was stored
+	 */
+	private boolean linkTo(MailMessage msg) {
+		if(index == null || msg.index == null || crlf != msg.crlf || compressed != msg.compressed) {
+			return false;
+		}
+
+		try {
+			if(!msg.index.getStore().link(msg.getUID(), index.getStore(), getUID())) {
+				return false;
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't link " + msg + " to " + this + ": " + e.getMessage());
+			return false;
+		}
+
+		long size = -1;
+		try {
+			readHeaders();
+			for(MailMessageHeader header : headers) {
+				msg.addHeader(header.name, header.val);
+			}
+			size = getSize();
+		} catch(IOException e) {
+			//Let the copy read them instead
+			Logger.minor(this, "Couldn't read headers or size of " + this + ": " + e.getMessage());
+		}
+
+		msg.addToIndex(size, this);
+		return true;
+	}
+
+	private void copyRaw(OutputStream out) throws IOException {
+		InputStream in = openInputStream();
+		try {
+			byte[] buf = new byte[8192];
+			int read;
+			while((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 	// programming-by-contract - anything that tries to read the message
 	// or suchlike after calling this method is responsible for the
 	// torrent of exceptions they'll get thrown at them!
 	public void delete() {
-		this.file.delete();
+		if(index != null) {
+			index.getStore().delete(getUID());
+			index.remove(getUID());
+		} else {
+			this.file.delete();
+		}
+	}
+
+	/**
+	 * Opens the stored message, either from the store of the folder or directly from the file, and
+	 * decompresses it if needed.
+	 */
+	private InputStream openInputStream() throws IOException {
+		if(index != null) {
+			InputStream in = index.getStore().openInputStream(getUID());
+			if(!compressed) {
+				return in;
+			}
+
+			//The stream only ends inflaters it created itself, so this one must be ended here
+			final Inflater inflater = new Inflater();
+			return new InflaterInputStream(in, inflater, 8192) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		}
+		return new FileInputStream(this.file);
 	}
 
 	public void storeFlags() {
+		if(index != null) {
+			//The flags of messages in a MessageBank are kept in the folder index, the flags in the
+			//file name are only read when importing messages from older versions
+			index.flagsChanged(this);
+			return;
+		}
+
 		String[] parts = this.file.getName().split(",");
 
 		String newname = parts[0] + "," + this.flags.getShortFlagString();
@@ -375,6 +763,10 @@ public class MailMessage {
 		return "MailMessage backed by " + file;
 	}
 
+	File getFile() {
+		return file;
+	}
+
 	public Date getDate() {
 		String date = getFirstHeader("Date");
 		return MailMessage.parseDate(date);
@@ -580,7 +972,7 @@ public class MailMessage {
 	}
 
 	public BufferedReader getBodyReader() throws IOException {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),"UTF-8"));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(openInputStream(),"UTF-8"));
 
 		//Read past the headers and store them if they haven't been read
 		//already
@@ -607,6 +999,83 @@ public class MailMessage {
 		}
 	}
 
+	/**
+	 * Converts all line endings to CRLF, and makes sure the data ends with a line ending, so that
+	 * the file can be sent to IMAP clients as is.
+	 */
+	private static class CRLFOutputStream extends FilterOutputStream {
+		private long written = 0;
+		private int last = -1;
+		private boolean closed = false;
+
+		public CRLFOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(last == '\r' && b != '\n') {
+				writeByte('\n');
+			}
+			if(b == '\n' && last != '\r') {
+				writeByte('\r');
+			}
+			writeByte(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			//Write everything between line endings directly
+			int start = off;
+			for(int i = off; i < off + len; i++) {
+				if(b[i] == '\r' || b[i] == '\n' || last == '\r') {
+					if(i > start) {
+						out.write(b, start, i - start);
+						written += i - start;
+						last = b[i - 1];
+					}
+					write(b[i]);
+					start = i + 1;
+				}
+			}
+			if(start < off + len) {
+				out.write(b, start, off + len - start);
+				written += off + len - start;
+				last = b[off + len - 1];
+			}
+		}
+
+		private void writeByte(int b) throws IOException {
+			out.write(b);
+			written++;
+			last = b & 0xff;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			closed = true;
+
+			if(last == '\r') {
+				writeByte('\n');
+			} else if(last != -1 && last != '\n') {
+				writeByte('\r');
+				writeByte('\n');
+			}
+			super.close();
+		}
+
+		/**
+		 * Returns the number of bytes that have been written to the underlying stream.
+		 * @return the number of bytes that have been written to the underlying stream
+		 */
+		public long getBytesWritten() {
+			return written;
+		}
+	}
+
 	private static class MailMessageHeader {
 		public String name;
 		public String val;
@@ -641,6 +1110,12 @@ public class MailMessage {
 						+ parts[0]);
 			}
 
+			if(parts.length < 2) {
+				//RFC 2045 says text without a charset parameter is US-ASCII
+				charset = Charset.forName("us-ascii");
+				return;
+			}
+
 			String[] charsetParts = parts[1].trim().split("=", 2);
 			if(!charsetParts[0].equalsIgnoreCase("charset")) {
 				throw new UnsupportedEncodingException("Can't handle text/plain with parameter other than charset. "
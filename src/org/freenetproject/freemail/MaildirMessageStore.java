@@ -0,0 +1,217 @@
+/*
+ * MaildirMessageStore.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.freenetproject.freemail.utils.FileUtils;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Stores each message in its own file in the folder directory, named after the uid of the
+ * message. Older versions of Freemail also encoded the flags of the message in the file name.
+ *
+ * Copies of messages from other folders are made using hard links when the platform supports it,
+ * which is safe since message files are never changed once they have been written.
+ */
+class MaildirMessageStore implements MessageStore {
+	/** File.toPath() and Files.createLink(Path, Path), or {@code null} before Java 7 */
+	private static final Method toPath;
+	private static final Method createLink;
+	static {
+		Method path = null;
+		Method link = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			path = File.class.getMethod("toPath");
+			link = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+		} catch(ClassNotFoundException e) {
+			Logger.minor(MaildirMessageStore.class, "Hard links aren't supported, messages will be copied");
+		} catch(NoSuchMethodException e) {
+			Logger.minor(MaildirMessageStore.class, "Hard links aren't supported, messages will be copied");
+		}
+		toPath = path;
+		createLink = link;
+	}
+
+	private final File dir;
+
+	/** The file name of each message */
+	private final Map<Integer, String> names = new HashMap<Integer, String>();
+
+	MaildirMessageStore(File dir) {
+		this.dir = dir;
+
+		String[] files = dir.list();
+		if(files == null) {
+			return;
+		}
+
+		for(String name : files) {
+			int uid = MessageIndex.parseUid(name);
+			if(uid < 0 || new File(dir, name).isDirectory()) {
+				continue;
+			}
+			names.put(Integer.valueOf(uid), name);
+		}
+	}
+
+	@Override
+	public synchronized boolean create(int uid, String name) throws IOException {
+		if(names.containsKey(Integer.valueOf(uid))) {
+			return false;
+		}
+		if(!new File(dir, name).createNewFile()) {
+			return false;
+		}
+
+		names.put(Integer.valueOf(uid), name);
+		return true;
+	}
+
+	@Override
+	public OutputStream openOutputStream(int uid) throws FileNotFoundException {
+		return new FileOutputStream(getFile(uid));
+	}
+
+	@Override
+	public void commit(int uid) {
+		//The data was written directly to the message file
+	}
+
+	@Override
+	public boolean link(int uid, MessageStore source, int sourceUid) throws IOException {
+		if(createLink == null || !(source instanceof MaildirMessageStore)) {
+			return false;
+		}
+
+		File existing = ((MaildirMessageStore)source).getFile(sourceUid);
+		File f = getFile(uid);
+		if(f.length() != 0 || !f.delete()) {
+			return false;
+		}
+
+		if(createLink(f, existing)) {
+			return true;
+		}
+
+		//Put the empty file back so the message can be written normally
+		if(!f.createNewFile()) {
+			throw new IOException("Couldn't recreate " + f);
+		}
+		return false;
+	}
+
+	@Override
+	public InputStream openInputStream(int uid) throws IOException {
+		return new FileInputStream(getFile(uid));
+	}
+
+	@Override
+	public void transferTo(int uid, long position, long count, WritableByteChannel target) throws IOException {
+		FileInputStream in = new FileInputStream(getFile(uid));
+		try {
+			FileUtils.transfer(in.getChannel(), position, count, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public long length(int uid) {
+		File f = findFile(uid);
+		return (f == null) ? 0 : f.length();
+	}
+
+	@Override
+	public long lastModified(int uid) {
+		File f = findFile(uid);
+		return (f == null) ? 0 : f.lastModified();
+	}
+
+	@Override
+	public synchronized void delete(int uid) {
+		String name = names.remove(Integer.valueOf(uid));
+		if(name == null) {
+			return;
+		}
+
+		File f = new File(dir, name);
+		if(!f.delete() && f.exists()) {
+			Logger.error(this, "Couldn't delete " + f);
+		}
+	}
+
+	@Override
+	public synchronized Map<Integer, String> list() {
+		return new HashMap<Integer, String>(names);
+	}
+
+	@Override
+	public synchronized void deleteAll() {
+		for(String name : names.values()) {
+			new File(dir, name).delete();
+		}
+		names.clear();
+	}
+
+	@Override
+	public void close() {
+		//Nothing is kept open
+	}
+
+	private static boolean createLink(File link, File existing) {
+		try {
+			createLink.invoke(null, toPath.invoke(link), toPath.invoke(existing));
+			return true;
+		} catch(InvocationTargetException e) {
+			//E.g. the files are on different file systems, or the file system doesn't support links
+			Logger.debug(MaildirMessageStore.class, "Couldn't link " + link + " to " + existing + ": " + e.getCause());
+			return false;
+		} catch(IllegalAccessException e) {
+			Logger.error(MaildirMessageStore.class, "Couldn't create hard link: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private synchronized File findFile(int uid) {
+		String name = names.get(Integer.valueOf(uid));
+		return (name == null) ? null : new File(dir, name);
+	}
+
+	private File getFile(int uid) throws FileNotFoundException {
+		File f = findFile(uid);
+		if(f == null) {
+			throw new FileNotFoundException("No message with uid " + uid + " in " + dir);
+		}
+		return f;
+	}
+}
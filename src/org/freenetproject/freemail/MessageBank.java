@@ -25,17 +25,16 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.TreeMap;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.Vector;
 import java.util.Enumeration;
-import java.util.Comparator;
-import java.util.Arrays;
 
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
@@ -43,14 +42,22 @@ import org.freenetproject.freemail.utils.PropsFile;
 
 public class MessageBank {
 	private static final String MESSAGES_DIR = "inbox";
-	private static final String NIDFILE = ".nextid";
-	private static final String NIDTMPFILE = ".nextid-tmp";
 	private static final String UIDVALIDITYFILE = ".uidvalidity";
 	private static final String PROPSFILE = ".props";
 
+	/** Message store type where each message is kept in its own file */
+	public static final String STORE_MAILDIR = MessageIndex.STORE_MAILDIR;
+
+	/** Message store type where the messages of a folder are packed into a few segment files */
+	public static final String STORE_SEGMENTS = MessageIndex.STORE_SEGMENTS;
+
+	/** Added to a message store type to store new messages deflate compressed */
+	public static final String STORE_COMPRESSED_SUFFIX = MessageIndex.COMPRESSED_STORE_SUFFIX;
+
 	private final File dir;
 	private final MessageBank topLevel;
 	private final long uidValidity;
+	private final MessageIndex index;
 
 	public MessageBank(FreemailAccount account) {
 		this.dir = new File(account.getAccountDir(), MESSAGES_DIR);
@@ -58,6 +65,7 @@ public class MessageBank {
 		if(!this.dir.exists()) {
 			this.dir.mkdir();
 		}
+		this.index = MessageIndex.forFolder(dir);
 
 		//This is the top level message bank
 		topLevel = null;
@@ -67,6 +75,7 @@ public class MessageBank {
 	private MessageBank(File d, MessageBank topLevel) {
 		this.dir = d;
 		this.topLevel = topLevel;
+		this.index = MessageIndex.forFolder(dir);
 
 		//Read uidvalidity from propsfile or assign a new value
 		PropsFile props = PropsFile.createPropsFile(new File(dir, PROPSFILE));
@@ -112,6 +121,8 @@ public class MessageBank {
 	}
 
 	public synchronized boolean delete() {
+		MessageIndex.forget(dir);
+
 		File[] files = this.dir.listFiles();
 
 		for(int i = 0; i < files.length; i++) {
@@ -126,63 +137,190 @@ public class MessageBank {
 		return this.dir.delete();
 	}
 
-	public synchronized MailMessage createMessage() {
-		long newid = this.nextId();
-		File newfile;
+	public MailMessage createMessage() {
 		try {
-			do {
-				newfile = new File(this.dir, Long.toString(newid));
-				newid++;
-			} while(!newfile.createNewFile());
+			while(true) {
+				long uid = index.allocateUid();
+				String name = index.newMessageName(uid);
+				if(index.getStore().create((int)uid, name)) {
+					return new MailMessage(new File(this.dir, name), 0, index);
+				}
+			}
 		} catch (IOException ioe) {
-			newfile = null;
+			Logger.error(this, "Couldn't create message in " + dir + ": " + ioe.getMessage());
+			return null;
 		}
+	}
 
-		this.writeNextId(newid);
+	/**
+	 * Commits messages created using {@link #createMessage()} as one change to the folder, so
+	 * the index is only written once and other sessions see all of them at the same time.
+	 * @param msgs the messages to commit
+	 */
+	public void commitAll(final List<MailMessage> msgs) {
+		batch(new Runnable() {
+			@Override
+			public void run() {
+				for(MailMessage msg : msgs) {
+					msg.commit();
+				}
+			}
+		});
+	}
 
-		if(newfile != null) {
-			MailMessage newmsg = new MailMessage(newfile, 0);
-			return newmsg;
-		}
+	/**
+	 * Makes the changes to the messages of this folder that {@code changes} makes, such as storing
+	 * their flags, as one change to the folder, so the index is only written once and the other
+	 * sessions are only notified once.
+	 * @param changes the changes to make
+	 */
+	public void batch(Runnable changes) {
+		index.batch(changes);
+	}
 
-		return null;
+	/**
+	 * Returns {@code true} if the given string is a valid message store type.
+	 *
+	 * @param type the store type to check
+	 * @return {@code true} if {@code type} is a valid message store type
+	 */
+	public static boolean isValidStoreType(String type) {
+		return MessageIndex.isValidStoreType(type);
 	}
 
-	public synchronized SortedMap<Integer, MailMessage> listMessages() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
+	/**
+	 * Moves the messages in this folder and all its subfolders to the given type of message store,
+	 * either {@link #STORE_MAILDIR} or {@link #STORE_SEGMENTS}, optionally followed by
+	 * {@link #STORE_COMPRESSED_SUFFIX} to compress the messages. This must not be used while the
+	 * folders are in use.
+	 *
+	 * @param type the type of the new message store
+	 * @return the number of folders that were converted
+	 * @throws IOException if a folder couldn't be converted
+	 */
+	public synchronized int convertStore(String type) throws IOException {
+		int converted = index.convert(type) ? 1 : 0;
+		for(MessageBank subfolder : listSubFolders()) {
+			converted += subfolder.convertStore(type);
+		}
+		return converted;
+	}
 
-		Arrays.sort(files, new UIDComparator());
+	/**
+	 * Returns the uids of the given messages that contain the given string in their body, and
+	 * optionally their headers, ignoring case. The messages must belong to this folder.
+	 *
+	 * @param messages the messages to search
+	 * @param searchString the string to search for
+	 * @param includeHeaders {@code true} if the headers should also be searched
+	 * @return the uids of the matching messages
+	 */
+	public BitSet searchText(Collection<MailMessage> messages, String searchString, boolean includeHeaders) {
+		return index.getTextIndex().search(messages, searchString, includeHeaders);
+	}
 
-		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+	public synchronized SortedMap<Integer, MailMessage> listMessages() {
+		return index.listMessages();
+	}
 
-		int seq=1;
-		for(int i = 0; i < files.length; i++) {
-			if(files[i].isDirectory()) continue;
+	public synchronized MailMessage[] listMessagesArray() {
+		return index.listMessagesArray();
+	}
 
-			MailMessage msg = new MailMessage(files[i], seq++);
+	/**
+	 * Returns the uids of the messages in this folder in ascending order.
+	 *
+	 * @return the uids of the messages in this folder
+	 */
+	public int[] listUids() {
+		return index.listUids();
+	}
 
-			msgs.put(new Integer(msg.getUID()), msg);
-		}
+	/**
+	 * Returns the message with the given uid, or {@code null} if it has been removed.
+	 *
+	 * @param uid the uid of the message
+	 * @param seqNum the sequence number the message should be given
+	 * @return the message with the given uid
+	 */
+	public MailMessage getMessage(int uid, int seqNum) {
+		return index.getMessage(uid, seqNum);
+	}
 
-		return msgs;
+	/**
+	 * Returns a number that changes whenever a message is added to or removed from this folder,
+	 * or the flags of a message change.
+	 *
+	 * @return the change count of this folder
+	 */
+	public long getChangeCount() {
+		return index.getChangeCount();
 	}
 
-	public synchronized MailMessage[] listMessagesArray() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
+	/**
+	 * Returns the mod-sequence of the last change to this folder (RFC 7162). It is increased
+	 * whenever a message is added or removed or the flags of a message change.
+	 *
+	 * @return the highest mod-sequence of this folder
+	 */
+	public long getHighestModSeq() {
+		return index.getHighestModSeq();
+	}
 
-		Arrays.sort(files, new UIDComparator());
+	/**
+	 * Returns the uids of the messages that were added or had their flags changed after the given
+	 * mod-sequence, in ascending order.
+	 *
+	 * @param modSeq the mod-sequence the caller already knows about
+	 * @return the uids of the changed messages
+	 */
+	public int[] listUidsChangedSince(long modSeq) {
+		return index.listUidsChangedSince(modSeq);
+	}
 
-		MailMessage[] msgs = new MailMessage[files.length];
+	/**
+	 * Returns the number of messages in this folder and how many of them are recent, unseen and
+	 * deleted. The counts are kept by the folder index, so this is cheap however large the folder
+	 * is.
+	 *
+	 * @return the status of this folder
+	 */
+	public FolderStatus getStatus() {
+		return index.getStatus();
+	}
 
-		for(int i = 0; i < files.length; i++) {
-			//if(files[i].getName().startsWith(".")) continue;
+	/**
+	 * Returns the lowest uid that a new message in this folder can get.
+	 *
+	 * @return the next uid of this folder
+	 */
+	public long getUidNext() {
+		return index.getUidNext();
+	}
 
-			MailMessage msg = new MailMessage(files[i], i+1);
+	/**
+	 * Registers a listener that is notified when messages are added to or removed from this
+	 * folder, or their flags change. The listener is shared by all the {@code MessageBank}s of
+	 * the folder, so changes made through any of them are seen.
+	 *
+	 * @param listener the listener to add
+	 */
+	public void addListener(MessageBankListener listener) {
+		index.addListener(listener);
+	}
 
-			msgs[i] = msg;
-		}
+	public void removeListener(MessageBankListener listener) {
+		index.removeListener(listener);
+	}
 
-		return msgs;
+	/**
+	 * Returns {@code true} if the given {@code MessageBank} refers to the same folder as this one.
+	 *
+	 * @param other the folder to compare with
+	 * @return {@code true} if both refer to the same folder
+	 */
+	public boolean isSameFolder(MessageBank other) {
+		return other != null && other.index == index;
 	}
 
 	/**
@@ -270,46 +408,6 @@ public class MessageBank {
 		return uidValidity;
 	}
 
-	private synchronized long nextId() {
-		File nidfile = new File(this.dir, NIDFILE);
-		long retval;
-
-		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(nidfile),"UTF-8"));
-
-			retval = Long.parseLong(br.readLine());
-
-			br.close();
-		} catch (IOException ioe) {
-			return 1;
-		} catch (NumberFormatException nfe) {
-			return 1;
-		}
-
-		return retval;
-	}
-
-	private synchronized void writeNextId(long newid) {
-		// write the new ID to a temporary file
-		File nidfile = new File(this.dir, NIDTMPFILE);
-		try {
-			PrintStream ps = new PrintStream(new FileOutputStream(nidfile));
-			ps.print(newid);
-			ps.flush();
-			ps.close();
-
-			// make sure the old nextid file doesn't contain a
-			// value greater than our one
-			if(this.nextId() <= newid) {
-				File main_nid_file = new File(this.dir, NIDFILE);
-				main_nid_file.delete();
-				nidfile.renameTo(main_nid_file);
-			}
-		} catch (IOException ioe) {
-			// how to handle this?
-		}
-	}
-
 	private long getNewUidValidity() {
 		if(topLevel != null) {
 			//The top level MessageBank controls the values
@@ -355,26 +453,4 @@ public class MessageBank {
 
 		return uid % 0x100000000l;
 	}
-
-	private static class MessageFileNameFilter implements FilenameFilter {
-		@Override
-		public boolean accept(File dir, String name) {
-			if(name.startsWith(".")) return false;
-			if(!name.matches("[0-9]+(,.*)?")) return false;
-			return true;
-		}
-	}
-
-	// compare to filenames by number leading up to ","
-	private static class UIDComparator implements Comparator<File> {
-		@Override
-		public final int compare (File a, File b) {
-			int ia=Integer.parseInt(a.getName().split(",", 2)[0]);
-			int ib=Integer.parseInt(b.getName().split(",", 2)[0]);
-
-			return(ia-ib);
-		}
-	}
-
-
 }
@@ -0,0 +1,33 @@
+/*
+ * MessageBankListener.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+/**
+ * Receives notifications about changes to a {@link MessageBank}, see
+ * {@link MessageBank#addListener(MessageBankListener)}.
+ */
+public interface MessageBankListener {
+	/**
+	 * Called after a message has been added to or removed from the folder, or the flags of a
+	 * message have changed. This is called by the thread that made the change while the folder is
+	 * locked, so implementations must return quickly and must not access the folder.
+	 */
+	public void folderChanged();
+}
@@ -0,0 +1,1342 @@
+/*
+ * MessageIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.freenetproject.freemail.imap.IMAPMessageFlags;
+import org.freenetproject.freemail.utils.FileUtils;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Persistent index of the messages in a single {@link MessageBank} folder. For each UID the
+ * index holds the name of the message file, the flags, the RFC822 size, the internal date and a
+ * few frequently used headers, so listing a folder doesn't require reading the directory or any
+ * of the message files.
+ *
+ * Every change to a folder is also given a mod-sequence (RFC 7162). The index keeps the highest
+ * mod-sequence of the folder and the mod-sequence of the last change to each message, which lets
+ * IMAP clients ask for only the messages that changed since they last looked.
+ *
+ * The index also counts the messages that are recent, unseen or deleted and their total size,
+ * updating the counts as messages are added, removed and flagged, so the {@link FolderStatus} of
+ * a folder can be returned without looking at each message. The counts are taken from the
+ * entries when the index is loaded, since all of them are read then anyway.
+ *
+ * The {@link SortKeys} of each message are kept as well, so SORT and THREAD only have to compare
+ * values that are already in memory. Messages whose headers couldn't be read when they were added
+ * get their sort keys when they are first needed.
+ *
+ * The index file contains a snapshot of all the entries followed by one record for each change
+ * made after the snapshot was written. Once there are enough change records the file is compacted
+ * into a new snapshot. The file replaced by a new snapshot is kept, and used instead if the index
+ * file can't be read, and a damaged change record only loses the changes from there on, so the
+ * flags of the messages survive a damaged index. The index is reconciled with the message files
+ * when it is loaded, and rebuilt from them if neither file can be read.
+ *
+ * The flags of a message are only stored in the index, the message files are never renamed. Flags
+ * encoded in the file name (as done by older versions) are read when a file is added to the index.
+ *
+ * The contents of the messages are kept by a {@link MessageStore}. By default each message is
+ * stored in its own file, but a folder can be converted to a {@link SegmentMessageStore} using
+ * {@link #convert(String)}, which is recorded in the .store file of the folder. Either kind of
+ * store can also keep the messages deflate compressed. Compressed messages are named with a .z
+ * suffix, so the name in the store tells how each message must be read.
+ *
+ * The index also hands out the UIDs of new messages. UIDs are reserved in blocks, and the end of
+ * the current block is stored in the .nextid file, so a UID is never reused even if Freemail is
+ * stopped without the index being written.
+ */
+class MessageIndex {
+	private static final String INDEXFILE = ".index";
+	private static final String INDEXTMPFILE = ".index-tmp";
+	private static final String INDEXPREVFILE = ".index-prev";
+	private static final String NIDFILE = ".nextid";
+	private static final String NIDTMPFILE = ".nextid-tmp";
+	private static final String STOREFILE = ".store";
+	private static final String STORETMPFILE = ".store-tmp";
+
+	/** Store type where each message is kept in its own file */
+	static final String STORE_MAILDIR = "maildir";
+
+	/** Store type where the messages are packed into segment files */
+	static final String STORE_SEGMENTS = "segments";
+
+	/** Added to the store type if new messages should be compressed */
+	static final String COMPRESSED_STORE_SUFFIX = "-deflate";
+
+	/** Added to the name of messages that are stored compressed */
+	private static final String COMPRESSED_NAME_SUFFIX = ".z";
+
+	/** The number of UIDs that are reserved each time .nextid is written */
+	private static final int UID_BLOCK_SIZE = 1000;
+
+	private static final int MAGIC = 0x464d4958; //"FMIX"
+	private static final int VERSION = 4;
+
+	private static final byte RECORD_ADD = 'A';
+	private static final byte RECORD_FLAGS = 'F';
+	private static final byte RECORD_SIZE = 'S';
+	private static final byte RECORD_REMOVE = 'R';
+	private static final byte RECORD_SORT_KEYS = 'K';
+
+	/** The minimum number of change records before the index is compacted */
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	/** Longest header value that is stored in the index, longer values are read from the message */
+	private static final int MAX_HEADER_LENGTH = 1024;
+
+	/** The headers that are stored in the index, in the order they are written */
+	static final String[] INDEXED_HEADERS = {
+		"Date",
+		"From",
+		"To",
+		"Subject",
+		"Message-ID",
+	};
+
+	private static final Map<String, MessageIndex> indexes = new HashMap<String, MessageIndex>();
+
+	/** Source of the change counts of all indexes, so a reloaded index never repeats a count */
+	private static final AtomicLong changeCounter = new AtomicLong();
+
+	/**
+	 * Returns the index of the given folder, loading it from disk if needed. The same instance is
+	 * returned for all the {@code MessageBank}s that use the same directory as long as the index
+	 * file exists.
+	 * @param dir the directory of the folder
+	 * @return the index of the given folder
+	 */
+	static MessageIndex forFolder(File dir) {
+		String path = dir.getAbsolutePath();
+		synchronized(indexes) {
+			MessageIndex index = indexes.get(path);
+			if(index == null || !index.indexFile.exists()) {
+				//Either not loaded yet, or the folder was removed behind our back
+				if(index != null) {
+					index.close();
+				}
+				index = new MessageIndex(dir);
+				indexes.put(path, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Drops the in-memory copy of the index of the given folder. This must be called when the
+	 * folder is deleted so a new folder with the same name doesn't inherit the old entries.
+	 * @param dir the directory of the folder
+	 */
+	static void forget(File dir) {
+		synchronized(indexes) {
+			MessageIndex index = indexes.remove(dir.getAbsolutePath());
+			if(index != null) {
+				index.close();
+			}
+		}
+	}
+
+	private final File dir;
+	private final File indexFile;
+	private final SortedMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+	private int changeRecords = 0;
+
+	/** Stream used to append change records, kept open between changes */
+	private DataOutputStream journal = null;
+	private FileOutputStream journalFile = null;
+
+	/** Set if the end of the index file might be corrupt, so a new snapshot must be written */
+	private boolean needsSnapshot = false;
+
+	/** Set while {@link #batch(Runnable)} runs, so the journal is flushed once at the end */
+	private boolean batching = false;
+
+	/** Set if the folder changed while batching, so the listeners must be notified at the end */
+	private boolean changedInBatch = false;
+
+	private final HeaderCache headerCache;
+	private final TextIndex textIndex;
+	private volatile MessageStore store;
+	private volatile boolean compress;
+	private final AtomicLong nextUid;
+
+	/** Changed whenever a message is added to or removed from the folder, or its flags change */
+	private volatile long changeCount = changeCounter.incrementAndGet();
+
+	/** The mod-sequence of the last change to the folder */
+	private long highestModSeq = 1;
+
+	/** The number of entries with \Recent, without \Seen and with \Deleted, see {@link #count} */
+	private int recentCount = 0;
+	private int unseenCount = 0;
+	private int deletedCount = 0;
+
+	/** The sum of the sizes of the entries whose size is known */
+	private long totalSize = 0;
+
+	private final List<MessageBankListener> listeners = new CopyOnWriteArrayList<MessageBankListener>();
+
+	/** UIDs lower than this have been reserved in .nextid and can be handed out directly */
+	private volatile long reservedUids;
+	private final Object reserveLock = new Object();
+
+	private MessageIndex(File dir) {
+		this.dir = dir;
+		this.indexFile = new File(dir, INDEXFILE);
+		this.headerCache = new HeaderCache(dir);
+		this.textIndex = new TextIndex(dir);
+		String storeType = readStoreType();
+		this.store = openStore(dir, storeType);
+		this.compress = storeType.endsWith(COMPRESSED_STORE_SUFFIX);
+
+		boolean loaded = false;
+		if(indexFile.exists()) {
+			try {
+				loaded = load(indexFile);
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read message index " + indexFile + ": " + e.getMessage());
+				indexFile.delete();
+				loadPrevious();
+			}
+		} else {
+			loadPrevious();
+		}
+
+		if(reconcile() || !loaded) {
+			writeSnapshot();
+		}
+		for(Entry entry : entries.values()) {
+			count(entry, 1);
+		}
+
+		long next = readNextId();
+		if(!entries.isEmpty()) {
+			next = Math.max(next, entries.lastKey().longValue() + 1);
+		}
+		nextUid = new AtomicLong(next);
+		reservedUids = next;
+	}
+
+	/**
+	 * Returns the messages in the folder sorted by UID, with sequence numbers starting at 1.
+	 * @return the messages in the folder
+	 */
+	synchronized SortedMap<Integer, MailMessage> listMessages() {
+		SortedMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+
+		int seq = 1;
+		for(Entry entry : entries.values()) {
+			msgs.put(Integer.valueOf(entry.uid), new MailMessage(this, entry, seq++));
+		}
+
+		return msgs;
+	}
+
+	synchronized MailMessage[] listMessagesArray() {
+		MailMessage[] msgs = new MailMessage[entries.size()];
+
+		int i = 0;
+		for(Entry entry : entries.values()) {
+			msgs[i] = new MailMessage(this, entry, i + 1);
+			i++;
+		}
+
+		return msgs;
+	}
+
+	/**
+	 * Returns the uids of the messages in the folder in ascending order.
+	 * @return the uids of the messages in the folder
+	 */
+	synchronized int[] listUids() {
+		int[] uids = new int[entries.size()];
+
+		int i = 0;
+		for(Integer uid : entries.keySet()) {
+			uids[i++] = uid.intValue();
+		}
+
+		return uids;
+	}
+
+	/**
+	 * Returns the message with the given uid, or {@code null} if it isn't in the folder.
+	 * @param uid the uid of the message
+	 * @param seqNum the sequence number the message should be given
+	 * @return the message with the given uid
+	 */
+	synchronized MailMessage getMessage(int uid, int seqNum) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null) {
+			return null;
+		}
+		return new MailMessage(this, entry, seqNum);
+	}
+
+	/**
+	 * Returns a number that changes whenever a message is added to or removed from the folder or
+	 * its flags change, so callers can tell whether a list of the messages is still current without
+	 * listing them again.
+	 * @return the change count of the folder
+	 */
+	long getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Returns the mod-sequence of the last change to the folder. Unlike the change count this is
+	 * kept in the index file, so it only grows for as long as the folder exists.
+	 * @return the highest mod-sequence of the folder
+	 */
+	synchronized long getHighestModSeq() {
+		return highestModSeq;
+	}
+
+	/**
+	 * Returns the mod-sequence of the last change to the message with the given uid, or 0 if it
+	 * isn't in the index.
+	 * @param uid the uid of the message
+	 * @return the mod-sequence of the message
+	 */
+	synchronized long getModSeq(int uid) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null) {
+			return 0;
+		}
+		return entry.modSeq;
+	}
+
+	/**
+	 * Returns the uids of the messages that were added or had their flags changed after the given
+	 * mod-sequence, in ascending order.
+	 * @param modSeq the mod-sequence the caller already knows about
+	 * @return the uids of the changed messages
+	 */
+	synchronized int[] listUidsChangedSince(long modSeq) {
+		if(modSeq >= highestModSeq) {
+			return new int[0];
+		}
+
+		int[] uids = new int[entries.size()];
+		int count = 0;
+		for(Entry entry : entries.values()) {
+			if(entry.modSeq > modSeq) {
+				uids[count++] = entry.uid;
+			}
+		}
+		return Arrays.copyOf(uids, count);
+	}
+
+	/**
+	 * Returns the number of messages in the folder and how many of them are recent, unseen and
+	 * deleted. This doesn't depend on the number of messages.
+	 * @return the status of the folder
+	 */
+	synchronized FolderStatus getStatus() {
+		return new FolderStatus(entries.size(), recentCount, unseenCount, deletedCount, totalSize,
+				nextUid.get(), highestModSeq);
+	}
+
+	/**
+	 * Adds the flags and size of {@code entry} to the counts of the folder if {@code sign} is 1,
+	 * or removes them if it is -1. Must be called with the index locked.
+	 */
+	private void count(Entry entry, int sign) {
+		if((entry.flags & IMAPMessageFlags.RECENT) != 0) {
+			recentCount += sign;
+		}
+		if((entry.flags & IMAPMessageFlags.SEEN) == 0) {
+			unseenCount += sign;
+		}
+		if((entry.flags & IMAPMessageFlags.DELETED) != 0) {
+			deletedCount += sign;
+		}
+		if(entry.size >= 0) {
+			totalSize += sign * entry.size;
+		}
+	}
+
+	/**
+	 * Returns the uid that the next message added to the folder will get at the earliest.
+	 * @return the next uid of the folder
+	 */
+	long getUidNext() {
+		return nextUid.get();
+	}
+
+	void addListener(MessageBankListener listener) {
+		listeners.add(listener);
+	}
+
+	void removeListener(MessageBankListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Updates the change count and notifies the listeners. Must be called with the index locked.
+	 */
+	private void changed() {
+		if(batching) {
+			changedInBatch = true;
+			return;
+		}
+
+		changeCount = changeCounter.incrementAndGet();
+		for(MessageBankListener listener : listeners) {
+			listener.folderChanged();
+		}
+	}
+
+	/**
+	 * Runs {@code changes} with the index locked, writing the journal to disk and notifying the
+	 * listeners once when it is done instead of after every change. Other sessions see either none or all of
+	 * the changes.
+	 * @param changes the changes to make
+	 */
+	synchronized void batch(Runnable changes) {
+		if(batching) {
+			changes.run();
+			return;
+		}
+
+		batching = true;
+		try {
+			changes.run();
+		} finally {
+			batching = false;
+			syncJournal();
+			if(changedInBatch) {
+				changedInBatch = false;
+				changed();
+			}
+		}
+	}
+
+	/**
+	 * Returns a UID that hasn't been used in this folder before.
+	 * @return a new UID
+	 * @throws IOException if a new block of UIDs had to be reserved and .nextid couldn't be written
+	 */
+	long allocateUid() throws IOException {
+		long uid = nextUid.getAndIncrement();
+		if(uid >= reservedUids) {
+			synchronized(reserveLock) {
+				if(uid >= reservedUids) {
+					long limit = uid + UID_BLOCK_SIZE;
+					writeNextId(limit);
+					reservedUids = limit;
+				}
+			}
+		}
+		return uid;
+	}
+
+	private long readNextId() {
+		File nidfile = new File(dir, NIDFILE);
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(nidfile), "UTF-8"));
+			try {
+				return Long.parseLong(br.readLine());
+			} finally {
+				br.close();
+			}
+		} catch(FileNotFoundException e) {
+			return 1;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read " + nidfile + ": " + e.getMessage());
+			return 1;
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Illegal value in " + nidfile);
+			return 1;
+		}
+	}
+
+	private void writeNextId(long newid) throws IOException {
+		// write the new ID to a temporary file
+		File tmpfile = new File(dir, NIDTMPFILE);
+		PrintStream ps = new PrintStream(new FileOutputStream(tmpfile));
+		ps.print(newid);
+		ps.close();
+		if(ps.checkError()) {
+			throw new IOException("Couldn't write " + tmpfile);
+		}
+
+		FileUtils.replace(tmpfile, new File(dir, NIDFILE));
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	HeaderCache getHeaderCache() {
+		return headerCache;
+	}
+
+	TextIndex getTextIndex() {
+		return textIndex;
+	}
+
+	MessageStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns {@code true} if new messages in this folder should be stored compressed.
+	 */
+	boolean isCompressing() {
+		return compress;
+	}
+
+	/**
+	 * Returns the type of store used by this folder, either {@link #STORE_MAILDIR} or
+	 * {@link #STORE_SEGMENTS}, followed by {@link #COMPRESSED_STORE_SUFFIX} if new messages are
+	 * compressed.
+	 */
+	synchronized String getStoreType() {
+		String type = (store instanceof SegmentMessageStore) ? STORE_SEGMENTS : STORE_MAILDIR;
+		return compress ? type + COMPRESSED_STORE_SUFFIX : type;
+	}
+
+	/**
+	 * Moves all the messages in the folder to a store of the given type, compressing or
+	 * decompressing them as needed. The messages keep their uids, so apart from the names the
+	 * index doesn't change. The old store is only deleted once the new one is complete and has
+	 * been recorded in the .store file, so an interrupted conversion leaves the folder as it was.
+	 * Messages must not be written to the folder while it is being converted.
+	 * @param type the type of the new store, see {@link #getStoreType()}
+	 * @return {@code false} if the folder already used the given type of store
+	 * @throws IOException if a message couldn't be copied or the new store couldn't be recorded
+	 */
+	synchronized boolean convert(String type) throws IOException {
+		if(!isValidStoreType(type)) {
+			throw new IllegalArgumentException("Unknown store type " + type);
+		}
+
+		String current = getStoreType();
+		if(type.equals(current)) {
+			return false;
+		}
+
+		if(baseStoreType(type).equals(baseStoreType(current))) {
+			//Messages can't be rewritten in place safely, so go through the other kind of store
+			String other = baseStoreType(type).equals(STORE_MAILDIR) ? STORE_SEGMENTS : STORE_MAILDIR;
+			moveMessages(type.endsWith(COMPRESSED_STORE_SUFFIX) ? other + COMPRESSED_STORE_SUFFIX : other);
+		}
+		moveMessages(type);
+		return true;
+	}
+
+	private void moveMessages(String type) throws IOException {
+		boolean compressTarget = type.endsWith(COMPRESSED_STORE_SUFFIX);
+
+		//Remove anything left by an earlier conversion that didn't finish
+		MessageStore target;
+		if(baseStoreType(type).equals(STORE_SEGMENTS)) {
+			SegmentMessageStore.deleteFiles(dir);
+			target = openStore(dir, type);
+		} else {
+			target = openStore(dir, type);
+			target.deleteAll();
+		}
+
+		MessageStore source = store;
+		try {
+			for(Map.Entry<Integer, String> message : source.list().entrySet()) {
+				int uid = message.getKey().intValue();
+				String name = message.getValue();
+				boolean compressed = isCompressedName(name);
+				if(compressed) {
+					name = name.substring(0, name.length() - COMPRESSED_NAME_SUFFIX.length());
+				}
+				if(compressTarget) {
+					name = name + COMPRESSED_NAME_SUFFIX;
+				}
+
+				if(!target.create(uid, name)) {
+					throw new IOException("Message " + uid + " already exists in the new store");
+				}
+
+				OutputStream out = target.openOutputStream(uid);
+				if(compressTarget) {
+					out = new DeflaterOutputStream(out);
+				}
+				try {
+					InputStream in = source.openInputStream(uid);
+					if(compressed) {
+						in = new InflaterInputStream(in);
+					}
+					try {
+						byte[] buf = new byte[8192];
+						int read;
+						while((read = in.read(buf)) != -1) {
+							out.write(buf, 0, read);
+						}
+					} finally {
+						in.close();
+					}
+				} finally {
+					out.close();
+				}
+				target.commit(uid);
+			}
+
+			writeStoreType(type);
+		} catch(IOException e) {
+			target.deleteAll();
+			target.close();
+			throw e;
+		}
+
+		store = target;
+		compress = compressTarget;
+		source.deleteAll();
+		source.close();
+
+		Map<Integer, String> names = target.list();
+		for(Entry entry : entries.values()) {
+			String name = names.get(Integer.valueOf(entry.uid));
+			if(name != null) {
+				entry.filename = name;
+			}
+		}
+		writeSnapshot();
+
+		Logger.normal(this, "Converted " + dir + " to " + type + " store");
+	}
+
+	private String readStoreType() {
+		File storeFile = new File(dir, STOREFILE);
+		if(!storeFile.exists()) {
+			return STORE_MAILDIR;
+		}
+
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(storeFile), "UTF-8"));
+			try {
+				String type = br.readLine();
+				if(type != null && isValidStoreType(type)) {
+					return type;
+				}
+				Logger.error(this, "Unknown store type " + type + " in " + storeFile);
+			} finally {
+				br.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read " + storeFile + ": " + e.getMessage());
+		}
+		return STORE_MAILDIR;
+	}
+
+	private void writeStoreType(String type) throws IOException {
+		File storeFile = new File(dir, STOREFILE);
+		if(type.equals(STORE_MAILDIR)) {
+			if(!storeFile.delete() && storeFile.exists()) {
+				throw new IOException("Couldn't delete " + storeFile);
+			}
+			return;
+		}
+
+		File tmpfile = new File(dir, STORETMPFILE);
+		PrintStream ps = new PrintStream(new FileOutputStream(tmpfile), false, "UTF-8");
+		ps.print(type);
+		ps.close();
+		if(ps.checkError()) {
+			throw new IOException("Couldn't write " + tmpfile);
+		}
+
+		FileUtils.replace(tmpfile, storeFile);
+	}
+
+	private static MessageStore openStore(File dir, String type) {
+		if(baseStoreType(type).equals(STORE_SEGMENTS)) {
+			return new SegmentMessageStore(dir);
+		}
+		return new MaildirMessageStore(dir);
+	}
+
+	/**
+	 * Adds a newly written message to the index. The headers of the message must have been read
+	 * or added before this is called.
+	 * @param msg the message that was written
+	 * @param size the RFC822 size of the message, or -1 if it isn't known
+	 * @param crlf {@code true} if the message is stored with CRLF line endings
+	 */
+	synchronized void add(MailMessage msg, long size, boolean crlf) {
+		String[] headers = new String[INDEXED_HEADERS.length];
+		for(int i = 0; i < INDEXED_HEADERS.length; i++) {
+			headers[i] = msg.getFirstHeader(INDEXED_HEADERS[i]);
+		}
+
+		long internalDate = System.currentTimeMillis();
+		Entry entry = new Entry(msg.getUID(), msg.getFile().getName(), msg.flags.getBits(), size,
+				internalDate, checkHeaders(headers), crlf, ++highestModSeq);
+		entry.sortKeys = SortKeys.fromMessage(msg, internalDate);
+		entries.put(Integer.valueOf(entry.uid), entry);
+		count(entry, 1);
+		changed();
+
+		appendRecord(RECORD_ADD, entry);
+	}
+
+	/**
+	 * Records the new flags and file name of a message.
+	 * @param msg the message whose flags changed
+	 */
+	synchronized void flagsChanged(MailMessage msg) {
+		Entry entry = entries.get(Integer.valueOf(msg.getUID()));
+		if(entry == null) {
+			//The message hasn't been committed yet
+			return;
+		}
+
+		String filename = msg.getFile().getName();
+		int flags = msg.flags.getBits();
+		if(filename.equals(entry.filename) && flags == entry.flags) {
+			return;
+		}
+
+		entry.filename = filename;
+		boolean flagsChanged = (flags != entry.flags);
+		if(((flags ^ entry.flags) & ~IMAPMessageFlags.RECENT) != 0) {
+			//\Recent isn't shown to other sessions, so clearing it isn't a change clients must fetch
+			entry.modSeq = ++highestModSeq;
+		}
+		count(entry, -1);
+		entry.flags = flags;
+		count(entry, 1);
+		appendRecord(RECORD_FLAGS, entry);
+		if(flagsChanged) {
+			changed();
+		}
+	}
+
+	/**
+	 * Returns the RFC822 size of the message with the given uid, or -1 if it isn't known.
+	 * @param uid the uid of the message
+	 * @return the RFC822 size of the message with the given uid
+	 */
+	synchronized long getSize(int uid) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null) {
+			return -1;
+		}
+		return entry.size;
+	}
+
+	/**
+	 * Returns the time the message with the given uid was added to the folder, or 0 if it isn't
+	 * in the index.
+	 * @param uid the uid of the message
+	 * @return the internal date of the message in milliseconds since the epoch
+	 */
+	synchronized long getInternalDate(int uid) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null) {
+			return 0;
+		}
+		return entry.internalDate;
+	}
+
+	/**
+	 * Returns the sort keys of the message with the given uid, or {@code null} if they aren't
+	 * known.
+	 * @param uid the uid of the message
+	 * @return the sort keys of the message
+	 */
+	synchronized SortKeys getSortKeys(int uid) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null) {
+			return null;
+		}
+		return entry.sortKeys;
+	}
+
+	/**
+	 * Stores the sort keys of a message that was added without them.
+	 * @param uid the uid of the message
+	 * @param sortKeys the sort keys read from the message
+	 */
+	synchronized void setSortKeys(int uid, SortKeys sortKeys) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null || entry.sortKeys != null) {
+			return;
+		}
+
+		entry.sortKeys = sortKeys;
+		appendRecord(RECORD_SORT_KEYS, entry);
+	}
+
+	synchronized void setSize(int uid, long size) {
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null || entry.size == size) {
+			return;
+		}
+
+		count(entry, -1);
+		entry.size = size;
+		count(entry, 1);
+		appendRecord(RECORD_SIZE, entry);
+	}
+
+	synchronized void remove(int uid) {
+		Entry entry = entries.remove(Integer.valueOf(uid));
+		if(entry == null) {
+			return;
+		}
+		entry.modSeq = ++highestModSeq;
+		count(entry, -1);
+		changed();
+
+		appendRecord(RECORD_REMOVE, entry);
+		headerCache.remove(uid);
+		textIndex.remove(uid);
+	}
+
+	/**
+	 * Reads the index file that was replaced by the last snapshot, if there is one, for when the
+	 * current index file is missing or can't be read. Only the changes made after that snapshot
+	 * are lost.
+	 */
+	private void loadPrevious() {
+		long modSeq = highestModSeq;
+		entries.clear();
+		changeRecords = 0;
+
+		File prevFile = new File(dir, INDEXPREVFILE);
+		if(prevFile.exists()) {
+			Logger.normal(this, "Reading previous message index " + prevFile);
+			try {
+				load(prevFile);
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read message index " + prevFile + ", rebuilding: " + e.getMessage());
+				entries.clear();
+				changeRecords = 0;
+			}
+		}
+
+		//Mod-sequences must never go back, even if changes were lost
+		highestModSeq = Math.max(highestModSeq, modSeq);
+	}
+
+	/**
+	 * Reads an index file into memory.
+	 * @param file the index file
+	 * @return {@code false} if the end of the file was damaged, so a new snapshot should be written
+	 * @throws IOException if the snapshot in the index file couldn't be read
+	 */
+	private boolean load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		boolean readSnapshot = false;
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Bad magic number");
+			}
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException("Unknown index version " + version);
+			}
+
+			highestModSeq = in.readLong();
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				Entry entry = readEntry(in);
+				entries.put(Integer.valueOf(entry.uid), entry);
+			}
+			readSnapshot = true;
+		} catch(EOFException e) {
+			throw new IOException("Index file is truncated");
+		} finally {
+			if(!readSnapshot) {
+				in.close();
+			}
+		}
+
+		try {
+			int type;
+			while((type = in.read()) != -1) {
+				Integer uid = Integer.valueOf(in.readInt());
+				switch(type) {
+				case RECORD_ADD:
+					Entry added = readEntryAfterUid(in, uid.intValue());
+					entries.put(uid, added);
+					highestModSeq = Math.max(highestModSeq, added.modSeq);
+					break;
+				case RECORD_FLAGS:
+					String filename = in.readUTF();
+					int flags = IMAPMessageFlags.parseShortFlags(in.readUTF());
+					long modSeq = in.readLong();
+					Entry changed = entries.get(uid);
+					if(changed != null) {
+						changed.filename = filename;
+						changed.flags = flags;
+						changed.modSeq = modSeq;
+					}
+					highestModSeq = Math.max(highestModSeq, modSeq);
+					break;
+				case RECORD_SIZE:
+					long size = in.readLong();
+					Entry sized = entries.get(uid);
+					if(sized != null) {
+						sized.size = size;
+					}
+					break;
+				case RECORD_REMOVE:
+					entries.remove(uid);
+					highestModSeq = Math.max(highestModSeq, in.readLong());
+					break;
+				case RECORD_SORT_KEYS:
+					SortKeys sortKeys = SortKeys.read(in);
+					Entry keyed = entries.get(uid);
+					if(keyed != null) {
+						keyed.sortKeys = sortKeys;
+					}
+					break;
+				default:
+					throw new IOException("Unknown record type " + type);
+				}
+				changeRecords++;
+			}
+		} catch(EOFException e) {
+			//Probably a crash while a record was being written, so keep the changes we have
+			Logger.error(this, "Last record in " + file + " is truncated, ignoring it");
+			return false;
+		} catch(IOException e) {
+			//Keep the changes up to the damaged record rather than losing those in the snapshot
+			Logger.error(this, "Damaged record in " + file + ", ignoring the rest of it: " + e.getMessage());
+			return false;
+		} finally {
+			in.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compares the index to the messages in the store, adding messages that are missing from the
+	 * index and removing entries whose message is gone. This only lists the message names, so it
+	 * is cheap compared to opening the messages.
+	 * @return {@code true} if the index was changed
+	 */
+	private boolean reconcile() {
+		Map<Integer, String> files = store.list();
+
+		boolean changed = false;
+		Iterator<Entry> it = entries.values().iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			String name = files.remove(Integer.valueOf(entry.uid));
+			if(name == null) {
+				Logger.minor(this, "Removing missing message " + entry.filename + " from index of " + dir);
+				it.remove();
+				highestModSeq++;
+				changed = true;
+			} else if(!name.equals(entry.filename)) {
+				//Either the flags were changed by an older version without the index being updated,
+				//or the folder was converted and the index wasn't written afterwards
+				entry.filename = name;
+				if(name.indexOf(',') != -1) {
+					entry.flags = flagsFromFilename(name);
+					entry.modSeq = ++highestModSeq;
+				}
+				changed = true;
+			}
+		}
+
+		if(!files.isEmpty()) {
+			Logger.normal(this, "Adding " + files.size() + " messages to index of " + dir);
+		}
+		for(Map.Entry<Integer, String> file : files.entrySet()) {
+			Entry entry = entryFromFile(file.getKey().intValue(), file.getValue());
+			entries.put(file.getKey(), entry);
+			changed = true;
+		}
+
+		return changed;
+	}
+
+	private Entry entryFromFile(int uid, String name) {
+		File f = new File(dir, name);
+
+		String[] headers = new String[INDEXED_HEADERS.length];
+		SortKeys sortKeys = null;
+		try {
+			InputStream in = store.openInputStream(uid);
+			if(isCompressedName(name)) {
+				in = new InflaterInputStream(in);
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			try {
+				MailMessage msg = new MailMessage(f, 0);
+				msg.readHeaders(reader);
+				for(int i = 0; i < INDEXED_HEADERS.length; i++) {
+					headers[i] = msg.getFirstHeader(INDEXED_HEADERS[i]);
+				}
+				sortKeys = SortKeys.fromMessage(msg, store.lastModified(uid));
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read headers of " + f + ": " + e.getMessage());
+			headers = null;
+		}
+
+		//We can't tell how the file was written, so treat it like a message from an old version
+		Entry entry = new Entry(uid, name, flagsFromFilename(name), -1, store.lastModified(uid),
+				checkHeaders(headers), false, ++highestModSeq);
+		entry.sortKeys = sortKeys;
+		return entry;
+	}
+
+	private void appendRecord(byte type, Entry entry) {
+		if(needsSnapshot || changeRecords >= Math.max(MIN_COMPACT_RECORDS, entries.size())) {
+			writeSnapshot();
+			return;
+		}
+		if(journal == null && !indexFile.exists()) {
+			writeSnapshot();
+			return;
+		}
+
+		try {
+			if(journal == null) {
+				journalFile = new FileOutputStream(indexFile, true);
+				journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+			}
+
+			DataOutputStream out = journal;
+			out.writeByte(type);
+			out.writeInt(entry.uid);
+			switch(type) {
+			case RECORD_ADD:
+				writeEntryAfterUid(out, entry);
+				break;
+			case RECORD_FLAGS:
+				out.writeUTF(entry.filename);
+				out.writeUTF(new IMAPMessageFlags(entry.flags).getShortFlagString());
+				out.writeLong(entry.modSeq);
+				break;
+			case RECORD_SIZE:
+				out.writeLong(entry.size);
+				break;
+			case RECORD_REMOVE:
+				out.writeLong(entry.modSeq);
+				break;
+			case RECORD_SORT_KEYS:
+				entry.sortKeys.write(out);
+				break;
+			default:
+				throw new AssertionError("Unknown record type " + type);
+			}
+			if(!batching) {
+				out.flush();
+			}
+			changeRecords++;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't update message index " + indexFile + ": " + e.getMessage(), e);
+
+			//We don't know how much of the record was written
+			closeJournal();
+			needsSnapshot = true;
+		}
+	}
+
+	/**
+	 * Writes the buffered change records and makes sure they have reached the disk.
+	 */
+	private void syncJournal() {
+		if(journal == null) {
+			return;
+		}
+
+		try {
+			journal.flush();
+			journalFile.getFD().sync();
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't update message index " + indexFile + ": " + e.getMessage(), e);
+			closeJournal();
+			needsSnapshot = true;
+		}
+	}
+
+	private void close() {
+		closeJournal();
+		headerCache.close();
+		textIndex.close();
+		store.close();
+	}
+
+	private synchronized void closeJournal() {
+		if(journal == null) {
+			return;
+		}
+
+		try {
+			journal.close();
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't close message index " + indexFile + ": " + e.getMessage());
+		}
+		journal = null;
+		journalFile = null;
+	}
+
+	private void writeSnapshot() {
+		closeJournal();
+
+		File tmpFile = new File(dir, INDEXTMPFILE);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(tmpFile);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(highestModSeq);
+				out.writeInt(entries.size());
+				for(Entry entry : entries.values()) {
+					out.writeInt(entry.uid);
+					writeEntryAfterUid(out, entry);
+				}
+
+				//The snapshot replaces the old file, so it must be on disk before it is renamed
+				out.flush();
+				fileOut.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write message index " + tmpFile + ": " + e.getMessage(), e);
+			tmpFile.delete();
+			return;
+		}
+
+		//Keep the current file in case the new one turns out to be unreadable
+		if(indexFile.exists()) {
+			File prevFile = new File(dir, INDEXPREVFILE);
+			prevFile.delete();
+			if(!indexFile.renameTo(prevFile)) {
+				Logger.error(this, "Couldn't rename " + indexFile + " to " + prevFile);
+			}
+		}
+
+		try {
+			FileUtils.replace(tmpFile, indexFile);
+		} catch(IOException e) {
+			Logger.error(this, e.getMessage());
+			return;
+		}
+		changeRecords = 0;
+		needsSnapshot = false;
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		int uid = in.readInt();
+		return readEntryAfterUid(in, uid);
+	}
+
+	private static Entry readEntryAfterUid(DataInputStream in, int uid) throws IOException {
+		String filename = in.readUTF();
+		int flags = IMAPMessageFlags.parseShortFlags(in.readUTF());
+		long size = in.readLong();
+		long internalDate = in.readLong();
+		boolean crlf = in.readBoolean();
+		long modSeq = in.readLong();
+
+		String[] headers = null;
+		if(in.readBoolean()) {
+			headers = new String[INDEXED_HEADERS.length];
+			for(int i = 0; i < headers.length; i++) {
+				if(in.readBoolean()) {
+					headers[i] = in.readUTF();
+				}
+			}
+		}
+
+		Entry entry = new Entry(uid, filename, flags, size, internalDate, headers, crlf, modSeq);
+		if(in.readBoolean()) {
+			entry.sortKeys = SortKeys.read(in);
+		}
+		return entry;
+	}
+
+	private static void writeEntryAfterUid(DataOutputStream out, Entry entry) throws IOException {
+		out.writeUTF(entry.filename);
+		out.writeUTF(new IMAPMessageFlags(entry.flags).getShortFlagString());
+		out.writeLong(entry.size);
+		out.writeLong(entry.internalDate);
+		out.writeBoolean(entry.crlf);
+		out.writeLong(entry.modSeq);
+
+		out.writeBoolean(entry.headers != null);
+		if(entry.headers != null) {
+			for(String header : entry.headers) {
+				out.writeBoolean(header != null);
+				if(header != null) {
+					out.writeUTF(header);
+				}
+			}
+		}
+
+		out.writeBoolean(entry.sortKeys != null);
+		if(entry.sortKeys != null) {
+			entry.sortKeys.write(out);
+		}
+	}
+
+	/**
+	 * Returns {@code headers}, or {@code null} if any of the headers are too long to be stored
+	 * in the index.
+	 */
+	private static String[] checkHeaders(String[] headers) {
+		if(headers == null) {
+			return null;
+		}
+
+		for(String header : headers) {
+			if(header != null && header.length() > MAX_HEADER_LENGTH) {
+				return null;
+			}
+		}
+		return headers;
+	}
+
+	static boolean isValidStoreType(String type) {
+		String base = baseStoreType(type);
+		return base.equals(STORE_MAILDIR) || base.equals(STORE_SEGMENTS);
+	}
+
+	private static String baseStoreType(String type) {
+		if(type.endsWith(COMPRESSED_STORE_SUFFIX)) {
+			return type.substring(0, type.length() - COMPRESSED_STORE_SUFFIX.length());
+		}
+		return type;
+	}
+
+	/**
+	 * Returns the name used in the store for a new message with the given uid.
+	 */
+	String newMessageName(long uid) {
+		return compress ? uid + COMPRESSED_NAME_SUFFIX : Long.toString(uid);
+	}
+
+	/**
+	 * Returns {@code true} if the message with the given name is stored compressed.
+	 */
+	static boolean isCompressedName(String name) {
+		return name.endsWith(COMPRESSED_NAME_SUFFIX);
+	}
+
+	/**
+	 * Returns the uid of the message stored in the file with the given name, or -1 if the file
+	 * isn't a message.
+	 */
+	static int parseUid(String filename) {
+		int end = filename.indexOf(',');
+		if(end == -1) {
+			end = filename.endsWith(COMPRESSED_NAME_SUFFIX)
+					? filename.length() - COMPRESSED_NAME_SUFFIX.length()
+					: filename.length();
+		}
+		if(end == 0) {
+			return -1;
+		}
+
+		int uid = 0;
+		for(int i = 0; i < end; i++) {
+			char c = filename.charAt(i);
+			if(c < '0' || c > '9') {
+				return -1;
+			}
+			uid = uid * 10 + (c - '0');
+			if(uid < 0) {
+				return -1;
+			}
+		}
+		return uid;
+	}
+
+	/**
+	 * Returns the flags of the message stored in the file with the given name. Files that don't
+	 * have any flags part at all are new messages.
+	 */
+	static int flagsFromFilename(String filename) {
+		int index = filename.indexOf(',');
+		if(index == -1) {
+			return IMAPMessageFlags.RECENT;
+		}
+		return IMAPMessageFlags.parseShortFlags(filename.substring(index + 1));
+	}
+
+	static class Entry {
+		final int uid;
+		String filename;
+		int flags;
+		long size;
+		final long internalDate;
+
+		/** {@code true} if the message file is stored with CRLF line endings */
+		final boolean crlf;
+
+		/** Values of {@link MessageIndex#INDEXED_HEADERS}, or {@code null} if they aren't known */
+		final String[] headers;
+
+		/** The mod-sequence of the last change to the message */
+		long modSeq;
+
+		/** Used by SORT and THREAD, or {@code null} if they haven't been read from the message */
+		SortKeys sortKeys = null;
+
+		private Entry(int uid, String filename, int flags, long size, long internalDate, String[] headers,
+				boolean crlf, long modSeq) {
+			this.uid = uid;
+			this.filename = filename;
+			this.flags = flags;
+			this.size = size;
+			this.internalDate = internalDate;
+			this.headers = headers;
+			this.crlf = crlf;
+			this.modSeq = modSeq;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * MessageStore.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * Stores the contents of the messages in a single folder. Everything else about the messages
+ * (flags, sizes, headers etc.) is kept by the {@link MessageIndex} of the folder.
+ *
+ * A message is first created, then written using the stream returned by
+ * {@link #openOutputStream(int)} and finally committed, after which it can be read.
+ */
+interface MessageStore {
+	/**
+	 * Reserves the given uid for a new message.
+	 * @param uid the uid of the new message
+	 * @param name the name of the message, see {@link #list()}
+	 * @return {@code false} if there already is a message with the given uid
+	 * @throws IOException if the message couldn't be created
+	 */
+	boolean create(int uid, String name) throws IOException;
+
+	/**
+	 * Returns a stream that writes the contents of a message that has been created but not yet
+	 * committed. The stream must be closed before {@link #commit(int)} is called.
+	 */
+	OutputStream openOutputStream(int uid) throws FileNotFoundException;
+
+	/**
+	 * Makes the contents written to a new message available for reading.
+	 */
+	void commit(int uid) throws IOException;
+
+	/**
+	 * Makes a message that has been created but not written share the contents of a message in
+	 * another store, without copying the data. The message is committed if this succeeds.
+	 * @param uid the uid of the new message in this store
+	 * @param source the store holding the message that should be copied
+	 * @param sourceUid the uid of the message in {@code source}
+	 * @return {@code false} if the contents can't be shared, in which case the new message must be
+	 *         written normally
+	 * @throws IOException if the new message was damaged while trying to share the contents
+	 */
+	boolean link(int uid, MessageStore source, int sourceUid) throws IOException;
+
+	InputStream openInputStream(int uid) throws IOException;
+
+	/**
+	 * Writes {@code count} bytes of the message starting at {@code position} to the given channel.
+	 */
+	void transferTo(int uid, long position, long count, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Returns the number of bytes stored for the given message, or 0 if it doesn't exist.
+	 */
+	long length(int uid);
+
+	/**
+	 * Returns the time the given message was last written, or 0 if it doesn't exist.
+	 */
+	long lastModified(int uid);
+
+	/**
+	 * Deletes the given message, whether it has been committed or not.
+	 */
+	void delete(int uid);
+
+	/**
+	 * Returns the uids of the messages in the store along with their names. The name is the one
+	 * given when the message was created, except for messages written by older versions of
+	 * Freemail where it is the file name with the flags of the message encoded.
+	 * @return the messages in the store
+	 */
+	Map<Integer, String> list();
+
+	/**
+	 * Deletes all the messages and any other data of the store.
+	 */
+	void deleteAll();
+
+	void close();
+}
@@ -0,0 +1,913 @@
+/*
+ * SegmentMessageStore.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.FileUtils;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Stores the messages of a folder packed into a few large segment files instead of one file per
+ * message. New messages are appended to the newest segment, and an append-only index file records
+ * where each message is stored. Messages are read through memory mappings of the segment files.
+ *
+ * Deleting a message only writes a tombstone to the index. Once enough of an older segment is
+ * dead, the messages that are left in it are moved to the newest segment in the background and
+ * the old segment is deleted.
+ *
+ * Each message in a segment is preceded by a header with its uid, length and name, and deleting a
+ * message also appends a tombstone header to the newest segment. Reading the segments in order
+ * therefore gives the same result as the index, so the index can be rebuilt from them if it is
+ * lost or damaged.
+ */
+class SegmentMessageStore implements MessageStore {
+	private static final String INDEXFILE = ".segindex";
+	private static final String INDEXTMPFILE = ".segindex-tmp";
+	private static final String SEGMENT_PREFIX = ".segment-";
+	private static final String PENDING_PREFIX = ".pending-";
+
+	private static final int MAGIC = 0x464d5347; //"FMSG"
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_ADD = 'A';
+	private static final byte RECORD_DELETE = 'D';
+
+	/** Starts each record header in the segments */
+	private static final int RECORD_MAGIC = 0x464d5352; //"FMSR"
+
+	/** New messages go to a new segment once the newest one is this large */
+	private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** The minimum number of index records before the index file is rewritten */
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	private static final ExecutorService compactor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Freemail segment compactor");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+
+	private final File dir;
+	private final File indexFile;
+
+	private final Map<Integer, Location> locations = new HashMap<Integer, Location>();
+	private final Map<Integer, String> pending = new HashMap<Integer, String>();
+
+	/** The number of bytes in each segment that belong to live messages */
+	private final Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+	private final Map<Integer, RandomAccessFile> segmentFiles = new HashMap<Integer, RandomAccessFile>();
+	private final Map<Integer, MappedByteBuffer> mappings = new HashMap<Integer, MappedByteBuffer>();
+	private final Set<Integer> compacting = new HashSet<Integer>();
+
+	private int activeSegment = 0;
+	private long activeSize = 0;
+
+	private DataOutputStream indexOut = null;
+	private int indexRecords = 0;
+	private boolean closed = false;
+
+	SegmentMessageStore(File dir) {
+		this.dir = dir;
+		this.indexFile = new File(dir, INDEXFILE);
+
+		boolean rebuild = false;
+		if(indexFile.exists()) {
+			try {
+				rebuild = !load();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read segment index " + indexFile + ", rebuilding: " + e.getMessage());
+				rebuild = true;
+			}
+		}
+
+		String[] names = dir.list();
+		if(names != null) {
+			for(String name : names) {
+				if(name.startsWith(PENDING_PREFIX)) {
+					//Left behind by a message that was never committed
+					new File(dir, name).delete();
+				} else if(name.startsWith(SEGMENT_PREFIX)) {
+					try {
+						int segment = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+						if(segment > activeSegment) {
+							activeSegment = segment;
+						}
+						if(!indexFile.exists()) {
+							rebuild = true;
+						}
+					} catch(NumberFormatException e) {
+						Logger.error(this, "Ignoring unknown file " + name + " in " + dir);
+					}
+				}
+			}
+		}
+		if(rebuild) {
+			rebuildIndex();
+			writeIndex();
+		}
+		activeSize = getSegmentFile(activeSegment).length();
+	}
+
+	@Override
+	public synchronized boolean create(int uid, String name) throws IOException {
+		Integer key = Integer.valueOf(uid);
+		if(locations.containsKey(key) || pending.containsKey(key)) {
+			return false;
+		}
+		if(!getPendingFile(uid).createNewFile()) {
+			return false;
+		}
+
+		pending.put(key, name);
+		return true;
+	}
+
+	@Override
+	public OutputStream openOutputStream(int uid) throws FileNotFoundException {
+		synchronized(this) {
+			if(!pending.containsKey(Integer.valueOf(uid))) {
+				throw new FileNotFoundException("Message " + uid + " in " + dir + " has already been committed");
+			}
+		}
+		return new FileOutputStream(getPendingFile(uid));
+	}
+
+	@Override
+	public synchronized void commit(int uid) throws IOException {
+		Integer key = Integer.valueOf(uid);
+		String name = pending.get(key);
+		if(name == null) {
+			throw new IOException("Message " + uid + " in " + dir + " isn't waiting to be committed");
+		}
+
+		File pendingFile = getPendingFile(uid);
+		FileInputStream in = new FileInputStream(pendingFile);
+		try {
+			append(uid, in.getChannel(), 0, pendingFile.length(), System.currentTimeMillis(), name);
+		} finally {
+			in.close();
+		}
+
+		pending.remove(key);
+		pendingFile.delete();
+	}
+
+	@Override
+	public boolean link(int uid, MessageStore source, int sourceUid) {
+		//Segments belong to a single folder, so there is nothing to share with another store
+		return false;
+	}
+
+	@Override
+	public InputStream openInputStream(int uid) throws IOException {
+		Integer key = Integer.valueOf(uid);
+		synchronized(this) {
+			if(pending.containsKey(key)) {
+				return new FileInputStream(getPendingFile(uid));
+			}
+
+			Location location = getLocation(uid);
+			MappedByteBuffer mapping = mappings.get(Integer.valueOf(location.segment));
+			if(mapping == null || mapping.capacity() < location.offset + location.length) {
+				FileChannel channel = getSegment(location.segment).getChannel();
+				mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				mappings.put(Integer.valueOf(location.segment), mapping);
+			}
+
+			ByteBuffer buffer = mapping.duplicate();
+			buffer.position((int)location.offset);
+			buffer.limit((int)(location.offset + location.length));
+			return new ByteBufferInputStream(buffer.slice());
+		}
+	}
+
+	@Override
+	public void transferTo(int uid, long position, long count, WritableByteChannel target) throws IOException {
+		FileInputStream in;
+		long start;
+		if(count == 0) {
+			return;
+		}
+
+		synchronized(this) {
+			Location location = getLocation(uid);
+			if(position + count > location.length) {
+				throw new IOException("Tried to read past the end of message " + uid);
+			}
+
+			//Open the segment while locked so it can't be deleted by compaction first
+			in = new FileInputStream(getSegmentFile(location.segment));
+			start = location.offset + position;
+		}
+
+		try {
+			FileUtils.transfer(in.getChannel(), start, count, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public synchronized long length(int uid) {
+		Integer key = Integer.valueOf(uid);
+		if(pending.containsKey(key)) {
+			return getPendingFile(uid).length();
+		}
+
+		Location location = locations.get(key);
+		return (location == null) ? 0 : location.length;
+	}
+
+	@Override
+	public synchronized long lastModified(int uid) {
+		Integer key = Integer.valueOf(uid);
+		if(pending.containsKey(key)) {
+			return getPendingFile(uid).lastModified();
+		}
+
+		Location location = locations.get(key);
+		return (location == null) ? 0 : location.written;
+	}
+
+	@Override
+	public synchronized void delete(int uid) {
+		Integer key = Integer.valueOf(uid);
+		if(pending.remove(key) != null) {
+			getPendingFile(uid).delete();
+			return;
+		}
+
+		Location location = locations.remove(key);
+		if(location == null) {
+			return;
+		}
+
+		try {
+			appendTombstone(uid);
+			DataOutputStream out = getIndexStream();
+			out.writeByte(RECORD_DELETE);
+			out.writeInt(uid);
+			out.flush();
+			indexRecords++;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write to segment index " + indexFile + ": " + e.getMessage(), e);
+			writeIndex();
+		}
+
+		Integer segment = Integer.valueOf(location.segment);
+		long live = liveBytes.get(segment).longValue() - location.length;
+		liveBytes.put(segment, Long.valueOf(live));
+		maybeCompact(location.segment);
+	}
+
+	@Override
+	public synchronized Map<Integer, String> list() {
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		for(Map.Entry<Integer, Location> entry : locations.entrySet()) {
+			names.put(entry.getKey(), entry.getValue().name);
+		}
+		return names;
+	}
+
+	@Override
+	public synchronized void deleteAll() {
+		close();
+
+		String[] names = dir.list();
+		if(names != null) {
+			for(String name : names) {
+				if(name.startsWith(SEGMENT_PREFIX) || name.startsWith(PENDING_PREFIX)) {
+					new File(dir, name).delete();
+				}
+			}
+		}
+		indexFile.delete();
+
+		locations.clear();
+		pending.clear();
+		liveBytes.clear();
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+
+		if(indexOut != null) {
+			try {
+				indexOut.close();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't close segment index " + indexFile + ": " + e.getMessage());
+			}
+			indexOut = null;
+		}
+
+		for(RandomAccessFile f : segmentFiles.values()) {
+			try {
+				f.close();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't close segment in " + dir + ": " + e.getMessage());
+			}
+		}
+		segmentFiles.clear();
+		mappings.clear();
+	}
+
+	/**
+	 * Deletes any segment store files in the given directory. Used to clean up after an
+	 * interrupted conversion.
+	 */
+	static void deleteFiles(File dir) {
+		String[] names = dir.list();
+		if(names == null) {
+			return;
+		}
+
+		for(String name : names) {
+			if(name.startsWith(SEGMENT_PREFIX) || name.startsWith(PENDING_PREFIX)
+					|| name.equals(INDEXFILE) || name.equals(INDEXTMPFILE)) {
+				new File(dir, name).delete();
+			}
+		}
+	}
+
+	/**
+	 * Appends a message to the active segment and records it in the index. Must be called while
+	 * holding the lock.
+	 */
+	private void append(int uid, FileChannel source, long position, long length, long written, String name)
+			throws IOException {
+		if(activeSize > 0 && activeSize + length > MAX_SEGMENT_SIZE) {
+			activeSegment++;
+			activeSize = 0;
+		}
+
+		FileChannel segment = getSegment(activeSegment).getChannel();
+		long offset = writeRecordHeader(segment, RECORD_ADD, uid, length, written, name);
+		long copied = 0;
+		source.position(position);
+		while(copied < length) {
+			long count = segment.transferFrom(source, offset + copied, length - copied);
+			if(count <= 0) {
+				throw new EOFException("Source ended with " + (length - copied) + " bytes left");
+			}
+			copied += count;
+		}
+		activeSize = offset + length;
+
+		Location location = new Location(activeSegment, offset, length, written, name);
+		DataOutputStream out = getIndexStream();
+		out.writeByte(RECORD_ADD);
+		out.writeInt(uid);
+		writeLocation(out, location);
+		out.flush();
+		indexRecords++;
+
+		Location old = locations.put(Integer.valueOf(uid), location);
+		if(old != null) {
+			Integer oldSegment = Integer.valueOf(old.segment);
+			liveBytes.put(oldSegment, Long.valueOf(liveBytes.get(oldSegment).longValue() - old.length));
+		}
+		addLiveBytes(activeSegment, length);
+
+		if(indexRecords > Math.max(MIN_COMPACT_RECORDS, 2 * locations.size())) {
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Appends a tombstone for the given uid to the active segment. Must be called while holding
+	 * the lock.
+	 */
+	private void appendTombstone(int uid) throws IOException {
+		FileChannel segment = getSegment(activeSegment).getChannel();
+		activeSize = writeRecordHeader(segment, RECORD_DELETE, uid, 0, System.currentTimeMillis(), "");
+	}
+
+	/**
+	 * Writes a record header at the end of the active segment.
+	 * @return the position after the header
+	 */
+	private long writeRecordHeader(FileChannel segment, byte type, int uid, long length, long written, String name)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(RECORD_MAGIC);
+		header.writeByte(type);
+		header.writeInt(uid);
+		header.writeLong(length);
+		header.writeLong(written);
+		header.writeUTF(name);
+		header.close();
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		long position = activeSize;
+		while(buffer.hasRemaining()) {
+			position += segment.write(buffer, position);
+		}
+		return position;
+	}
+
+	/**
+	 * Starts compaction of the given segment if enough of it is dead. Must be called while holding
+	 * the lock.
+	 */
+	private void maybeCompact(final int segment) {
+		if(segment == activeSegment || closed) {
+			return;
+		}
+
+		long size = getSegmentFile(segment).length();
+		long live = liveBytes.get(Integer.valueOf(segment)).longValue();
+		if(live > size / 2 || !compacting.add(Integer.valueOf(segment))) {
+			return;
+		}
+
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact(segment);
+			}
+		});
+	}
+
+	/**
+	 * Moves the live messages in the given segment to the active segment and deletes it.
+	 */
+	private void compact(int segment) {
+		List<Integer> uids = new LinkedList<Integer>();
+		synchronized(this) {
+			for(Map.Entry<Integer, Location> entry : locations.entrySet()) {
+				if(entry.getValue().segment == segment) {
+					uids.add(entry.getKey());
+				}
+			}
+		}
+
+		Logger.minor(this, "Moving " + uids.size() + " messages out of segment " + segment + " in " + dir);
+		try {
+			for(Integer uid : uids) {
+				synchronized(this) {
+					if(closed) {
+						return;
+					}
+
+					//The message might have been deleted since we listed the segment
+					Location location = locations.get(uid);
+					if(location == null || location.segment != segment) {
+						continue;
+					}
+
+					FileChannel source = getSegment(segment).getChannel();
+					append(uid.intValue(), source, location.offset, location.length, location.written, location.name);
+				}
+			}
+
+			synchronized(this) {
+				if(closed) {
+					return;
+				}
+
+				//A tombstone must outlive its segment while an older segment can hold the message
+				if(hasOlderSegment(segment)) {
+					for(Record record : readRecords(getSegmentFile(segment))) {
+						if(record.type == RECORD_DELETE && !locations.containsKey(Integer.valueOf(record.uid))) {
+							appendTombstone(record.uid);
+						}
+					}
+				}
+
+				//Write an index without any references to the old segment before deleting it
+				writeIndex();
+				RandomAccessFile f = segmentFiles.remove(Integer.valueOf(segment));
+				if(f != null) {
+					f.close();
+				}
+				mappings.remove(Integer.valueOf(segment));
+				liveBytes.remove(Integer.valueOf(segment));
+				if(!getSegmentFile(segment).delete()) {
+					Logger.error(this, "Couldn't delete segment " + getSegmentFile(segment));
+				}
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Compaction of segment " + segment + " in " + dir + " failed: " + e.getMessage(), e);
+		} finally {
+			synchronized(this) {
+				compacting.remove(Integer.valueOf(segment));
+			}
+		}
+	}
+
+	/**
+	 * Reads the index file.
+	 * @return {@code false} if the end of the file was damaged and it should be rewritten
+	 */
+	private boolean load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Unknown segment index format");
+			}
+
+			int type;
+			while((type = in.read()) != -1) {
+				Integer uid = Integer.valueOf(in.readInt());
+				Location old;
+				if(type == RECORD_ADD) {
+					Location location = readLocation(in);
+					old = locations.put(uid, location);
+					addLiveBytes(location.segment, location.length);
+					if(location.segment > activeSegment) {
+						activeSegment = location.segment;
+					}
+				} else if(type == RECORD_DELETE) {
+					old = locations.remove(uid);
+				} else {
+					throw new IOException("Unknown record type " + type);
+				}
+
+				if(old != null) {
+					addLiveBytes(old.segment, -old.length);
+				}
+				indexRecords++;
+			}
+		} catch(EOFException e) {
+			Logger.error(this, "Last record in " + indexFile + " is truncated, ignoring it");
+			return false;
+		} finally {
+			in.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Rebuilds the index by reading the record headers of all the segments, oldest first. A
+	 * damaged record ends its segment, which is cut off there so new messages aren't appended
+	 * after it. Must be called while holding the lock.
+	 */
+	private void rebuildIndex() {
+		locations.clear();
+		liveBytes.clear();
+
+		SortedSet<Integer> segments = new TreeSet<Integer>();
+		String[] names = dir.list();
+		if(names != null) {
+			for(String name : names) {
+				if(name.startsWith(SEGMENT_PREFIX)) {
+					try {
+						segments.add(Integer.valueOf(name.substring(SEGMENT_PREFIX.length())));
+					} catch(NumberFormatException e) {
+						//Already logged when the directory was listed
+					}
+				}
+			}
+		}
+
+		for(Integer segment : segments) {
+			File f = getSegmentFile(segment.intValue());
+			long end = 0;
+			try {
+				for(Record record : readRecords(f)) {
+					Integer uid = Integer.valueOf(record.uid);
+					Location old;
+					if(record.type == RECORD_ADD) {
+						Location location = new Location(segment.intValue(), record.offset, record.length,
+								record.written, record.name);
+						old = locations.put(uid, location);
+						addLiveBytes(location.segment, location.length);
+					} else {
+						old = locations.remove(uid);
+					}
+					if(old != null) {
+						addLiveBytes(old.segment, -old.length);
+					}
+					end = record.offset + record.length;
+				}
+
+				if(end < f.length()) {
+					Logger.error(this, "Segment " + f + " is damaged after " + end + " bytes, truncating it");
+					RandomAccessFile raf = getSegment(segment.intValue());
+					raf.setLength(end);
+					mappings.remove(segment);
+				}
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read segment " + f + ": " + e.getMessage(), e);
+			}
+		}
+
+		Logger.normal(this, "Rebuilt segment index of " + dir + " with " + locations.size() + " messages");
+	}
+
+	/**
+	 * Reads the record headers of a segment, stopping at the first record that is damaged or
+	 * truncated.
+	 */
+	private static List<Record> readRecords(File f) throws IOException {
+		List<Record> records = new LinkedList<Record>();
+		long size = f.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			long position = 0;
+			while(position < size) {
+				if(in.readInt() != RECORD_MAGIC) {
+					break;
+				}
+				byte type = in.readByte();
+				int uid = in.readInt();
+				long length = in.readLong();
+				long written = in.readLong();
+				String name = in.readUTF();
+
+				long offset = position + headerLength(name);
+				if((type != RECORD_ADD && type != RECORD_DELETE) || length < 0 || offset + length > size) {
+					break;
+				}
+				skipFully(in, length);
+
+				records.add(new Record(type, uid, offset, length, written, name));
+				position = offset + length;
+			}
+		} catch(EOFException e) {
+			//The last record is truncated
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the length of a record header with the given name, as written by
+	 * {@link #writeRecordHeader(FileChannel, byte, int, long, long, String)}.
+	 */
+	private static long headerLength(String name) {
+		//Magic, type, uid, length, written and the length of the name
+		long length = 4 + 1 + 4 + 8 + 8 + 2;
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c >= 0x0001 && c <= 0x007f) {
+				length += 1;
+			} else if(c <= 0x07ff) {
+				length += 2;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while(count > 0) {
+			long skipped = in.skip(count);
+			if(skipped <= 0) {
+				throw new EOFException();
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * Returns {@code true} if a segment older than the given one holds messages.
+	 */
+	private boolean hasOlderSegment(int segment) {
+		for(Integer other : liveBytes.keySet()) {
+			if(other.intValue() < segment) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes a new index file containing only the current messages. Must be called while holding
+	 * the lock.
+	 */
+	private void writeIndex() {
+		if(indexOut != null) {
+			try {
+				indexOut.close();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't close segment index " + indexFile + ": " + e.getMessage());
+			}
+			indexOut = null;
+		}
+
+		File tmpFile = new File(dir, INDEXTMPFILE);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				for(Map.Entry<Integer, Location> entry : locations.entrySet()) {
+					out.writeByte(RECORD_ADD);
+					out.writeInt(entry.getKey().intValue());
+					writeLocation(out, entry.getValue());
+				}
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write segment index " + tmpFile + ": " + e.getMessage(), e);
+			tmpFile.delete();
+			return;
+		}
+
+		try {
+			FileUtils.replace(tmpFile, indexFile);
+		} catch(IOException e) {
+			Logger.error(this, e.getMessage());
+			return;
+		}
+		indexRecords = locations.size();
+	}
+
+	private DataOutputStream getIndexStream() throws IOException {
+		if(indexOut == null) {
+			if(!indexFile.exists()) {
+				writeIndex();
+			}
+			indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+		}
+		return indexOut;
+	}
+
+	private Location getLocation(int uid) throws FileNotFoundException {
+		Location location = locations.get(Integer.valueOf(uid));
+		if(location == null) {
+			throw new FileNotFoundException("No message with uid " + uid + " in " + dir);
+		}
+		return location;
+	}
+
+	private RandomAccessFile getSegment(int segment) throws IOException {
+		RandomAccessFile f = segmentFiles.get(Integer.valueOf(segment));
+		if(f == null) {
+			f = new RandomAccessFile(getSegmentFile(segment), "rw");
+			segmentFiles.put(Integer.valueOf(segment), f);
+		}
+		return f;
+	}
+
+	private void addLiveBytes(int segment, long length) {
+		Long live = liveBytes.get(Integer.valueOf(segment));
+		liveBytes.put(Integer.valueOf(segment), Long.valueOf((live == null ? 0 : live.longValue()) + length));
+	}
+
+	private File getSegmentFile(int segment) {
+		return new File(dir, SEGMENT_PREFIX + segment);
+	}
+
+	private File getPendingFile(int uid) {
+		return new File(dir, PENDING_PREFIX + uid);
+	}
+
+	private static Location readLocation(DataInputStream in) throws IOException {
+		int segment = in.readInt();
+		long offset = in.readLong();
+		long length = in.readLong();
+		long written = in.readLong();
+		String name = in.readUTF();
+		return new Location(segment, offset, length, written, name);
+	}
+
+	private static void writeLocation(DataOutputStream out, Location location) throws IOException {
+		out.writeInt(location.segment);
+		out.writeLong(location.offset);
+		out.writeLong(location.length);
+		out.writeLong(location.written);
+		out.writeUTF(location.name);
+	}
+
+	private static class Location {
+		private final int segment;
+		private final long offset;
+		private final long length;
+		private final long written;
+		private final String name;
+
+		private Location(int segment, long offset, long length, long written, String name) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.written = written;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * A record header read from a segment.
+	 */
+	private static class Record {
+		private final byte type;
+		private final int uid;
+
+		/** The position of the message after the header */
+		private final long offset;
+		private final long length;
+		private final long written;
+		private final String name;
+
+		private Record(byte type, int uid, long offset, long length, long written, String name) {
+			this.type = type;
+			this.uid = uid;
+			this.offset = offset;
+			this.length = length;
+			this.written = written;
+			this.name = name;
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0) {
+				return 0;
+			}
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int)Math.min(Math.max(n, 0), buffer.remaining());
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
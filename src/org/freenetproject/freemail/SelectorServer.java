@@ -0,0 +1,771 @@
+/*
+ * SelectorServer.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.freenetproject.freemail.utils.FileTransferTarget;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Event driven front end shared by the IMAP and SMTP servers. A few selector threads wait for
+ * input on all the client connections and buffer what arrives, and a handler is only given a
+ * thread from the worker pool while it has received input to act on. Idle connections, which is
+ * most of them for IMAP, therefore don't need a thread each.
+ *
+ * The handlers are still written as if they were reading from a blocking stream, so the selector
+ * threads split the input into commands and a handler is only run once a command has arrived
+ * completely. A client that sends half a line therefore doesn't hold on to a worker. The exceptions
+ * are input that can't be split into commands, such as the literal of an IMAP command that the
+ * handler has to ask the client for or anything after COMPRESS, which is handed to the handler as
+ * it arrives. A worker waiting for such input gives up if nothing arrives for
+ * {@link #READ_TIMEOUT}, or if the client sends it slower than {@link #MIN_INPUT_RATE} once the
+ * worker has been waiting for {@link #READ_TIMEOUT} in total.
+ *
+ * Each listener has its own pool of workers, so e.g. slow SMTP clients can't hold all the workers
+ * and keep the IMAP clients waiting.
+ */
+public class SelectorServer {
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	/** Reading from a connection is paused while this much input is waiting to be handled */
+	private static final int MAX_BUFFERED_INPUT = 256 * 1024;
+
+	/** How long a read in the middle of a command may wait for more of it, in milliseconds */
+	private static final long READ_TIMEOUT = 60 * 1000;
+
+	/**
+	 * The slowest rate, in bytes per second, at which a worker waits for input that can't be split
+	 * into commands. A worker may wait for {@link #READ_TIMEOUT} in total, plus the time it takes
+	 * to receive what the client has sent at this rate.
+	 */
+	private static final long MIN_INPUT_RATE = 1024;
+
+	/** How long a write may wait for the client to accept more data, in milliseconds */
+	private static final long WRITE_TIMEOUT = 5 * 60 * 1000;
+
+	/** How often a waiting read or write checks whether the connection was closed, in milliseconds */
+	private static final long CLOSE_CHECK_INTERVAL = 1000;
+
+	private static final int MAX_WORKERS = 16;
+
+	private final SelectorThread[] selectors;
+	private final AtomicInteger nextSelector = new AtomicInteger();
+
+	/** The worker pool of each listener, created when it registers its first connection */
+	private final Map<ServerListener, ThreadPoolExecutor> workers = new HashMap<ServerListener, ThreadPoolExecutor>();
+	private final int workerCount;
+	private final ThreadFactory workerFactory;
+	private boolean shutDown = false;
+
+	public SelectorServer() throws IOException {
+		this(defaultSelectorCount(), MAX_WORKERS);
+	}
+
+	public SelectorServer(int selectorCount, int workerCount) throws IOException {
+		this(selectorCount, workerCount, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Freemail server worker " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates a server whose workers are created by {@code workerFactory}, e.g. to run the
+	 * handlers on virtual threads.
+	 * @param workerFactory creates the worker threads
+	 * @param workerCount the maximum number of workers of each listener
+	 * @throws IOException if a selector couldn't be opened
+	 */
+	public SelectorServer(ThreadFactory workerFactory, int workerCount) throws IOException {
+		this(defaultSelectorCount(), workerCount, workerFactory);
+	}
+
+	private SelectorServer(int selectorCount, int workerCount, ThreadFactory workerFactory) throws IOException {
+		selectors = new SelectorThread[selectorCount];
+		for(int i = 0; i < selectorCount; i++) {
+			selectors[i] = new SelectorThread(i);
+		}
+
+		this.workerCount = workerCount;
+		this.workerFactory = workerFactory;
+	}
+
+	private ThreadPoolExecutor getWorkers(ServerListener listener) {
+		synchronized(workers) {
+			ThreadPoolExecutor pool = workers.get(listener);
+			if(pool == null) {
+				//As for the executors in Freemail, the pool size varies even though the queue is
+				//unbounded because core threads are allowed to time out
+				pool = new ThreadPoolExecutor(workerCount, workerCount, 1, TimeUnit.MINUTES,
+						new LinkedBlockingQueue<Runnable>(), workerFactory);
+				pool.allowCoreThreadTimeOut(true);
+				if(shutDown) {
+					pool.shutdown();
+				}
+				workers.put(listener, pool);
+			}
+			return pool;
+		}
+	}
+
+	private static int defaultSelectorCount() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	public void start() {
+		for(SelectorThread selector : selectors) {
+			selector.start();
+		}
+	}
+
+	/**
+	 * Stops the selector threads and the worker pool. The connections should have been closed by
+	 * killing the listeners first.
+	 */
+	public void shutdown() {
+		for(SelectorThread selector : selectors) {
+			selector.shutdown();
+		}
+		synchronized(workers) {
+			shutDown = true;
+			for(ThreadPoolExecutor pool : workers.values()) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Starts serving a newly accepted connection, using a handler created by {@code listener}.
+	 * @param channel the connection
+	 * @param listener the listener that accepted the connection
+	 * @throws IOException if the connection couldn't be set up
+	 */
+	void register(SocketChannel channel, ServerListener listener) throws IOException {
+		channel.configureBlocking(false);
+
+		SelectorThread selector = selectors[(nextSelector.getAndIncrement() & Integer.MAX_VALUE) % selectors.length];
+		final Connection conn = new Connection(channel, selector, listener);
+		conn.handler = listener.createHandler(channel.socket(), conn.input, conn.output);
+		conn.handler.setExecutor(conn.executor);
+		conn.handler.setFramingStopper(new Runnable() {
+			@Override
+			public void run() {
+				conn.input.stopFraming();
+			}
+		});
+		listener.addHandler(conn.handler);
+
+		//The first run sends the greeting
+		conn.scheduled.set(true);
+		conn.submit();
+		selector.update(conn);
+	}
+
+	private class SelectorThread extends Thread {
+		private final Selector selector;
+
+		/** Connections that must be registered or whose interest set must be updated */
+		private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private volatile boolean stopped = false;
+
+		private SelectorThread(int number) throws IOException {
+			super("Freemail selector " + number);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!stopped) {
+					selector.select();
+
+					Connection conn;
+					while((conn = pending.poll()) != null) {
+						conn.updateInterest(selector);
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if(key.isValid() && key.isReadable()) {
+							((Connection)key.attachment()).read(key, readBuffer);
+						}
+					}
+				}
+			} catch(IOException e) {
+				Logger.error(this, "Selector failed: " + e.getMessage(), e);
+			} finally {
+				try {
+					selector.close();
+				} catch(IOException e) {
+					Logger.error(this, "Couldn't close selector: " + e.getMessage());
+				}
+			}
+		}
+
+		private void update(Connection conn) {
+			pending.add(conn);
+			selector.wakeup();
+		}
+
+		private void shutdown() {
+			stopped = true;
+			selector.wakeup();
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final SocketChannel channel;
+		private final SelectorThread selectorThread;
+		private final ServerListener listener;
+		private final ConnectionInput input;
+		private final ConnectionOutput output = new ConnectionOutput();
+		private final ThreadPoolExecutor executor;
+		private ServerHandler handler;
+
+		/** Set while the handler has been handed to the worker pool */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		/** Only used by the selector thread */
+		private SelectionKey key = null;
+
+		private Connection(SocketChannel channel, SelectorThread selectorThread, ServerListener listener) {
+			this.channel = channel;
+			this.selectorThread = selectorThread;
+			this.listener = listener;
+			this.input = new ConnectionInput(new CommandFramer(listener.usesLiterals()));
+			this.executor = getWorkers(listener);
+		}
+
+		/**
+		 * Registers the connection or updates its interest set. Called by the selector thread.
+		 */
+		private void updateInterest(Selector selector) {
+			if(!channel.isOpen()) {
+				return;
+			}
+
+			try {
+				if(key == null) {
+					key = channel.register(selector, 0, this);
+				}
+				key.interestOps((input.isFull() || input.isEnded()) ? 0 : SelectionKey.OP_READ);
+			} catch(ClosedChannelException e) {
+				//Closed in the meantime, the worker will clean up
+			}
+		}
+
+		/**
+		 * Reads what the client has sent. Called by the selector thread.
+		 */
+		private void read(SelectionKey selected, ByteBuffer buffer) {
+			buffer.clear();
+			int count;
+			try {
+				count = channel.read(buffer);
+			} catch(IOException e) {
+				count = -1;
+			}
+
+			if(count < 0) {
+				input.end();
+				selected.interestOps(0);
+			} else {
+				buffer.flip();
+				input.append(buffer);
+				if(input.isFull()) {
+					selected.interestOps(0);
+				}
+			}
+
+			//Only run the handler once it has something to act on
+			if((input.available() > 0 || input.isEnded()) && scheduled.compareAndSet(false, true)) {
+				submit();
+			}
+		}
+
+		private void submit() {
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				//Shutting down
+				close();
+			}
+		}
+
+		/**
+		 * Lets the handler act on the input that has arrived. Run by the worker pool.
+		 */
+		@Override
+		public void run() {
+			input.startRun();
+			boolean open = handler.handleReceivedCommands();
+			if(open && input.isEnded() && input.available() == 0) {
+				//The client is gone and everything it sent has been handled
+				open = false;
+			}
+			if(!open) {
+				close();
+				return;
+			}
+
+			//Input that arrived after the handler stopped looking must not be left waiting
+			scheduled.set(false);
+			if((input.available() > 0 || input.isEnded()) && scheduled.compareAndSet(false, true)) {
+				submit();
+			}
+		}
+
+		private void close() {
+			input.end();
+			try {
+				channel.close();
+			} catch(IOException e) {
+				Logger.debug(this, "Couldn't close connection: " + e.getMessage());
+			}
+			output.closeSelector();
+			if(handler != null) {
+				listener.removeHandler(handler);
+			}
+		}
+
+		/**
+		 * The input received from the client that the handler hasn't read yet. Only the input up to
+		 * the end of the last complete command is available to the handler.
+		 */
+		private class ConnectionInput extends InputStream {
+			/** Not a monitor, so a handler on a virtual thread doesn't pin its carrier while waiting */
+			private final ReentrantLock lock = new ReentrantLock();
+			private final Condition changed = lock.newCondition();
+
+			private final CommandFramer framer;
+			private byte[] data = new byte[READ_BUFFER_SIZE];
+			private int start = 0;
+			private int framed = 0;
+			private int end = 0;
+			private boolean framing = true;
+			private boolean ended = false;
+
+			/** How long the handler has waited for input during the current run, in milliseconds */
+			private long waited = 0;
+
+			/** The number of bytes the handler has read during the current run */
+			private long received = 0;
+
+			private ConnectionInput(CommandFramer framer) {
+				this.framer = framer;
+			}
+
+			private void append(ByteBuffer buffer) {
+				lock.lock();
+				try {
+					int count = buffer.remaining();
+					if(end + count > data.length) {
+						//Move the unread data to the front first, and grow the buffer if that isn't enough
+						System.arraycopy(data, start, data, 0, end - start);
+						framed -= start;
+						end -= start;
+						start = 0;
+						if(end + count > data.length) {
+							byte[] grown = new byte[Math.max(data.length * 2, end + count)];
+							System.arraycopy(data, 0, grown, 0, end);
+							data = grown;
+						}
+					}
+
+					buffer.get(data, end, count);
+					int boundary = framing ? framer.frame(data, end, count) : -1;
+					end += count;
+					if(!framing) {
+						framed = end;
+					} else if(boundary >= 0) {
+						framed = boundary;
+					}
+
+					if(framed == start && isFull()) {
+						//The command doesn't fit in the buffer, so let the handler read it as it arrives
+						framed = end;
+					}
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			private void end() {
+				lock.lock();
+				try {
+					ended = true;
+					framed = end;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			/**
+			 * Makes all input available to the handler as soon as it arrives, for when it can't be
+			 * split into commands any more.
+			 */
+			private void stopFraming() {
+				lock.lock();
+				try {
+					framing = false;
+					framed = end;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			/**
+			 * Resets the limit on how long the handler may wait for input, since it is being
+			 * given a worker again.
+			 */
+			private void startRun() {
+				lock.lock();
+				try {
+					waited = 0;
+					received = 0;
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			private boolean isEnded() {
+				lock.lock();
+				try {
+					return ended;
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			private boolean isFull() {
+				lock.lock();
+				try {
+					return end - start >= MAX_BUFFERED_INPUT;
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			@Override
+			public int available() {
+				lock.lock();
+				try {
+					return framed - start;
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				if(read(b, 0, 1) < 0) {
+					return -1;
+				}
+				return b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len == 0) {
+					return 0;
+				}
+
+				lock.lock();
+				try {
+					//Only reached in the middle of a command, since the handler isn't run before it
+					//has arrived. A client that keeps sending a little at a time mustn't hold on to
+					//the worker either, so the total wait is limited by how much has arrived
+					long waitStart = System.currentTimeMillis();
+					long deadline = waitStart + READ_TIMEOUT;
+					long totalDeadline = waitStart - waited + READ_TIMEOUT + received * 1000 / MIN_INPUT_RATE;
+					try {
+						while(framed == start) {
+							if(ended || !channel.isOpen()) {
+								return -1;
+							}
+							long now = System.currentTimeMillis();
+							if(now > deadline) {
+								throw new SocketTimeoutException("Timed out reading from client");
+							}
+							if(now > totalDeadline) {
+								throw new SocketTimeoutException("Client is sending too slowly");
+							}
+							try {
+								changed.await(CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+							} catch(InterruptedException e) {
+								throw new InterruptedIOException();
+							}
+						}
+					} finally {
+						waited += System.currentTimeMillis() - waitStart;
+					}
+
+					boolean wasFull = isFull();
+					int count = Math.min(len, framed - start);
+					System.arraycopy(data, start, b, off, count);
+					start += count;
+					received += count;
+					if(start == end) {
+						start = 0;
+						framed = 0;
+						end = 0;
+					}
+
+					if(wasFull && !isFull()) {
+						//Start reading from the client again
+						selectorThread.update(Connection.this);
+					}
+					return count;
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		/**
+		 * Writes to the non-blocking channel, waiting for it to become writable when the client
+		 * doesn't keep up. Files are sent to the channel directly, see {@link FileTransferTarget}.
+		 */
+		private class ConnectionOutput extends OutputStream implements FileTransferTarget {
+			private final ReentrantLock lock = new ReentrantLock();
+
+			/** Used to wait until the channel is writable, opened the first time it is needed */
+			private Selector writeSelector = null;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				write(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				lock.lock();
+				try {
+					int written = src.remaining();
+					while(src.hasRemaining()) {
+						if(channel.write(src) == 0) {
+							awaitWritable();
+						}
+					}
+					return written;
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			@Override
+			public void transferFrom(FileChannel file, long position, long count) throws IOException {
+				lock.lock();
+				try {
+					while(count > 0) {
+						long sent = file.transferTo(position, count, channel);
+						if(sent == 0) {
+							if(position >= file.size()) {
+								throw new EOFException("Reached end of file with " + count + " bytes left");
+							}
+							awaitWritable();
+						}
+						position += sent;
+						count -= sent;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			private void awaitWritable() throws IOException {
+				if(writeSelector == null) {
+					writeSelector = Selector.open();
+					channel.register(writeSelector, SelectionKey.OP_WRITE);
+				}
+
+				long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+				while(writeSelector.select(CLOSE_CHECK_INTERVAL) == 0) {
+					if(!channel.isOpen()) {
+						throw new ClosedChannelException();
+					}
+					if(System.currentTimeMillis() > deadline) {
+						throw new IOException("Timed out writing to client");
+					}
+				}
+				writeSelector.selectedKeys().clear();
+			}
+
+			private void closeSelector() {
+				lock.lock();
+				try {
+					if(writeSelector == null) {
+						return;
+					}
+
+					try {
+						writeSelector.close();
+					} catch(IOException e) {
+						Logger.debug(this, "Couldn't close selector: " + e.getMessage());
+					}
+					writeSelector = null;
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the ends of the commands in the input received from a client. Commands are lines, but
+	 * with IMAP a line that ends with a literal ({@code {n}} or {@code {n+}}) is continued after the
+	 * literal. The handler has to ask the client for a synchronizing literal ({@code {n}}), so the
+	 * line announcing it ends a command, and the literal is handed to the handler as it arrives.
+	 * Only used by the selector thread of the connection.
+	 */
+	private static class CommandFramer {
+		/** Literal lengths longer than this aren't recognized */
+		private static final int MAX_LENGTH_DIGITS = 18;
+
+		private static final int STATE_NONE = 0;
+		private static final int STATE_LENGTH = 1;
+		private static final int STATE_PLUS = 2;
+		private static final int STATE_BRACE = 3;
+		private static final int STATE_CR = 4;
+
+		private final boolean literals;
+
+		/** How far the end of the current line matches a literal announcement */
+		private int state = STATE_NONE;
+		private int digits;
+		private long length;
+		private boolean plus;
+
+		private long literalRemaining = 0;
+		private boolean synchronizing;
+
+		private CommandFramer(boolean literals) {
+			this.literals = literals;
+		}
+
+		/**
+		 * Looks for the ends of commands in newly received input.
+		 * @return the index after the last end of a command in {@code data[off, off + len)}, or -1
+		 */
+		private int frame(byte[] data, int off, int len) {
+			int boundary = -1;
+			int end = off + len;
+			int pos = off;
+			while(pos < end) {
+				if(literalRemaining > 0) {
+					int count = (int)Math.min(literalRemaining, end - pos);
+					pos += count;
+					literalRemaining -= count;
+					if(synchronizing) {
+						boundary = pos;
+					}
+					continue;
+				}
+
+				byte b = data[pos++];
+				if(b == '\n') {
+					boolean continued = false;
+					if(state == STATE_BRACE || state == STATE_CR) {
+						literalRemaining = length;
+						synchronizing = !plus;
+						continued = plus;
+					}
+					if(!continued) {
+						boundary = pos;
+					}
+					state = STATE_NONE;
+				} else if(literals) {
+					updateState(b);
+				}
+			}
+			return boundary;
+		}
+
+		private void updateState(byte b) {
+			if(b == '{') {
+				state = STATE_LENGTH;
+				digits = 0;
+				length = 0;
+				plus = false;
+			} else if(state == STATE_LENGTH && b >= '0' && b <= '9' && digits < MAX_LENGTH_DIGITS) {
+				length = length * 10 + (b - '0');
+				digits++;
+			} else if(state == STATE_LENGTH && b == '+' && digits > 0) {
+				state = STATE_PLUS;
+				plus = true;
+			} else if(b == '}' && ((state == STATE_LENGTH && digits > 0) || state == STATE_PLUS)) {
+				state = STATE_BRACE;
+			} else if(b == '\r' && state == STATE_BRACE) {
+				state = STATE_CR;
+			} else {
+				state = STATE_NONE;
+			}
+		}
+	}
+}
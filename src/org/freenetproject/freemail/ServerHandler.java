@@ -21,11 +21,36 @@ package org.freenetproject.freemail;
 
 import java.net.Socket;
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Base class of the IMAP and SMTP connection handlers. A handler can either be run by a thread of
+ * its own using {@link Runnable#run()}, or be driven by a {@link SelectorServer}, which calls
+ * {@link #handleReceivedCommands()} whenever the client has sent something.
+ */
 public abstract class ServerHandler {
+	/** Runs the background tasks of handlers that aren't driven by a {@link SelectorServer} */
+	private static final Executor backgroundExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Freemail server task");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	protected final Socket client;
 	protected volatile boolean stopping = false;
 
+	private volatile Executor executor = backgroundExecutor;
+	private volatile Runnable framingStopper = null;
+	private boolean started = false;
+
 	public ServerHandler(Socket c) {
 		client = c;
 	}
@@ -42,4 +67,83 @@ public abstract class ServerHandler {
 
 		}
 	}
+
+	/**
+	 * Sends the greeting to the client.
+	 */
+	protected abstract void start();
+
+	/**
+	 * Reads and handles a single command, waiting for it to arrive if needed.
+	 * @return {@code false} if the client has closed the connection
+	 * @throws IOException if reading from or writing to the client fails
+	 */
+	protected abstract boolean handleCommand() throws IOException;
+
+	/**
+	 * Returns {@code true} if some input from the client has been received but not handled yet.
+	 * @throws IOException if reading from the client fails
+	 */
+	protected abstract boolean hasPendingInput() throws IOException;
+
+	/**
+	 * Sends the greeting the first time it is called, then handles the commands that have been
+	 * received so far. The rest of a command that has only partly arrived is waited for, but the
+	 * next command isn't.
+	 * @return {@code false} if the connection should be closed
+	 */
+	boolean handleReceivedCommands() {
+		try {
+			if(!started) {
+				started = true;
+				start();
+			}
+
+			while(!stopping && !client.isClosed() && hasPendingInput()) {
+				if(!handleCommand()) {
+					return false;
+				}
+			}
+		} catch (IOException ioe) {
+			Logger.debug(this, "Caught IOException while handling client: " + ioe.getMessage());
+			return false;
+		}
+
+		return !stopping && !client.isClosed();
+	}
+
+	void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	void setFramingStopper(Runnable framingStopper) {
+		this.framingStopper = framingStopper;
+	}
+
+	/**
+	 * Tells the {@link SelectorServer} driving the handler, if any, that the input can't be split
+	 * into commands any more, e.g. because it is compressed from now on. The handler is then given
+	 * the input as soon as it arrives.
+	 */
+	protected void stopFraming() {
+		Runnable stopper = framingStopper;
+		if(stopper != null) {
+			stopper.run();
+		}
+	}
+
+	/**
+	 * Runs a task in the background, e.g. to send updates to a client while waiting for its next
+	 * command. The task is run by the worker pool when the handler is driven by a
+	 * {@link SelectorServer}.
+	 * @param task the task to run
+	 */
+	protected void execute(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch(RejectedExecutionException ree) {
+			//The server is shutting down
+			Logger.debug(this, "Couldn't run background task: " + ree.getMessage());
+		}
+	}
 }
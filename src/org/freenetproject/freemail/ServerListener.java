@@ -20,18 +20,25 @@
 package org.freenetproject.freemail;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import org.freenetproject.freemail.utils.Logger;
+
 public abstract class ServerListener {
 	protected ServerSocket sock;
 	private final ArrayList<ServerHandler> handlers;
-	private final ArrayList<Thread> handlerThreads;
 
 	protected ServerListener() {
 		handlers = new ArrayList<ServerHandler>();
-		handlerThreads = new ArrayList<Thread>();
 	}
 
 	/**
@@ -53,46 +60,61 @@ public abstract class ServerListener {
 	}
 
 	/**
-	 * Wait for all our client threads to terminate
+	 * Accepts connections on the given address until {@link #kill()} is called, and hands them
+	 * to {@code server}.
+	 * @param server the server that handles the connections
+	 * @param bindaddress the address to listen on
+	 * @param bindport the port to listen on
+	 * @throws IOException if the address couldn't be bound
 	 */
-	public void joinClientThreads() {
-		for(Iterator<Thread> i = handlerThreads.iterator(); i.hasNext(); ) {
-			Thread t = i.next();
-			while(t != null) {
-				try {
-					t.join();
-					t = null;
-				} catch (InterruptedException ie) {
+	protected void acceptConnections(SelectorServer server, String bindaddress, int bindport) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		sock = channel.socket();
+		sock.bind(new InetSocketAddress(InetAddress.getByName(bindaddress), bindport), 10);
 
+		while(!sock.isClosed()) {
+			try {
+				SocketChannel client = channel.accept();
+				try {
+					server.register(client, this);
+				} catch (IOException ioe) {
+					Logger.error(this, "Couldn't set up connection: " + ioe.getMessage());
+					client.close();
 				}
+			} catch (IOException ioe) {
+
 			}
 		}
 	}
 
-	protected void addHandler(ServerHandler hdlr, Thread thrd) {
+	/**
+	 * Creates the handler for a new connection.
+	 * @param client the socket of the connection
+	 * @param in the stream to read from the client with
+	 * @param out the stream to write to the client with
+	 * @return the new handler
+	 * @throws IOException if the handler couldn't be created
+	 */
+	protected abstract ServerHandler createHandler(Socket client, InputStream in, OutputStream out) throws IOException;
+
+	/**
+	 * Returns {@code true} if the commands of the protocol can contain IMAP literals, so that a
+	 * {@link SelectorServer} knows that a line ending with {@code {n}} or {@code {n+}} is continued
+	 * after the literal.
+	 */
+	protected boolean usesLiterals() {
+		return false;
+	}
+
+	void addHandler(ServerHandler hdlr) {
 		synchronized(handlers) {
 			handlers.add(hdlr);
 		}
-		handlerThreads.add(thrd);
 	}
 
-	protected void reapHandlers() {
-		// clean up dead handlers...
+	void removeHandler(ServerHandler hdlr) {
 		synchronized(handlers) {
-			for(Iterator<ServerHandler> i = handlers.iterator(); i.hasNext(); ) {
-				ServerHandler handler = i.next();
-				if(!handler.isAlive()) {
-					i.remove();
-				}
-			}
-		}
-
-		// ...and threads...
-		for(Iterator<Thread> i = handlerThreads.iterator(); i.hasNext(); ) {
-			Thread t = i.next();
-			if(!t.isAlive()) {
-				i.remove();
-			}
+			handlers.remove(hdlr);
 		}
 	}
 }
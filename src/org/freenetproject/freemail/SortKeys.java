@@ -0,0 +1,321 @@
+/*
+ * SortKeys.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The values used to sort and thread the messages of a folder (RFC 5256), taken from the headers
+ * once when a message is added to the folder and kept in the folder index, so that sorting
+ * doesn't have to open any of the messages.
+ */
+public final class SortKeys {
+	/** Longest string that is kept. Only the start matters when sorting, so longer ones are cut */
+	private static final int MAX_LENGTH = 256;
+
+	/** Most references that are kept, the nearest ancestors are the ones that matter */
+	private static final int MAX_REFERENCES = 32;
+
+	/** The sent date in milliseconds since the epoch, or the internal date if it isn't known */
+	public final long date;
+
+	/** The base subject in lower case, see {@link #baseSubject(String)} */
+	public final String subject;
+
+	/** Set if the subject shows that the message is a reply or forward */
+	public final boolean reply;
+
+	/** The mailbox (local part) of the first From address in lower case, or "" if there is none */
+	public final String from;
+
+	/** The mailbox of the first To address in lower case, or "" if there is none */
+	public final String to;
+
+	/** The mailbox of the first Cc address in lower case, or "" if there is none */
+	public final String cc;
+
+	/** The Message-ID without the angle brackets, or {@code null} if there is none */
+	public final String messageId;
+
+	/** The ids in References, or In-Reply-To if there is no References header, oldest first */
+	public final String[] references;
+
+	private SortKeys(long date, String subject, boolean reply, String from, String to, String cc,
+			String messageId, String[] references) {
+		this.date = date;
+		this.subject = subject;
+		this.reply = reply;
+		this.from = from;
+		this.to = to;
+		this.cc = cc;
+		this.messageId = messageId;
+		this.references = references;
+	}
+
+	/**
+	 * Extracts the sort keys from the headers of a message. The headers must have been read.
+	 * @param msg the message
+	 * @param internalDate the time the message was added to the folder, used if the Date header
+	 *                     is missing or can't be parsed
+	 * @return the sort keys of the message
+	 */
+	static SortKeys fromMessage(MailMessage msg, long internalDate) {
+		Date sent = MailMessage.parseDate(msg.getFirstHeader("Date"));
+
+		String subject = decode(msg.getFirstHeader("Subject"));
+		boolean[] reply = new boolean[1];
+		subject = truncate(extractBaseSubject(subject, reply).toLowerCase(Locale.ROOT));
+
+		String[] references = parseIds(msg.getFirstHeader("References"));
+		if(references.length == 0) {
+			references = parseIds(msg.getFirstHeader("In-Reply-To"));
+			if(references.length > 1) {
+				references = new String[] {references[0]};
+			}
+		}
+		String[] ids = parseIds(msg.getFirstHeader("Message-ID"));
+
+		return new SortKeys((sent != null) ? sent.getTime() : internalDate, subject, reply[0],
+				mailbox(msg.getFirstHeader("From")), mailbox(msg.getFirstHeader("To")),
+				mailbox(msg.getFirstHeader("Cc")), (ids.length > 0) ? ids[0] : null, references);
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeLong(date);
+		out.writeUTF(subject);
+		out.writeBoolean(reply);
+		out.writeUTF(from);
+		out.writeUTF(to);
+		out.writeUTF(cc);
+		out.writeBoolean(messageId != null);
+		if(messageId != null) {
+			out.writeUTF(messageId);
+		}
+		out.writeShort(references.length);
+		for(String reference : references) {
+			out.writeUTF(reference);
+		}
+	}
+
+	static SortKeys read(DataInputStream in) throws IOException {
+		long date = in.readLong();
+		String subject = in.readUTF();
+		boolean reply = in.readBoolean();
+		String from = in.readUTF();
+		String to = in.readUTF();
+		String cc = in.readUTF();
+		String messageId = in.readBoolean() ? in.readUTF() : null;
+		String[] references = new String[in.readShort()];
+		for(int i = 0; i < references.length; i++) {
+			references[i] = in.readUTF();
+		}
+		return new SortKeys(date, subject, reply, from, to, cc, messageId, references);
+	}
+
+	/**
+	 * Returns the base subject of the given subject as defined by RFC 5256 section 2.1, which is
+	 * the subject without reply and forward markers such as "Re:", "Fwd:" and "(fwd)", and
+	 * without leading [tags].
+	 * @param subject the decoded subject
+	 * @return the base subject
+	 */
+	public static String baseSubject(String subject) {
+		return extractBaseSubject(subject, new boolean[1]);
+	}
+
+	private static String extractBaseSubject(String subject, boolean[] reply) {
+		if(subject == null) {
+			return "";
+		}
+
+		String s = subject.replaceAll("\\s+", " ").trim();
+		while(true) {
+			//Remove trailing (fwd)
+			while(s.toLowerCase(Locale.ROOT).endsWith("(fwd)")) {
+				s = s.substring(0, s.length() - "(fwd)".length()).trim();
+				reply[0] = true;
+			}
+
+			//Remove leading Re: and Fwd: and [tags], but not a tag that is all there is
+			boolean removed = true;
+			while(removed) {
+				removed = false;
+				int end = replyMarkerEnd(s);
+				if(end >= 0) {
+					s = s.substring(end).trim();
+					reply[0] = true;
+					removed = true;
+				} else {
+					end = blobEnd(s, 0);
+					if(end >= 0 && s.substring(end).trim().length() > 0) {
+						s = s.substring(end).trim();
+						removed = true;
+					}
+				}
+			}
+
+			String lower = s.toLowerCase(Locale.ROOT);
+			if(lower.startsWith("[fwd:") && s.endsWith("]")) {
+				s = s.substring("[fwd:".length(), s.length() - 1).trim();
+				reply[0] = true;
+				continue;
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Returns the position after a leading "re:", "fw:" or "fwd:", which may have a [tag] before
+	 * the colon, or -1 if {@code s} doesn't start with one.
+	 */
+	private static int replyMarkerEnd(String s) {
+		String lower = s.toLowerCase(Locale.ROOT);
+		int pos;
+		if(lower.startsWith("re")) {
+			pos = 2;
+		} else if(lower.startsWith("fwd")) {
+			pos = 3;
+		} else if(lower.startsWith("fw")) {
+			pos = 2;
+		} else {
+			return -1;
+		}
+
+		pos = skipSpaces(s, pos);
+		int blob = blobEnd(s, pos);
+		if(blob >= 0) {
+			pos = blob;
+		}
+		if(pos < s.length() && s.charAt(pos) == ':') {
+			return pos + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the position after a [tag] starting at {@code pos} and the spaces that follow it, or
+	 * -1 if there is none.
+	 */
+	private static int blobEnd(String s, int pos) {
+		if(pos >= s.length() || s.charAt(pos) != '[') {
+			return -1;
+		}
+		for(int i = pos + 1; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '[') {
+				return -1;
+			}
+			if(c == ']') {
+				return skipSpaces(s, i + 1);
+			}
+		}
+		return -1;
+	}
+
+	private static int skipSpaces(String s, int pos) {
+		while(pos < s.length() && s.charAt(pos) == ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the mailbox (the part before the @) of the first address in an address header.
+	 */
+	static String mailbox(String header) {
+		header = decode(header);
+		if(header == null) {
+			return "";
+		}
+
+		String address;
+		int start = header.indexOf('<');
+		int end = (start >= 0) ? header.indexOf('>', start) : -1;
+		if(end >= 0) {
+			address = header.substring(start + 1, end);
+		} else {
+			int comma = header.indexOf(',');
+			address = (comma >= 0) ? header.substring(0, comma) : header;
+		}
+
+		int at = address.lastIndexOf('@');
+		if(at >= 0) {
+			address = address.substring(0, at);
+		}
+		return truncate(address.trim().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns the message ids in a header such as References, without the angle brackets. Only
+	 * the last {@link #MAX_REFERENCES} ids are kept.
+	 */
+	static String[] parseIds(String header) {
+		List<String> ids = new ArrayList<String>();
+		if(header == null) {
+			return new String[0];
+		}
+
+		int pos = 0;
+		while(true) {
+			int start = header.indexOf('<', pos);
+			if(start < 0) {
+				break;
+			}
+			int end = header.indexOf('>', start);
+			if(end < 0) {
+				break;
+			}
+
+			String id = header.substring(start + 1, end).trim();
+			if(id.length() > 0 && id.length() <= MAX_LENGTH) {
+				ids.add(id);
+			}
+			pos = end + 1;
+		}
+
+		if(ids.size() > MAX_REFERENCES) {
+			ids = ids.subList(ids.size() - MAX_REFERENCES, ids.size());
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+
+	private static String decode(String header) {
+		if(header == null) {
+			return null;
+		}
+
+		try {
+			return MailMessage.decodeHeader(header);
+		} catch(UnsupportedEncodingException e) {
+			return header;
+		}
+	}
+
+	private static String truncate(String s) {
+		return (s.length() > MAX_LENGTH) ? s.substring(0, MAX_LENGTH) : s;
+	}
+}
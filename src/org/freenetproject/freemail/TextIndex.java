@@ -0,0 +1,659 @@
+/*
+ * TextIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.freenetproject.freemail.utils.FileUtils;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Inverted index of the words in the messages of a single folder, used to answer the BODY and
+ * TEXT search keys without reading every message. The words of the decoded headers and the
+ * decoded body are kept separately, each mapping a word to the uids of the messages that contain
+ * it.
+ *
+ * Messages are added when they are stored in the folder and removed when they are deleted. The
+ * index is kept in a file in the folder that is only read the first time the folder is searched;
+ * until then additions and removals are just appended to it. Messages that are missing from it
+ * (e.g. written by older versions, or copied from a folder whose index wasn't in memory) are
+ * indexed when they are first searched.
+ *
+ * Search strings match substrings of the text like the IMAP SEARCH command requires. A search
+ * string that is a single word is answered from the index alone by matching it against the known
+ * words. Other search strings are used to narrow down the messages that are then read to check the
+ * match.
+ */
+class TextIndex {
+	private static final String INDEXFILE = ".textindex";
+	private static final String INDEXTMPFILE = ".textindex-tmp";
+
+	private static final int MAGIC = 0x464d5449; //"FMTI"
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_ADD = 'A';
+	private static final byte RECORD_REMOVE = 'R';
+
+	/** Longer words aren't indexed, and the messages containing them are always read when searched */
+	private static final int MAX_WORD_LENGTH = 64;
+
+	/** The minimum number of dead records before the index file is compacted */
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	private final File dir;
+	private final File indexFile;
+
+	/** The words of the headers and bodies, or {@code null} before the file has been read */
+	private Map<String, Postings> headerWords = null;
+	private Map<String, Postings> bodyWords = null;
+
+	/** The uids of the messages in the index */
+	private final BitSet indexed = new BitSet();
+
+	/** The uids of the messages containing words that were too long to be indexed */
+	private final BitSet longWords = new BitSet();
+
+	private int liveRecords = 0;
+	private int deadRecords = 0;
+	private DataOutputStream out = null;
+
+	TextIndex(File dir) {
+		this.dir = dir;
+		this.indexFile = new File(dir, INDEXFILE);
+	}
+
+	/**
+	 * Adds the words of the given message to the index. The headers of the message are read if
+	 * they haven't been already.
+	 * @param msg the message to add
+	 * @return {@code false} if the message couldn't be read
+	 */
+	boolean add(MailMessage msg) {
+		Set<String> header = new HashSet<String>();
+		Set<String> body = new HashSet<String>();
+		boolean tooLong;
+		try {
+			msg.readHeaders();
+			tooLong = addWords(getHeaderText(msg), header);
+
+			BufferedReader reader = msg.getBodyReader();
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					tooLong |= addWords(line, body);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't index " + msg + ": " + e.getMessage());
+			return false;
+		}
+
+		add(msg.getUID(), header, body, tooLong);
+		return true;
+	}
+
+	/**
+	 * Adds the message {@code uid} of {@code source} to this index as {@code copyUid}, using the
+	 * words that are already indexed for it instead of reading the copy.
+	 * @return {@code false} if the message isn't in the source index, or the source index hasn't
+	 *         been read yet
+	 */
+	boolean copy(TextIndex source, int uid, int copyUid) {
+		Set<String> header = new HashSet<String>();
+		Set<String> body = new HashSet<String>();
+		boolean tooLong;
+		synchronized(source) {
+			if(source.headerWords == null || !source.indexed.get(uid)) {
+				return false;
+			}
+			getWords(source.headerWords, uid, header);
+			getWords(source.bodyWords, uid, body);
+			tooLong = source.longWords.get(uid);
+		}
+
+		add(copyUid, header, body, tooLong);
+		return true;
+	}
+
+	synchronized void remove(int uid) {
+		if(headerWords != null) {
+			if(!indexed.get(uid)) {
+				return;
+			}
+
+			indexed.clear(uid);
+			longWords.clear(uid);
+			liveRecords--;
+
+			//Both the add record and the remove record are dead now
+			deadRecords += 2;
+			if(deadRecords > Math.max(MIN_COMPACT_RECORDS, liveRecords)) {
+				rewrite();
+				return;
+			}
+		}
+
+		try {
+			DataOutputStream stream = getOutputStream();
+			stream.writeByte(RECORD_REMOVE);
+			stream.writeInt(uid);
+			stream.flush();
+		} catch(IOException e) {
+			writeFailed(e);
+		}
+	}
+
+	/**
+	 * Finds the messages that contain the given string, ignoring case.
+	 * @param messages the messages that should be searched
+	 * @param searchString the string to search for
+	 * @param includeHeaders {@code true} if the headers should be searched as well as the body
+	 * @return the uids of the matching messages
+	 */
+	BitSet search(Collection<MailMessage> messages, String searchString, boolean includeHeaders) {
+		String query = searchString.toLowerCase(Locale.ROOT);
+
+		//Index any messages we haven't seen yet, and keep track of those that can't be indexed
+		List<MailMessage> unindexed = new LinkedList<MailMessage>();
+		for(MailMessage msg : messages) {
+			if(!isIndexed(msg.getUID()) && !add(msg)) {
+				unindexed.add(msg);
+			}
+		}
+
+		List<String> words = new ArrayList<String>();
+		addWords(query, words);
+		boolean exact = words.size() == 1 && words.get(0).length() == query.length();
+
+		BitSet candidates = new BitSet();
+		BitSet mustRead;
+		synchronized(this) {
+			if(!load()) {
+				mustRead = new BitSet();
+				for(MailMessage msg : messages) {
+					mustRead.set(msg.getUID());
+				}
+			} else if(words.isEmpty()) {
+				//Nothing we can look up, so every message must be read
+				mustRead = (BitSet)indexed.clone();
+			} else {
+				for(int i = 0; i < words.size(); i++) {
+					BitSet matches = findWord(words.get(i), includeHeaders);
+					if(i == 0) {
+						candidates = matches;
+					} else {
+						candidates.and(matches);
+					}
+				}
+
+				//Messages with long words might contain the string in a word that wasn't indexed
+				mustRead = (BitSet)longWords.clone();
+				if(!exact) {
+					mustRead.or(candidates);
+					candidates.clear();
+				}
+			}
+		}
+
+		for(MailMessage msg : unindexed) {
+			mustRead.set(msg.getUID());
+		}
+
+		BitSet result = new BitSet();
+		for(MailMessage msg : messages) {
+			int uid = msg.getUID();
+			if(candidates.get(uid) || (mustRead.get(uid) && contains(msg, query, includeHeaders))) {
+				result.set(uid);
+			}
+		}
+		return result;
+	}
+
+	synchronized void close() {
+		closeOutputStream();
+		headerWords = null;
+		bodyWords = null;
+		indexed.clear();
+		longWords.clear();
+	}
+
+	private synchronized boolean isIndexed(int uid) {
+		return load() && indexed.get(uid);
+	}
+
+	private synchronized void add(int uid, Set<String> header, Set<String> body, boolean tooLong) {
+		if(headerWords != null) {
+			if(indexed.get(uid)) {
+				//Indexed by another thread in the mean time
+				return;
+			}
+			addToMemory(uid, header, body, tooLong);
+		}
+
+		try {
+			DataOutputStream stream = getOutputStream();
+			stream.writeByte(RECORD_ADD);
+			stream.writeInt(uid);
+			writeMessage(stream, header, body, tooLong);
+			stream.flush();
+		} catch(IOException e) {
+			writeFailed(e);
+		}
+	}
+
+	/**
+	 * Recovers from a failed append, which might have left a partial record at the end of the file.
+	 */
+	private void writeFailed(IOException e) {
+		Logger.error(this, "Couldn't write text index " + indexFile + ": " + e.getMessage());
+		if(headerWords != null) {
+			rewrite();
+			return;
+		}
+
+		closeOutputStream();
+		//Reading the file drops the partial record
+		load();
+	}
+
+	private void addToMemory(int uid, Collection<String> header, Collection<String> body, boolean tooLong) {
+		for(String word : header) {
+			getPostings(headerWords, word).add(uid);
+		}
+		for(String word : body) {
+			getPostings(bodyWords, word).add(uid);
+		}
+		indexed.set(uid);
+		longWords.set(uid, tooLong);
+		liveRecords++;
+	}
+
+	private BitSet findWord(String word, boolean includeHeaders) {
+		BitSet matches = new BitSet();
+		for(Map.Entry<String, Postings> entry : bodyWords.entrySet()) {
+			if(entry.getKey().contains(word)) {
+				entry.getValue().addTo(matches);
+			}
+		}
+		if(includeHeaders) {
+			for(Map.Entry<String, Postings> entry : headerWords.entrySet()) {
+				if(entry.getKey().contains(word)) {
+					entry.getValue().addTo(matches);
+				}
+			}
+		}
+
+		//Deleted messages are only removed from the postings when the index is rewritten
+		matches.and(indexed);
+		return matches;
+	}
+
+	/**
+	 * Checks if the message contains the string by reading it.
+	 */
+	private boolean contains(MailMessage msg, String query, boolean includeHeaders) {
+		try {
+			msg.readHeaders();
+			if(includeHeaders && getHeaderText(msg).toLowerCase(Locale.ROOT).contains(query)) {
+				return true;
+			}
+
+			BufferedReader reader = msg.getBodyReader();
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(line.toLowerCase(Locale.ROOT).contains(query)) {
+						return true;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't search " + msg + ": " + e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the index file if that hasn't been done already.
+	 * @return {@code true} if the index is available
+	 */
+	private boolean load() {
+		if(headerWords != null) {
+			return true;
+		}
+
+		headerWords = new HashMap<String, Postings>();
+		bodyWords = new HashMap<String, Postings>();
+		indexed.clear();
+		longWords.clear();
+		liveRecords = 0;
+		deadRecords = 0;
+		if(!indexFile.exists()) {
+			return true;
+		}
+
+		boolean damaged = false;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Unknown text index format");
+				}
+
+				int type;
+				while((type = in.read()) != -1) {
+					int uid = in.readInt();
+					if(type == RECORD_ADD) {
+						boolean tooLong = in.readBoolean();
+						List<String> header = readWords(in);
+						List<String> body = readWords(in);
+						if(indexed.get(uid)) {
+							deadRecords++;
+							liveRecords--;
+						}
+						addToMemory(uid, header, body, tooLong);
+					} else if(type == RECORD_REMOVE) {
+						if(indexed.get(uid)) {
+							indexed.clear(uid);
+							longWords.clear(uid);
+							liveRecords--;
+							deadRecords++;
+						}
+						deadRecords++;
+					} else {
+						throw new IOException("Unknown record type " + type);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch(EOFException e) {
+			//Crashed while writing the last record, the rest is fine
+			damaged = true;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read text index " + indexFile + ", discarding it: " + e.getMessage());
+			indexFile.delete();
+			headerWords.clear();
+			bodyWords.clear();
+			indexed.clear();
+			longWords.clear();
+			liveRecords = 0;
+			deadRecords = 0;
+			return true;
+		}
+
+		if(damaged || deadRecords > Math.max(MIN_COMPACT_RECORDS, liveRecords)) {
+			rewrite();
+		}
+		return true;
+	}
+
+	private void closeOutputStream() {
+		if(out != null) {
+			try {
+				out.close();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't close text index " + indexFile + ": " + e.getMessage());
+			}
+			out = null;
+		}
+	}
+
+	private DataOutputStream getOutputStream() throws IOException {
+		if(out == null) {
+			if(!indexFile.exists()) {
+				DataOutputStream header = new DataOutputStream(new FileOutputStream(indexFile));
+				try {
+					header.writeInt(MAGIC);
+					header.writeInt(VERSION);
+				} finally {
+					header.close();
+				}
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+		}
+		return out;
+	}
+
+	/**
+	 * Rewrites the index file from memory, leaving out removed messages. If that fails the index
+	 * is discarded and will be rebuilt when the folder is searched.
+	 */
+	private void rewrite() {
+		closeOutputStream();
+
+		//Turn the postings back into the words of each message
+		Map<Integer, List<String>> header = invert(headerWords);
+		Map<Integer, List<String>> body = invert(bodyWords);
+
+		File tmpFile = new File(dir, INDEXTMPFILE);
+		try {
+			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				stream.writeInt(MAGIC);
+				stream.writeInt(VERSION);
+				for(int uid = indexed.nextSetBit(0); uid >= 0; uid = indexed.nextSetBit(uid + 1)) {
+					stream.writeByte(RECORD_ADD);
+					stream.writeInt(uid);
+					writeMessage(stream, header.get(Integer.valueOf(uid)), body.get(Integer.valueOf(uid)),
+							longWords.get(uid));
+				}
+			} finally {
+				stream.close();
+			}
+
+			FileUtils.replace(tmpFile, indexFile);
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't rewrite text index " + indexFile + ", discarding it: " + e.getMessage());
+			tmpFile.delete();
+			indexFile.delete();
+			indexed.clear();
+		}
+
+		//Rebuild the postings without the removed messages
+		BitSet live = (BitSet)indexed.clone();
+		BitSet tooLong = (BitSet)longWords.clone();
+		headerWords.clear();
+		bodyWords.clear();
+		indexed.clear();
+		longWords.clear();
+		liveRecords = 0;
+		deadRecords = 0;
+		for(int uid = live.nextSetBit(0); uid >= 0; uid = live.nextSetBit(uid + 1)) {
+			List<String> h = header.get(Integer.valueOf(uid));
+			List<String> b = body.get(Integer.valueOf(uid));
+			addToMemory(uid, h == null ? new LinkedList<String>() : h, b == null ? new LinkedList<String>() : b,
+					tooLong.get(uid));
+		}
+	}
+
+	private Map<Integer, List<String>> invert(Map<String, Postings> words) {
+		Map<Integer, List<String>> messages = new HashMap<Integer, List<String>>();
+		for(Map.Entry<String, Postings> entry : words.entrySet()) {
+			Postings postings = entry.getValue();
+			for(int i = 0; i < postings.size; i++) {
+				int uid = postings.uids[i];
+				if(!indexed.get(uid)) {
+					continue;
+				}
+
+				List<String> list = messages.get(Integer.valueOf(uid));
+				if(list == null) {
+					list = new ArrayList<String>();
+					messages.put(Integer.valueOf(uid), list);
+				}
+				list.add(entry.getKey());
+			}
+		}
+		return messages;
+	}
+
+	private static void getWords(Map<String, Postings> words, int uid, Collection<String> result) {
+		for(Map.Entry<String, Postings> entry : words.entrySet()) {
+			if(entry.getValue().contains(uid)) {
+				result.add(entry.getKey());
+			}
+		}
+	}
+
+	private static Postings getPostings(Map<String, Postings> words, String word) {
+		Postings postings = words.get(word);
+		if(postings == null) {
+			postings = new Postings();
+			words.put(word, postings);
+		}
+		return postings;
+	}
+
+	private static void writeMessage(DataOutputStream stream, Collection<String> header, Collection<String> body,
+			boolean tooLong) throws IOException {
+		stream.writeBoolean(tooLong);
+		writeWords(stream, header);
+		writeWords(stream, body);
+	}
+
+	private static void writeWords(DataOutputStream stream, Collection<String> words) throws IOException {
+		if(words == null) {
+			stream.writeInt(0);
+			return;
+		}
+
+		stream.writeInt(words.size());
+		for(String word : words) {
+			stream.writeUTF(word);
+		}
+	}
+
+	private static List<String> readWords(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> words = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++) {
+			words.add(in.readUTF());
+		}
+		return words;
+	}
+
+	/**
+	 * Returns the headers of the message with encoded words decoded, one header per line.
+	 */
+	private static String getHeaderText(MailMessage msg) {
+		StringBuilder text = new StringBuilder();
+		String[] headers = msg.getHeaderArray();
+		for(int i = 0; i < headers.length; i += 2) {
+			String value = headers[i + 1];
+			try {
+				value = MailMessage.decodeHeader(value);
+			} catch(UnsupportedEncodingException e) {
+				//Search the raw value instead
+			} catch(RuntimeException e) {
+				//Malformed encoded word, search the raw value instead
+			}
+			text.append(headers[i]).append(": ").append(value).append("\n");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Splits the text into lower case words and adds them to {@code words}.
+	 * @return {@code true} if any of the words were too long to be added
+	 */
+	static boolean addWords(String text, Collection<String> words) {
+		boolean tooLong = false;
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if(wordChar && start == -1) {
+				start = i;
+			} else if(!wordChar && start != -1) {
+				if(i - start > MAX_WORD_LENGTH) {
+					tooLong = true;
+				} else {
+					words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				}
+				start = -1;
+			}
+		}
+		return tooLong;
+	}
+
+	/**
+	 * Sorted list of the uids of the messages containing a word.
+	 */
+	private static class Postings {
+		private int[] uids = new int[2];
+		private int size = 0;
+
+		private void add(int uid) {
+			if(size > 0 && uids[size - 1] >= uid) {
+				int index = Arrays.binarySearch(uids, 0, size, uid);
+				if(index >= 0) {
+					return;
+				}
+				insert(-index - 1, uid);
+				return;
+			}
+			insert(size, uid);
+		}
+
+		private boolean contains(int uid) {
+			return Arrays.binarySearch(uids, 0, size, uid) >= 0;
+		}
+
+		private void insert(int index, int uid) {
+			if(size == uids.length) {
+				uids = Arrays.copyOf(uids, size * 2);
+			}
+			System.arraycopy(uids, index, uids, index + 1, size - index);
+			uids[index] = uid;
+			size++;
+		}
+
+		private void addTo(BitSet set) {
+			for(int i = 0; i < size; i++) {
+				set.set(uids[i]);
+			}
+		}
+	}
+}
@@ -44,6 +44,7 @@ public class Configurator {
 	public static final String SMTP_BIND_PORT = "smtp_bind_port";
 	public static final String TEMP_DIR = "tempdir";
 	public static final String FILE_FORMAT = "fileformat";
+	public static final String VIRTUAL_THREADS = "virtual_threads";
 
 	private final PropsFile props;
 	private final HashMap<String, ConfigClient> callbacks;
@@ -29,6 +29,8 @@ import java.io.FileNotFoundException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.Logger;
@@ -42,6 +44,13 @@ public class HighLevelFCPClient implements FCPClient {
 
 	private final List<FCPMessage> doneMsgs = new LinkedList<FCPMessage>();
 
+	/**
+	 * Guards doneMsgs. A lock is used instead of a monitor so that waiting for a reply doesn't pin
+	 * the carrier thread when running on a virtual thread.
+	 */
+	private final ReentrantLock doneMsgsLock = new ReentrantLock();
+	private final Condition msgDone = doneMsgsLock.newCondition();
+
 	public HighLevelFCPClient() {
 		this.conn = Freemail.getFCPConnection();
 	}
@@ -95,7 +104,8 @@ public class HighLevelFCPClient implements FCPClient {
 	}
 
 	private FCPMessage getReply(String identifier) throws InterruptedException {
-		synchronized (doneMsgs) {
+		doneMsgsLock.lock();
+		try {
 			while(true) {
 				Iterator<FCPMessage> it = doneMsgs.iterator();
 				while(it.hasNext()) {
@@ -106,8 +116,10 @@ public class HighLevelFCPClient implements FCPClient {
 					}
 				}
 
-				doneMsgs.wait();
+				msgDone.await();
 			}
+		} finally {
+			doneMsgsLock.unlock();
 		}
 	}
 
@@ -275,9 +287,12 @@ public class HighLevelFCPClient implements FCPClient {
 
 	@Override
 	public void requestFinished(FCPMessage msg) {
-		synchronized(doneMsgs) {
+		doneMsgsLock.lock();
+		try {
 			doneMsgs.add(msg);
-			doneMsgs.notifyAll();
+			msgDone.signalAll();
+		} finally {
+			doneMsgsLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,118 @@
+/*
+ * DeflatingOutputStream.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Compresses the output to the client after COMPRESS DEFLATE (RFC 4978). The output is raw
+ * deflate data without a zlib header, and {@link #flush()} does a sync flush, so everything
+ * written so far can be decompressed by the client as soon as it arrives while the compression
+ * state is kept for the next response.
+ */
+class DeflatingOutputStream extends OutputStream {
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/** The values of Deflater.NO_FLUSH and Deflater.SYNC_FLUSH */
+	private static final int NO_FLUSH = 0;
+	private static final int SYNC_FLUSH = 2;
+
+	/** Deflater.deflate(byte[], int, int, int), or {@code null} before Java 7 */
+	private static final Method deflate;
+	static {
+		Method method = null;
+		try {
+			method = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		} catch(NoSuchMethodException e) {
+			Logger.minor(DeflatingOutputStream.class, "Sync flush isn't supported, COMPRESS won't be offered");
+		}
+		deflate = method;
+	}
+
+	private final OutputStream out;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final byte[] buf = new byte[BUFFER_SIZE];
+
+	/**
+	 * Returns {@code true} if the output can be flushed without ending the compressed stream,
+	 * which is needed for COMPRESS.
+	 */
+	static boolean isSupported() {
+		return deflate != null;
+	}
+
+	DeflatingOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return;
+		}
+
+		deflater.setInput(b, off, len);
+		while(!deflater.needsInput()) {
+			out.write(buf, 0, deflate(NO_FLUSH));
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		//The output is complete once the deflater leaves part of the buffer unused
+		int count;
+		do {
+			count = deflate(SYNC_FLUSH);
+			out.write(buf, 0, count);
+		} while(count == buf.length);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	private int deflate(int flush) throws IOException {
+		try {
+			return ((Integer)deflate.invoke(deflater, buf, 0, buf.length, flush)).intValue();
+		} catch(InvocationTargetException e) {
+			throw new IOException("Couldn't compress output: " + e.getCause());
+		} catch(IllegalAccessException e) {
+			throw new IOException("Couldn't compress output: " + e.getMessage());
+		}
+	}
+}
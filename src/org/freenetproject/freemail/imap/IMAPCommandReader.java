@@ -0,0 +1,248 @@
+/*
+ * IMAPCommandReader.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Reads commands from the client through a byte buffer. Each line is collected in a buffer that
+ * is reused for the next one and tokenized in place by {@link IMAPTokenizer}.
+ *
+ * A command that ends with a literal is returned when the line has been read, so that the handler
+ * can decide whether to ask for the literal. Calling {@link #readLiteral(IMAPMessage)} then reads
+ * the literal and the rest of the command, while APPEND uses
+ * {@link #copyLiteral(IMAPMessage, OutputStream)} so the message isn't kept in memory.
+ */
+class IMAPCommandReader {
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private InputStream in;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int count = 0;
+
+	/** The command read so far */
+	private byte[] line = new byte[256];
+	private int lineLength = 0;
+
+	IMAPCommandReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Returns {@code true} if some input has been received but not read yet.
+	 */
+	boolean ready() throws IOException {
+		return pos < count || in.available() > 0;
+	}
+
+	/**
+	 * Decompresses the input from now on (RFC 4978). Input that has been received but not read yet
+	 * was sent after the COMPRESS command, so it is decompressed as well.
+	 */
+	void startDecompressing() {
+		in = new InflatingInputStream(in, buf, pos, count - pos);
+		pos = 0;
+		count = 0;
+	}
+
+	/**
+	 * Reads the next command, up to the end of the line.
+	 * @return the command, or {@code null} if the client has closed the connection
+	 * @throws IMAPBadMessageException if the line doesn't contain a tag and a command
+	 * @throws IOException if reading from the client fails
+	 */
+	IMAPMessage readCommand() throws IOException, IMAPBadMessageException {
+		if(!readLine(0)) {
+			return null;
+		}
+		return new IMAPMessage(line, 0, lineLength);
+	}
+
+	/**
+	 * Reads the literal that {@code msg} ends with and the rest of the command. The literal takes
+	 * the place of the literal marker as a quoted string.
+	 * @param msg the command that was returned by the last call to {@link #readCommand()} or
+	 *            {@link #readLiteral(IMAPMessage)}
+	 * @return the command, which may end with another literal
+	 * @throws IMAPBadMessageException if the command is no longer valid
+	 * @throws IOException if reading from the client fails or it closes the connection
+	 */
+	IMAPMessage readLiteral(IMAPMessage msg) throws IOException, IMAPBadMessageException {
+		//The marker is the last thing on the line
+		int marker = lineLength - 1;
+		while(line[marker] != '{') {
+			marker--;
+		}
+		lineLength = marker;
+
+		append('"');
+		for(long i = 0; i < msg.literalLength; i++) {
+			int b = read();
+			if(b < 0) {
+				throw new EOFException();
+			}
+			if(b == '"' || b == '\\') {
+				append('\\');
+			}
+			append(b);
+		}
+		append('"');
+
+		readLine(lineLength);
+		return new IMAPMessage(line, 0, lineLength);
+	}
+
+	/**
+	 * Copies the literal that {@code msg} ends with to {@code out} as it is, through the input
+	 * buffer. This is used by APPEND, where the literal is a message that can be of any size.
+	 *
+	 * With MULTIAPPEND (RFC 3502) the literal is followed by a space and the next message, and
+	 * otherwise by the line break that ends the command. Only input that has already been
+	 * received is looked at, since some clients don't send the line break until they get the
+	 * reply, so anything else is left to be read as the next command.
+	 * @param msg the command that ends with the literal
+	 * @param out where the literal is written, or {@code null} to skip it
+	 * @return the next part of the command, with the tag and type of {@code msg} followed by the
+	 *         arguments of the next message, or {@code null} if the command ended
+	 * @throws IMAPBadMessageException if the next part of the command isn't valid
+	 * @throws IOException if reading from the client fails or it closes the connection
+	 */
+	IMAPMessage copyLiteral(IMAPMessage msg, OutputStream out) throws IOException, IMAPBadMessageException {
+		long remaining = msg.literalLength;
+		while(remaining > 0) {
+			if(pos == count && !fill()) {
+				throw new EOFException();
+			}
+
+			int length = (int)Math.min(remaining, count - pos);
+			if(out != null) {
+				out.write(buf, pos, length);
+			}
+			pos += length;
+			remaining -= length;
+		}
+
+		if(pos == count && (in.available() == 0 || !fill())) {
+			return null;
+		}
+
+		if(buf[pos] == ' ') {
+			lineLength = 0;
+			byte[] prefix = (msg.tag + " " + msg.type).getBytes(IMAPMessage.CHARSET);
+			append(prefix, 0, prefix.length);
+			readLine(lineLength);
+			return new IMAPMessage(line, 0, lineLength);
+		}
+		if(buf[pos] == '\r' || buf[pos] == '\n') {
+			readLine(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Skips the literal that {@code msg} ends with and the rest of the command.
+	 */
+	void skipLiteral(IMAPMessage msg) throws IOException {
+		for(long i = 0; i < msg.literalLength; i++) {
+			if(read() < 0) {
+				throw new EOFException();
+			}
+		}
+		readLine(0);
+	}
+
+	/**
+	 * Reads a line that isn't a command, such as the DONE that ends IDLE.
+	 * @return the line without the line break, or {@code null} if the client has closed the
+	 *         connection
+	 * @throws IOException if reading from the client fails
+	 */
+	String readLine() throws IOException {
+		if(!readLine(0)) {
+			return null;
+		}
+		return new String(line, 0, lineLength);
+	}
+
+	/**
+	 * Reads up to the end of the line and adds it to {@link #line} starting at {@code from}.
+	 * @return {@code false} if the client closed the connection before sending anything
+	 */
+	private boolean readLine(int from) throws IOException {
+		lineLength = from;
+		boolean read = false;
+		while(true) {
+			if(pos == count && !fill()) {
+				return read;
+			}
+			read = true;
+
+			int start = pos;
+			while(pos < count && buf[pos] != '\n') {
+				pos++;
+			}
+			append(buf, start, pos - start);
+
+			if(pos < count) {
+				//Skip the line feed, and the carriage return before it
+				pos++;
+				if(lineLength > from && line[lineLength - 1] == '\r') {
+					lineLength--;
+				}
+				return true;
+			}
+		}
+	}
+
+	private int read() throws IOException {
+		if(pos == count && !fill()) {
+			return -1;
+		}
+		return buf[pos++] & 0xff;
+	}
+
+	private boolean fill() throws IOException {
+		pos = 0;
+		count = Math.max(0, in.read(buf, 0, buf.length));
+		return count > 0;
+	}
+
+	private void append(int b) {
+		ensureCapacity(1);
+		line[lineLength++] = (byte)b;
+	}
+
+	private void append(byte[] data, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(data, offset, line, lineLength, length);
+		lineLength += length;
+	}
+
+	private void ensureCapacity(int extra) {
+		if(lineLength + extra > line.length) {
+			line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + extra));
+		}
+	}
+}
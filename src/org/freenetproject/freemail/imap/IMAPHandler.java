@@ -25,67 +25,103 @@ package org.freenetproject.freemail.imap;
 import java.net.Socket;
 import java.net.SocketException;
 import java.io.PrintStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.lang.NumberFormatException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.archive.util.Base32;
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.FolderStatus;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.MessageBankListener;
 import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.utils.EmailAddress;
+import org.freenetproject.freemail.utils.FileTransferTarget;
 import org.freenetproject.freemail.utils.Logger;
 
 import freenet.support.Base64;
 
 public class IMAPHandler extends ServerHandler implements Runnable {
-	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE";
+	private static final String CAPABILITY = "IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES"
+			+ (DeflatingOutputStream.isSupported() ? " COMPRESS=DEFLATE" : "");
 
-	private final PrintStream ps;
-	private final BufferedReader bufrdr;
+	/** The longest literal that is accepted in place of a string argument */
+	private static final int MAX_LITERAL_ARGUMENT = 64 * 1024;
+
+	/** The result options of SEARCH RETURN (RFC 4731) */
+	private static final int RETURN_MIN = 1;
+	private static final int RETURN_MAX = 2;
+	private static final int RETURN_ALL = 4;
+	private static final int RETURN_COUNT = 8;
+
+	private final IMAPResponseWriter writer;
+	private WritableByteChannel channel;
+	private final IMAPCommandReader reader;
 	private MessageBank mb;
+
+	/** The messages of {@link #mb} as last reported to the client */
+	private MailboxSnapshot snapshot;
 	private MessageBank inbox;
+
+	/** The IDLE command in progress, which is ended by the next line from the client */
+	private IMAPMessage idleCommand = null;
+	private IdleWatcher idleWatcher = null;
+
+	/** Set once the client has used any part of CONDSTORE (RFC 7162) */
+	private boolean condStore = false;
+
+	/** Set once the client has enabled QRESYNC (RFC 7162) */
+	private boolean qresync = false;
+
+	/** Set once COMPRESS DEFLATE (RFC 4978) has been done */
+	private boolean compressing = false;
 	private final AccountManager accountManager;
 
 	IMAPHandler(AccountManager accMgr, Socket client) throws IOException {
+		this(accMgr, client, client.getInputStream(), client.getOutputStream());
+	}
+
+	IMAPHandler(AccountManager accMgr, Socket client, InputStream in, OutputStream out) {
 		super(client);
 		accountManager = accMgr;
-		this.ps = new PrintStream(client.getOutputStream());
-		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		this.writer = new IMAPResponseWriter(out);
+		SocketChannel socketChannel = client.getChannel();
+		if(out instanceof FileTransferTarget) {
+			//SelectorServer sends files to its non-blocking channel itself
+			this.channel = (FileTransferTarget)out;
+		} else if(socketChannel != null && socketChannel.isBlocking()) {
+			this.channel = socketChannel;
+		} else {
+			this.channel = Channels.newChannel(out);
+		}
+		this.reader = new IMAPCommandReader(in);
 		this.mb = null;
 	}
 
 	@Override
 	public void run() {
-		this.sendWelcome();
-
-		String line;
 		try {
-			while(!stopping && !this.client.isClosed() && (line = this.bufrdr.readLine()) != null) {
-				IMAPMessage msg = null;
-				try {
-					msg = new IMAPMessage(line);
-				} catch (IMAPBadMessageException bme) {
-					continue;
-				}
-
-				this.dispatch(msg);
+			this.start();
+			while(!stopping && !this.client.isClosed() && this.handleCommand()) {
+				//Keep handling commands until the client goes away
 			}
 
 			this.client.close();
@@ -98,8 +134,65 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 	}
 
+	@Override
+	protected void start() {
+		this.sendWelcome();
+	}
+
+	@Override
+	protected boolean handleCommand() throws IOException {
+		if(this.idleCommand != null) {
+			String line = this.reader.readLine();
+			if(line == null) {
+				//Connection closed while idling, so there is no one to reply to
+				stopIdleWatcher();
+				this.idleCommand = null;
+				return false;
+			}
+
+			endIdle(line);
+			return true;
+		}
+
+		IMAPMessage msg;
+		try {
+			msg = this.reader.readCommand();
+			if(msg == null) {
+				return false;
+			}
+
+			//APPEND reads its literal itself, for the rest the literals are read as arguments
+			while(msg.literalLength >= 0 && !msg.type.equals("append")) {
+				if(msg.literalLength > MAX_LITERAL_ARGUMENT) {
+					if(!msg.literalSync) {
+						this.reader.skipLiteral(msg);
+					}
+					this.reply(msg, "BAD Literal too large");
+					return true;
+				}
+
+				if(msg.literalSync) {
+					this.writer.print("+ OK").crlf();
+					this.writer.flush();
+				}
+				msg = this.reader.readLiteral(msg);
+			}
+		} catch (IMAPBadMessageException bme) {
+			return true;
+		}
+
+		this.dispatch(msg);
+		return true;
+	}
+
+	@Override
+	protected boolean hasPendingInput() throws IOException {
+		return this.reader.ready();
+	}
+
 	private void sendWelcome() {
-		this.ps.print("* OK [CAPABILITY "+CAPABILITY+"] Freemail ready - hit me with your rhythm stick.\r\n");
+		this.writer.print("* OK [CAPABILITY ").print(CAPABILITY).print("] Freemail ready - hit me with your rhythm stick.").crlf();
+		this.writer.flush();
 	}
 
 	private void dispatch(IMAPMessage msg) {
@@ -144,6 +237,16 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.handleAppend(msg);
 		} else if(msg.type.equals("search")) {
 			handleSearch(msg);
+		} else if(msg.type.equals("sort")) {
+			handleSort(msg, false);
+		} else if(msg.type.equals("thread")) {
+			handleThread(msg, false);
+		} else if(msg.type.equals("idle")) {
+			handleIdle(msg);
+		} else if(msg.type.equals("enable")) {
+			handleEnable(msg);
+		} else if(msg.type.equals("compress")) {
+			handleCompress(msg);
 		} else {
 			Logger.error(this, "Unknown IMAP command: " + msg.type);
 			this.reply(msg, "NO Sorry - not implemented");
@@ -197,6 +300,71 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		this.reply(msg, "OK Capability completed");
 	}
 
+	private void handleCompress(IMAPMessage msg) {
+		if(msg.args == null || msg.args.length != 1) {
+			this.reply(msg, "BAD Expected one argument");
+			return;
+		}
+
+		if(!msg.args[0].equalsIgnoreCase("deflate") || !DeflatingOutputStream.isSupported()) {
+			this.reply(msg, "BAD Unsupported compression algorithm");
+			return;
+		}
+
+		if(this.compressing) {
+			this.reply(msg, "NO [COMPRESSIONACTIVE] DEFLATE active via COMPRESS");
+			return;
+		}
+
+		//The reply is the last thing sent uncompressed, and the client compresses what follows it
+		this.reply(msg, "OK DEFLATE active");
+		this.channel = Channels.newChannel(this.writer.startCompressing());
+		this.stopFraming();
+		this.reader.startDecompressing();
+		this.compressing = true;
+	}
+
+	private void handleEnable(IMAPMessage msg) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(msg.args == null) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		//Extensions we don't know about are left out of the response (RFC 5161)
+		StringBuilder enabled = new StringBuilder("ENABLED");
+		for(String arg : msg.args) {
+			if(arg.equalsIgnoreCase("CONDSTORE")) {
+				enableCondStore();
+				enabled.append(" CONDSTORE");
+			} else if(arg.equalsIgnoreCase("QRESYNC")) {
+				enableCondStore();
+				this.qresync = true;
+				if(this.snapshot != null) {
+					this.snapshot.enableQresync();
+				}
+				enabled.append(" QRESYNC");
+			}
+		}
+
+		this.sendState(enabled.toString());
+		this.reply(msg, "OK ENABLE completed");
+	}
+
+	/**
+	 * Starts sending mod-sequences to the client. This is done the first time the client uses
+	 * any CONDSTORE feature, as required by RFC 7162.
+	 */
+	private void enableCondStore() {
+		this.condStore = true;
+		if(this.snapshot != null) {
+			this.snapshot.enableCondStore();
+		}
+	}
+
 	private void handleLsub(IMAPMessage msg) {
 		this.handleList(msg);
 	}
@@ -302,6 +470,27 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		mbname = trimQuotes(msg.args[0]);
 
+		QresyncParameters resync = null;
+		if(msg.args.length > 1) {
+			String param = joinArgs(msg.args, 1);
+			if(param.equalsIgnoreCase("(CONDSTORE)")) {
+				enableCondStore();
+			} else if(param.toUpperCase(Locale.ROOT).startsWith("(QRESYNC ")) {
+				if(!this.qresync) {
+					this.reply(msg, "BAD QRESYNC must be enabled first");
+					return;
+				}
+				resync = QresyncParameters.parse(param.substring("(QRESYNC ".length()));
+				if(resync == null) {
+					this.reply(msg, "BAD Invalid QRESYNC parameters");
+					return;
+				}
+			} else {
+				this.reply(msg, "BAD Unknown SELECT parameter " + param);
+				return;
+			}
+		}
+
 		MessageBank tempmb = this.getMailboxFromPath(mbname);
 
 		if(tempmb == null) {
@@ -314,35 +503,90 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		this.sendState("FLAGS ("+IMAPMessageFlags.getAllFlagsAsString()+")");
 		this.sendState("OK [PERMANENTFLAGS ("+IMAPMessageFlags.getPermanentFlagsAsString()+")] Limited");
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		//Read before listing the messages so a change made in between is seen by the next resync
+		long highestModSeq = this.mb.getHighestModSeq();
+		this.snapshot = new MailboxSnapshot(this.mb);
+		if(this.qresync) {
+			this.snapshot.enableQresync();
+		} else if(this.condStore) {
+			this.snapshot.enableCondStore();
+		}
+		SortedMap<Integer, MailMessage> msgs = this.snapshot.listMessages();
 
-		int numrecent = 0;
-		int numexists = msgs.size();
+		List<MailMessage> recent = new ArrayList<MailMessage>();
+		int numexists = this.snapshot.size();
 		while(msgs.size() > 0) {
 			Integer current = msgs.firstKey();
 			MailMessage m =msgs.get(msgs.firstKey());
 
 			// if it's recent, add to the tally
 			if(m.flags.get("\\Recent")) {
-				numrecent++;
-
-				// remove the recent flag
-				m.flags.set("\\Recent", false);
-				m.storeFlags();
+				recent.add(m);
 			}
 
 			msgs = msgs.tailMap(new Integer(current.intValue()+1));
 		}
 
+		// remove the recent flags
+		MailboxSnapshot.clearRecent(this.mb, recent);
+
 		this.sendState(numexists+" EXISTS");
-		this.sendState(numrecent+" RECENT");
+		this.sendState(recent.size()+" RECENT");
 
 		this.sendState("OK [UIDVALIDITY " + mb.getUidValidity() + "] Ok");
+		if(this.condStore) {
+			this.sendState("OK [HIGHESTMODSEQ " + highestModSeq + "] Ok");
+		}
+		if(resync != null) {
+			sendResync(resync, highestModSeq);
+		}
 
 		this.reply(msg, "OK [READ-WRITE] Done");
 	}
 
+	/**
+	 * Tells a client that selected the mailbox with the QRESYNC parameter which of the messages it
+	 * knows about are gone and which have changed flags. Nothing is sent if the mailbox hasn't
+	 * changed since the mod-sequence the client gave, so that case costs no per-message work.
+	 */
+	private void sendResync(QresyncParameters resync, long highestModSeq) {
+		if(resync.uidValidity != mb.getUidValidity() || resync.modSeq >= highestModSeq) {
+			//Either the client has to start over, or it is up to date
+			return;
+		}
+
+		SequenceSet known = resync.knownUids;
+		if(known == null) {
+			SequenceSet.Builder all = new SequenceSet.Builder();
+			all.add(1, Integer.MAX_VALUE);
+			known = all.build();
+		}
+
+		//The uids of removed messages aren't kept, so report every known uid that is missing
+		SequenceSet vanished = snapshot.missing(known, mb.getUidNext());
+		if(vanished != null) {
+			this.sendState("VANISHED (EARLIER) " + vanished);
+		}
+
+		SequenceSet.Builder changed = new SequenceSet.Builder();
+		for(int uid : mb.listUidsChangedSince(resync.modSeq)) {
+			if(known.contains(uid)) {
+				changed.add(uid);
+			}
+		}
+		if(changed.isEmpty()) {
+			return;
+		}
+		for(MailMessage message : snapshot.select(changed.build(), true)) {
+			this.sendState(message.getSeqNum() + " FETCH (UID " + message.getUID() + " FLAGS ("
+					+ message.flags.getFlags() + ") MODSEQ (" + message.getModSeq() + "))");
+		}
+	}
+
 	private void handleNoop(IMAPMessage msg) {
+		if(this.snapshot != null) {
+			sendUpdates();
+		}
 		this.reply(msg, "OK NOOP completed");
 	}
 
@@ -356,9 +600,49 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		sendUpdates();
 		this.reply(msg, "OK Check completed");
 	}
 
+	/**
+	 * Handles IDLE (RFC 2177). The command stays in progress until the client sends the next line,
+	 * which is handled by {@link #endIdle(String)}. Changes to the selected mailbox are sent in the
+	 * background when the mailbox reports them, so no thread waits while the client is idle.
+	 */
+	private void handleIdle(IMAPMessage msg) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		this.writer.print("+ idling").crlf();
+		this.writer.flush();
+
+		this.idleCommand = msg;
+		if(this.snapshot != null) {
+			this.idleWatcher = new IdleWatcher(this.snapshot);
+			this.idleWatcher.start();
+		}
+	}
+
+	private void endIdle(String line) {
+		IMAPMessage msg = this.idleCommand;
+		this.idleCommand = null;
+		stopIdleWatcher();
+
+		if(!line.equalsIgnoreCase("DONE")) {
+			this.reply(msg, "BAD Expected DONE");
+			return;
+		}
+		this.reply(msg, "OK IDLE terminated");
+	}
+
+	private void stopIdleWatcher() {
+		if(this.idleWatcher != null) {
+			this.idleWatcher.stop();
+			this.idleWatcher = null;
+		}
+	}
+
 	private void handleFetch(IMAPMessage msg) {
 		handleFetch(msg, false);
 	}
@@ -373,9 +657,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-
-		if(msgs.size() == 0) {
+		if(snapshot.size() == 0) {
 			this.reply(msg, "OK Fetch completed");
 			return;
 		}
@@ -385,11 +667,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
-		SortedSet<Integer> sequenceNumbers;
+		SequenceSet sequenceNumbers;
 		try {
-			sequenceNumbers = parseSequenceSet(msg.args[0],
-					uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+			sequenceNumbers = parseSequenceSet(msg.args[0], uid ? snapshot.lastUid() : snapshot.size());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -399,30 +679,88 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > lastMessage.getSeqNum()) {
+			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > snapshot.size()) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		//Return the messages in the range
-		for(MailMessage message : msgs.values()) {
-			if(uid) {
-				if(!sequenceNumbers.contains(message.getUID())) {
-					continue;
-				}
-			} else {
-				if(!sequenceNumbers.contains(message.getSeqNum())) {
-					continue;
+		//Anything after the list of attributes is a list of modifiers (RFC 4466)
+		int lastAttr = 1;
+		if(msg.args[1].startsWith("(")) {
+			while(lastAttr < msg.args.length - 1 && !msg.args[lastAttr].endsWith(")")) {
+				lastAttr++;
+			}
+		}
+
+		long changedSince = -1;
+		boolean vanished = false;
+		if(lastAttr + 1 < msg.args.length) {
+			String modifiers = joinArgs(msg.args, lastAttr + 1);
+			if(!modifiers.startsWith("(") || !modifiers.endsWith(")")) {
+				this.reply(msg, "BAD Invalid fetch modifiers");
+				return;
+			}
+
+			String[] parts = modifiers.substring(1, modifiers.length() - 1).trim().split(" +");
+			for(int i = 0; i < parts.length; i++) {
+				if(parts[i].equalsIgnoreCase("CHANGEDSINCE") && i + 1 < parts.length) {
+					try {
+						changedSince = Long.parseLong(parts[++i]);
+					} catch(NumberFormatException e) {
+						changedSince = -1;
+					}
+					if(changedSince < 0) {
+						this.reply(msg, "BAD Invalid CHANGEDSINCE value");
+						return;
+					}
+				} else if(parts[i].equalsIgnoreCase("VANISHED") && uid && this.qresync) {
+					vanished = true;
+				} else {
+					this.reply(msg, "BAD Unknown fetch modifier " + parts[i]);
+					return;
 				}
 			}
 
-			if(!this.fetchSingle(message, msg.args, 1, uid)) {
-				this.reply(msg, "BAD Unknown attribute in list or unterminated list");
+			if(vanished && changedSince < 0) {
+				this.reply(msg, "BAD VANISHED requires CHANGEDSINCE");
 				return;
 			}
 		}
 
+		FetchAttributes attrs = FetchAttributes.parse(msg.args, 1, lastAttr);
+		if(changedSince >= 0) {
+			enableCondStore();
+			//RFC 7162 requires MODSEQ in the responses to CHANGEDSINCE
+			attrs = attrs.withModSeq();
+		} else if(attrs.contains("modseq")) {
+			enableCondStore();
+		}
+
+		//Nothing has changed since the given mod-sequence, so there is no need to look at the messages
+		boolean unchanged = changedSince >= 0 && changedSince >= mb.getHighestModSeq();
+
+		if(vanished && !unchanged) {
+			SequenceSet gone = snapshot.missing(sequenceNumbers, mb.getUidNext());
+			if(gone != null) {
+				this.sendState("VANISHED (EARLIER) " + gone);
+			}
+		}
+
+		//Return the messages in the range
+		if(!unchanged) {
+			for(MailMessage message : snapshot.select(sequenceNumbers, uid)) {
+				if(changedSince >= 0 && message.getModSeq() <= changedSince) {
+					continue;
+				}
+
+				if(!this.fetchSingle(message, attrs, uid)) {
+					this.reply(msg, "BAD Unknown attribute in list or unterminated list");
+					return;
+				}
+			}
+		}
+
 		this.reply(msg, "OK Fetch completed");
 	}
 
@@ -449,6 +787,22 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			handleSearch(command, true);
 			return;
 		}
+		if(msg.args[0].equalsIgnoreCase("sort")) {
+			String[] commandArgs = new String[msg.args.length - 1];
+			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
+			IMAPMessage command = new IMAPMessage(msg.tag, msg.args[0], commandArgs);
+
+			handleSort(command, true);
+			return;
+		}
+		if(msg.args[0].equalsIgnoreCase("thread")) {
+			String[] commandArgs = new String[msg.args.length - 1];
+			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
+			IMAPMessage command = new IMAPMessage(msg.tag, msg.args[0], commandArgs);
+
+			handleThread(command, true);
+			return;
+		}
 		if(msg.args[0].equalsIgnoreCase("copy")) {
 			String[] commandArgs = new String[msg.args.length - 1];
 			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
@@ -469,6 +823,22 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		int offset = 2;
+		long unchangedSince;
+		try {
+			unchangedSince = parseUnchangedSince(msg.args, offset);
+		} catch(NumberFormatException e) {
+			this.reply(msg, "BAD Invalid UNCHANGEDSINCE value");
+			return;
+		}
+		if(unchangedSince >= 0) {
+			offset += 2;
+			if(msg.args.length <= offset) {
+				this.reply(msg, "BAD Not enough arguments for uid command");
+				return;
+			}
+		}
+
 		if(!this.verifyAuth(msg)) {
 			return;
 		}
@@ -478,16 +848,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		if(msgs.size() == 0) {
+		if(snapshot.size() == 0) {
 			this.reply(msg, "NO No such message");
 			return;
 		}
 
-		Set<Integer> ts;
+		SequenceSet ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[1], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[1], snapshot.lastUid());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -496,127 +864,81 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getUID())) {
-				msgIt.remove();
-			}
-		}
-
-		if(!this.doStore(msg.args, 2, msgs.values(), msg, true)) {
+		List<MailMessage> selected = snapshot.select(ts, true);
+		SequenceSet modified = removeModified(selected, unchangedSince, true);
+		if(!this.doStore(msg.args, offset, selected, msg, true)) {
 			return;
 		}
 
-		this.reply(msg, "OK Store completed");
+		replyStored(msg, modified);
 	}
 
-	private boolean fetchSingle(MailMessage msg, String[] args, int firstarg, boolean send_uid_too) {
-		String[] imap_args = args.clone();
-		this.ps.print("* "+msg.getSeqNum()+" FETCH (");
-
-		// do the first attribute, if it's a loner.
-		if(!imap_args[firstarg].startsWith("(")) {
-			// It's a loner
-			this.ps.flush();
-			if(!this.sendAttr(msg, imap_args[firstarg])){
-				// send fake end delimiter, so we do not break the protocol
-				this.ps.print(")\r\n");
-				this.ps.flush();
-				return false;
-			}
-			if(send_uid_too && !imap_args[firstarg].equalsIgnoreCase("uid")) {
-				this.ps.print(" UID "+msg.getUID());
-			}
-
-			this.ps.print(")\r\n");
-			this.ps.flush();
-
-			return true;
-		} else {
-			imap_args[firstarg] = imap_args[firstarg].substring(1);
-		}
-
-		// go through the parenthesized list
-		for(int i = firstarg; i < imap_args.length; i++) {
-			String attr;
-			boolean finish = false;
+	private boolean fetchSingle(MailMessage msg, FetchAttributes attrs, boolean send_uid_too) {
+		this.writer.print("* ").print(msg.getSeqNum()).print(" FETCH (");
 
-			if(imap_args[i].endsWith(")")) {
-				finish = true;
-				attr = imap_args[i].substring(0, imap_args[i].length() - 1);
-			} else {
-				attr = imap_args[i];
+		for(int i = 0; i < attrs.names.length; i++) {
+			if(i > 0) {
+				this.writer.print(' ');
 			}
-
-			//this.ps.print(attr+" ");
-			this.ps.flush();
-			if(!this.sendAttr(msg, attr)) {
+			if(!this.sendAttr(msg, attrs.names[i], attrs.lowerCaseNames[i])) {
 				// send fake end delimiter, so we do not break the protocol
-				this.ps.print(")\r\n");
-				this.ps.flush();
+				this.writer.print(')').crlf();
 				return false;
 			}
-
-			if(attr.equalsIgnoreCase("uid")) {
-				send_uid_too = false;
-			}
-
-			if(finish) {
-				if(send_uid_too) {
-					this.ps.print(" UID "+msg.getUID());
-				}
-
-				this.ps.print(")\r\n");
-				this.ps.flush();
-				return true;
-			} else if((i + 1) < imap_args.length) {
-				//Only print a space if there are more arguments to deal with
-				this.ps.print(" ");
-			}
 		}
 
-		// if we get here, we've reached the end of the list without a terminating parenthesis. Naughty client.
-		if(send_uid_too) {
-			this.ps.print(" UID "+msg.getUID());
+		if(send_uid_too && !attrs.contains("uid")) {
+			this.writer.print(" UID ").print(msg.getUID());
 		}
-		this.ps.print(")\r\n");
-		this.ps.flush();
+		this.writer.print(')').crlf();
 
-		return false;
+		// an unterminated list is reported once the messages have been sent. Naughty client.
+		return attrs.terminated;
 	}
 
-	private boolean sendAttr(MailMessage mmsg, String a) {
-		String attr = a.toLowerCase(Locale.ROOT);
+	/**
+	 * Sends a fetch attribute of a message.
+	 * @param a the attribute as sent by the client
+	 * @param attr the attribute in lower case
+	 */
+	private boolean sendAttr(MailMessage mmsg, String a, String attr) {
 		String val = null;
 
+		//The attributes that are sent for every message are written without building strings
 		if(attr.equals("uid")) {
-			val = Integer.toString(mmsg.getUID());
+			this.writer.print(a).print(' ').print(mmsg.getUID());
+			return true;
 		} else if(attr.equals("flags")) {
-			val = "(" + mmsg.flags.getFlags() + ")";
+			this.writer.print(a).print(" (").print(mmsg.flags.getFlags()).print(')');
+			return true;
+		} else if(attr.equals("modseq")) {
+			this.writer.print(a).print(" (").print(mmsg.getModSeq()).print(')');
+			return true;
 		} else if(attr.equals("rfc822.size")) {
+			long size;
 			try {
-				val = Long.toString(mmsg.getSize());
+				size = mmsg.getSize();
 			} catch (IOException ioe) {
-				val = "0";
+				size = 0;
 			}
+			this.writer.print(a).print(' ').print(size);
+			return true;
 		} else if(attr.equals("envelope")) {
 			val = this.getEnvelope(mmsg);
 		} else if(attr.startsWith("body.peek")) {
-			this.ps.print(a.substring(0, "body".length()));
-			this.ps.flush();
+			this.writer.print(a.substring(0, "body".length()));
 			a = a.substring("body.peek".length());
 			return this.sendBody(mmsg, a);
 		} else if(attr.startsWith("bodystructure")) {
 			// TODO: we blatantly lie about the message structure
-			this.ps.print(a.substring(0, "bodystructure".length()));
-			this.ps.print(" (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"ISO-8859-1\") NIL NIL \"8BIT\" 1024 10)");
+			this.writer.print(a.substring(0, "bodystructure".length()));
+			this.writer.print(" (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"ISO-8859-1\") NIL NIL \"8BIT\" 1024 10)");
 			return true;
 		} else if(attr.startsWith("body")) {
 			// TODO: this is not quite right since it will match bodyanything
 			mmsg.flags.set("\\Seen", true);
 
-			this.ps.print(a.substring(0, "body".length()));
-			this.ps.flush();
+			this.writer.print(a.substring(0, "body".length()));
 			a = a.substring("body".length());
 			if(this.sendBody(mmsg, a)) {
 				mmsg.flags.set("\\Seen", true);
@@ -625,8 +947,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			}
 			return false;
 		} else if(attr.startsWith("rfc822.header")) {
-			this.ps.print(a.substring(0, "rfc822.header".length()));
-			this.ps.flush();
+			this.writer.print(a.substring(0, "rfc822.header".length()));
 			return this.sendBody(mmsg, "header");
 		} else if(attr.startsWith("internaldate")) {
 			/*
@@ -648,7 +969,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		if(val == null)
 			return false;
-		this.ps.print(a+" "+val);
+		this.writer.print(a).print(' ').print(val);
 		return true;
 	}
 
@@ -682,22 +1003,36 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		if(attr.trim().length() == 0) {
 			try {
-				this.ps.print("[]");
+				this.writer.print("[]");
 				if(range_start!=-1) {
-					this.ps.print("<"+range_start+">");
+					this.writer.print('<').print(range_start).print('>');
 				}
 
+				long size=mmsg.getSize();
 				long partsize=0;
 				if(range_start==-1) {
-					partsize=mmsg.getSize();
+					partsize=size;
 				} else {
 					partsize=range_len;
-					if(mmsg.getSize()-range_start<partsize) {
-						partsize=mmsg.getSize()-range_start;
+					if(size-range_start<partsize) {
+						partsize=Math.max(0, size-range_start);
 					}
 				}
 
-				this.ps.print(" {"+partsize+"}\r\n");
+				this.writer.print(" {").print(partsize).print('}').crlf();
+
+				if(mmsg.isStoredAsCRLF()) {
+					//The file is exactly what we should send, so skip the line handling. What has
+					//been buffered must go first since the channel writes to the client directly,
+					//or to the compressor which is flushed with the rest of the response
+					if(this.compressing) {
+						this.writer.writeBuffered();
+					} else {
+						this.writer.flush();
+					}
+					mmsg.transferTo(Math.max(0, range_start), partsize, channel);
+					return true;
+				}
 
 				String line;
 				while((line = mmsg.readLine()) != null) {
@@ -713,14 +1048,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 					}
 					if(range_start==0 || range_start==-1) {
 						if(range_len==-1) {
-							this.ps.print(line);
+							this.writer.print(line);
 						} else {
 							if(range_len>0) {
 								if(range_len<line.length()) {
 									line=line.substring(0, range_len);
 									range_len=line.length();
 								}
-								this.ps.print(line);
+								this.writer.print(line);
 								range_len-=line.length();
 								if(range_len<0) {
 									range_len=0;
@@ -742,7 +1077,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		String[] parts = IMAPMessage.doSplit(attr, '(', ')');
 		if(parts.length > 0) {
 			if(parts[0].equalsIgnoreCase("header.fields")) {
-				this.ps.print("[HEADER.FIELDS "+parts[1]+"]");
+				this.writer.print("[HEADER.FIELDS ").print(parts[1]).print(']');
 				if(parts[1].charAt(0) == '(')
 					parts[1] = parts[1].substring(1);
 				if(parts[1].charAt(parts[1].length() - 1) == ')')
@@ -761,7 +1096,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				}
 				buf.append("\r\n");
 			} else if(parts[0].equalsIgnoreCase("header")) {
-				this.ps.print("[HEADER]");
+				this.writer.print("[HEADER]");
 
 				// send all the header fields
 				try {
@@ -792,7 +1127,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				}
 			}
 
-			this.ps.print(" {"+buf.length()+"}\r\n"+buf.toString());
+			this.writer.print(" {").print(buf.length()).print('}').crlf().print(buf.toString());
 			return true;
 		}
 
@@ -814,12 +1149,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		if(snapshot.size() == 0) {
+			this.reply(msg, "NO No such message");
+			return;
+		}
 
-		Set<Integer> ts;
+		SequenceSet ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[0], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[0], snapshot.size());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -828,21 +1165,82 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getSeqNum())) {
-				msgIt.remove();
+		int offset = 1;
+		long unchangedSince;
+		try {
+			unchangedSince = parseUnchangedSince(msg.args, offset);
+		} catch(NumberFormatException e) {
+			this.reply(msg, "BAD Invalid UNCHANGEDSINCE value");
+			return;
+		}
+		if(unchangedSince >= 0) {
+			offset += 2;
+			if(msg.args.length <= offset) {
+				this.reply(msg, "BAD Not enough arguments");
+				return;
 			}
 		}
 
-		if(!doStore(msg.args, 1, msgs.values(), msg, false)) {
+		List<MailMessage> selected = snapshot.select(ts, false);
+		SequenceSet modified = removeModified(selected, unchangedSince, false);
+		if(!doStore(msg.args, offset, selected, msg, false)) {
 			return;
 		}
 
-		this.reply(msg, "OK Store completed");
+		replyStored(msg, modified);
+	}
+
+	/**
+	 * Returns the value of the UNCHANGEDSINCE store modifier (RFC 7162) at {@code args[offset]},
+	 * or -1 if there isn't one.
+	 * @throws NumberFormatException if the value isn't a valid mod-sequence
+	 */
+	private long parseUnchangedSince(String[] args, int offset) {
+		if(args.length < offset + 2 || !args[offset].equalsIgnoreCase("(UNCHANGEDSINCE")
+				|| !args[offset + 1].endsWith(")")) {
+			return -1;
+		}
+
+		long value = Long.parseLong(args[offset + 1].substring(0, args[offset + 1].length() - 1));
+		if(value < 0) {
+			throw new NumberFormatException();
+		}
+		enableCondStore();
+		return value;
 	}
 
-	private boolean doStore(String[] args, int offset, Collection<MailMessage> mmsgs, IMAPMessage msg, boolean senduid) {
+	/**
+	 * Removes the messages that have changed since {@code unchangedSince} from {@code msgs}.
+	 * @return the uids or sequence numbers of the removed messages, or {@code null} if there are
+	 *         none
+	 */
+	private static SequenceSet removeModified(List<MailMessage> msgs, long unchangedSince, boolean uid) {
+		if(unchangedSince < 0) {
+			return null;
+		}
+
+		SequenceSet.Builder modified = new SequenceSet.Builder();
+		Iterator<MailMessage> it = msgs.iterator();
+		while(it.hasNext()) {
+			MailMessage message = it.next();
+			if(message.getModSeq() > unchangedSince) {
+				modified.add(uid ? message.getUID() : message.getSeqNum());
+				it.remove();
+			}
+		}
+		return modified.isEmpty() ? null : modified.build();
+	}
+
+	private void replyStored(IMAPMessage msg, SequenceSet modified) {
+		if(modified != null) {
+			this.reply(msg, "OK [MODIFIED " + modified + "] Conditional STORE failed");
+		} else {
+			this.reply(msg, "OK Store completed");
+		}
+	}
+
+	private boolean doStore(final String[] args, final int offset, final Collection<MailMessage> mmsgs, IMAPMessage msg,
+			boolean senduid) {
 		if(args[offset].toLowerCase(Locale.ROOT).indexOf("flags") < 0) {
 			// IMAP4Rev1 can only store flags, so you're
 			// trying something crazy
@@ -871,16 +1269,27 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 
-		for(int i = offset; i < args.length; i++) {
-			String flag = args[i];
-			if(flag.endsWith(")")) {
-				flag = flag.substring(0, flag.length() - 1);
-			}
+		final boolean value = setFlagTo;
+		this.mb.batch(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = offset; i < args.length; i++) {
+					String flag = args[i];
+					if(flag.endsWith(")")) {
+						flag = flag.substring(0, flag.length() - 1);
+					}
 
-			for(MailMessage message : mmsgs) {
-				message.flags.set(flag, setFlagTo);
-				message.storeFlags();
+					for(MailMessage message : mmsgs) {
+						message.flags.set(flag, value);
+						message.storeFlags();
+					}
+				}
 			}
+		});
+
+		//The client is told about the new flags below, or asked not to be
+		for(MailMessage message : mmsgs) {
+			snapshot.flagsStored(message);
 		}
 
 		if(msg.args[offset].toLowerCase(Locale.ROOT).indexOf("silent") < 0) {
@@ -888,7 +1297,19 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				StringBuffer buf = new StringBuffer("");
 
 				buf.append(message.getSeqNum());
-				if(senduid) {
+				if(condStore) {
+					buf.append(" FETCH (");
+					if(senduid) {
+						buf.append("UID ");
+						buf.append(message.getUID());
+						buf.append(" ");
+					}
+					buf.append("FLAGS (");
+					buf.append(message.flags.getFlags());
+					buf.append(") MODSEQ (");
+					buf.append(message.getModSeq());
+					buf.append("))");
+				} else if(senduid) {
 					buf.append(" FETCH (UID ");
 					buf.append(message.getUID());
 					buf.append(" FLAGS (");
@@ -934,23 +1355,33 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		this.expunge(false);
 		this.mb = null;
+		this.snapshot = null;
 
 		this.reply(msg, "OK Mailbox closed");
 	}
 
 	private void expunge(boolean verbose) {
-		MailMessage[] mmsgs = this.mb.listMessagesArray();
+		for(MailMessage message : snapshot.listMessages().values()) {
+			if(message.flags.get("\\Deleted")) {
+				message.delete();
+			}
+		}
 
-		int count_correction=0;
-		for(int i = 0; i < mmsgs.length; i++) {
-			if(mmsgs[i].flags.get("\\Deleted")) {
-				mmsgs[i].delete();
-				if(verbose) this.sendState((i+1-count_correction)+" EXPUNGE");
-				count_correction++;
+		//The removed messages are reported along with any other changes to the folder
+		List<String> updates = snapshot.update();
+		if(verbose) {
+			for(String update : updates) {
+				this.sendState(update);
 			}
 		}
 	}
 
+	private void sendUpdates() {
+		for(String update : snapshot.update()) {
+			this.sendState(update);
+		}
+	}
+
 	private void handleNamespace(IMAPMessage msg) {
 		if(!this.verifyAuth(msg)) {
 			return;
@@ -979,27 +1410,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = statmb.listMessages();
-
-		// gather statistics
-		int numrecent = 0;
-		int numunseen = 0;
-		int nummessages = msgs.size();
-		int lastuid = 0;
-		while(msgs.size() > 0) {
-			Integer current = msgs.firstKey();
-			MailMessage m =msgs.get(msgs.firstKey());
-
-			// if it's recent, add to the tally
-			if(m.flags.get("\\Recent")) numrecent++;
-
-			// is it unseen?
-			if(!m.flags.get("\\Seen")) numunseen++;
-
-			if(m.getUID() > lastuid) lastuid = m.getUID();
-
-			msgs = msgs.tailMap(new Integer(current.intValue()+1));
-		}
+		FolderStatus status = statmb.getStatus();
 
 		StringBuffer buf = new StringBuffer();
 		buf.append("STATUS ");
@@ -1021,15 +1432,18 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			buf.append(arg);
 			buf.append(" ");
 			if(arg.equalsIgnoreCase("messages")) {
-				buf.append(Integer.toString(nummessages));
+				buf.append(Integer.toString(status.messages));
 			} else if(arg.equalsIgnoreCase("recent")) {
-				buf.append(Integer.toString(numrecent));
+				buf.append(Integer.toString(status.recent));
 			} else if(arg.equalsIgnoreCase("unseen")) {
-				buf.append(Integer.toString(numunseen));
+				buf.append(Integer.toString(status.unseen));
 			} else if(arg.equalsIgnoreCase("uidnext")) {
-				buf.append(Integer.toString(lastuid + 1));
+				buf.append(Long.toString(status.uidNext));
 			} else if(arg.equalsIgnoreCase("uidvalidity")) {
 				buf.append("1");
+			} else if(arg.equalsIgnoreCase("highestmodseq")) {
+				enableCondStore();
+				buf.append(Long.toString(status.highestModSeq));
 			}
 		}
 
@@ -1132,12 +1546,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
+		if(snapshot.size() == 0) {
+			this.reply(msg, "NO No such message");
+			return;
+		}
 
-		SortedSet<Integer> ts;
+		SequenceSet ts;
 		try {
-			ts = parseSequenceSet(msg.args[0], uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+			ts = parseSequenceSet(msg.args[0], uid ? snapshot.lastUid() : snapshot.size());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -1147,123 +1563,185 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(ts.first() < 1 || ts.last() > lastMessage.getSeqNum()) {
+			if(ts.first() < 1 || ts.last() > snapshot.size()) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			MailMessage message = msgIt.next();
-			if(uid) {
-				if(!ts.contains(message.getUID())) {
-					msgIt.remove();
-				}
-			} else {
-				if(!ts.contains(message.getSeqNum())) {
-					msgIt.remove();
-				}
-			}
-		}
-
-		MessageBank target = getMailboxFromPath(trimQuotes(msg.args[1]));
+		final MessageBank target = getMailboxFromPath(trimQuotes(msg.args[1]));
 		if(target == null) {
 			this.reply(msg, "NO [TRYCREATE] No such mailbox.");
 			return;
 		}
 
-		for(MailMessage src : msgs.values()) {
-			MailMessage copy = target.createMessage();
+		final boolean toSelected = target.isSameFolder(mb);
+		final List<MailMessage> sources = snapshot.select(ts, uid);
+		final List<MailMessage> copies = new ArrayList<MailMessage>(sources.size());
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		target.batch(new Runnable() {
+			@Override
+			public void run() {
+				for(MailMessage src : sources) {
+					MailMessage copy = target.createMessage();
+					if(copy == null || !src.copyTo(copy)) {
+						failed.set(true);
+						return;
+					}
+
+					copy.flags.set("\\Recent", true);
+					copy.storeFlags();
+					copies.add(copy);
+				}
+			}
+		});
+		if(toSelected) {
+			snapshot.added(copies);
+		}
 
-			src.copyTo(copy);
-			copy.flags.set("\\Recent", true);
-			copy.storeFlags();
+		if(failed.get()) {
+			this.reply(msg, "NO COPY failed");
+		} else {
+			this.reply(msg, "OK COPY completed");
 		}
-		this.reply(msg, "OK COPY completed");
 	}
 
 	private void handleAppend(IMAPMessage msg) {
-		if(!this.verifyAuth(msg)) {
+		if(this.inbox == null) {
+			this.rejectAppend(msg, "NO Must be authenticated");
 			return;
 		}
 
 		if(msg.args == null || msg.args.length < 2) {
-			this.reply(msg, "BAD Not enough arguments");
+			this.rejectAppend(msg, "BAD Not enough arguments");
 			return;
 		}
 
 		//args[0] is always the mailbox
 		String mbname = trimQuotes(msg.args[0]);
 
-		String sdatalen = "";
-		List<String> flags = new LinkedList<String>();
-
-		for(int i = 1; i < msg.args.length; i++) {
-			if(msg.args[i].startsWith("(")) {
-				if(msg.args[i].endsWith(")")) {
-					//Only flag
-					flags.add(msg.args[i].substring(1, msg.args[i].length() - 1));
-				} else {
-					//Add all the flags
-					flags.add(msg.args[i].substring(1, msg.args[i].length()));
-					i++;
-					while(!msg.args[i].endsWith(")")) {
-						flags.add(msg.args[i]);
-						i++;
-					}
-					flags.add(msg.args[i].substring(0, msg.args[i].length() - 1));
-				}
-			} else if(msg.args[i].startsWith("{")) {
-				//Data length
-				sdatalen = msg.args[i].substring(1, msg.args[i].length() -1);
-			}
-		}
-
-		int datalen;
-		try {
-			datalen = Integer.parseInt(sdatalen);
-		} catch (NumberFormatException nfe) {
+		if(msg.literalLength < 0) {
 			this.reply(msg, "BAD Unable to parse literal length");
 			return;
 		}
 
 		MessageBank destmb = this.getMailboxFromPath(mbname);
 		if(destmb == null) {
-			this.reply(msg, "NO [TRYCREATE] No such mailbox");
+			this.rejectAppend(msg, "NO [TRYCREATE] No such mailbox");
 			return;
 		}
 
-		MailMessage newmsg = destmb.createMessage();
-		this.ps.print("+ OK\r\n");
+		//With MULTIAPPEND (RFC 3502) each message is followed by the next one, and either all or
+		//none of them must be added, so they are committed together once all have been written
+		List<MailMessage> added = new ArrayList<MailMessage>();
+		String error = null;
+		IMAPMessage part = msg;
+		int firstArg = 1;
 		try {
-			PrintStream msgps = newmsg.getRawStream();
+			while(part != null) {
+				if(part.literalLength < 0) {
+					error = "BAD Unable to parse literal length";
+					break;
+				}
 
-			String line;
-			int bytesread = 0;
-			while((line = this.bufrdr.readLine()) != null) {
-				msgps.println(line);
+				PrintStream msgps = null;
+				if(error == null) {
+					MailMessage newmsg = destmb.createMessage();
+					if(newmsg != null) {
+						msgps = newmsg.getRawStream();
+						added.add(newmsg);
 
-				bytesread += line.getBytes("UTF-8").length;
-				bytesread += "\r\n".length();
+						//Set before committing so the flags are part of the same index record
+						for(String flag : parseAppendFlags(part.args, firstArg)) {
+							newmsg.flags.set(flag, true);
+						}
+					} else {
+						error = "NO Failed to write message";
+					}
+				}
 
-				if(bytesread >= datalen) break;
-			}
+				if(part.literalSync) {
+					if(error != null) {
+						//The client won't send the rest of the command
+						break;
+					}
+					this.writer.print("+ OK").crlf();
+					this.writer.flush();
+				}
 
-			newmsg.commit();
+				part = this.reader.copyLiteral(part, msgps);
+				if(msgps != null && msgps.checkError()) {
+					error = "NO Failed to write message";
+				}
+				firstArg = 0;
+			}
+		} catch (IMAPBadMessageException e) {
+			error = "BAD Invalid message arguments";
 		} catch (IOException ioe) {
-			this.reply(msg, "NO Failed to write message");
-			newmsg.cancel();
+			Logger.error(this, "Caught IOException while appending messages: " + ioe.getMessage());
+			error = "NO Failed to write message";
+		}
+
+		if(error != null) {
+			for(MailMessage newmsg : added) {
+				newmsg.cancel();
+			}
+			this.reply(msg, error);
 			return;
 		}
 
-		for(String flag : flags) {
-			newmsg.flags.set(flag, true);
+		destmb.commitAll(added);
+		if(snapshot != null && destmb.isSameFolder(mb)) {
+			snapshot.added(added);
 		}
-		newmsg.storeFlags();
 		this.reply(msg, "OK APPEND completed");
 	}
 
+	/**
+	 * Replies to an APPEND command that fails before any message has been read. Literals the
+	 * client sends without waiting for a continuation request (LITERAL+) are read and thrown away
+	 * first, so they aren't taken for commands.
+	 */
+	private void rejectAppend(IMAPMessage msg, String response) {
+		IMAPMessage part = msg;
+		try {
+			while(part != null && part.literalLength >= 0 && !part.literalSync) {
+				part = this.reader.copyLiteral(part, null);
+			}
+		} catch (IMAPBadMessageException e) {
+			//Nothing more to skip
+		} catch (IOException ioe) {
+			Logger.debug(this, "Caught IOException while skipping literal: " + ioe.getMessage());
+		}
+		this.reply(msg, response);
+	}
+
+	/**
+	 * Returns the flags of a message to append, which are given in a list starting at
+	 * {@code args[first]}. The date that may follow is ignored.
+	 */
+	private static List<String> parseAppendFlags(String[] args, int first) {
+		List<String> flags = new LinkedList<String>();
+		if(args == null || first >= args.length || !args[first].startsWith("(")) {
+			return flags;
+		}
+
+		String flag = args[first].substring(1);
+		for(int i = first + 1; !flag.endsWith(")") && i < args.length; i++) {
+			if(flag.length() > 0) {
+				flags.add(flag);
+			}
+			flag = args[i];
+		}
+		if(flag.endsWith(")")) {
+			flag = flag.substring(0, flag.length() - 1);
+		}
+		if(flag.length() > 0) {
+			flags.add(flag);
+		}
+		return flags;
+	}
+
 	private void handleSearch(IMAPMessage msg) {
 		handleSearch(msg, false);
 	}
@@ -1278,242 +1756,282 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		if(msg.args.length < 1) {
+		if(msg.args == null || msg.args.length < 1) {
 			reply(msg, "BAD Missing arguments for SEARCH command");
 			return;
 		}
 
-		if(msg.args[0].equalsIgnoreCase("CHARSET")) {
-			reply(msg, "NO [BADCHARSET] Freemail doesn't support specifying CHARSET");
-			return;
-		}
-
-		Map<Integer, MailMessage> messages = mb.listMessages();
-		try {
-			for(MailMessage message : messages.values()) {
-				message.readHeaders();
+		//SEARCH RETURN (options) asks for an ESEARCH response (RFC 4731)
+		int returnOptions = 0;
+		int first = 0;
+		if(msg.args[0].equalsIgnoreCase("RETURN")) {
+			first = 1;
+			if(msg.args.length < 2 || !msg.args[1].startsWith("(")) {
+				reply(msg, "BAD Missing result options for SEARCH command");
+				return;
 			}
-		} catch(IOException e) {
-			sendState("BAD Internal server error while searching messages");
-			reply(msg, "NO Internal server error while searching messages");
-		}
 
-		{
-			/*
-			 * If there is only a single parenthetical expression which encloses the entire search,
-			 * it is only syntactic and does not increase the complexity. Therefore allow it by removing the
-			 * parentheses before further processing.
-			 * Commons Lang StringUtils.countMatches() would make this nicer.
-			 */
-			int parenthesisCount = 0;
-			for (final String arg : msg.args) {
-				for (final char character : arg.toCharArray()) {
-					if (character == '(' || character == ')') {
-						parenthesisCount++;
+			String option = msg.args[1].substring(1);
+			while(true) {
+				boolean last = option.endsWith(")");
+				if(last) {
+					option = option.substring(0, option.length() - 1);
+				}
+				if(option.length() > 0) {
+					int parsed = parseReturnOption(option);
+					if(parsed == 0) {
+						reply(msg, "BAD Unknown result option " + option);
+						return;
 					}
+					returnOptions |= parsed;
 				}
-			}
-
-			final String firstArg = msg.args[0];
-			final int lastArgIndex = msg.args.length - 1;
-			String lastArg = msg.args[lastArgIndex];
-			if (parenthesisCount == 2 && firstArg.startsWith("(") && lastArg.endsWith(")")) {
-				// Remove parenthesis: first character from first arg, last from last.
-				msg.args[0] = firstArg.substring(1);
 
-				lastArg = msg.args[lastArgIndex];
-				msg.args[lastArgIndex] = lastArg.substring(0, lastArg.length() - 1);
-
-				/*
-				 * If anything were parsed such that it's only a parenthesis, it would be empty now. That's not
-				 * desirable, so remove it from the argument list.
-				 */
-				final boolean firstEmpty = msg.args[0].isEmpty();
-				final boolean lastEmpty = msg.args[lastArgIndex].isEmpty();
-				msg = new IMAPMessage(msg.tag, msg.type, Arrays.copyOfRange(msg.args, firstEmpty ? 1 : 0,
-						lastEmpty ? lastArgIndex : msg.args.length));
+				first++;
+				if(last) {
+					break;
+				}
+				if(first == msg.args.length) {
+					reply(msg, "BAD Missing arguments for SEARCH command");
+					return;
+				}
+				option = msg.args[first];
 			}
-		}
 
-		//Index of the next search key
-		int offset = 0;
-		while(offset < msg.args.length) {
-			//If it starts or ends with a paran, fail
-			if(msg.args[offset].startsWith("(") || msg.args[offset].endsWith(")")) {
-				reply(msg, "NO Freemail doesn't support parentheses in search yet");
-				return;
+			if(returnOptions == 0) {
+				returnOptions = RETURN_ALL;
 			}
-
-			if(msg.args[offset].equalsIgnoreCase("ALL")) {
-				//Matches all messages, so do nothing
-				offset++;
-				continue;
+			if(first == msg.args.length) {
+				reply(msg, "BAD Missing arguments for SEARCH command");
+				return;
 			}
+		}
 
-			//Check the various flag state filters
-			if(msg.args[offset].equalsIgnoreCase("ANSWERED")) {
-				filterMessagesOnFlag(messages.values(), "\\Answered", true);
-				offset++;
-				continue;
-			}
+		if(msg.args[first].equalsIgnoreCase("CHARSET")) {
+			reply(msg, "NO [BADCHARSET] Freemail doesn't support specifying CHARSET");
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("DELETED")) {
-				filterMessagesOnFlag(messages.values(), "\\Deleted", true);
-				offset++;
-				continue;
-			}
+		IMAPSearchQuery query;
+		try {
+			query = IMAPSearchQuery.parse((first == 0) ? msg.args : Arrays.copyOfRange(msg.args, first, msg.args.length));
+		} catch(IMAPSearchQuery.SearchException e) {
+			reply(msg, e.getMessage());
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("FLAGGED")) {
-				filterMessagesOnFlag(messages.values(), "\\Flagged", true);
-				offset++;
-				continue;
-			}
+		SortedMap<Integer, MailMessage> messages = snapshot.listMessages();
+		BitSet matches;
+		try {
+			matches = query.search(mb, messages);
+		} catch(IOException e) {
+			Logger.error(this, "Caught IOException while searching messages: " + e.getMessage(), e);
+			reply(msg, "NO Internal server error while searching messages");
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("RECENT")) {
-				filterMessagesOnFlag(messages.values(), "\\Recent", true);
-				offset++;
-				continue;
+		//The matches are kept as bits, indexed by uid or sequence number
+		BitSet numbers = matches;
+		if(!uid) {
+			numbers = new BitSet();
+			for(MailMessage message : messages.values()) {
+				if(matches.get(message.getUID())) {
+					numbers.set(message.getSeqNum());
+				}
 			}
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("SEEN")) {
-				filterMessagesOnFlag(messages.values(), "\\Seen", true);
-				offset++;
-				continue;
+		if(returnOptions != 0) {
+			sendEsearch(msg, uid, returnOptions, numbers);
+		} else {
+			Logger.debug(this, "Reply: * SEARCH with " + numbers.cardinality() + " results");
+			this.writer.print("* SEARCH");
+			for(int n = numbers.nextSetBit(0); n >= 0; n = numbers.nextSetBit(n + 1)) {
+				this.writer.print(' ').print(n);
 			}
+			this.writer.crlf();
+		}
+		reply(msg, "OK Search completed");
+	}
 
-			if(msg.args[offset].equalsIgnoreCase("UNANSWERED")) {
-				filterMessagesOnFlag(messages.values(), "\\Answered", false);
-				offset++;
-				continue;
-			}
+	/**
+	 * Returns the flag of the given SEARCH result option, or 0 if it is unknown.
+	 */
+	private static int parseReturnOption(String option) {
+		if(option.equalsIgnoreCase("MIN")) {
+			return RETURN_MIN;
+		} else if(option.equalsIgnoreCase("MAX")) {
+			return RETURN_MAX;
+		} else if(option.equalsIgnoreCase("ALL")) {
+			return RETURN_ALL;
+		} else if(option.equalsIgnoreCase("COUNT")) {
+			return RETURN_COUNT;
+		}
+		return 0;
+	}
 
-			if(msg.args[offset].equalsIgnoreCase("UNDELETED")) {
-				filterMessagesOnFlag(messages.values(), "\\Deleted", false);
-				offset++;
-				continue;
-			}
+	/**
+	 * Sends the ESEARCH response with the requested results. MIN, MAX and ALL are left out when
+	 * nothing matched, as required by RFC 4731.
+	 */
+	private void sendEsearch(IMAPMessage msg, boolean uid, int returnOptions, BitSet numbers) {
+		StringBuilder reply = new StringBuilder("ESEARCH (TAG \"").append(msg.tag).append("\")");
+		if(uid) {
+			reply.append(" UID");
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("UNFLAGGED")) {
-				filterMessagesOnFlag(messages.values(), "\\Flagged", false);
-				offset++;
-				continue;
-			}
+		boolean empty = numbers.isEmpty();
+		if((returnOptions & RETURN_MIN) != 0 && !empty) {
+			reply.append(" MIN ").append(numbers.nextSetBit(0));
+		}
+		if((returnOptions & RETURN_MAX) != 0 && !empty) {
+			reply.append(" MAX ").append(numbers.length() - 1);
+		}
+		if((returnOptions & RETURN_ALL) != 0 && !empty) {
+			reply.append(" ALL ").append(SequenceSet.of(numbers));
+		}
+		if((returnOptions & RETURN_COUNT) != 0) {
+			reply.append(" COUNT ").append(numbers.cardinality());
+		}
+		sendState(reply.toString());
+	}
 
-			if(msg.args[offset].equalsIgnoreCase("UNSEEN")) {
-				filterMessagesOnFlag(messages.values(), "\\Seen", false);
-				offset++;
-				continue;
-			}
+	private void handleSort(IMAPMessage msg, boolean uid) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("DRAFT")) {
-				filterMessagesOnFlag(messages.values(), "\\Draft", true);
-				offset++;
-				continue;
-			}
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("UNDRAFT")) {
-				filterMessagesOnFlag(messages.values(), "\\Draft", false);
-				offset++;
-				continue;
-			}
+		if(msg.args == null || msg.args.length < 3 || !msg.args[0].startsWith("(")) {
+			reply(msg, "BAD Missing arguments for SORT command");
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("KEYWORD")) {
-				filterMessagesOnFlag(messages.values(), msg.args[offset + 1], true);
-				offset += 2;
-				continue;
+		//The sort criteria are split into one argument per criterion
+		List<String> keys = new ArrayList<String>();
+		int last = 0;
+		String key = msg.args[0].substring(1);
+		while(!key.endsWith(")")) {
+			keys.add(key);
+			last++;
+			if(last == msg.args.length) {
+				reply(msg, "BAD Missing arguments for SORT command");
+				return;
 			}
+			key = msg.args[last];
+		}
+		keys.add(key.substring(0, key.length() - 1));
 
-			if(msg.args[offset].equalsIgnoreCase("UNKEYWORD")) {
-				filterMessagesOnFlag(messages.values(), msg.args[offset + 1], false);
-				offset += 2;
-				continue;
-			}
+		IMAPSorter sorter = IMAPSorter.parse(keys);
+		if(sorter == null) {
+			reply(msg, "BAD Invalid sort criteria");
+			return;
+		}
 
-			//Header searches
-			if(msg.args[offset].equalsIgnoreCase("BCC")) {
-				String searchString = msg.args[offset + 2];
-				filterMessagesOnHeader(messages.values(), "BCC", searchString);
-				offset += 2;
-				continue;
-			}
+		List<MailMessage> messages = searchSelected(msg, last + 1);
+		if(messages == null) {
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("CC")) {
-				String searchString = msg.args[offset + 1];
-				filterMessagesOnHeader(messages.values(), "CC", searchString);
-				offset += 2;
-				continue;
+		StringBuilder reply = new StringBuilder("SORT");
+		try {
+			for(MailMessage message : sorter.sort(messages)) {
+				reply.append(' ').append(uid ? message.getUID() : message.getSeqNum());
 			}
+		} catch(IOException e) {
+			Logger.error(this, "Caught IOException while sorting messages: " + e.getMessage(), e);
+			reply(msg, "NO Internal server error while sorting messages");
+			return;
+		}
+		sendState(reply.toString());
+		reply(msg, "OK Sort completed");
+	}
 
-			if(msg.args[offset].equalsIgnoreCase("FROM")) {
-				String searchString = msg.args[offset + 1];
-				filterMessagesOnHeader(messages.values(), "FROM", searchString);
-				offset += 2;
-				continue;
-			}
+	private void handleThread(IMAPMessage msg, boolean uid) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("SUBJECT")) {
-				String searchString = msg.args[offset + 1];
-				filterMessagesOnHeader(messages.values(), "SUBJECT", searchString);
-				offset += 2;
-				continue;
-			}
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("TO")) {
-				String searchString = msg.args[offset + 1];
-				filterMessagesOnHeader(messages.values(), "TO", searchString);
-				offset += 2;
-				continue;
-			}
+		if(msg.args == null || msg.args.length < 3) {
+			reply(msg, "BAD Missing arguments for THREAD command");
+			return;
+		}
 
-			if(msg.args[offset].equalsIgnoreCase("HEADER")) {
-				String headerName = msg.args[offset + 1];
-				String searchString = msg.args[offset + 2];
-				filterMessagesOnHeader(messages.values(), headerName, searchString);
-				offset += 3;
-				continue;
-			}
+		String algorithm = msg.args[0].toLowerCase(Locale.ROOT);
+		if(!IMAPThreader.isSupported(algorithm)) {
+			reply(msg, "BAD Unsupported threading algorithm");
+			return;
+		}
 
-			//For now we don't support any of the rest
-			reply(msg, "NO Criteria " + msg.args[offset] + " hasn't been implemented");
+		List<MailMessage> messages = searchSelected(msg, 1);
+		if(messages == null) {
 			return;
 		}
 
-		//Handled all the criteria, so lets send the results back
-		StringBuilder reply = new StringBuilder("SEARCH");
-		for(MailMessage message : messages.values()) {
-			if(uid) {
-				reply.append(" " + message.getUID());
-			} else {
-				reply.append(" " + message.getSeqNum());
-			}
+		String threads;
+		try {
+			threads = IMAPThreader.thread(messages, algorithm, uid);
+		} catch(IOException e) {
+			Logger.error(this, "Caught IOException while threading messages: " + e.getMessage(), e);
+			reply(msg, "NO Internal server error while threading messages");
+			return;
 		}
-		sendState(reply.toString());
-		reply(msg, "OK Search completed");
+		sendState(threads.isEmpty() ? "THREAD" : "THREAD " + threads);
+		reply(msg, "OK Thread completed");
 	}
 
-	private void filterMessagesOnFlag(Collection<MailMessage> messages, String flag, boolean state) {
-		Iterator<MailMessage> it = messages.iterator();
-		while(it.hasNext()) {
-			if(it.next().flags.get(flag) != state) {
-				it.remove();
-			}
+	/**
+	 * Returns the messages of the selected mailbox that match the search criteria of a SORT or
+	 * THREAD command, in sequence number order.
+	 * @param msg the command
+	 * @param charsetArg the index of the charset argument, which is followed by the criteria
+	 * @return the matching messages, or {@code null} if the command failed and has been replied to
+	 */
+	private List<MailMessage> searchSelected(IMAPMessage msg, int charsetArg) {
+		if(charsetArg + 1 >= msg.args.length) {
+			reply(msg, "BAD Missing search criteria");
+			return null;
 		}
-	}
 
-	private void filterMessagesOnHeader(Collection<MailMessage> messages, String headerName, String searchString) {
-		Iterator<MailMessage> it = messages.iterator();
-		while(it.hasNext()) {
-			boolean found = false;
-			for(String headerValue : it.next().getHeadersByName(headerName)) {
-				if(headerValue.toLowerCase(Locale.ROOT).contains(searchString.toLowerCase(Locale.ROOT))) {
-					found = true;
-					break;
-				}
-			}
-			if(!found) {
-				it.remove();
+		String charset = trimQuotes(msg.args[charsetArg]);
+		if(!charset.equalsIgnoreCase("UTF-8") && !charset.equalsIgnoreCase("US-ASCII")) {
+			reply(msg, "NO [BADCHARSET (UTF-8 US-ASCII)] Unsupported charset");
+			return null;
+		}
+
+		IMAPSearchQuery query;
+		try {
+			query = IMAPSearchQuery.parse(Arrays.copyOfRange(msg.args, charsetArg + 1, msg.args.length));
+		} catch(IMAPSearchQuery.SearchException e) {
+			reply(msg, e.getMessage());
+			return null;
+		}
+
+		SortedMap<Integer, MailMessage> messages = snapshot.listMessages();
+		BitSet matches;
+		try {
+			matches = query.search(mb, messages);
+		} catch(IOException e) {
+			Logger.error(this, "Caught IOException while searching messages: " + e.getMessage(), e);
+			reply(msg, "NO Internal server error while searching messages");
+			return null;
+		}
+
+		List<MailMessage> matching = new ArrayList<MailMessage>();
+		for(MailMessage message : messages.values()) {
+			if(matches.get(message.getUID())) {
+				matching.add(message);
 			}
 		}
+		return matching;
 	}
 
 	private String getEnvelope(MailMessage mmsg) {
@@ -1569,12 +2087,27 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 	private void reply(IMAPMessage msg, String reply) {
 		Logger.debug(this, "Reply: " + msg.tag + " " + reply);
-		this.ps.print(msg.tag + " " + reply + "\r\n");
+		this.writer.print(msg.tag).print(' ').print(reply).crlf();
+		this.writer.flush();
 	}
 
 	private void sendState(String txt) {
 		Logger.debug(this, "Reply: * " + txt);
-		this.ps.print("* "+txt+"\r\n");
+		this.writer.print("* ").print(txt).crlf();
+	}
+
+	/**
+	 * Joins {@code args[from]} and the following arguments back together with single spaces.
+	 */
+	private static String joinArgs(String[] args, int from) {
+		StringBuilder buf = new StringBuilder();
+		for(int i = from; i < args.length; i++) {
+			if(i > from) {
+				buf.append(" ");
+			}
+			buf.append(args[i]);
+		}
+		return buf.toString();
 	}
 
 	private static String trimQuotes(String in) {
@@ -1596,53 +2129,195 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		return true;
 	}
 
-	private SortedSet<Integer> parseSequenceSet(String seqNum, int maxSeqNum) throws IllegalSequenceNumberException {
-		SortedSet<Integer> result = new TreeSet<Integer>();
+	private SequenceSet parseSequenceSet(String seqNum, int maxSeqNum) throws IllegalSequenceNumberException {
+		SequenceSet result = SequenceSet.parse(seqNum, maxSeqNum);
+		if(result.first() <= 0) {
+			throw new IllegalSequenceNumberException("Sequence number must be greater than zero");
+		}
+		return result;
+	}
+
+	/**
+	 * Sends the changes to the selected mailbox while the client is idling. Each change to the
+	 * mailbox schedules a background task, and the snapshot is only used by those tasks until
+	 * {@link #stop()} returns.
+	 */
+	private class IdleWatcher implements Runnable, MessageBankListener {
+		private final MailboxSnapshot idleSnapshot;
 
-		//Split on , to get the ranges
-		for(String range : seqNum.split(",")) {
-			String fromSeqNum;
-			String toSeqNum;
+		/** Set while a task has been scheduled but hasn't started, so changes are sent together */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
 
-			if(!range.contains(":")) {
-				fromSeqNum = range;
-				toSeqNum = range;
-			} else {
-				String[] parts = range.split(":");
-				if(parts.length != 2) {
-					throw new NumberFormatException();
+		/** Guarded by the watcher, which is held while updates are sent */
+		private boolean done = false;
+
+		private IdleWatcher(MailboxSnapshot snapshot) {
+			this.idleSnapshot = snapshot;
+		}
+
+		private void start() {
+			idleSnapshot.getMailbox().addListener(this);
+
+			//Send the changes made since the last command right away
+			folderChanged();
+		}
+
+		@Override
+		public void folderChanged() {
+			//Called with the folder locked, so the watcher must not be locked here
+			if(scheduled.compareAndSet(false, true)) {
+				execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			scheduled.set(false);
+			synchronized(this) {
+				if(done) {
+					return;
 				}
 
-				fromSeqNum = parts[0];
-				toSeqNum = parts[1];
+				for(String update : idleSnapshot.update()) {
+					sendState(update);
+				}
+				writer.flush();
 			}
+		}
 
-			int from = parseSequenceNumber(fromSeqNum, maxSeqNum);
-			int to = parseSequenceNumber(toSeqNum, maxSeqNum);
-			if(from <= 0 || to <= 0) {
-				throw new IllegalSequenceNumberException("Sequence number must be greater than zero");
+		private void stop() {
+			idleSnapshot.getMailbox().removeListener(this);
+			synchronized(this) {
+				done = true;
 			}
+		}
+	}
 
-			if(from > to) {
-				int temp = from;
-				from = to;
-				to = temp;
+	/**
+	 * The attributes of a FETCH command, parsed once for all the messages that are fetched.
+	 */
+	private static class FetchAttributes {
+		/** The attributes as sent by the client */
+		private final String[] names;
+		private final String[] lowerCaseNames;
+
+		/** Cleared if the list of attributes wasn't terminated */
+		private final boolean terminated;
+
+		private FetchAttributes(String[] names, boolean terminated) {
+			this.names = names;
+			this.lowerCaseNames = new String[names.length];
+			for(int i = 0; i < names.length; i++) {
+				lowerCaseNames[i] = names[i].toLowerCase(Locale.ROOT);
+			}
+			this.terminated = terminated;
+		}
+
+		/**
+		 * Parses the attributes in {@code args[first]} to {@code args[last]}, which is either a
+		 * single attribute or a parenthesized list.
+		 */
+		private static FetchAttributes parse(String[] args, int first, int last) {
+			if(!args[first].startsWith("(")) {
+				return new FetchAttributes(new String[] {args[first]}, true);
+			}
+
+			List<String> names = new ArrayList<String>(last - first + 1);
+			boolean terminated = false;
+			for(int i = first; i <= last && !terminated; i++) {
+				String name = args[i];
+				if(i == first) {
+					name = name.substring(1);
+				}
+				if(name.endsWith(")")) {
+					name = name.substring(0, name.length() - 1);
+					terminated = true;
+				}
+				names.add(name);
 			}
+			return new FetchAttributes(names.toArray(new String[names.size()]), terminated);
+		}
 
-			for(int i = from; i <= to; i++) {
-				result.add(i);
+		private boolean contains(String lowerCaseName) {
+			for(String name : lowerCaseNames) {
+				if(name.equals(lowerCaseName)) {
+					return true;
+				}
 			}
+			return false;
 		}
 
-		return result;
-	}
+		/**
+		 * Returns the attributes with MODSEQ added if it isn't already requested.
+		 */
+		private FetchAttributes withModSeq() {
+			if(contains("modseq")) {
+				return this;
+			}
 
-	private int parseSequenceNumber(String seqNum, int maxSeqNum) {
-		if(seqNum.equals("*")) {
-			return maxSeqNum;
+			String[] withModSeq = Arrays.copyOf(names, names.length + 1);
+			withModSeq[names.length] = "MODSEQ";
+			return new FetchAttributes(withModSeq, terminated);
 		}
+	}
 
-		return Integer.parseInt(seqNum);
+	/**
+	 * The parameters of SELECT (QRESYNC (...)): what the client remembers about the mailbox.
+	 */
+	private static class QresyncParameters {
+		private final long uidValidity;
+		private final long modSeq;
+
+		/** The uids the client knows about, or {@code null} if all of them */
+		private final SequenceSet knownUids;
+
+		private QresyncParameters(long uidValidity, long modSeq, SequenceSet knownUids) {
+			this.uidValidity = uidValidity;
+			this.modSeq = modSeq;
+			this.knownUids = knownUids;
+		}
+
+		/**
+		 * Parses "(uidvalidity modseq [known-uids] [seq-match-data]))", the part of the SELECT
+		 * parameters after QRESYNC. The optional sequence match data is ignored, so the client is
+		 * sent all the missing uids it knows about.
+		 * @return the parameters, or {@code null} if they aren't valid
+		 */
+		private static QresyncParameters parse(String params) {
+			if(!params.startsWith("(")) {
+				return null;
+			}
+			params = params.substring(1);
+			int seqMatch = params.indexOf('(');
+			if(seqMatch != -1) {
+				params = params.substring(0, seqMatch);
+			}
+			params = params.replace(")", "").trim();
+
+			String[] parts = params.split(" +");
+			if(parts.length < 2 || parts.length > 3) {
+				return null;
+			}
+
+			try {
+				long uidValidity = Long.parseLong(parts[0]);
+				long modSeq = Long.parseLong(parts[1]);
+				if(uidValidity <= 0 || modSeq <= 0) {
+					return null;
+				}
+
+				SequenceSet known = null;
+				if(parts.length == 3) {
+					known = SequenceSet.parse(parts[2], Integer.MAX_VALUE);
+					if(known.first() <= 0) {
+						return null;
+					}
+				}
+				return new QresyncParameters(uidValidity, modSeq, known);
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
 	}
 
 	private class IllegalSequenceNumberException extends Exception {
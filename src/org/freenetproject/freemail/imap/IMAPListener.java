@@ -21,12 +21,14 @@
 
 package org.freenetproject.freemail.imap;
 
-import java.net.ServerSocket;
-import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.Socket;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.SelectorServer;
+import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.ServerListener;
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
@@ -38,9 +40,11 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	private String bindaddress;
 	private int bindport;
 	private final AccountManager accountManager;
+	private final SelectorServer server;
 
-	public IMAPListener(AccountManager accMgr, Configurator cfg) {
+	public IMAPListener(AccountManager accMgr, Configurator cfg, SelectorServer server) {
 		accountManager = accMgr;
+		this.server = server;
 		cfg.register(Configurator.IMAP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.IMAP_BIND_PORT, this, Integer.toString(LISTENPORT));
 	}
@@ -64,22 +68,16 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
-		sock.setSoTimeout(60000);
-		while(!sock.isClosed()) {
-			try {
-				IMAPHandler newcli = new IMAPHandler(accountManager, sock.accept());
-				Thread newthread = new Thread(newcli);
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
-			} catch (SocketTimeoutException ste) {
-
-			} catch (IOException ioe) {
+		acceptConnections(server, this.bindaddress, this.bindport);
+	}
 
-			}
+	@Override
+	protected boolean usesLiterals() {
+		return true;
+	}
 
-			reapHandlers();
-		}
+	@Override
+	protected ServerHandler createHandler(Socket client, InputStream in, OutputStream out) {
+		return new IMAPHandler(accountManager, client, in, out);
 	}
 }
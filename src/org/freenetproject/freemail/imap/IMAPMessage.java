@@ -19,37 +19,89 @@
 
 package org.freenetproject.freemail.imap;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.Vector;
 import java.util.Stack;
+import java.util.Vector;
 
 public class IMAPMessage {
+	/** The charset command lines are decoded with */
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
 	public final String tag;
 	public final String type;
 	public final String[] args;
 
+	/**
+	 * The length of the literal the command line ends with, which hasn't been read yet, or -1 if
+	 * it doesn't end with a literal. The literal marker is the last of {@link #args}.
+	 */
+	final long literalLength;
+
+	/** Set if the client waits for a continuation request before sending the literal */
+	final boolean literalSync;
+
 	IMAPMessage(String raw) throws IMAPBadMessageException {
-		char[] a1 = {'[', '"'};
-		char[] a2 = {']', '"'};
+		this(raw.getBytes(CHARSET));
+	}
+
+	private IMAPMessage(byte[] raw) throws IMAPBadMessageException {
+		this(raw, 0, raw.length);
+	}
+
+	/**
+	 * Parses a command line. The arguments are split on the spaces between tokens, so a list
+	 * such as (\Seen \Draft) is split into "(\Seen" and "\Draft)", while quoted strings and
+	 * sections in square brackets are kept whole.
+	 */
+	IMAPMessage(byte[] line, int offset, int length) throws IMAPBadMessageException {
+		IMAPTokenizer tokenizer = new IMAPTokenizer(line, offset, length);
+
+		List<String> parts = new ArrayList<String>();
+		int argStart = -1;
+		int argEnd = -1;
+		long literal = -1;
+		boolean sync = true;
+		for(int type = tokenizer.next(); type != IMAPTokenizer.END; type = tokenizer.next()) {
+			if(argStart < 0 || tokenizer.spaceBefore()) {
+				if(argStart >= 0) {
+					parts.add(new String(line, argStart, argEnd - argStart, CHARSET));
+				}
+				argStart = tokenizer.start();
+			}
+			argEnd = tokenizer.end();
+
+			if(type == IMAPTokenizer.LITERAL) {
+				literal = tokenizer.literalLength();
+				sync = tokenizer.literalSync();
+			}
+		}
+		if(argStart >= 0) {
+			parts.add(new String(line, argStart, argEnd - argStart, CHARSET));
+		}
 
-		String[] parts = doSplit(raw, a1, a2);
-		if(parts.length < 2) {
+		if(parts.size() < 2) {
 			throw new IMAPBadMessageException();
 		}
-		this.tag = parts[0];
-		this.type = parts[1].toLowerCase(Locale.ROOT);
-		if(parts.length > 2) {
-			this.args = new String[parts.length - 2];
-			System.arraycopy(parts, 2, this.args, 0, parts.length - 2);
+		this.tag = parts.get(0);
+		this.type = parts.get(1).toLowerCase(Locale.ROOT);
+		if(parts.size() > 2) {
+			this.args = parts.subList(2, parts.size()).toArray(new String[parts.size() - 2]);
 		} else {
 			this.args = null;
 		}
+		this.literalLength = literal;
+		this.literalSync = sync;
 	}
 
 	IMAPMessage(String tag, String type, String[] args) {
 		this.tag = tag;
 		this.type = type;
 		this.args = args;
+		this.literalLength = -1;
+		this.literalSync = true;
 	}
 
 	public static String[] doSplit(String in, char c1, char c2) {
@@ -21,9 +21,6 @@
 
 package org.freenetproject.freemail.imap;
 
-import java.util.Locale;
-import java.util.Vector;
-
 public class IMAPMessageFlags {
 	public static final char[] allShortFlags = {
 		'S',
@@ -84,81 +81,115 @@ public class IMAPMessageFlags {
 		return buf.toString();
 	}
 
-	private Vector<String> flags;
+	public static final int SEEN = 1 << 0;
+	public static final int ANSWERED = 1 << 1;
+	public static final int FLAGGED = 1 << 2;
+	public static final int DELETED = 1 << 3;
+	public static final int DRAFT = 1 << 4;
+	public static final int RECENT = 1 << 5;
 
-	public IMAPMessageFlags() {
-		this.flags = new Vector<String>();
-	}
+	/** Maps the characters used in short flag strings to flag bits */
+	private static final int[] shortFlagBits = new int[128];
 
-	public IMAPMessageFlags(String shortflags) {
-		this.flags = new Vector<String>();
+	/** The short flag string and flag list for each combination of flags */
+	private static final String[] shortFlagStrings = new String[1 << allFlags.length];
+	private static final String[] flagStrings = new String[1 << allFlags.length];
+
+	static {
 		for(int i = 0; i < allShortFlags.length; i++) {
-			if(shortflags.indexOf(allShortFlags[i]) >= 0) {
-				this.flags.add(allFlags[i]);
+			shortFlagBits[allShortFlags[i]] = 1 << i;
+		}
+
+		for(int bits = 0; bits < shortFlagStrings.length; bits++) {
+			StringBuilder shortFlags = new StringBuilder();
+			StringBuilder flags = new StringBuilder();
+			for(int i = 0; i < allFlags.length; i++) {
+				if((bits & (1 << i)) != 0) {
+					shortFlags.append(allShortFlags[i]);
+					if(flags.length() > 0) flags.append(" ");
+					flags.append(allFlags[i]);
+				}
 			}
+			shortFlagStrings[bits] = shortFlags.toString();
+			flagStrings[bits] = flags.toString();
 		}
 	}
 
-	public void set(String flag, boolean value) {
-		flag = sanitize_flag(flag);
+	private int flags;
 
-		if(flag == null) return;
+	public IMAPMessageFlags() {
+		this.flags = 0;
+	}
 
-		if(value) {
-			this.flags.add(flag);
-		} else {
-			this.flags.remove(flag);
-		}
+	public IMAPMessageFlags(String shortflags) {
+		this.flags = parseShortFlags(shortflags);
 	}
 
-	public String getShortFlagString() {
-		String retval = new String("");
+	public IMAPMessageFlags(int flags) {
+		this.flags = flags & ((1 << allFlags.length) - 1);
+	}
 
-		for(int i = 0; i < allFlags.length; i++) {
-			if(this.flags.contains(allFlags[i])) {
-				retval += allShortFlags[i];
+	/**
+	 * Returns the flag bits given by the short flag string. Unknown characters are ignored.
+	 * @param shortflags the short flag string
+	 * @return the flag bits given by the short flag string
+	 */
+	public static int parseShortFlags(String shortflags) {
+		int bits = 0;
+		for(int i = 0; i < shortflags.length(); i++) {
+			char c = shortflags.charAt(i);
+			if(c < shortFlagBits.length) {
+				bits |= shortFlagBits[c];
 			}
 		}
-
-		return retval;
+		return bits;
 	}
 
-	public String getFlags() {
-		String retval = "";
-
+	/**
+	 * Returns the bit used for the given flag, or 0 if it isn't a flag we support.
+	 * @param flag the name of the flag, e.g. \Seen
+	 * @return the bit used for the given flag
+	 */
+	public static int getFlagBit(String flag) {
 		for(int i = 0; i < allFlags.length; i++) {
-			if(this.flags.contains(allFlags[i])) {
-				if(retval.length() > 0) retval += " ";
-				retval += allFlags[i];
+			if(allFlags[i].equalsIgnoreCase(flag)) {
+				return 1 << i;
 			}
 		}
-
-		return retval;
+		return 0;
 	}
 
-	public void clear() {
-		this.flags.clear();
+	public void set(String flag, boolean value) {
+		int bit = getFlagBit(flag);
+		if(value) {
+			this.flags |= bit;
+		} else {
+			this.flags &= ~bit;
+		}
 	}
 
-	public boolean get(String flag) {
-		flag = sanitize_flag(flag);
+	public String getShortFlagString() {
+		return shortFlagStrings[flags];
+	}
 
-		if(flag == null) return false;
+	public String getFlags() {
+		return flagStrings[flags];
+	}
 
-		if(this.flags.contains(flag)) return true;
-		return false;
+	/**
+	 * Returns the flags as a bitmask of {@link #SEEN}, {@link #ANSWERED} etc.
+	 * @return the flags as a bitmask
+	 */
+	public int getBits() {
+		return flags;
 	}
 
-	// take a flag, check it's real flag, and if so,
-	// return it in the proper capitalisation
-	private static String sanitize_flag(String flag) {
-		String realFlag = null;
+	public void clear() {
+		this.flags = 0;
+	}
 
-		for(int i = 0; i < allFlags.length; i++) {
-			if(allFlags[i].toLowerCase(Locale.ROOT).equals(flag.toLowerCase(Locale.ROOT))) {
-				realFlag = allFlags[i];
-			}
-		}
-		return realFlag;
+	public boolean get(String flag) {
+		int bit = getFlagBit(flag);
+		return bit != 0 && (this.flags & bit) != 0;
 	}
 }
@@ -0,0 +1,192 @@
+/*
+ * IMAPResponseWriter.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Collects the responses to the client in a buffer, so that e.g. a FETCH of a large mailbox is
+ * sent in a few large writes instead of one per attribute. Nothing is sent until {@link #flush()}
+ * is called, which the handler does after each tagged response and continuation request, or until
+ * the buffer is full.
+ *
+ * Like PrintStream, the print methods don't throw. If writing to the client fails the rest of the
+ * output is dropped, and the handler finds out when it next reads from the connection.
+ *
+ * Only one thread may use the writer at a time.
+ */
+class IMAPResponseWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private OutputStream out;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int count = 0;
+	private boolean failed = false;
+
+	IMAPResponseWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Appends a string. Strings that are only ASCII, which includes everything but message data,
+	 * are copied into the buffer directly, others are encoded as UTF-8 since that is how the
+	 * messages are read.
+	 */
+	IMAPResponseWriter print(String s) {
+		int length = s.length();
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				write(s.substring(i).getBytes(UTF8));
+				return this;
+			}
+
+			if(count == buf.length) {
+				writeBuffer();
+			}
+			buf[count++] = (byte)c;
+		}
+		return this;
+	}
+
+	IMAPResponseWriter print(char c) {
+		if(c >= 0x80) {
+			return print(String.valueOf(c));
+		}
+
+		if(count == buf.length) {
+			writeBuffer();
+		}
+		buf[count++] = (byte)c;
+		return this;
+	}
+
+	/**
+	 * Appends the decimal form of {@code number} without creating a string.
+	 */
+	IMAPResponseWriter print(long number) {
+		if(number < 0) {
+			if(number == Long.MIN_VALUE) {
+				return print(Long.toString(number));
+			}
+			print('-');
+			number = -number;
+		}
+
+		//A long has at most 19 digits
+		if(buf.length - count < 19) {
+			writeBuffer();
+		}
+		int digits = 1;
+		for(long rest = number / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		for(int i = count + digits - 1; i >= count; i--) {
+			buf[i] = (byte)('0' + number % 10);
+			number /= 10;
+		}
+		count += digits;
+		return this;
+	}
+
+	IMAPResponseWriter crlf() {
+		return write(CRLF);
+	}
+
+	IMAPResponseWriter write(byte[] data) {
+		if(data.length > buf.length - count) {
+			writeBuffer();
+			if(data.length > buf.length) {
+				writeOut(data, data.length);
+				return this;
+			}
+		}
+
+		System.arraycopy(data, 0, buf, count, data.length);
+		count += data.length;
+		return this;
+	}
+
+	/**
+	 * Sends everything that has been buffered to the client.
+	 */
+	void flush() {
+		writeBuffer();
+		if(failed) {
+			return;
+		}
+
+		try {
+			out.flush();
+		} catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Sends what has been buffered on to the output stream without flushing it, so that more can
+	 * be written to the same stream directly.
+	 */
+	void writeBuffered() {
+		writeBuffer();
+	}
+
+	/**
+	 * Compresses everything that is written from now on (RFC 4978). Whatever has been buffered is
+	 * sent uncompressed first. Each {@link #flush()} then ends with a sync flush, so the client can
+	 * decompress every response as soon as it arrives.
+	 * @return the compressing stream, for writing to the client without going through the writer
+	 */
+	OutputStream startCompressing() {
+		flush();
+		out = new DeflatingOutputStream(out);
+		return out;
+	}
+
+	private void writeBuffer() {
+		writeOut(buf, count);
+		count = 0;
+	}
+
+	private void writeOut(byte[] data, int length) {
+		if(failed || length == 0) {
+			return;
+		}
+
+		try {
+			out.write(data, 0, length);
+		} catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	private void failed(IOException e) {
+		Logger.debug(this, "Couldn't write to client: " + e.getMessage());
+		failed = true;
+	}
+}
@@ -0,0 +1,679 @@
+/*
+ * IMAPSearchQuery.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+
+/**
+ * The search criteria of a SEARCH command (RFC 3501 section 6.4.4), parsed into a tree of search
+ * keys that is evaluated over sets of uids.
+ *
+ * Every key is given the set of messages that could still match and returns the ones that do.
+ * The keys of a list are evaluated cheapest first, so keys that only need the folder index (flags,
+ * sequence numbers and uids) narrow down the messages before the headers or the text of any
+ * message is read.
+ */
+class IMAPSearchQuery {
+	/** Keys answered from the flags, uids or sequence numbers of the messages */
+	private static final int COST_FLAGS = 0;
+
+	/** Keys answered from other values kept in the folder index, e.g. the size */
+	private static final int COST_INDEX = 1;
+
+	/** Keys that need the headers of the messages */
+	private static final int COST_HEADERS = 2;
+
+	/** Keys that need the text of the messages */
+	private static final int COST_TEXT = 3;
+
+	/** The flag mask and the value the masked flags must have for each of the flag keys */
+	private static final Map<String, int[]> flagKeys = new HashMap<String, int[]>();
+	static {
+		addFlagKey("ANSWERED", IMAPMessageFlags.ANSWERED, IMAPMessageFlags.ANSWERED);
+		addFlagKey("DELETED", IMAPMessageFlags.DELETED, IMAPMessageFlags.DELETED);
+		addFlagKey("DRAFT", IMAPMessageFlags.DRAFT, IMAPMessageFlags.DRAFT);
+		addFlagKey("FLAGGED", IMAPMessageFlags.FLAGGED, IMAPMessageFlags.FLAGGED);
+		addFlagKey("RECENT", IMAPMessageFlags.RECENT, IMAPMessageFlags.RECENT);
+		addFlagKey("SEEN", IMAPMessageFlags.SEEN, IMAPMessageFlags.SEEN);
+		addFlagKey("UNANSWERED", IMAPMessageFlags.ANSWERED, 0);
+		addFlagKey("UNDELETED", IMAPMessageFlags.DELETED, 0);
+		addFlagKey("UNDRAFT", IMAPMessageFlags.DRAFT, 0);
+		addFlagKey("UNFLAGGED", IMAPMessageFlags.FLAGGED, 0);
+		addFlagKey("UNSEEN", IMAPMessageFlags.SEEN, 0);
+		addFlagKey("NEW", IMAPMessageFlags.RECENT | IMAPMessageFlags.SEEN, IMAPMessageFlags.RECENT);
+		addFlagKey("OLD", IMAPMessageFlags.RECENT, 0);
+	}
+
+	/** The header searched by each of the header keys */
+	private static final Map<String, String> headerKeys = new HashMap<String, String>();
+	static {
+		headerKeys.put("BCC", "BCC");
+		headerKeys.put("CC", "CC");
+		headerKeys.put("FROM", "FROM");
+		headerKeys.put("SUBJECT", "SUBJECT");
+		headerKeys.put("TO", "TO");
+	}
+
+	private final Key root;
+
+	private IMAPSearchQuery(Key root) {
+		this.root = root;
+	}
+
+	private static void addFlagKey(String name, int mask, int value) {
+		flagKeys.put(name, new int[] {mask, value});
+	}
+
+	/**
+	 * Parses the search criteria given as arguments to SEARCH.
+	 * @param args the arguments of the command, as split by {@link IMAPMessage}
+	 * @return the parsed criteria
+	 * @throws SearchException if the criteria aren't valid or aren't supported
+	 */
+	static IMAPSearchQuery parse(String[] args) throws SearchException {
+		Parser parser = new Parser(tokenize(args));
+		Key root = parser.parseList();
+		if(parser.hasNext()) {
+			throw new SearchException("BAD Unbalanced parentheses in search criteria");
+		}
+		return new IMAPSearchQuery(root);
+	}
+
+	/**
+	 * Returns the uids of the messages that match the criteria.
+	 * @param mb the folder the messages are in
+	 * @param messages the messages of the folder, keyed by uid
+	 * @return the uids of the matching messages
+	 * @throws IOException if the headers of a message couldn't be read
+	 */
+	BitSet search(MessageBank mb, SortedMap<Integer, MailMessage> messages) throws IOException {
+		BitSet all = new BitSet();
+		for(Integer uid : messages.keySet()) {
+			all.set(uid.intValue());
+		}
+		if(all.isEmpty()) {
+			return all;
+		}
+
+		return root.evaluate(new Context(mb, messages), all);
+	}
+
+	/**
+	 * Splits the arguments into search keys, their arguments and parentheses. Parentheses are
+	 * sent attached to the keys they enclose, so an argument that only consists of parentheses
+	 * had whitespace next to them, which isn't allowed.
+	 */
+	private static List<String> tokenize(String[] args) throws SearchException {
+		List<String> tokens = new ArrayList<String>();
+		for(String arg : args) {
+			int start = 0;
+			while(start < arg.length() && arg.charAt(start) == '(') {
+				start++;
+			}
+			int end = arg.length();
+			while(end > start && arg.charAt(end - 1) == ')') {
+				end--;
+			}
+
+			if(start == end) {
+				throw new SearchException("NO Criteria " + arg + " hasn't been implemented");
+			}
+
+			for(int i = 0; i < start; i++) {
+				tokens.add("(");
+			}
+			tokens.add(arg.substring(start, end));
+			for(int i = end; i < arg.length(); i++) {
+				tokens.add(")");
+			}
+		}
+		return tokens;
+	}
+
+	private static class Parser {
+		private final List<String> tokens;
+		private int pos = 0;
+
+		private Parser(List<String> tokens) {
+			this.tokens = tokens;
+		}
+
+		private boolean hasNext() {
+			return pos < tokens.size();
+		}
+
+		/**
+		 * Parses keys until the end of the criteria or the end of the enclosing parenthesis.
+		 */
+		private Key parseList() throws SearchException {
+			List<Key> keys = new ArrayList<Key>();
+			while(hasNext() && !tokens.get(pos).equals(")")) {
+				keys.add(parseKey());
+			}
+
+			if(keys.isEmpty()) {
+				throw new SearchException("BAD Missing search criteria");
+			}
+			if(keys.size() == 1) {
+				return keys.get(0);
+			}
+			return new AndKey(keys);
+		}
+
+		private Key parseKey() throws SearchException {
+			String token = tokens.get(pos++);
+			if(token.equals("(")) {
+				Key key = parseList();
+				if(!hasNext()) {
+					throw new SearchException("BAD Unbalanced parentheses in search criteria");
+				}
+				pos++;
+				return key;
+			}
+
+			String name = token.toUpperCase(Locale.ROOT);
+
+			int[] flag = flagKeys.get(name);
+			if(flag != null) {
+				return new FlagKey(flag[0], flag[1]);
+			}
+
+			String header = headerKeys.get(name);
+			if(header != null) {
+				return new HeaderKey(header, trimQuotes(nextArgument(name)));
+			}
+
+			if(name.equals("ALL")) {
+				return new AllKey();
+			}
+			if(name.equals("KEYWORD") || name.equals("UNKEYWORD")) {
+				int bit = IMAPMessageFlags.getFlagBit(trimQuotes(nextArgument(name)));
+				if(bit == 0 && name.equals("KEYWORD")) {
+					//Keywords we don't support can't be set on any message
+					return new NotKey(new AllKey());
+				}
+				return new FlagKey(bit, name.equals("KEYWORD") ? bit : 0);
+			}
+			if(name.equals("HEADER")) {
+				String field = trimQuotes(nextArgument(name));
+				return new HeaderKey(field, trimQuotes(nextArgument(name)));
+			}
+			if(name.equals("BODY") || name.equals("TEXT")) {
+				return new TextKey(trimQuotes(nextArgument(name)), name.equals("TEXT"));
+			}
+			if(name.equals("LARGER") || name.equals("SMALLER")) {
+				return new SizeKey(parseNumber(nextArgument(name)), name.equals("LARGER"));
+			}
+			if(name.equals("BEFORE") || name.equals("ON") || name.equals("SINCE")) {
+				return new DateKey(parseDate(nextArgument(name)), compareMode(name), false);
+			}
+			if(name.equals("SENTBEFORE") || name.equals("SENTON") || name.equals("SENTSINCE")) {
+				return new DateKey(parseDate(nextArgument(name)), compareMode(name.substring(4)), true);
+			}
+			if(name.equals("NOT")) {
+				return new NotKey(parseArgumentKey(name));
+			}
+			if(name.equals("OR")) {
+				Key first = parseArgumentKey(name);
+				return new OrKey(first, parseArgumentKey(name));
+			}
+			if(name.equals("UID")) {
+				return new SetKey(checkSet(nextArgument(name)), true);
+			}
+			if(token.matches("[0-9*:,]+")) {
+				return new SetKey(checkSet(token), false);
+			}
+
+			throw new SearchException("NO Criteria " + token + " hasn't been implemented");
+		}
+
+		private Key parseArgumentKey(String key) throws SearchException {
+			if(!hasNext() || tokens.get(pos).equals(")")) {
+				throw new SearchException("BAD Missing search key for " + key);
+			}
+			return parseKey();
+		}
+
+		private String nextArgument(String key) throws SearchException {
+			if(!hasNext() || tokens.get(pos).equals("(") || tokens.get(pos).equals(")")) {
+				throw new SearchException("BAD Missing argument for " + key);
+			}
+			return tokens.get(pos++);
+		}
+	}
+
+	private static String trimQuotes(String in) {
+		if(in.length() >= 2 && in.charAt(0) == '"' && in.charAt(in.length() - 1) == '"') {
+			return in.substring(1, in.length() - 1);
+		}
+		return in;
+	}
+
+	private static long parseNumber(String number) throws SearchException {
+		try {
+			long value = Long.parseLong(number);
+			if(value >= 0) {
+				return value;
+			}
+		} catch(NumberFormatException e) {
+			//Handled below
+		}
+		throw new SearchException("BAD Invalid number " + number);
+	}
+
+	/**
+	 * Parses a search date (e.g. 1-Feb-1994) into the day number used by {@link #dayOf(long)}.
+	 */
+	private static int parseDate(String date) throws SearchException {
+		SimpleDateFormat sdf = new SimpleDateFormat("d-MMM-yyyy", Locale.ROOT);
+		sdf.setLenient(false);
+		try {
+			return dayOf(sdf.parse(trimQuotes(date)).getTime());
+		} catch(ParseException e) {
+			throw new SearchException("BAD Invalid date " + date);
+		}
+	}
+
+	/**
+	 * Returns a number for the day of the given time that increases with the date. Searches by
+	 * date disregard the time of day, so only the day is compared.
+	 */
+	private static int dayOf(long time) {
+		Calendar cal = Calendar.getInstance(Locale.ROOT);
+		cal.setTimeInMillis(time);
+		return cal.get(Calendar.YEAR) * 10000 + cal.get(Calendar.MONTH) * 100 + cal.get(Calendar.DAY_OF_MONTH);
+	}
+
+	private static int compareMode(String name) {
+		if(name.equals("BEFORE")) {
+			return -1;
+		}
+		if(name.equals("SINCE")) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks that the sequence set is valid. It is parsed again when the search is run since
+	 * * depends on the messages in the folder.
+	 */
+	private static String checkSet(String set) throws SearchException {
+		try {
+			if(SequenceSet.parse(set, 1).first() > 0) {
+				return set;
+			}
+		} catch(NumberFormatException e) {
+			//Handled below
+		}
+		throw new SearchException("BAD Invalid sequence set " + set);
+	}
+
+	/**
+	 * Thrown if the search criteria can't be parsed. The message is the response that should be
+	 * sent to the client.
+	 */
+	static class SearchException extends Exception {
+		private static final long serialVersionUID = 2812304867356519264L;
+
+		SearchException(String response) {
+			super(response);
+		}
+	}
+
+	private static class Context {
+		private final MessageBank mb;
+		private final SortedMap<Integer, MailMessage> messages;
+
+		private Context(MessageBank mb, SortedMap<Integer, MailMessage> messages) {
+			this.mb = mb;
+			this.messages = messages;
+		}
+
+		private MailMessage get(int uid) {
+			return messages.get(Integer.valueOf(uid));
+		}
+	}
+
+	private abstract static class Key {
+		/**
+		 * Returns the subset of the candidates that match this key. The candidates aren't
+		 * modified, and the returned set is never the same instance.
+		 * @param ctx the messages being searched
+		 * @param candidates the uids of the messages that should be checked
+		 * @return the uids of the candidates that match
+		 */
+		abstract BitSet evaluate(Context ctx, BitSet candidates) throws IOException;
+
+		/**
+		 * Returns the relative cost of evaluating this key, one of the COST_ constants.
+		 */
+		abstract int cost();
+	}
+
+	/**
+	 * Orders keys so the cheapest are evaluated first. The sort is stable, so keys of the same
+	 * cost are evaluated in the order they were given.
+	 */
+	private static final Comparator<Key> byCost = new Comparator<Key>() {
+		@Override
+		public int compare(Key k1, Key k2) {
+			return k1.cost() - k2.cost();
+		}
+	};
+
+	private static class AllKey extends Key {
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) {
+			return (BitSet)candidates.clone();
+		}
+
+		@Override
+		int cost() {
+			return COST_FLAGS;
+		}
+	}
+
+	private static class AndKey extends Key {
+		private final List<Key> keys;
+		private final int cost;
+
+		private AndKey(List<Key> keys) {
+			this.keys = new ArrayList<Key>(keys);
+			Collections.sort(this.keys, byCost);
+			this.cost = this.keys.get(this.keys.size() - 1).cost();
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) throws IOException {
+			BitSet matches = candidates;
+			for(Key key : keys) {
+				matches = key.evaluate(ctx, matches);
+				if(matches.isEmpty()) {
+					break;
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return cost;
+		}
+	}
+
+	private static class OrKey extends Key {
+		private final Key first;
+		private final Key second;
+
+		private OrKey(Key k1, Key k2) {
+			//Only the messages that don't match the first key have to be checked against the second
+			if(k2.cost() < k1.cost()) {
+				this.first = k2;
+				this.second = k1;
+			} else {
+				this.first = k1;
+				this.second = k2;
+			}
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) throws IOException {
+			BitSet matches = first.evaluate(ctx, candidates);
+			BitSet rest = (BitSet)candidates.clone();
+			rest.andNot(matches);
+			if(!rest.isEmpty()) {
+				matches.or(second.evaluate(ctx, rest));
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return second.cost();
+		}
+	}
+
+	private static class NotKey extends Key {
+		private final Key key;
+
+		private NotKey(Key key) {
+			this.key = key;
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) throws IOException {
+			BitSet matches = (BitSet)candidates.clone();
+			matches.andNot(key.evaluate(ctx, candidates));
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return key.cost();
+		}
+	}
+
+	private static class FlagKey extends Key {
+		private final int mask;
+		private final int value;
+
+		private FlagKey(int mask, int value) {
+			this.mask = mask;
+			this.value = value;
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) {
+			BitSet matches = new BitSet();
+			for(int uid = candidates.nextSetBit(0); uid >= 0; uid = candidates.nextSetBit(uid + 1)) {
+				if((ctx.get(uid).flags.getBits() & mask) == value) {
+					matches.set(uid);
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return COST_FLAGS;
+		}
+	}
+
+	/**
+	 * Matches messages by uid or by sequence number.
+	 */
+	private static class SetKey extends Key {
+		private final String set;
+		private final boolean uid;
+
+		private SetKey(String set, boolean uid) {
+			this.set = set;
+			this.uid = uid;
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) {
+			MailMessage last = ctx.messages.get(ctx.messages.lastKey());
+			int max = uid ? last.getUID() : last.getSeqNum();
+			SequenceSet numbers = SequenceSet.parse(set, max);
+
+			if(uid) {
+				BitSet matches = new BitSet();
+				for(int i = 0; i < numbers.rangeCount() && numbers.rangeStart(i) <= max; i++) {
+					matches.set(numbers.rangeStart(i), Math.min(numbers.rangeEnd(i), max) + 1);
+				}
+				matches.and(candidates);
+				return matches;
+			}
+
+			BitSet matches = new BitSet();
+			for(int u = candidates.nextSetBit(0); u >= 0; u = candidates.nextSetBit(u + 1)) {
+				if(numbers.contains(ctx.get(u).getSeqNum())) {
+					matches.set(u);
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return COST_FLAGS;
+		}
+	}
+
+	private static class SizeKey extends Key {
+		private final long size;
+		private final boolean larger;
+
+		private SizeKey(long size, boolean larger) {
+			this.size = size;
+			this.larger = larger;
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) throws IOException {
+			BitSet matches = new BitSet();
+			for(int uid = candidates.nextSetBit(0); uid >= 0; uid = candidates.nextSetBit(uid + 1)) {
+				long messageSize = ctx.get(uid).getSize();
+				if(larger ? messageSize > size : messageSize < size) {
+					matches.set(uid);
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return COST_INDEX;
+		}
+	}
+
+	/**
+	 * Compares the internal date or the Date header of messages to a day. The sent date is taken
+	 * from the sort keys in the index, so like SORT it falls back to the internal date.
+	 */
+	private static class DateKey extends Key {
+		private final int day;
+
+		/** -1 for before the day, 0 for on the day and 1 for on or after the day */
+		private final int mode;
+		private final boolean sent;
+
+		private DateKey(int day, int mode, boolean sent) {
+			this.day = day;
+			this.mode = mode;
+			this.sent = sent;
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) throws IOException {
+			BitSet matches = new BitSet();
+			for(int uid = candidates.nextSetBit(0); uid >= 0; uid = candidates.nextSetBit(uid + 1)) {
+				MailMessage msg = ctx.get(uid);
+				long time = sent ? msg.getSortKeys().date : msg.getInternalDate();
+
+				int messageDay = dayOf(time);
+				if(mode < 0 ? messageDay < day : (mode == 0 ? messageDay == day : messageDay >= day)) {
+					matches.set(uid);
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return COST_INDEX;
+		}
+	}
+
+	private static class HeaderKey extends Key {
+		private final String header;
+		private final String searchString;
+
+		private HeaderKey(String header, String searchString) {
+			this.header = header;
+			this.searchString = searchString.toLowerCase(Locale.ROOT);
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) throws IOException {
+			BitSet matches = new BitSet();
+			for(int uid = candidates.nextSetBit(0); uid >= 0; uid = candidates.nextSetBit(uid + 1)) {
+				MailMessage msg = ctx.get(uid);
+				msg.readHeaders();
+				for(String value : msg.getHeadersByName(header)) {
+					if(value.toLowerCase(Locale.ROOT).contains(searchString)) {
+						matches.set(uid);
+						break;
+					}
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return COST_HEADERS;
+		}
+	}
+
+	private static class TextKey extends Key {
+		private final String searchString;
+		private final boolean includeHeaders;
+
+		private TextKey(String searchString, boolean includeHeaders) {
+			this.searchString = searchString;
+			this.includeHeaders = includeHeaders;
+		}
+
+		@Override
+		BitSet evaluate(Context ctx, BitSet candidates) {
+			List<MailMessage> messages = new ArrayList<MailMessage>(candidates.cardinality());
+			for(int uid = candidates.nextSetBit(0); uid >= 0; uid = candidates.nextSetBit(uid + 1)) {
+				messages.add(ctx.get(uid));
+			}
+
+			BitSet matches = ctx.mb.searchText(messages, searchString, includeHeaders);
+			matches.and(candidates);
+			return matches;
+		}
+
+		@Override
+		int cost() {
+			return COST_TEXT;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * IMAPSorter.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.SortKeys;
+
+/**
+ * Sorts messages for the SORT command (RFC 5256), and for the message list of the web interface.
+ * The keys of the messages are copied from their {@link SortKeys} into one array per criterion
+ * before sorting, so comparing two messages only compares array elements and never opens a
+ * message.
+ */
+public class IMAPSorter {
+	private static final int ARRIVAL = 0;
+	private static final int CC = 1;
+	private static final int DATE = 2;
+	private static final int FROM = 3;
+	private static final int SIZE = 4;
+	private static final int SUBJECT = 5;
+	private static final int TO = 6;
+
+	private static final String[] NAMES = {"arrival", "cc", "date", "from", "size", "subject", "to"};
+
+	private final int[] criteria;
+	private final boolean[] reverse;
+
+	private IMAPSorter(int[] criteria, boolean[] reverse) {
+		this.criteria = criteria;
+		this.reverse = reverse;
+	}
+
+	/**
+	 * Parses a list of sort criteria such as REVERSE DATE SUBJECT. The parentheses around the list
+	 * must have been removed.
+	 * @return the sorter, or {@code null} if the criteria aren't valid
+	 */
+	public static IMAPSorter parse(List<String> keys) {
+		int[] criteria = new int[keys.size()];
+		boolean[] reverse = new boolean[keys.size()];
+		int count = 0;
+		boolean nextReversed = false;
+		for(String key : keys) {
+			String lower = key.toLowerCase(Locale.ROOT);
+			if(lower.equals("reverse")) {
+				if(nextReversed) {
+					return null;
+				}
+				nextReversed = true;
+				continue;
+			}
+
+			int criterion = Arrays.asList(NAMES).indexOf(lower);
+			if(criterion < 0) {
+				return null;
+			}
+			criteria[count] = criterion;
+			reverse[count] = nextReversed;
+			count++;
+			nextReversed = false;
+		}
+
+		if(count == 0 || nextReversed) {
+			return null;
+		}
+		return new IMAPSorter(Arrays.copyOf(criteria, count), Arrays.copyOf(reverse, count));
+	}
+
+	/**
+	 * Returns the given messages sorted by the criteria. Messages that are equal by all the
+	 * criteria keep their order, which must be the order of their sequence numbers.
+	 * @param msgs the messages in sequence number order
+	 * @return the sorted messages
+	 * @throws IOException if the sort keys or size of a message had to be read and couldn't be
+	 */
+	public List<MailMessage> sort(List<MailMessage> msgs) throws IOException {
+		int count = msgs.size();
+		final long[][] numbers = new long[criteria.length][];
+		final String[][] strings = new String[criteria.length][];
+		for(int c = 0; c < criteria.length; c++) {
+			if(criteria[c] == ARRIVAL || criteria[c] == DATE || criteria[c] == SIZE) {
+				numbers[c] = new long[count];
+			} else {
+				strings[c] = new String[count];
+			}
+		}
+
+		for(int i = 0; i < count; i++) {
+			MailMessage msg = msgs.get(i);
+			for(int c = 0; c < criteria.length; c++) {
+				switch(criteria[c]) {
+				case ARRIVAL:
+					numbers[c][i] = msg.getInternalDate();
+					break;
+				case DATE:
+					numbers[c][i] = msg.getSortKeys().date;
+					break;
+				case SIZE:
+					numbers[c][i] = msg.getSize();
+					break;
+				case CC:
+					strings[c][i] = msg.getSortKeys().cc;
+					break;
+				case FROM:
+					strings[c][i] = msg.getSortKeys().from;
+					break;
+				case SUBJECT:
+					strings[c][i] = msg.getSortKeys().subject;
+					break;
+				case TO:
+					strings[c][i] = msg.getSortKeys().to;
+					break;
+				default:
+					throw new AssertionError("Unknown sort criterion " + criteria[c]);
+				}
+			}
+		}
+
+		Integer[] order = new Integer[count];
+		for(int i = 0; i < count; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int a = o1.intValue();
+				int b = o2.intValue();
+				for(int c = 0; c < criteria.length; c++) {
+					int result;
+					if(numbers[c] != null) {
+						result = compareLongs(numbers[c][a], numbers[c][b]);
+					} else {
+						result = strings[c][a].compareTo(strings[c][b]);
+					}
+					if(result != 0) {
+						return reverse[c] ? -result : result;
+					}
+				}
+				return a - b;
+			}
+		});
+
+		List<MailMessage> sorted = new ArrayList<MailMessage>(count);
+		for(Integer index : order) {
+			sorted.add(msgs.get(index.intValue()));
+		}
+		return sorted;
+	}
+
+	static int compareLongs(long a, long b) {
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * IMAPThreader.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.SortKeys;
+
+/**
+ * Groups messages into threads for the THREAD command (RFC 5256). Only the {@link SortKeys} of
+ * the messages are used, so no message has to be opened.
+ */
+class IMAPThreader {
+	static final String ORDEREDSUBJECT = "orderedsubject";
+	static final String REFERENCES = "references";
+
+	/**
+	 * Returns {@code true} if the given algorithm (in lower case) is supported.
+	 */
+	static boolean isSupported(String algorithm) {
+		return algorithm.equals(ORDEREDSUBJECT) || algorithm.equals(REFERENCES);
+	}
+
+	/**
+	 * Threads the given messages and returns the threads in the form used in the THREAD
+	 * response, e.g. (1 2)(3 (4)(5)).
+	 * @param msgs the messages in sequence number order
+	 * @param algorithm either {@link #ORDEREDSUBJECT} or {@link #REFERENCES}
+	 * @param uid {@code true} if uids should be returned instead of sequence numbers
+	 * @return the threads
+	 * @throws IOException if the sort keys of a message had to be read and couldn't be
+	 */
+	static String thread(List<MailMessage> msgs, String algorithm, boolean uid) throws IOException {
+		List<Node> nodes = new ArrayList<Node>(msgs.size());
+		for(int i = 0; i < msgs.size(); i++) {
+			MailMessage msg = msgs.get(i);
+			nodes.add(new Node(uid ? msg.getUID() : msg.getSeqNum(), i, msg.getSortKeys()));
+		}
+
+		List<Node> roots;
+		if(algorithm.equals(ORDEREDSUBJECT)) {
+			roots = orderedSubject(nodes);
+		} else {
+			roots = references(nodes);
+		}
+
+		StringBuilder buf = new StringBuilder();
+		for(Node root : roots) {
+			appendThread(buf, root);
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Groups the messages by base subject. The first message of each group is the parent of the
+	 * others, and the threads are sorted by the date of their first message.
+	 */
+	private static List<Node> orderedSubject(List<Node> nodes) {
+		List<Node> sorted = new ArrayList<Node>(nodes);
+		Collections.sort(sorted, new Comparator<Node>() {
+			@Override
+			public int compare(Node n1, Node n2) {
+				int result = n1.keys.subject.compareTo(n2.keys.subject);
+				return (result != 0) ? result : BY_DATE.compare(n1, n2);
+			}
+		});
+
+		List<Node> roots = new ArrayList<Node>();
+		Node root = null;
+		for(Node node : sorted) {
+			if(root != null && root.keys.subject.equals(node.keys.subject)) {
+				root.addChild(node);
+			} else {
+				root = node;
+				roots.add(root);
+			}
+		}
+		Collections.sort(roots, BY_DATE);
+		return roots;
+	}
+
+	/**
+	 * Threads the messages using their Message-ID and References headers, and then groups
+	 * threads with the same base subject, as described in RFC 5256 section 3.
+	 */
+	private static List<Node> references(List<Node> nodes) {
+		//Link the messages using the references, adding empty nodes for messages that are missing
+		Map<String, Node> ids = new HashMap<String, Node>();
+		for(Node node : nodes) {
+			Node container = null;
+			if(node.keys.messageId != null) {
+				container = ids.get(node.keys.messageId);
+			}
+			if(container != null && container.isDummy()) {
+				container.fill(node);
+			} else {
+				//Duplicate ids are treated as if the message had none
+				container = node;
+				if(node.keys.messageId != null && !ids.containsKey(node.keys.messageId)) {
+					ids.put(node.keys.messageId, node);
+				}
+			}
+
+			Node previous = null;
+			for(String reference : node.keys.references) {
+				Node ref = ids.get(reference);
+				if(ref == null) {
+					ref = new Node();
+					ids.put(reference, ref);
+				}
+				if(previous != null && ref.parent == null && ref != previous && !ref.isAncestorOf(previous)) {
+					previous.addChild(ref);
+				}
+				previous = ref;
+			}
+
+			//The last reference is the parent, even if an earlier message said otherwise
+			if(previous != null && previous != container && !container.isAncestorOf(previous)) {
+				if(container.parent != null) {
+					container.parent.children.remove(container);
+					container.parent = null;
+				}
+				previous.addChild(container);
+			}
+		}
+
+		List<Node> containers = new ArrayList<Node>(nodes.size());
+		for(Node node : nodes) {
+			containers.add(node.container());
+		}
+
+		List<Node> roots = prune(topNodes(containers), true);
+		for(Node root : roots) {
+			root.sortChildren();
+		}
+		Collections.sort(roots, BY_DATE);
+
+		roots = groupBySubject(roots);
+		for(Node root : roots) {
+			root.sortChildren();
+		}
+		Collections.sort(roots, BY_DATE);
+		return roots;
+	}
+
+	/**
+	 * Removes empty nodes that have no children, and replaces empty nodes by their children
+	 * unless they are at the top and have more than one child.
+	 */
+	private static List<Node> prune(List<Node> siblings, boolean top) {
+		List<Node> pruned = new ArrayList<Node>();
+		for(Node node : siblings) {
+			node.children = prune(node.children, false);
+			for(Node child : node.children) {
+				child.parent = node;
+			}
+
+			if(!node.isDummy()) {
+				pruned.add(node);
+			} else if(node.children.size() == 1 || (!top && !node.children.isEmpty())) {
+				for(Node child : node.children) {
+					child.parent = node.parent;
+					pruned.add(child);
+				}
+			} else if(!node.children.isEmpty()) {
+				pruned.add(node);
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Merges threads whose base subjects are the same (RFC 5256 section 3, step 5).
+	 */
+	private static List<Node> groupBySubject(List<Node> roots) {
+		Map<String, Node> subjects = new HashMap<String, Node>();
+		for(Node root : roots) {
+			Node first = root.isDummy() ? root.children.get(0) : root;
+			String subject = first.keys.subject;
+			if(subject.length() == 0) {
+				continue;
+			}
+
+			Node current = subjects.get(subject);
+			if(current == null
+					|| (root.isDummy() && !current.isDummy())
+					|| (!current.isDummy() && current.keys.reply && !root.isDummy() && !root.keys.reply)) {
+				subjects.put(subject, root);
+			}
+		}
+
+		List<Node> grouped = new ArrayList<Node>();
+		for(Node root : roots) {
+			if(root.parent != null) {
+				//Already merged into another thread
+				continue;
+			}
+
+			Node first = root.isDummy() ? root.children.get(0) : root;
+			Node other = subjects.get(first.keys.subject);
+			if(first.keys.subject.length() == 0 || other == null || other == root) {
+				grouped.add(root);
+				continue;
+			}
+
+			if(root.isDummy() && other.isDummy()) {
+				for(Node child : root.children) {
+					other.addChild(child);
+				}
+			} else if(other.isDummy()) {
+				other.addChild(root);
+			} else if(root.isDummy()) {
+				root.addChild(other);
+				subjects.put(first.keys.subject, root);
+				grouped.add(root);
+			} else if(!other.keys.reply && root.keys.reply) {
+				other.addChild(root);
+			} else {
+				Node dummy = new Node();
+				dummy.addChild(other);
+				dummy.addChild(root);
+				subjects.put(first.keys.subject, dummy);
+				grouped.add(dummy);
+			}
+		}
+
+		//Threads that were added before being merged into another are replaced by the top node
+		return topNodes(grouped);
+	}
+
+	/**
+	 * Returns the top node of each of the given nodes, without duplicates.
+	 */
+	private static List<Node> topNodes(List<Node> nodes) {
+		List<Node> tops = new ArrayList<Node>();
+		Set<Node> seen = new HashSet<Node>();
+		for(Node node : nodes) {
+			Node top = node;
+			while(top.parent != null) {
+				top = top.parent;
+			}
+			if(seen.add(top)) {
+				tops.add(top);
+			}
+		}
+		return tops;
+	}
+
+	private static void appendThread(StringBuilder buf, Node node) {
+		buf.append('(');
+		appendMembers(buf, node);
+		buf.append(')');
+	}
+
+	private static void appendMembers(StringBuilder buf, Node node) {
+		if(node.isDummy()) {
+			for(Node child : node.children) {
+				appendThread(buf, child);
+			}
+			return;
+		}
+
+		buf.append(node.number);
+		if(node.children.size() == 1) {
+			buf.append(' ');
+			appendMembers(buf, node.children.get(0));
+		} else if(!node.children.isEmpty()) {
+			buf.append(' ');
+			for(Node child : node.children) {
+				appendThread(buf, child);
+			}
+		}
+	}
+
+	/**
+	 * Sorts by sent date and then by sequence number. Empty nodes are sorted by their first child.
+	 */
+	private static final Comparator<Node> BY_DATE = new Comparator<Node>() {
+		@Override
+		public int compare(Node n1, Node n2) {
+			Node m1 = n1.firstMessage();
+			Node m2 = n2.firstMessage();
+			int result = IMAPSorter.compareLongs(m1.keys.date, m2.keys.date);
+			return (result != 0) ? result : m1.index - m2.index;
+		}
+	};
+
+	/**
+	 * A message in a thread, or an empty node for a message that is referenced but isn't one of
+	 * the messages being threaded.
+	 */
+	private static class Node {
+		int number;
+		int index;
+		SortKeys keys;
+		Node parent = null;
+		List<Node> children = new ArrayList<Node>();
+
+		/** The node that took the place of this one, see {@link #fill(Node)} */
+		private Node filled = null;
+
+		Node() {
+			this.number = 0;
+			this.index = -1;
+			this.keys = null;
+		}
+
+		Node(int number, int index, SortKeys keys) {
+			this.number = number;
+			this.index = index;
+			this.keys = keys;
+		}
+
+		boolean isDummy() {
+			return keys == null;
+		}
+
+		/**
+		 * Makes this empty node hold the given message, which was referenced before it was seen.
+		 */
+		void fill(Node msg) {
+			number = msg.number;
+			index = msg.index;
+			keys = msg.keys;
+			msg.filled = this;
+		}
+
+		/**
+		 * Returns the node that holds this message in the thread tree.
+		 */
+		Node container() {
+			return (filled != null) ? filled : this;
+		}
+
+		void addChild(Node child) {
+			child.parent = this;
+			children.add(child);
+		}
+
+		boolean isAncestorOf(Node node) {
+			for(Node n = node; n != null; n = n.parent) {
+				if(n == this) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void sortChildren() {
+			for(Node child : children) {
+				child.sortChildren();
+			}
+			Collections.sort(children, BY_DATE);
+		}
+
+		Node firstMessage() {
+			Node node = this;
+			while(node.isDummy()) {
+				node = node.children.get(0);
+			}
+			return node;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * IMAPTokenizer.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+/**
+ * Splits a command line into tokens in place, without copying the line. The tokens are atoms,
+ * quoted strings, the parentheses of lists and a literal marker ({n} or {n+}) at the end of the
+ * line. The text of a token is only turned into a string when it is asked for.
+ *
+ * Atoms may contain a section in square brackets, e.g. BODY[HEADER.FIELDS (FROM TO)]<0.100>,
+ * which is kept as part of the atom even though it contains spaces and parentheses.
+ */
+class IMAPTokenizer {
+	static final int END = 0;
+	static final int ATOM = 1;
+	static final int QUOTED = 2;
+	static final int LITERAL = 3;
+	static final int LIST_START = 4;
+	static final int LIST_END = 5;
+
+	private final byte[] data;
+	private final int end;
+	private int pos;
+
+	private int tokenStart;
+	private int tokenEnd;
+	private boolean spaceBefore;
+	private long literalLength;
+	private boolean literalSync;
+
+	IMAPTokenizer(byte[] data, int offset, int length) {
+		this.data = data;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Moves to the next token.
+	 * @return the type of the token, or {@link #END} at the end of the line
+	 */
+	int next() {
+		spaceBefore = false;
+		while(pos < end && data[pos] == ' ') {
+			spaceBefore = true;
+			pos++;
+		}
+
+		tokenStart = pos;
+		if(pos == end) {
+			tokenEnd = pos;
+			return END;
+		}
+
+		switch(data[pos]) {
+		case '(':
+			tokenEnd = ++pos;
+			return LIST_START;
+		case ')':
+			tokenEnd = ++pos;
+			return LIST_END;
+		case '"':
+			pos = quotedEnd(pos);
+			tokenEnd = pos;
+			return QUOTED;
+		case '{':
+			if(parseLiteral()) {
+				return LITERAL;
+			}
+			break;
+		default:
+			break;
+		}
+
+		pos = atomEnd(pos);
+		tokenEnd = pos;
+		return ATOM;
+	}
+
+	/**
+	 * Returns the position after the quoted string starting at {@code start}, or the end of the
+	 * line if the string isn't terminated.
+	 */
+	private int quotedEnd(int start) {
+		int i = start + 1;
+		while(i < end) {
+			byte b = data[i++];
+			if(b == '\\' && i < end) {
+				i++;
+			} else if(b == '"') {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private int atomEnd(int start) {
+		int depth = 0;
+		int i = start;
+		while(i < end) {
+			byte b = data[i];
+			if(b == '[') {
+				depth++;
+			} else if(b == ']' && depth > 0) {
+				depth--;
+			} else if(depth == 0 && (b == ' ' || b == '(' || b == ')' || b == '"')) {
+				break;
+			} else if(depth > 0 && b == '"') {
+				//A quoted string in a section may contain ]
+				i = quotedEnd(i);
+				continue;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Parses a literal marker at the current position. It is only a literal if it is the last
+	 * thing on the line.
+	 */
+	private boolean parseLiteral() {
+		int i = pos + 1;
+		long length = 0;
+		int digits = 0;
+		while(i < end && data[i] >= '0' && data[i] <= '9' && digits < 18) {
+			length = length * 10 + (data[i] - '0');
+			digits++;
+			i++;
+		}
+		boolean sync = true;
+		if(i < end && data[i] == '+') {
+			sync = false;
+			i++;
+		}
+		if(digits == 0 || i != end - 1 || data[i] != '}') {
+			return false;
+		}
+
+		literalLength = length;
+		literalSync = sync;
+		tokenEnd = pos = end;
+		return true;
+	}
+
+	boolean spaceBefore() {
+		return spaceBefore;
+	}
+
+	int start() {
+		return tokenStart;
+	}
+
+	int end() {
+		return tokenEnd;
+	}
+
+	/**
+	 * Returns the text of the current token as it was sent, e.g. with the quotes of a quoted
+	 * string.
+	 */
+	String text() {
+		return new String(data, tokenStart, tokenEnd - tokenStart);
+	}
+
+	long literalLength() {
+		return literalLength;
+	}
+
+	/**
+	 * Returns {@code true} if the client waits for a continuation request before sending the
+	 * literal, i.e. it isn't a LITERAL+ literal.
+	 */
+	boolean literalSync() {
+		return literalSync;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * InflatingInputStream.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses the input from the client after COMPRESS DEFLATE (RFC 4978). Unlike
+ * InflaterInputStream, {@link #available()} only counts data that has actually been
+ * decompressed, so the handler can still tell whether a command has arrived without blocking.
+ */
+class InflatingInputStream extends InputStream {
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final InputStream in;
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] input = new byte[BUFFER_SIZE];
+
+	/** Data that has been decompressed but not read yet */
+	private final byte[] output = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int count = 0;
+
+	/**
+	 * @param in the compressed input
+	 * @param received compressed input that was read from {@code in} before the stream was
+	 *                 created, which is decompressed first
+	 * @param off the start of the compressed input in {@code received}
+	 * @param len the length of the compressed input in {@code received}
+	 */
+	InflatingInputStream(InputStream in, byte[] received, int off, int len) {
+		this.in = in;
+		if(len > 0) {
+			inflater.setInput(Arrays.copyOfRange(received, off, off + len));
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(pos == count && !fill(true)) {
+			return -1;
+		}
+		return output[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(pos == count && !fill(true)) {
+			return -1;
+		}
+
+		int length = Math.min(len, count - pos);
+		System.arraycopy(output, pos, b, off, length);
+		pos += length;
+		return length;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if(pos == count) {
+			fill(false);
+		}
+		return count - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+	/**
+	 * Decompresses more data into the output buffer, which must be empty.
+	 * @param block {@code true} if more input should be waited for if needed
+	 * @return {@code false} if there was no data, either because the client closed the connection
+	 *         or ended the compressed stream, or because none has arrived and {@code block} is
+	 *         {@code false}
+	 */
+	private boolean fill(boolean block) throws IOException {
+		pos = 0;
+		count = 0;
+		while(true) {
+			try {
+				count = inflater.inflate(output, 0, output.length);
+			} catch(DataFormatException e) {
+				throw new IOException("Invalid compressed data from client: " + e.getMessage());
+			}
+			if(count > 0) {
+				return true;
+			}
+			if(inflater.finished() || inflater.needsDictionary()) {
+				return false;
+			}
+
+			//The inflater can only have stopped because it needs more input
+			if(!block && in.available() == 0) {
+				return false;
+			}
+			int read = in.read(input, 0, input.length);
+			if(read < 0) {
+				return false;
+			}
+			inflater.setInput(input, 0, read);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * MailboxSnapshot.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+
+/**
+ * The messages of the selected mailbox as seen by one IMAP session. Only the uids and flags are
+ * kept, and the sequence number of a message is its position in the list, so the sequence numbers
+ * stay the same until the client is told about changes using {@link #update()}, as required by
+ * RFC 3501.
+ * Messages that were removed by someone else in the meantime are skipped when they are used, and
+ * new messages aren't visible until they have been announced.
+ */
+class MailboxSnapshot {
+	private final MessageBank mb;
+
+	/** The uids of the messages in ascending order */
+	private int[] uids;
+
+	/** The flags of each message as last reported to the client, without \Recent */
+	private int[] flags;
+
+	/** The change count of the folder when {@link #uids} was last compared to it */
+	private long changeCount;
+
+	/** Set if flag changes should include the mod-sequence of the message (RFC 7162 CONDSTORE) */
+	private boolean reportModSeqs = false;
+
+	/** Set if removed messages should be reported using VANISHED instead of EXPUNGE (QRESYNC) */
+	private boolean reportVanished = false;
+
+	MailboxSnapshot(MessageBank mb) {
+		this.mb = mb;
+
+		//Read the change count first so a change made while listing is seen by the next update
+		this.changeCount = mb.getChangeCount();
+		MailMessage[] msgs = mb.listMessagesArray();
+		this.uids = new int[msgs.length];
+		this.flags = new int[msgs.length];
+		for(int i = 0; i < msgs.length; i++) {
+			uids[i] = msgs[i].getUID();
+			flags[i] = reportedFlags(msgs[i]);
+		}
+	}
+
+	/**
+	 * \Recent is left out when looking for flag changes since it is only cleared by the session
+	 * that reports the message, and that change isn't sent to any client.
+	 */
+	private static int reportedFlags(MailMessage msg) {
+		return msg.flags.getBits() & ~IMAPMessageFlags.RECENT;
+	}
+
+	MessageBank getMailbox() {
+		return mb;
+	}
+
+	void enableCondStore() {
+		reportModSeqs = true;
+	}
+
+	void enableQresync() {
+		reportModSeqs = true;
+		reportVanished = true;
+	}
+
+	int size() {
+		return uids.length;
+	}
+
+	/**
+	 * Returns the highest uid in the snapshot, or 0 if it is empty.
+	 */
+	int lastUid() {
+		return (uids.length == 0) ? 0 : uids[uids.length - 1];
+	}
+
+	/**
+	 * Returns the messages in the snapshot keyed by uid, leaving out any that have been removed
+	 * from the folder.
+	 */
+	SortedMap<Integer, MailMessage> listMessages() {
+		SortedMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+		for(int i = 0; i < uids.length; i++) {
+			MailMessage msg = mb.getMessage(uids[i], i + 1);
+			if(msg != null) {
+				msgs.put(Integer.valueOf(uids[i]), msg);
+			}
+		}
+		return msgs;
+	}
+
+	/**
+	 * Returns the messages with the given sequence numbers, or uids if {@code uid} is set, in
+	 * ascending order. Only the selected messages are read from the folder.
+	 */
+	List<MailMessage> select(SequenceSet set, boolean uid) {
+		List<MailMessage> selected = new ArrayList<MailMessage>();
+		for(int i = 0; i < set.rangeCount(); i++) {
+			int from;
+			int to;
+			if(uid) {
+				from = firstIndexOf(set.rangeStart(i));
+				to = firstIndexOf(set.rangeEnd(i) + 1L);
+			} else {
+				from = Math.max(set.rangeStart(i), 1) - 1;
+				to = Math.min(set.rangeEnd(i), uids.length);
+			}
+
+			for(int index = from; index < to; index++) {
+				MailMessage msg = mb.getMessage(uids[index], index + 1);
+				if(msg != null) {
+					selected.add(msg);
+				}
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Returns the index of the first uid that is at least {@code uid}.
+	 */
+	private int firstIndexOf(long uid) {
+		if(uid > Integer.MAX_VALUE) {
+			return uids.length;
+		}
+
+		int index = Arrays.binarySearch(uids, (int)uid);
+		return (index >= 0) ? index : -(index + 1);
+	}
+
+	/**
+	 * Returns the uids in {@code known} that are lower than {@code limit} but aren't in the
+	 * snapshot. This is used to tell a client which of the messages it knows about are gone when
+	 * the uids of the removed messages haven't been kept.
+	 * @param known the uids the client knows about
+	 * @param limit the lowest uid that hasn't been handed out yet
+	 * @return the missing uids, or {@code null} if there are none
+	 */
+	SequenceSet missing(SequenceSet known, long limit) {
+		SequenceSet.Builder missing = new SequenceSet.Builder();
+		for(int i = 0; i < known.rangeCount(); i++) {
+			long next = known.rangeStart(i);
+			long to = Math.min(known.rangeEnd(i), limit - 1);
+			int index = firstIndexOf(next);
+			while(next <= to) {
+				long present = (index < uids.length) ? uids[index] : Long.MAX_VALUE;
+				if(present > next) {
+					missing.add((int)next, (int)Math.min(present - 1, to));
+				}
+				next = present + 1;
+				index++;
+			}
+		}
+		return missing.isEmpty() ? null : missing.build();
+	}
+
+	/**
+	 * Adds messages that this session added to the folder itself, in the order they were added.
+	 * Messages with a lower uid than the ones already in the snapshot are left for
+	 * {@link #update()}.
+	 */
+	void added(List<MailMessage> msgs) {
+		int count = uids.length;
+		int[] newUids = Arrays.copyOf(uids, count + msgs.size());
+		int[] newFlags = Arrays.copyOf(flags, count + msgs.size());
+		for(MailMessage msg : msgs) {
+			if(count > 0 && msg.getUID() <= newUids[count - 1]) {
+				continue;
+			}
+			newUids[count] = msg.getUID();
+			newFlags[count] = reportedFlags(msg);
+			count++;
+		}
+
+		uids = (count == newUids.length) ? newUids : Arrays.copyOf(newUids, count);
+		flags = (count == newFlags.length) ? newFlags : Arrays.copyOf(newFlags, count);
+	}
+
+	/**
+	 * Records flags that this session has already sent to the client, so they aren't reported
+	 * again by {@link #update()}.
+	 */
+	void flagsStored(MailMessage msg) {
+		int index = Arrays.binarySearch(uids, msg.getUID());
+		if(index >= 0) {
+			flags[index] = reportedFlags(msg);
+		}
+	}
+
+	/**
+	 * Brings the snapshot up to date with the folder and returns the untagged responses that tell
+	 * the client about the changes: EXPUNGE (or VANISHED) for removed messages, FETCH for messages
+	 * whose flags were changed by someone else, and EXISTS and RECENT if messages were added. The \Recent flag
+	 * of the new messages is cleared, since this session is the first to be told about them.
+	 * @return the untagged responses, without the leading "* "
+	 */
+	List<String> update() {
+		List<String> responses = new ArrayList<String>();
+
+		long count = mb.getChangeCount();
+		if(count == changeCount) {
+			return responses;
+		}
+		MailMessage[] current = mb.listMessagesArray();
+		changeCount = count;
+
+		//Walk both lists in uid order. Sequence numbers in the responses are adjusted for the
+		//messages that have already been reported as expunged
+		List<String> fetches = new ArrayList<String>();
+		SequenceSet.Builder vanished = new SequenceSet.Builder();
+		int expunged = 0;
+		int next = 0;
+		for(int i = 0; i < uids.length; i++) {
+			while(next < current.length && current[next].getUID() < uids[i]) {
+				next++;
+			}
+
+			if(next == current.length || current[next].getUID() != uids[i]) {
+				if(reportVanished) {
+					vanished.add(uids[i]);
+				} else {
+					fetches.add((i + 1 - expunged) + " EXPUNGE");
+				}
+				expunged++;
+			} else if(reportedFlags(current[next]) != flags[i]) {
+				fetches.add((i + 1 - expunged) + " FETCH (" + flagUpdate(current[next]) + ")");
+			}
+		}
+
+		//The sequence numbers of the FETCH responses already take the VANISHED messages into account
+		if(!vanished.isEmpty()) {
+			responses.add("VANISHED " + vanished.build());
+		}
+		responses.addAll(fetches);
+
+		int remaining = uids.length - expunged;
+		int lastKnown = lastUid();
+		uids = new int[current.length];
+		flags = new int[current.length];
+		List<MailMessage> recent = new ArrayList<MailMessage>();
+		for(int i = 0; i < current.length; i++) {
+			MailMessage msg = current[i];
+			if(msg.getUID() > lastKnown && msg.flags.get("\\Recent")) {
+				recent.add(msg);
+			}
+			uids[i] = msg.getUID();
+			flags[i] = reportedFlags(msg);
+		}
+		clearRecent(mb, recent);
+
+		if(current.length > remaining) {
+			responses.add(current.length + " EXISTS");
+			responses.add(recent.size() + " RECENT");
+		}
+
+		return responses;
+	}
+
+	/**
+	 * Clears the \\Recent flag of the given messages of {@code mb}, which the session has told the
+	 * client about, as one change to the folder.
+	 */
+	static void clearRecent(MessageBank mb, final List<MailMessage> msgs) {
+		if(msgs.isEmpty()) {
+			return;
+		}
+
+		mb.batch(new Runnable() {
+			@Override
+			public void run() {
+				for(MailMessage msg : msgs) {
+					msg.flags.set("\\Recent", false);
+					msg.storeFlags();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the attributes of an untagged FETCH response for a message whose flags changed.
+	 */
+	private String flagUpdate(MailMessage msg) {
+		StringBuilder buf = new StringBuilder();
+		if(reportVanished) {
+			//QRESYNC requires the uid to be included in all FETCH responses
+			buf.append("UID ").append(msg.getUID()).append(" ");
+		}
+		buf.append("FLAGS (").append(msg.flags.getFlags()).append(")");
+		if(reportModSeqs) {
+			buf.append(" MODSEQ (").append(msg.getModSeq()).append(")");
+		}
+		return buf.toString();
+	}
+}
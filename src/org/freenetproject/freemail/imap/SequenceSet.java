@@ -0,0 +1,198 @@
+/*
+ * SequenceSet.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of sequence numbers or uids (RFC 3501 section 9, sequence-set), kept as a sorted list of
+ * disjoint ranges so that e.g. 1:* takes the same space no matter how many messages there are.
+ */
+class SequenceSet {
+	/** The first and last number of each range, sorted and without overlapping ranges */
+	private final int[] ranges;
+
+	private SequenceSet(int[] ranges) {
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Parses a sequence set such as 1,3:5,7:*.
+	 * @param set the sequence set
+	 * @param max the number that * stands for
+	 * @return the parsed set
+	 * @throws NumberFormatException if the set isn't valid
+	 */
+	static SequenceSet parse(String set, int max) {
+		String[] parts = set.split(",", -1);
+
+		//Each range is encoded as first << 32 | last so sorting sorts on the first number
+		long[] encoded = new long[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			String[] bounds = parts[i].split(":", -1);
+			if(bounds.length > 2) {
+				throw new NumberFormatException();
+			}
+
+			int from = parseNumber(bounds[0], max);
+			int to = parseNumber(bounds[bounds.length - 1], max);
+			if(from > to) {
+				int temp = from;
+				from = to;
+				to = temp;
+			}
+			encoded[i] = ((long)from << 32) | to;
+		}
+		Arrays.sort(encoded);
+
+		int[] ranges = new int[encoded.length * 2];
+		int count = 0;
+		for(long range : encoded) {
+			int from = (int)(range >>> 32);
+			int to = (int)range;
+			if(count > 0 && (long)from <= (long)ranges[count - 1] + 1) {
+				//Overlaps or continues the previous range
+				ranges[count - 1] = Math.max(ranges[count - 1], to);
+			} else {
+				ranges[count++] = from;
+				ranges[count++] = to;
+			}
+		}
+
+		return new SequenceSet(Arrays.copyOf(ranges, count));
+	}
+
+	/**
+	 * Returns the set of the numbers whose bits are set, or {@code null} if there are none.
+	 */
+	static SequenceSet of(BitSet bits) {
+		Builder builder = new Builder();
+		for(int from = bits.nextSetBit(0); from >= 0; from = bits.nextSetBit(from)) {
+			int to = bits.nextClearBit(from);
+			builder.add(from, to - 1);
+			from = to;
+		}
+		return builder.isEmpty() ? null : builder.build();
+	}
+
+	private static int parseNumber(String number, int max) {
+		if(number.equals("*")) {
+			return max;
+		}
+
+		int value = Integer.parseInt(number);
+		if(value < 0) {
+			throw new NumberFormatException();
+		}
+		return value;
+	}
+
+	int first() {
+		return ranges[0];
+	}
+
+	int last() {
+		return ranges[ranges.length - 1];
+	}
+
+	boolean contains(int number) {
+		//Find the last range starting at or before number
+		int low = 0;
+		int high = rangeCount() - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if(ranges[mid * 2] <= number) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high >= 0 && number <= ranges[high * 2 + 1];
+	}
+
+	int rangeCount() {
+		return ranges.length / 2;
+	}
+
+	int rangeStart(int range) {
+		return ranges[range * 2];
+	}
+
+	int rangeEnd(int range) {
+		return ranges[range * 2 + 1];
+	}
+
+	/**
+	 * Returns the set in the form used by IMAP, e.g. 1:3,5.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for(int i = 0; i < rangeCount(); i++) {
+			if(i > 0) {
+				buf.append(",");
+			}
+			buf.append(rangeStart(i));
+			if(rangeEnd(i) != rangeStart(i)) {
+				buf.append(":");
+				buf.append(rangeEnd(i));
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Collects numbers in ascending order into a set.
+	 */
+	static class Builder {
+		private int[] ranges = new int[8];
+		private int count = 0;
+
+		/**
+		 * Adds the numbers from {@code from} to {@code to}. Must not be called with numbers that
+		 * are lower than ones that were already added.
+		 */
+		void add(int from, int to) {
+			if(count > 0 && (long)from <= (long)ranges[count - 1] + 1) {
+				ranges[count - 1] = Math.max(ranges[count - 1], to);
+				return;
+			}
+
+			if(count == ranges.length) {
+				ranges = Arrays.copyOf(ranges, count * 2);
+			}
+			ranges[count++] = from;
+			ranges[count++] = to;
+		}
+
+		void add(int number) {
+			add(number, number);
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		SequenceSet build() {
+			return new SequenceSet(Arrays.copyOf(ranges, count));
+		}
+	}
+}
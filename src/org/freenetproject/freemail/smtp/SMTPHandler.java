@@ -22,6 +22,7 @@
 package org.freenetproject.freemail.smtp;
 
 import java.net.Socket;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.BufferedReader;
@@ -66,12 +67,17 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 	private Vector<Identity> to;
 
 	public SMTPHandler(AccountManager accMgr, Socket client, IdentityMatcher identityMatcher) throws IOException {
+		this(accMgr, client, client.getInputStream(), client.getOutputStream(), identityMatcher);
+	}
+
+	public SMTPHandler(AccountManager accMgr, Socket client, InputStream in, OutputStream out,
+			IdentityMatcher identityMatcher) {
 		super(client);
 		accountmanager = accMgr;
 		this.account = null;
-		this.os = client.getOutputStream();
+		this.os = out;
 		this.ps = new PrintStream(this.os);
-		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		this.bufrdr = new BufferedReader(new InputStreamReader(in));
 		this.identityMatcher = identityMatcher;
 
 		this.to = new Vector<Identity>();
@@ -79,22 +85,10 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 	@Override
 	public void run() {
-		this.sendWelcome();
-
-		String line;
 		try {
-			while(!stopping && !this.client.isClosed() && (line = this.bufrdr.readLine()) != null) {
-				SMTPCommand msg = null;
-				try {
-					//Logger.normal(this,line);
-					msg = new SMTPCommand(line);
-				} catch (SMTPBadCommandException bce) {
-					Logger.debug(this, "Parsing failed, line was: " + line);
-					continue;
-				}
-
-				Logger.debug(this, "Received: " + line);
-				this.dispatch(msg);
+			this.start();
+			while(!stopping && !this.client.isClosed() && this.handleCommand()) {
+				//Keep handling commands until the client goes away
 			}
 
 			this.client.close();
@@ -103,6 +97,37 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 		}
 	}
 
+	@Override
+	protected void start() {
+		this.sendWelcome();
+	}
+
+	@Override
+	protected boolean handleCommand() throws IOException {
+		String line = this.bufrdr.readLine();
+		if(line == null) {
+			return false;
+		}
+
+		SMTPCommand msg = null;
+		try {
+			//Logger.normal(this,line);
+			msg = new SMTPCommand(line);
+		} catch (SMTPBadCommandException bce) {
+			Logger.debug(this, "Parsing failed, line was: " + line);
+			return true;
+		}
+
+		Logger.debug(this, "Received: " + line);
+		this.dispatch(msg);
+		return true;
+	}
+
+	@Override
+	protected boolean hasPendingInput() throws IOException {
+		return this.bufrdr.ready();
+	}
+
 	private void dispatch(SMTPCommand cmd) {
 		if(cmd.command.equals("helo")) {
 			this.handle_helo();
@@ -21,12 +21,15 @@
 
 package org.freenetproject.freemail.smtp;
 
-import java.net.ServerSocket;
-import java.net.InetAddress;
+import java.net.Socket;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.SelectorServer;
+import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.ServerListener;
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
@@ -40,10 +43,12 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 	private int bindport;
 	private final AccountManager accountManager;
 	private final Freemail freemail;
+	private final SelectorServer server;
 
-	public SMTPListener(AccountManager accMgr, Configurator cfg, Freemail freemail) {
+	public SMTPListener(AccountManager accMgr, Configurator cfg, Freemail freemail, SelectorServer server) {
 		this.accountManager = accMgr;
 		this.freemail = freemail;
+		this.server = server;
 		cfg.register(Configurator.SMTP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.SMTP_BIND_PORT, this, Integer.toString(LISTENPORT));
 	}
@@ -67,20 +72,12 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
-		while(!sock.isClosed()) {
-			try {
-				IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
-				SMTPHandler newcli = new SMTPHandler(accountManager, sock.accept(), matcher);
-				Thread newthread = new Thread(newcli);
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
-			} catch (IOException ioe) {
-
-			}
+		acceptConnections(server, this.bindaddress, this.bindport);
+	}
 
-			reapHandlers();
-		}
+	@Override
+	protected ServerHandler createHandler(Socket client, InputStream in, OutputStream out) {
+		IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
+		return new SMTPHandler(accountManager, client, in, out, matcher);
 	}
 }
@@ -24,17 +24,17 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.text.DateFormat;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import javax.naming.SizeLimitExceededException;
 
@@ -42,6 +42,7 @@ import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.imap.IMAPSorter;
 import org.freenetproject.freemail.l10n.FreemailL10n;
 import org.freenetproject.freemail.utils.Logger;
 
@@ -102,18 +103,35 @@ public class InboxToadlet extends WebPage {
 		header.addChild("th").addChild("a", "href", getSortLink(SortField.FROM, !getSortDirection(req)), FreemailL10n.getString("Freemail.InboxToadlet.from"));
 		header.addChild("th").addChild("a", "href", getSortLink(SortField.DATE, !getSortDirection(req)), FreemailL10n.getString("Freemail.InboxToadlet.date"));
 
-		//Sort the messages correctly
-		SortedMap<MailMessage, Integer> messages = new TreeMap<MailMessage, Integer>(new MailMessageComparator(getSortField(req), getSortDirection(req)));
+		List<MailMessage> messages = new ArrayList<MailMessage>();
+		Map<MailMessage, Integer> messageNums = new HashMap<MailMessage, Integer>();
 		for(Entry<Integer, MailMessage> message : messageBank.listMessages().entrySet()) {
-			//FIXME: Initialization of MailMessage should be in MailMessage
-			message.getValue().readHeaders();
+			//The headers shown in the list are normally kept in the folder index
+			if(!message.getValue().hasIndexedHeaders()) {
+				message.getValue().readHeaders();
+			}
+
+			messages.add(message.getValue());
+			messageNums.put(message.getValue(), message.getKey());
+		}
 
-			messages.put(message.getValue(), message.getKey());
+		//Sort the messages the same way as the IMAP SORT command, which uses the sort keys kept in
+		//the folder index. This compares the subjects without prefixes such as "Re:", and the
+		//senders by their mailbox name
+		SortField sortField = getSortField(req);
+		if(sortField == null) {
+			sortField = SortField.DATE;
+		}
+		List<String> criteria = new ArrayList<String>();
+		if(!getSortDirection(req)) {
+			criteria.add("REVERSE");
 		}
+		criteria.add(sortField.name);
+		messages = IMAPSorter.parse(criteria).sort(messages);
 
 		//Add messages
-		for(Entry<MailMessage, Integer> message : messages.entrySet()) {
-			addMessage(messageTable, message.getKey(), folderName, message.getValue());
+		for(MailMessage message : messages) {
+			addMessage(messageTable, message, folderName, messageNums.get(message).intValue());
 		}
 
 		return new GenericHTMLResponse(ctx, 200, "OK", pageNode.generate());
@@ -233,6 +251,10 @@ public class InboxToadlet extends WebPage {
 		HTMLNode folderDiv = parent.addChild("div", "class", "folder");
 		HTMLNode folderPara = folderDiv.addChild("p");
 		folderPara.addChild("a", "href", getFolderPath(folderName), messageBank.getName());
+		int unseen = messageBank.getStatus().unseen;
+		if(unseen > 0) {
+			folderPara.addChild("#", " (" + unseen + ")");
+		}
 
 		//Then add all the children recursively
 		for(MessageBank child : messageBank.listSubFolders()) {
@@ -364,63 +386,4 @@ public class InboxToadlet extends WebPage {
 			return null;
 		}
 	}
-
-	private static class MailMessageComparator implements Comparator<MailMessage> {
-		private final SortField field;
-		private final boolean ascending;
-
-		private MailMessageComparator(SortField field, boolean ascending) {
-			if(field == null) {
-				this.field = SortField.DATE;
-			} else {
-				this.field = field;
-			}
-			this.ascending = ascending;
-		}
-
-		@Override
-		public int compare(MailMessage msg0, MailMessage msg1) {
-			if(!ascending) {
-				//Swap the two so we get the opposite ordering
-				MailMessage temp = msg0;
-				msg0 = msg1;
-				msg1 = temp;
-			}
-
-			int result;
-			if(field == SortField.DATE) {
-				Date msg1Date = msg0.getDate();
-				Date msg2Date = msg1.getDate();
-
-				result = compare(msg1Date, msg2Date);
-			} else {
-				String msg0Header = msg0.getFirstHeader(field.name);
-				String msg1Header = msg1.getFirstHeader(field.name);
-
-				result = compare(msg0Header, msg1Header);
-			}
-
-			if(result == 0) {
-				//If the sort key is equal, use the id to compare since we can't return 0 for messages
-				//that aren't really the same. This is because e.g. TreeSet (which is used above)
-				//assumes that the comparison is consistent with equals.
-				return msg1.getUID() - msg0.getUID();
-			}
-
-			return result;
-		}
-
-		private <T extends Comparable<T>> int compare(T o1, T o2) {
-			if(o1 == null && o2 == null) {
-				return 0;
-			}
-
-			//Sort non-null before null
-			if(o1 == null || o2 == null) {
-				return (o1 == null) ? -1 : 1;
-			}
-
-			return o1.compareTo(o2);
-		}
-	}
 }
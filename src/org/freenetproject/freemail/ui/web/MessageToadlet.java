@@ -200,6 +200,10 @@ public class MessageToadlet extends WebPage {
 		HTMLNode folderDiv = parent.addChild("div", "class", "folder");
 		HTMLNode folderPara = folderDiv.addChild("p");
 		folderPara.addChild("a", "href", InboxToadlet.getFolderPath(folderName), messageBank.getName());
+		int unseen = messageBank.getStatus().unseen;
+		if(unseen > 0) {
+			folderPara.addChild("#", " (" + unseen + ")");
+		}
 
 		//Then add all the children recursively
 		for(MessageBank child : messageBank.listSubFolders()) {
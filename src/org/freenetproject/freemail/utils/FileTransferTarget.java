@@ -0,0 +1,39 @@
+/*
+ * FileTransferTarget.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel that sends parts of files itself. {@link FileChannel#transferTo} only avoids copying
+ * the data through Java when it is given the socket channel, and it gives up as soon as a
+ * non-blocking socket is full, so a channel that writes to such a socket needs to drive the
+ * transfer.
+ */
+public interface FileTransferTarget extends WritableByteChannel {
+	/**
+	 * Sends {@code count} bytes of {@code file} starting at {@code position}, waiting for the
+	 * receiver to accept them.
+	 * @throws java.io.EOFException if the file ends before {@code count} bytes have been sent
+	 */
+	void transferFrom(FileChannel file, long position, long count) throws IOException;
+}
@@ -0,0 +1,77 @@
+/*
+ * FileUtils.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public final class FileUtils {
+	private FileUtils() {
+	}
+
+	/**
+	 * Replaces {@code target} with {@code source} by renaming it. Some platforms won't rename over
+	 * an existing file, so then the old file is moved out of the way first, and put back if
+	 * {@code source} still can't be renamed.
+	 * @throws IOException if {@code target} couldn't be replaced
+	 */
+	public static void replace(File source, File target) throws IOException {
+		if(source.renameTo(target)) {
+			return;
+		}
+
+		File old = new File(target.getParentFile(), target.getName() + "-old");
+		old.delete();
+		if(target.exists() && !target.renameTo(old)) {
+			throw new IOException("Couldn't rename " + target + " to " + old);
+		}
+		if(!source.renameTo(target)) {
+			old.renameTo(target);
+			throw new IOException("Couldn't rename " + source + " to " + target);
+		}
+		old.delete();
+	}
+
+	/**
+	 * Writes {@code count} bytes of {@code file} starting at {@code position} to the given
+	 * channel, using {@link FileChannel#transferTo} so the data doesn't have to pass through Java
+	 * when the channel is a socket.
+	 * @throws EOFException if the file ends before {@code count} bytes have been written
+	 */
+	public static void transfer(FileChannel file, long position, long count, WritableByteChannel target)
+			throws IOException {
+		if(target instanceof FileTransferTarget) {
+			((FileTransferTarget)target).transferFrom(file, position, count);
+			return;
+		}
+
+		while(count > 0) {
+			long sent = file.transferTo(position, count, target);
+			if(sent <= 0) {
+				throw new EOFException("Reached end of file with " + count + " bytes left");
+			}
+			position += sent;
+			count -= sent;
+		}
+	}
+}
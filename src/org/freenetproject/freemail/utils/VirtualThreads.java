@@ -0,0 +1,88 @@
+/*
+ * VirtualThreads.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads (Java 21) when the JVM supports them. Freemail is built for older
+ * versions of Java, so the API is looked up using reflection.
+ *
+ * Code that runs on virtual threads should wait using java.util.concurrent locks instead of
+ * synchronized blocks, since a virtual thread that waits inside a synchronized block keeps its
+ * carrier thread busy on most versions of Java.
+ */
+public final class VirtualThreads {
+	/** Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory(), or {@code null} */
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method factory;
+	static {
+		Method virtual = null;
+		Method builderName = null;
+		Method builderFactory = null;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			virtual = Thread.class.getMethod("ofVirtual");
+			builderName = builderClass.getMethod("name", String.class, long.class);
+			builderFactory = builderClass.getMethod("factory");
+		} catch(ClassNotFoundException e) {
+			Logger.minor(VirtualThreads.class, "Virtual threads aren't supported");
+		} catch(NoSuchMethodException e) {
+			Logger.minor(VirtualThreads.class, "Virtual threads aren't supported");
+		}
+		ofVirtual = virtual;
+		name = builderName;
+		factory = builderFactory;
+	}
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Returns a factory for virtual threads named {@code prefix} followed by a number, or
+	 * {@code null} if virtual threads aren't supported.
+	 * @param prefix the start of the thread names
+	 * @return the factory, or {@code null}
+	 */
+	public static ThreadFactory newFactory(String prefix) {
+		if(!isSupported()) {
+			return null;
+		}
+
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = name.invoke(builder, prefix + " ", Long.valueOf(0));
+			return (ThreadFactory)factory.invoke(builder);
+		} catch(InvocationTargetException e) {
+			Logger.error(VirtualThreads.class, "Couldn't create virtual thread factory: " + e.getCause());
+			return null;
+		} catch(IllegalAccessException e) {
+			Logger.error(VirtualThreads.class, "Couldn't create virtual thread factory: " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -26,6 +26,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.SimpleFieldSetFactory;
@@ -44,8 +46,16 @@ class WoTConnectionImpl implements WoTConnection {
 
 	private final PluginTalker pluginTalker;
 
+	/** Held while sending a message and waiting for the reply, so only one message is sent at a time */
+	private final ReentrantLock sendLock = new ReentrantLock();
+
+	/*
+	 * Locks are used instead of monitors so that waiting for WoT doesn't pin the carrier thread
+	 * when running on a virtual thread.
+	 */
 	private Message reply = null;
-	private final Object replyLock = new Object();
+	private final ReentrantLock replyLock = new ReentrantLock();
+	private final Condition replyReceived = replyLock.newCondition();
 
 	WoTConnectionImpl(PluginRespirator pr) throws PluginNotFoundException {
 		pluginTalker = pr.getPluginTalker(new WoTConnectionTalker(), WOT_PLUGIN_NAME, CONNECTION_IDENTIFIER);
@@ -261,7 +271,6 @@ class WoTConnectionImpl implements WoTConnection {
 	private Message sendBlocking(final Message msg, Set<String> expectedMessageTypes) {
 		assert (msg != null);
 
-		//Synchronize on this so only one message can be sent at a time
 		//Log the contents of the message before sending (debug because of private keys etc)
 		Iterator<String> msgContentIterator = msg.sfs.keyIterator();
 		while(msgContentIterator.hasNext()) {
@@ -269,11 +278,12 @@ class WoTConnectionImpl implements WoTConnection {
 			Logger.debug(this, key + "=" + msg.sfs.get(key));
 		}
 
-		//Synchronize on pluginTalker so only one message can be sent at a time
 		final Message retValue;
 		Timer requestTimer;
-		synchronized(this) {
-			synchronized(replyLock) {
+		sendLock.lock();
+		try {
+			replyLock.lock();
+			try {
 				requestTimer = Timer.start();
 
 				assert (reply == null) : "Reply was " + reply;
@@ -282,17 +292,16 @@ class WoTConnectionImpl implements WoTConnection {
 				pluginTalker.send(msg.sfs, msg.data);
 
 				while(reply == null) {
-					try {
-						replyLock.wait();
-					} catch (InterruptedException e) {
-						//Just check again
-					}
+					replyReceived.awaitUninterruptibly();
 				}
 
 				retValue = reply;
 				reply = null;
-
+			} finally {
+				replyLock.unlock();
 			}
+		} finally {
+			sendLock.unlock();
 		}
 		requestTimer.log(this, "Time spent waiting for WoT request " + msg.sfs.get("Message") + " (reply was "
 				+ retValue.sfs.get("Message") + ")");
@@ -336,11 +345,14 @@ class WoTConnectionImpl implements WoTConnection {
 	private class WoTConnectionTalker implements FredPluginTalker {
 		@Override
 		public void onReply(String pluginname, String indentifier, SimpleFieldSet params, Bucket data) {
-			synchronized(replyLock) {
+			replyLock.lock();
+			try {
 				assert reply == null : "Reply should be null, but was " + reply;
 
 				reply = new Message(params, data);
-				replyLock.notify();
+				replyReceived.signal();
+			} finally {
+				replyLock.unlock();
 			}
 		}
 	}
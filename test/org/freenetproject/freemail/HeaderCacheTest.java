@@ -0,0 +1,95 @@
+/*
+ * HeaderCacheTest.java
+ * This file is part of Freemail, Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class HeaderCacheTest {
+	private static final String CACHE_DIR = "header_cache_dir";
+
+	private File cacheDir = null;
+
+	@Before
+	public void before() {
+		cacheDir = new File(CACHE_DIR);
+		if(cacheDir.exists()) {
+			System.out.println("WARNING: Cache directory exists, deleting");
+			Utils.delete(cacheDir);
+		}
+
+		if(!cacheDir.mkdir()) {
+			System.out.println("WARNING: Could not create cache directory, tests will probably fail");
+		}
+	}
+
+	@After
+	public void after() {
+		Utils.delete(cacheDir);
+	}
+
+	@Test
+	public void repeatedPutsAreCompacted() {
+		HeaderCache cache = new HeaderCache(cacheDir);
+		File cacheFile = new File(cacheDir, ".headers");
+
+		cache.put(1, 10, 20, new String[] {"Subject", "0"});
+		long singleRecord = cacheFile.length();
+
+		for(int i = 1; i <= 5000; i++) {
+			cache.put(1, 10, 20, new String[] {"Subject", "" + i});
+		}
+
+		//Without compaction the file would hold 5001 records
+		assertTrue(cacheFile.length() < singleRecord * 1100);
+		assertArrayEquals(new String[] {"Subject", "5000"}, cache.get(1, 10, 20));
+
+		cache.close();
+		assertArrayEquals(new String[] {"Subject", "5000"}, new HeaderCache(cacheDir).get(1, 10, 20));
+	}
+
+	@Test
+	public void repeatedRemovesAreCompacted() {
+		HeaderCache cache = new HeaderCache(cacheDir);
+		File cacheFile = new File(cacheDir, ".headers");
+
+		cache.put(0, 10, 20, new String[] {"Subject", "kept"});
+		long singleRecord = cacheFile.length();
+
+		for(int i = 1; i <= 5000; i++) {
+			cache.put(i, 10, 20, new String[] {"Subject", "" + i});
+			cache.remove(i);
+		}
+
+		assertTrue(cacheFile.length() < singleRecord * 2100);
+		cache.close();
+
+		HeaderCache reopened = new HeaderCache(cacheDir);
+		assertArrayEquals(new String[] {"Subject", "kept"}, reopened.get(0, 10, 20));
+		assertNull(reopened.get(5000, 10, 20));
+	}
+}
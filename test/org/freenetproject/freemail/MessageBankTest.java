@@ -21,9 +21,22 @@ package org.freenetproject.freemail;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedMap;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -62,6 +75,28 @@ public class MessageBankTest {
 		Utils.delete(accountDir);
 	}
 
+	/**
+	 * Forgets the index of the inbox, so that it is read from disk again, and returns the root
+	 * folder as loaded after a restart.
+	 */
+	private MessageBank reload() {
+		MessageIndex.forget(new File(accountDir, "inbox"));
+		return new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+	}
+
+	/**
+	 * Adds a message with the given headers, as pairs of name and value, and the body "Body".
+	 */
+	private static MailMessage addMessage(MessageBank folder, String... headers) throws IOException {
+		MailMessage msg = folder.createMessage();
+		for(int i = 0; i < headers.length; i += 2) {
+			msg.addHeader(headers[i], headers[i + 1]);
+		}
+		msg.writeHeadersAndGetStream().println("Body");
+		msg.commit();
+		return msg;
+	}
+
 	/*
 	 * This checks for the bug fixed in commit 06452844154a11b605708eeb4fc7bd1756b47d7a.
 	 * MessageBank would try to delete the shadow folder left behind when deleting a MessageBank
@@ -81,4 +116,535 @@ public class MessageBankTest {
 		//This would fail because .subsubfolder couldn't be deleted
 		assertTrue(subFolder.delete());
 	}
+
+	@Test
+	public void indexSurvivesReload() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			addMessage(rootMessageBank, "Subject", "Message " + i);
+		}
+
+		SortedMap<Integer, MailMessage> msgs = rootMessageBank.listMessages();
+		assertEquals(3, msgs.size());
+		msgs.get(msgs.firstKey()).delete();
+		MailMessage second = msgs.get(msgs.firstKey() + 1);
+		second.flags.set("\\Recent", false);
+		second.flags.set("\\Seen", true);
+		second.storeFlags();
+
+		//Force the index to be read back from disk
+		MessageBank reloaded = reload();
+
+		SortedMap<Integer, MailMessage> reloadedMsgs = reloaded.listMessages();
+		assertEquals(2, reloadedMsgs.size());
+		MailMessage first = reloadedMsgs.get(reloadedMsgs.firstKey());
+		assertEquals(1, first.getSeqNum());
+		assertTrue(first.hasIndexedHeaders());
+		assertEquals("Message 1", first.getFirstHeader("Subject"));
+		assertEquals("\\Seen", first.flags.getFlags());
+		assertEquals("\\Recent", reloadedMsgs.get(reloadedMsgs.lastKey()).flags.getFlags());
+	}
+
+	@Test
+	public void modSeqSurvivesReload() throws Exception {
+		MailMessage first = addMessage(rootMessageBank);
+		MailMessage second = addMessage(rootMessageBank);
+
+		long beforeChanges = rootMessageBank.getHighestModSeq();
+		first.flags.set("\\Seen", true);
+		first.storeFlags();
+		second.delete();
+		long highest = rootMessageBank.getHighestModSeq();
+		assertEquals(beforeChanges + 2, highest);
+
+		//Clearing \Recent isn't a change other sessions need to see
+		first.flags.set("\\Recent", false);
+		first.storeFlags();
+		assertEquals(highest, rootMessageBank.getHighestModSeq());
+
+		MessageBank reloaded = reload();
+		assertEquals(highest, reloaded.getHighestModSeq());
+		assertEquals(highest - 1, reloaded.listMessages().get(first.getUID()).getModSeq());
+		assertArrayEquals(new int[] {first.getUID()}, reloaded.listUidsChangedSince(beforeChanges));
+		assertEquals(0, reloaded.listUidsChangedSince(highest).length);
+	}
+
+	@Test
+	public void sortKeysSurviveReload() throws Exception {
+		MailMessage msg = addMessage(rootMessageBank,
+				"Subject", "Re: [list] Test",
+				"From", "Someone <Someone@example.com>",
+				"Date", "Mon, 17 Oct 2011 10:24:14 +0200",
+				"Message-ID", "<id2@example.com>",
+				"References", "<id0@example.com> <id1@example.com>");
+
+		MessageBank reloaded = reload();
+		SortKeys keys = reloaded.listMessages().get(msg.getUID()).getSortKeys();
+		assertEquals("test", keys.subject);
+		assertTrue(keys.reply);
+		assertEquals("someone", keys.from);
+		assertEquals(1318839854000L, keys.date);
+		assertEquals("id2@example.com", keys.messageId);
+		assertArrayEquals(new String[] {"id0@example.com", "id1@example.com"}, keys.references);
+	}
+
+	@Test
+	public void indexPicksUpNewFiles() throws Exception {
+		assertEquals(0, rootMessageBank.listMessages().size());
+
+		//Written behind the index' back, e.g. by an older version
+		File inbox = new File(accountDir, "inbox");
+		PrintStream ps = new PrintStream(new File(inbox, "7,S"));
+		ps.println("Subject: Test");
+		ps.println("");
+		ps.println("Body");
+		ps.close();
+
+		MessageBank reloaded = reload();
+		SortedMap<Integer, MailMessage> msgs = reloaded.listMessages();
+		assertEquals(1, msgs.size());
+		assertEquals("Test", msgs.get(7).getFirstHeader("Subject"));
+		assertEquals("\\Seen", msgs.get(7).flags.getFlags());
+	}
+
+	@Test
+	public void sizeRecordedOnCommit() throws Exception {
+		MailMessage msg = rootMessageBank.createMessage();
+		PrintStream ps = msg.getRawStream();
+		ps.print("Subject: Test\n\nLine one\r\nLine two\rNo line ending");
+		ps.close();
+		msg.commit();
+
+		//Each line is sent with CRLF, including the last
+		long expected = ("Subject: Test\r\n\r\nLine one\r\nLine two\r\nNo line ending\r\n").length();
+
+		File inbox = new File(accountDir, "inbox");
+		MessageIndex index = MessageIndex.forFolder(inbox);
+		assertEquals(expected, index.getSize(msg.getUID()));
+		assertEquals(expected, rootMessageBank.listMessages().get(msg.getUID()).getSize());
+	}
+
+	@Test
+	public void messagesStoredWithCRLF() throws Exception {
+		MailMessage msg = rootMessageBank.createMessage();
+		msg.addHeader("Subject", "Test");
+		PrintStream ps = msg.writeHeadersAndGetStream();
+		ps.print("Line one\nLine two\rLine three");
+		ps.close();
+		msg.commit();
+
+		MailMessage stored = rootMessageBank.listMessages().get(msg.getUID());
+		assertTrue(stored.isStoredAsCRLF());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		stored.transferTo(0, stored.getSize(), Channels.newChannel(out));
+		assertEquals("Subject: Test\r\n\r\nLine one\r\nLine two\r\nLine three\r\n", out.toString("UTF-8"));
+	}
+
+	@Test
+	public void storeFlagsDoesNotRename() throws Exception {
+		MailMessage msg = addMessage(rootMessageBank);
+
+		File inbox = new File(accountDir, "inbox");
+		File msgFile = new File(inbox, Integer.toString(msg.getUID()));
+		assertTrue(msgFile.exists());
+
+		msg.flags.set("\\Seen", true);
+		msg.storeFlags();
+		msg.flags.set("\\Deleted", true);
+		msg.storeFlags();
+		assertTrue(msgFile.exists());
+
+		MessageBank reloaded = reload();
+		assertEquals("\\Seen \\Deleted \\Recent", reloaded.listMessages().get(msg.getUID()).flags.getFlags());
+	}
+
+	@Test
+	public void batchedFlagsAreOneChange() throws Exception {
+		final List<MailMessage> msgs = new ArrayList<MailMessage>();
+		for(int i = 0; i < 3; i++) {
+			msgs.add(addMessage(rootMessageBank));
+		}
+
+		long changeCount = rootMessageBank.getChangeCount();
+		rootMessageBank.batch(new Runnable() {
+			@Override
+			public void run() {
+				for(MailMessage msg : msgs) {
+					msg.flags.set("\\Seen", true);
+					msg.storeFlags();
+				}
+			}
+		});
+		assertEquals(changeCount + 1, rootMessageBank.getChangeCount());
+
+		MessageBank reloaded = reload();
+		for(MailMessage msg : reloaded.listMessages().values()) {
+			assertTrue(msg.flags.get("\\Seen"));
+		}
+	}
+
+	@Test
+	public void statusFollowsChanges() throws Exception {
+		MailMessage first = addMessage(rootMessageBank);
+		MailMessage second = addMessage(rootMessageBank);
+
+		FolderStatus status = rootMessageBank.getStatus();
+		assertEquals(2, status.messages);
+		assertEquals(2, status.recent);
+		assertEquals(2, status.unseen);
+		assertEquals(0, status.deleted);
+		assertEquals(first.getSize() + second.getSize(), status.size);
+		assertEquals(second.getUID() + 1, status.uidNext);
+
+		first.flags.set("\\Seen", true);
+		first.flags.set("\\Recent", false);
+		first.storeFlags();
+		second.flags.set("\\Deleted", true);
+		second.storeFlags();
+		status = rootMessageBank.getStatus();
+		assertEquals(1, status.recent);
+		assertEquals(1, status.unseen);
+		assertEquals(1, status.deleted);
+
+		second.delete();
+		status = rootMessageBank.getStatus();
+		assertEquals(1, status.messages);
+		assertEquals(0, status.recent);
+		assertEquals(0, status.unseen);
+		assertEquals(0, status.deleted);
+		assertEquals(first.getSize(), status.size);
+
+		MessageBank reloaded = reload();
+		status = reloaded.getStatus();
+		assertEquals(1, status.messages);
+		assertEquals(0, status.unseen);
+		assertEquals(first.getSize(), status.size);
+	}
+
+	@Test
+	public void uidsAreNotReusedAfterReload() throws Exception {
+		MailMessage first = addMessage(rootMessageBank);
+		MailMessage second = addMessage(rootMessageBank);
+		assertTrue(second.getUID() > first.getUID());
+
+		//Deleting the newest message must not make its UID available again
+		second.delete();
+
+		MessageBank reloaded = reload();
+		MailMessage third = reloaded.createMessage();
+		assertTrue(third.getUID() > second.getUID());
+	}
+
+	@Test
+	public void flagsSurviveDamagedIndex() throws Exception {
+		MailMessage msg = addMessage(rootMessageBank);
+		msg.flags.set("\\Flagged", true);
+		msg.storeFlags();
+
+		//A record of an unknown type only loses the records after it
+		File inbox = new File(accountDir, "inbox");
+		File indexFile = new File(inbox, ".index");
+		MessageIndex.forget(inbox);
+		PrintStream ps = new PrintStream(new FileOutputStream(indexFile, true));
+		ps.print("X1234");
+		ps.close();
+
+		MessageBank reloaded = reload();
+		assertTrue(reloaded.listMessages().get(msg.getUID()).flags.get("\\Flagged"));
+
+		//That wrote a new snapshot, and the file it replaced is used if the new one can't be read
+		assertTrue(new File(inbox, ".index-prev").exists());
+		MessageIndex.forget(inbox);
+		ps = new PrintStream(indexFile);
+		ps.print("Not a message index");
+		ps.close();
+
+		reloaded = reload();
+		SortedMap<Integer, MailMessage> msgs = reloaded.listMessages();
+		assertEquals(1, msgs.size());
+		assertTrue(msgs.get(msg.getUID()).flags.get("\\Flagged"));
+	}
+
+	@Test
+	public void headerCacheIsInvalidatedWhenFileChanges() throws Exception {
+		MailMessage msg = addMessage(rootMessageBank, "Subject", "Cached");
+
+		File inbox = new File(accountDir, "inbox");
+		MessageBank reloaded = reload();
+		MailMessage cached = reloaded.listMessages().get(msg.getUID());
+		cached.readHeaders();
+		assertEquals("Cached", cached.getFirstHeader("Subject"));
+
+		//Rewrite the file behind the cache's back
+		File msgFile = new File(inbox, Integer.toString(msg.getUID()));
+		PrintStream ps = new PrintStream(msgFile);
+		ps.print("Subject: Changed on disk\r\n\r\nNew body\r\n");
+		ps.close();
+		msgFile.setLastModified(msgFile.lastModified() + 10000);
+
+		MailMessage changed = reloaded.listMessages().get(msg.getUID());
+		changed.readHeaders();
+		assertEquals("Changed on disk", changed.getHeadersByName("Subject").get(0));
+	}
+
+	@Test
+	public void segmentStoreRoundTrip() throws Exception {
+		assertEquals(1, rootMessageBank.convertStore(MessageBank.STORE_SEGMENTS));
+
+		MailMessage kept = rootMessageBank.createMessage();
+		kept.addHeader("Subject", "Kept");
+		kept.writeHeadersAndGetStream().print("Line one\nLine two");
+		kept.commit();
+		MailMessage deleted = addMessage(rootMessageBank, "Subject", "Deleted");
+		deleted.delete();
+
+		//Nothing should be stored as separate files
+		File inbox = new File(accountDir, "inbox");
+		assertFalse(new File(inbox, Integer.toString(kept.getUID())).exists());
+
+		MessageBank reloaded = reload();
+		SortedMap<Integer, MailMessage> msgs = reloaded.listMessages();
+		assertEquals(1, msgs.size());
+
+		MailMessage msg = msgs.get(kept.getUID());
+		msg.readHeaders();
+		assertEquals("Kept", msg.getHeadersByName("Subject").get(0));
+		assertEquals("Line one", msg.getBodyReader().readLine());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.transferTo(0, msg.getSize(), Channels.newChannel(out));
+		assertEquals("Subject: Kept\r\n\r\nLine one\r\nLine two\r\n", out.toString("UTF-8"));
+	}
+
+	@Test
+	public void segmentIndexIsRebuiltWhenDamaged() throws Exception {
+		assertEquals(1, rootMessageBank.convertStore(MessageBank.STORE_SEGMENTS));
+
+		MailMessage first = addMessage(rootMessageBank, "Subject", "First");
+		MailMessage deleted = addMessage(rootMessageBank, "Subject", "Deleted");
+		MailMessage last = addMessage(rootMessageBank, "Subject", "Last");
+		deleted.delete();
+
+		File inbox = new File(accountDir, "inbox");
+		MessageIndex.forget(inbox);
+		PrintStream ps = new PrintStream(new File(inbox, ".segindex"));
+		ps.print("Not a segment index");
+		ps.close();
+
+		MessageBank reloaded = reload();
+		SortedMap<Integer, MailMessage> msgs = reloaded.listMessages();
+		assertEquals(2, msgs.size());
+
+		MailMessage msg = msgs.get(first.getUID());
+		msg.readHeaders();
+		assertEquals("First", msg.getHeadersByName("Subject").get(0));
+		msg = msgs.get(last.getUID());
+		msg.readHeaders();
+		assertEquals("Last", msg.getHeadersByName("Subject").get(0));
+
+		//New messages must still be readable after the rebuilt ones
+		MailMessage added = addMessage(reloaded, "Subject", "Added");
+		MessageIndex.forget(inbox);
+		assertTrue(new File(inbox, ".segindex").delete());
+		reloaded = reload();
+		msg = reloaded.listMessages().get(added.getUID());
+		msg.readHeaders();
+		assertEquals("Added", msg.getHeadersByName("Subject").get(0));
+		assertEquals(3, reloaded.listMessages().size());
+	}
+
+	@Test
+	public void segmentStoreTransfersNothingPastEnd() throws Exception {
+		assertEquals(1, rootMessageBank.convertStore(MessageBank.STORE_SEGMENTS));
+
+		MailMessage msg = addMessage(rootMessageBank);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.transferTo(msg.getSize() + 10, 0, Channels.newChannel(out));
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void convertFolderTreeBothWays() throws Exception {
+		MessageBank subFolder = rootMessageBank.makeSubFolder("subfolder");
+		MailMessage inInbox = addMessage(rootMessageBank, "Subject", "Inbox");
+		inInbox.flags.set("\\Seen", true);
+		inInbox.storeFlags();
+		MailMessage inSubFolder = addMessage(subFolder, "Subject", "Subfolder");
+
+		File inbox = new File(accountDir, "inbox");
+		File inboxFile = new File(inbox, Integer.toString(inInbox.getUID()));
+		assertTrue(inboxFile.exists());
+
+		assertEquals(2, rootMessageBank.convertStore(MessageBank.STORE_SEGMENTS));
+		assertFalse(inboxFile.exists());
+		assertEquals(0, rootMessageBank.convertStore(MessageBank.STORE_SEGMENTS));
+
+		MailMessage converted = rootMessageBank.listMessages().get(inInbox.getUID());
+		assertTrue(converted.flags.get("\\Seen"));
+		converted.readHeaders();
+		assertEquals("Inbox", converted.getHeadersByName("Subject").get(0));
+
+		assertEquals(2, rootMessageBank.convertStore(MessageBank.STORE_MAILDIR));
+		assertTrue(inboxFile.exists());
+
+		MessageIndex.forget(new File(inbox, "subfolder"));
+		MessageBank reloaded = reload();
+		MailMessage sub = reloaded.getSubFolder("subfolder").listMessages().get(inSubFolder.getUID());
+		sub.readHeaders();
+		assertEquals("Subfolder", sub.getHeadersByName("Subject").get(0));
+	}
+
+	@Test
+	public void compressedMessages() throws Exception {
+		MailMessage old = rootMessageBank.createMessage();
+		old.addHeader("Subject", "Old");
+		old.writeHeadersAndGetStream().println("Written before compression");
+		old.commit();
+
+		assertEquals(1, rootMessageBank.convertStore(MessageBank.STORE_MAILDIR + MessageBank.STORE_COMPRESSED_SUFFIX));
+
+		MailMessage msg = rootMessageBank.createMessage();
+		msg.addHeader("Subject", "Compressed");
+		PrintStream ps = msg.writeHeadersAndGetStream();
+		for(int i = 0; i < 100; i++) {
+			ps.println("The same line over and over again");
+		}
+		msg.commit();
+
+		File inbox = new File(accountDir, "inbox");
+		File stored = new File(inbox, msg.getUID() + ".z");
+		assertTrue(stored.exists());
+		assertTrue(new File(inbox, old.getUID() + ".z").exists());
+
+		MessageBank reloaded = reload();
+		SortedMap<Integer, MailMessage> msgs = reloaded.listMessages();
+		MailMessage compressed = msgs.get(msg.getUID());
+		long size = ("Subject: Compressed\r\n\r\n").length() + 100 * ("The same line over and over again\r\n").length();
+		assertEquals(size, compressed.getSize());
+		assertTrue(stored.length() < size);
+		assertEquals("The same line over and over again", compressed.getBodyReader().readLine());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		compressed.transferTo(size - 5, 5, Channels.newChannel(out));
+		assertEquals("ain\r\n", out.toString("UTF-8"));
+
+		assertEquals("Written before compression", msgs.get(old.getUID()).getBodyReader().readLine());
+
+		assertEquals(1, reloaded.convertStore(MessageBank.STORE_MAILDIR));
+		assertTrue(new File(inbox, Integer.toString(msg.getUID())).exists());
+		MailMessage decompressed = reloaded.listMessages().get(msg.getUID());
+		assertEquals(size, decompressed.getSize());
+		assertEquals("The same line over and over again", decompressed.getBodyReader().readLine());
+	}
+
+	@Test
+	public void copyToOtherFolder() throws Exception {
+		MessageBank subFolder = rootMessageBank.makeSubFolder("archive");
+		MailMessage msg = addMessage(rootMessageBank, "Subject", "Copied");
+		msg.flags.set("\\Flagged", true);
+		msg.storeFlags();
+
+		MailMessage original = rootMessageBank.listMessages().get(msg.getUID());
+		MailMessage copy = subFolder.createMessage();
+		assertTrue(original.copyTo(copy));
+		File[] files = new File(new File(accountDir, "inbox"), "archive").listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return !f.getName().startsWith(".");
+			}
+		});
+		assertEquals(1, files.length);
+		int links = linkCount(files[0]);
+		original.delete();
+
+		MailMessage stored = subFolder.listMessages().get(copy.getUID());
+		assertTrue(stored.flags.get("\\Flagged"));
+		assertEquals("Copied", stored.getFirstHeader("Subject"));
+		assertEquals(("Subject: Copied\r\n\r\nBody\r\n").length(), stored.getSize());
+		assertEquals("Body", stored.getBodyReader().readLine());
+
+		//The copy should share the file of the original instead of writing the message again
+		Assume.assumeTrue(links >= 0);
+		assertEquals(2, links);
+	}
+
+	/**
+	 * Returns the number of hard links to the given file, or -1 if the platform can't tell.
+	 */
+	private static int linkCount(File file) {
+		try {
+			Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+			Object path = File.class.getMethod("toPath").invoke(file);
+			Method getAttribute = Class.forName("java.nio.file.Files").getMethod("getAttribute",
+					Class.forName("java.nio.file.Path"), String.class, Array.newInstance(linkOption, 0).getClass());
+			return ((Number)getAttribute.invoke(null, path, "unix:nlink", Array.newInstance(linkOption, 0))).intValue();
+		} catch(Exception e) {
+			//No Java 7, or no unix attributes on this platform
+			return -1;
+		}
+	}
+
+	@Test
+	public void copyTakesWordsFromSourceIndex() throws Exception {
+		MessageBank subFolder = rootMessageBank.makeSubFolder("archive");
+		File textIndex = new File(new File(new File(accountDir, "inbox"), "archive"), ".textindex");
+		MailMessage first = rootMessageBank.createMessage();
+		first.writeHeadersAndGetStream().println("Meeting about the Freemail roadmap");
+		first.commit();
+		MailMessage second = rootMessageBank.createMessage();
+		second.writeHeadersAndGetStream().println("Another roadmap");
+		second.commit();
+
+		//Reading the index of the source folder lets the copy use its words
+		SortedMap<Integer, MailMessage> msgs = rootMessageBank.listMessages();
+		assertEquals(2, rootMessageBank.searchText(msgs.values(), "roadmap", false).cardinality());
+		MailMessage copy = subFolder.createMessage();
+		assertTrue(msgs.get(first.getUID()).copyTo(copy));
+		long indexLength = textIndex.length();
+		assertTrue(indexLength > 8);
+
+		//Without it the copy is indexed when the folder is searched
+		MessageBank reloaded = reload();
+		MailMessage lazyCopy = subFolder.createMessage();
+		assertTrue(reloaded.listMessages().get(second.getUID()).copyTo(lazyCopy));
+		assertEquals(indexLength, textIndex.length());
+
+		SortedMap<Integer, MailMessage> copies = subFolder.listMessages();
+		BitSet matches = subFolder.searchText(copies.values(), "roadmap", false);
+		assertEquals(2, matches.cardinality());
+		assertTrue(matches.get(copy.getUID()));
+		assertTrue(matches.get(lazyCopy.getUID()));
+		assertTrue(subFolder.searchText(copies.values(), "meeting", false).get(copy.getUID()));
+		assertTrue(textIndex.length() > indexLength);
+	}
+
+	@Test
+	public void textSearchAfterDeleteAndReload() throws Exception {
+		MailMessage first = rootMessageBank.createMessage();
+		first.addHeader("Subject", "=?UTF-8?Q?Caf=C3=A9?=");
+		first.writeHeadersAndGetStream().println("Meeting about the Freemail roadmap");
+		first.commit();
+		MailMessage second = rootMessageBank.createMessage();
+		second.addHeader("Subject", "Other");
+		second.writeHeadersAndGetStream().println("Nothing to see here, just a roadmap");
+		second.commit();
+
+		SortedMap<Integer, MailMessage> msgs = rootMessageBank.listMessages();
+		BitSet matches = rootMessageBank.searchText(msgs.values(), "ROADMAP", false);
+		assertTrue(matches.get(first.getUID()));
+		assertTrue(matches.get(second.getUID()));
+		assertFalse(rootMessageBank.searchText(msgs.values(), "caf\u00e9", false).get(first.getUID()));
+		assertTrue(rootMessageBank.searchText(msgs.values(), "caf\u00e9", true).get(first.getUID()));
+		assertTrue(rootMessageBank.searchText(msgs.values(), "here, just", false).get(second.getUID()));
+		assertFalse(rootMessageBank.searchText(msgs.values(), "here just", false).get(second.getUID()));
+
+		msgs.get(second.getUID()).delete();
+
+		MessageBank reloaded = reload();
+		SortedMap<Integer, MailMessage> remaining = reloaded.listMessages();
+		matches = reloaded.searchText(remaining.values(), "roadmap", false);
+		assertEquals(1, matches.cardinality());
+		assertTrue(matches.get(first.getUID()));
+	}
 }
@@ -0,0 +1,411 @@
+/*
+ * SelectorServerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.freenetproject.freemail.utils.FileTransferTarget;
+import org.freenetproject.freemail.utils.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SelectorServerTest {
+	private static final int WORKERS = 2;
+
+	private SelectorServer server;
+	private EchoListener listener;
+	private final List<EchoListener> listeners = new ArrayList<EchoListener>();
+	private final List<Thread> listenerThreads = new ArrayList<Thread>();
+
+	@Before
+	public void before() throws Exception {
+		server = new SelectorServer(1, WORKERS);
+		server.start();
+		listener = startListener();
+	}
+
+	@After
+	public void after() throws Exception {
+		for(EchoListener l : listeners) {
+			l.kill();
+		}
+		for(Thread t : listenerThreads) {
+			t.join();
+		}
+		server.shutdown();
+	}
+
+	private EchoListener startListener() throws InterruptedException {
+		final EchoListener started = new EchoListener();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					started.acceptConnections(server, "127.0.0.1", 0);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		listeners.add(started);
+		listenerThreads.add(thread);
+
+		while(started.getPort() <= 0) {
+			Thread.sleep(10);
+		}
+		return started;
+	}
+
+	@Test
+	public void idleConnectionsDontUseWorkers() throws IOException {
+		//With a thread per connection the later clients would never be served
+		List<Socket> clients = new ArrayList<Socket>();
+		List<BufferedReader> readers = new ArrayList<BufferedReader>();
+		try {
+			for(int i = 0; i < WORKERS * 5; i++) {
+				Socket client = new Socket("127.0.0.1", listener.getPort());
+				clients.add(client);
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+				readers.add(in);
+				assertEquals("hello", in.readLine());
+			}
+
+			for(int i = clients.size() - 1; i >= 0; i--) {
+				PrintWriter out = new PrintWriter(clients.get(i).getOutputStream());
+				out.print("client " + i + "\r\n");
+				out.flush();
+				assertEquals("CLIENT " + i, readers.get(i).readLine());
+			}
+		} finally {
+			for(Socket client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void commandSplitAcrossReads() throws Exception {
+		Socket client = new Socket("127.0.0.1", listener.getPort());
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			OutputStream out = client.getOutputStream();
+			assertEquals("hello", in.readLine());
+
+			out.write("first ha".getBytes("UTF-8"));
+			out.flush();
+			Thread.sleep(100);
+			out.write("lf\r\nsecond\r\n".getBytes("UTF-8"));
+			out.flush();
+
+			assertEquals("FIRST HALF", in.readLine());
+			assertEquals("SECOND", in.readLine());
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void partialCommandsDontHoldWorkers() throws IOException {
+		List<Socket> holders = new ArrayList<Socket>();
+		List<BufferedReader> holderReaders = new ArrayList<BufferedReader>();
+		Socket other = null;
+		try {
+			//Half a line from some clients, and a literal that is still being sent from the others
+			for(int i = 0; i < WORKERS; i++) {
+				Socket client = new Socket("127.0.0.1", listener.getPort());
+				client.setSoTimeout(10000);
+				holders.add(client);
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+				holderReaders.add(in);
+				assertEquals("hello", in.readLine());
+
+				OutputStream out = client.getOutputStream();
+				out.write(((i % 2 == 0) ? "partial" : "literal {12+}\r\nhalf").getBytes("UTF-8"));
+				out.flush();
+			}
+
+			//With the workers waiting for the rest of those commands this client wouldn't be served
+			other = new Socket("127.0.0.1", listener.getPort());
+			other.setSoTimeout(10000);
+			BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(other.getOutputStream());
+			assertEquals("hello", in.readLine());
+			out.print("other\r\n");
+			out.flush();
+			assertEquals("OTHER", in.readLine());
+
+			for(int i = 0; i < WORKERS; i++) {
+				OutputStream holderOut = holders.get(i).getOutputStream();
+				BufferedReader holderIn = holderReaders.get(i);
+				if(i % 2 == 0) {
+					holderOut.write(" line\r\n".getBytes("UTF-8"));
+					holderOut.flush();
+					assertEquals("PARTIAL LINE", holderIn.readLine());
+				} else {
+					holderOut.write(" of it\r\nend\r\n".getBytes("UTF-8"));
+					holderOut.flush();
+					assertEquals("LITERAL {12+}", holderIn.readLine());
+					assertEquals("HALF OF IT", holderIn.readLine());
+					assertEquals("END", holderIn.readLine());
+				}
+			}
+		} finally {
+			for(Socket client : holders) {
+				client.close();
+			}
+			if(other != null) {
+				other.close();
+			}
+		}
+	}
+
+	@Test
+	public void listenersDontShareWorkers() throws Exception {
+		EchoListener other = startListener();
+
+		List<Socket> holders = new ArrayList<Socket>();
+		List<BufferedReader> holderReaders = new ArrayList<BufferedReader>();
+		Socket client = null;
+		try {
+			//The handlers are given the literals as they arrive, so these clients hold all the
+			//workers of the first listener
+			for(int i = 0; i < WORKERS; i++) {
+				Socket holder = new Socket("127.0.0.1", listener.getPort());
+				holder.setSoTimeout(10000);
+				holders.add(holder);
+				BufferedReader in = new BufferedReader(new InputStreamReader(holder.getInputStream(), "UTF-8"));
+				holderReaders.add(in);
+				assertEquals("hello", in.readLine());
+
+				OutputStream out = holder.getOutputStream();
+				out.write("literal {12}\r\nhalf".getBytes("UTF-8"));
+				out.flush();
+				assertEquals("LITERAL {12}", in.readLine());
+			}
+
+			client = new Socket("127.0.0.1", other.getPort());
+			client.setSoTimeout(10000);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(client.getOutputStream());
+			assertEquals("hello", in.readLine());
+			out.print("other\r\n");
+			out.flush();
+			assertEquals("OTHER", in.readLine());
+
+			for(int i = 0; i < WORKERS; i++) {
+				OutputStream holderOut = holders.get(i).getOutputStream();
+				holderOut.write(" of it\r\n".getBytes("UTF-8"));
+				holderOut.flush();
+				assertEquals("HALF OF IT", holderReaders.get(i).readLine());
+			}
+		} finally {
+			for(Socket holder : holders) {
+				holder.close();
+			}
+			if(client != null) {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void largeReplyIsWrittenFully() throws IOException {
+		Socket client = new Socket("127.0.0.1", listener.getPort());
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(client.getOutputStream());
+			assertEquals("hello", in.readLine());
+
+			//Much more than the socket buffers hold, so the handler has to wait for the client
+			out.print("repeat 100000\r\n");
+			out.flush();
+			for(int i = 0; i < 100000; i++) {
+				assertEquals("line " + i, in.readLine());
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void fileSentWhenClientIsSlow() throws Exception {
+		//Much more than the socket buffers hold, so the transfer has to wait for the client
+		byte[] data = new byte[4 * 1024 * 1024];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte)(i % 251);
+		}
+		File file = File.createTempFile("selectorservertest", null);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(file);
+			try {
+				fileOut.write(data);
+			} finally {
+				fileOut.close();
+			}
+
+			Socket client = new Socket("127.0.0.1", listener.getPort());
+			try {
+				DataInputStream in = new DataInputStream(client.getInputStream());
+				PrintWriter out = new PrintWriter(client.getOutputStream());
+				byte[] hello = new byte["hello\r\n".length()];
+				in.readFully(hello);
+
+				out.print("file " + file.getPath() + "\r\n");
+				out.flush();
+				Thread.sleep(200);
+
+				byte[] received = new byte[data.length];
+				in.readFully(received);
+				assertArrayEquals(data, received);
+
+				out.print("done\r\n");
+				out.flush();
+				assertEquals("DONE", new BufferedReader(new InputStreamReader(in, "UTF-8")).readLine());
+			} finally {
+				client.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void handlerRemovedWhenClientQuits() throws Exception {
+		Socket client = new Socket("127.0.0.1", listener.getPort());
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+		assertEquals("hello", in.readLine());
+		assertEquals(1, listener.handlerCount());
+
+		client.close();
+		for(int i = 0; i < 100 && listener.handlerCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, listener.handlerCount());
+	}
+
+	private static class EchoListener extends ServerListener {
+		private final List<ServerHandler> created = new ArrayList<ServerHandler>();
+
+		private int getPort() {
+			return (sock == null) ? -1 : sock.getLocalPort();
+		}
+
+		@Override
+		protected boolean usesLiterals() {
+			return true;
+		}
+
+		private int handlerCount() {
+			synchronized(created) {
+				int count = 0;
+				for(ServerHandler handler : created) {
+					if(handler.isAlive()) {
+						count++;
+					}
+				}
+				return count;
+			}
+		}
+
+		@Override
+		protected ServerHandler createHandler(Socket client, InputStream in, OutputStream out) throws IOException {
+			ServerHandler handler = new EchoHandler(client, in, out);
+			synchronized(created) {
+				created.add(handler);
+			}
+			return handler;
+		}
+	}
+
+	/**
+	 * Replies to each line with the line in upper case, with a number of lines for "repeat n", or
+	 * with the contents of a file for "file path".
+	 */
+	private static class EchoHandler extends ServerHandler {
+		private final BufferedReader in;
+		private final PrintStream out;
+		private final OutputStream rawOut;
+
+		private EchoHandler(Socket client, InputStream in, OutputStream out) throws IOException {
+			super(client);
+			this.in = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			this.out = new PrintStream(out, false, "UTF-8");
+			this.rawOut = out;
+		}
+
+		@Override
+		protected void start() {
+			out.print("hello\r\n");
+			out.flush();
+		}
+
+		@Override
+		protected boolean handleCommand() throws IOException {
+			String line = in.readLine();
+			if(line == null) {
+				return false;
+			}
+
+			if(line.startsWith("repeat ")) {
+				int count = Integer.parseInt(line.substring("repeat ".length()));
+				for(int i = 0; i < count; i++) {
+					out.print("line " + i + "\r\n");
+				}
+			} else if(line.startsWith("file ")) {
+				out.flush();
+				FileInputStream file = new FileInputStream(line.substring("file ".length()));
+				try {
+					FileChannel channel = file.getChannel();
+					FileUtils.transfer(channel, 0, channel.size(), (FileTransferTarget)rawOut);
+				} finally {
+					file.close();
+				}
+			} else {
+				out.print(line.toUpperCase(Locale.ROOT) + "\r\n");
+			}
+			out.flush();
+			return true;
+		}
+
+		@Override
+		protected boolean hasPendingInput() throws IOException {
+			return in.ready();
+		}
+	}
+}
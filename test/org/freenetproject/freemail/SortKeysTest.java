@@ -0,0 +1,66 @@
+/**
+ * SortKeysTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SortKeysTest {
+	@Test
+	public void baseSubjectWithoutMarkers() {
+		assertEquals("Test", SortKeys.baseSubject("Test"));
+		assertEquals("Test", SortKeys.baseSubject("  Test  "));
+		assertEquals("A test", SortKeys.baseSubject("A \t test"));
+	}
+
+	@Test
+	public void baseSubjectRemovesReplyMarkers() {
+		assertEquals("Test", SortKeys.baseSubject("Re: Test"));
+		assertEquals("Test", SortKeys.baseSubject("RE: re: Test"));
+		assertEquals("Test", SortKeys.baseSubject("Fwd: Re[2]: Test"));
+		assertEquals("Test", SortKeys.baseSubject("fw: Test (fwd)"));
+		assertEquals("Test", SortKeys.baseSubject("[fwd: Re: Test]"));
+		assertEquals("Remarks", SortKeys.baseSubject("Remarks"));
+	}
+
+	@Test
+	public void baseSubjectRemovesLeadingTags() {
+		assertEquals("Test", SortKeys.baseSubject("[list] Test"));
+		assertEquals("Test", SortKeys.baseSubject("[list] Re: [list] Test"));
+
+		//A tag that is the whole subject is kept
+		assertEquals("[list]", SortKeys.baseSubject("Re: [list]"));
+	}
+
+	@Test
+	public void mailbox() {
+		assertEquals("zidel", SortKeys.mailbox("Zidel <Zidel@example.freemail>"));
+		assertEquals("zidel", SortKeys.mailbox("zidel@example.freemail, other@example.freemail"));
+		assertEquals("", SortKeys.mailbox(null));
+	}
+
+	@Test
+	public void parseIds() {
+		assertArrayEquals(new String[] {"a@b", "c@d"}, SortKeys.parseIds("<a@b>\r\n <c@d>"));
+		assertArrayEquals(new String[0], SortKeys.parseIds("no ids here"));
+		assertArrayEquals(new String[0], SortKeys.parseIds(null));
+	}
+}
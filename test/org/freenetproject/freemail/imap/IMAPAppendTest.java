@@ -19,12 +19,20 @@
 
 package org.freenetproject.freemail.imap;
 
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.freenetproject.freemail.AccountManager;
 import org.junit.Test;
 
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
 import utils.TextProtocolTester.Command;
 
 public class IMAPAppendTest extends IMAPTestWithMessages {
@@ -237,4 +245,106 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands);
 	}
+
+	@Test
+	public void appendWithNonSynchronizingLiteral() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 APPEND INBOX (\\Seen) {23+}"));
+		commands.add(new Command("Subject: Test message",
+		                         "0003 OK APPEND completed"));
+		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
+		                         "* 9 FETCH (FLAGS () UID 10)",
+		                         "* 10 FETCH (FLAGS (\\Seen \\Recent) UID 11)",
+		                         "0004 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void nonSynchronizingLiteralToMailboxThatDoesntExist() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 APPEND \"INBOX.NoSuchMailbox\" {23+}"));
+		commands.add(new Command("Subject: Test message",
+		                         "0003 NO [TRYCREATE] No such mailbox"));
+		commands.add(new Command("0004 NOOP",
+		                         "0004 OK NOOP completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void nonSynchronizingLiteralSentInParts() throws Exception {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		IMAPHandler handler = new IMAPHandler(accManager, sock);
+		Thread imapThread = new Thread(handler);
+		imapThread.start();
+
+		try {
+			PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+			BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+			fromHandler.readLine();
+
+			send(toHandler, "0001 LOGIN " + IMAP_USERNAME + " test\r\n");
+			assertEquals("0001 OK Logged in", fromHandler.readLine());
+
+			//The literal is waited for, and the line break that follows it ends the command
+			send(toHandler, "0002 APPEND INBOX {21+}\r\nSubject: Te");
+			Thread.sleep(200);
+			send(toHandler, "st message\r\n0003 STATUS INBOX (MESSAGES)\r\n");
+			assertEquals("0002 OK APPEND completed", fromHandler.readLine());
+			assertEquals("* STATUS INBOX (MESSAGES 10)", fromHandler.readLine());
+			assertEquals("0003 OK STATUS completed", fromHandler.readLine());
+		} finally {
+			handler.kill();
+			sock.close();
+			imapThread.join();
+		}
+	}
+
+	@Test
+	public void multiAppend() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 APPEND INBOX (\\Seen) {21}",
+		                         "+ OK"));
+		commands.add(new Command("Subject: Test message (\\Flagged) {23}",
+		                         "+ OK"));
+		commands.add(new Command("Subject: Test message",
+		                         "0003 OK APPEND completed"));
+		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
+		                         "* 9 FETCH (FLAGS () UID 10)",
+		                         "* 10 FETCH (FLAGS (\\Seen \\Recent) UID 11)",
+		                         "* 11 FETCH (FLAGS (\\Flagged \\Recent) UID 12)",
+		                         "0004 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void multiAppendWithNonSynchronizingLiterals() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 APPEND INBOX {21+}"));
+		commands.add(new Command("Subject: Test message \"23-Oct-2007 19:05:17 +0100\" {23+}"));
+		commands.add(new Command("Subject: Test message",
+		                         "0003 OK APPEND completed"));
+		commands.add(new Command("0004 FETCH 10:* (UID RFC822.SIZE)",
+		                         "* 10 FETCH (UID 11 RFC822.SIZE 23)",
+		                         "* 11 FETCH (UID 12 RFC822.SIZE 23)",
+		                         "0004 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
 }
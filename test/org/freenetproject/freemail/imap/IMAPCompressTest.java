@@ -0,0 +1,115 @@
+/**
+ * IMAPCompressTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.freenetproject.freemail.AccountManager;
+import org.junit.Test;
+
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
+import utils.TextProtocolTester;
+import utils.TextProtocolTester.Command;
+
+public class IMAPCompressTest extends IMAPTestWithMessages {
+	@Test
+	public void compressedSession() throws IOException {
+		List<Command> plain = new LinkedList<Command>();
+		plain.addAll(connectSequence());
+		plain.addAll(loginSequence("0001"));
+		plain.add(new Command("0002 COMPRESS DEFLATE",
+		                      "0002 OK DEFLATE active"));
+
+		List<Command> compressed = new LinkedList<Command>();
+		compressed.addAll(selectInboxSequence("0003"));
+		compressed.add(new Command("0004 FETCH 1:2 (BODY.PEEK[])",
+		                           "* 1 FETCH (BODY[] {32}",
+		                           "Subject: IMAP test message 0",
+		                           "",
+		                           ")",
+		                           "* 2 FETCH (BODY[] {32}",
+		                           "Subject: IMAP test message 1",
+		                           "",
+		                           ")",
+		                           "0004 OK Fetch completed"));
+		compressed.add(new Command("0005 COMPRESS DEFLATE",
+		                           "0005 NO [COMPRESSIONACTIVE] DEFLATE active via COMPRESS"));
+		compressed.add(new Command("0006 NOOP",
+		                           "0006 OK NOOP completed"));
+
+		runCompressedTest(plain, compressed);
+	}
+
+	@Test
+	public void unknownAlgorithm() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.add(new Command("0001 COMPRESS LZMA",
+		                         "0001 BAD Unsupported compression algorithm"));
+		commands.add(new Command("0002 COMPRESS",
+		                         "0002 BAD Expected one argument"));
+
+		runSimpleTest(commands);
+	}
+
+	/**
+	 * Runs {@code plain}, which should end with a COMPRESS command, and then {@code compressed}
+	 * with the connection compressed in both directions.
+	 */
+	private void runCompressedTest(List<Command> plain, List<Command> compressed) throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		IMAPHandler handler = new IMAPHandler(accManager, sock);
+		Thread imapThread = new Thread(handler);
+		imapThread.start();
+
+		try {
+			InputStream in = sock.getInputStreamOtherSide();
+			PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+			BufferedReader fromHandler = new BufferedReader(new InputStreamReader(in));
+			new TextProtocolTester(toHandler, fromHandler).runProtocolTest(plain);
+
+			//The handler sends nothing after the reply to COMPRESS, so the old reader holds no compressed data
+
+			toHandler = new PrintWriter(new DeflatingOutputStream(sock.getOutputStreamOtherSide()));
+			fromHandler = new BufferedReader(new InputStreamReader(new InflatingInputStream(in, new byte[0], 0, 0)));
+			new TextProtocolTester(toHandler, fromHandler).runProtocolTest(compressed);
+		} finally {
+			handler.kill();
+			sock.close();
+			try {
+				imapThread.join();
+			} catch(InterruptedException e) {
+				fail("Caught unexpected InterruptedException");
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * IMAPCondStoreTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import utils.TextProtocolTester.Command;
+
+/**
+ * The inbox is set up by adding ten messages, which get mod-sequences 2 to 11, and then deleting
+ * uid 5, so the highest mod-sequence is 12.
+ */
+public class IMAPCondStoreTest extends IMAPTestWithMessages {
+	private static Command select(String tag, String params, int recent, String... extra) {
+		List<String> responses = new LinkedList<String>();
+		responses.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
+		responses.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		responses.add("* 9 EXISTS");
+		responses.add("* " + recent + " RECENT");
+		responses.add("* OK [UIDVALIDITY 1] Ok");
+		responses.add("* OK [HIGHESTMODSEQ 12] Ok");
+		for(String response : extra) {
+			responses.add(response);
+		}
+		responses.add(tag + " OK [READ-WRITE] Done");
+		return new Command(tag + " SELECT INBOX " + params, responses.toArray(new String[responses.size()]));
+	}
+
+	@Test
+	public void selectWithCondStore() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(select("0002", "(CONDSTORE)", 9));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void statusHighestModSeq() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 STATUS INBOX (HIGHESTMODSEQ MESSAGES)",
+				"* STATUS INBOX (HIGHESTMODSEQ 12 MESSAGES 9)",
+				"0002 OK STATUS completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void fetchChangedSince() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(select("0002", "(CONDSTORE)", 9));
+
+		commands.add(new Command("0003 STORE 2 +FLAGS.SILENT (\\Seen)",
+				"0003 OK Store completed"));
+		commands.add(new Command("0004 FETCH 1:* (FLAGS) (CHANGEDSINCE 12)",
+				"* 2 FETCH (FLAGS (\\Seen) MODSEQ (13))",
+				"0004 OK Fetch completed"));
+		commands.add(new Command("0005 FETCH 1:* FLAGS (CHANGEDSINCE 13)",
+				"0005 OK Fetch completed"));
+		commands.add(new Command("0006 UID FETCH 3 (MODSEQ)",
+				"* 3 FETCH (MODSEQ (4) UID 3)",
+				"0006 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void storeUnchangedSince() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(select("0002", "(CONDSTORE)", 9));
+
+		commands.add(new Command("0003 STORE 1:2 (UNCHANGEDSINCE 12) +FLAGS (\\Flagged)",
+				"* 1 FETCH (FLAGS (\\Flagged) MODSEQ (13))",
+				"* 2 FETCH (FLAGS (\\Flagged) MODSEQ (14))",
+				"0003 OK Store completed"));
+		commands.add(new Command("0004 UID STORE 1:3 (UNCHANGEDSINCE 12) +FLAGS (\\Seen)",
+				"* 3 FETCH (UID 3 FLAGS (\\Seen) MODSEQ (15))",
+				"0004 OK [MODIFIED 1:2] Conditional STORE failed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void qresyncRequiresEnable() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 SELECT INBOX (QRESYNC (1 11))",
+				"0002 BAD QRESYNC must be enabled first"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void selectWithQresync() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 ENABLE QRESYNC",
+				"* ENABLED QRESYNC",
+				"0002 OK ENABLE completed"));
+
+		//The client last saw the folder before uid 5 was removed
+		commands.add(select("0003", "(QRESYNC (1 11))", 9,
+				"* VANISHED (EARLIER) 5"));
+
+		//Up to date, so only the mod-sequence is sent
+		commands.add(select("0004", "(QRESYNC (1 12))", 0));
+
+		//Only the known uids are looked at
+		commands.add(select("0005", "(QRESYNC (1 3 1:4))", 0,
+				"* 3 FETCH (UID 3 FLAGS () MODSEQ (4))",
+				"* 4 FETCH (UID 4 FLAGS () MODSEQ (5))"));
+
+		//A different uid validity means the client must start over
+		commands.add(select("0006", "(QRESYNC (2 3))", 0));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void expungeReportedAsVanished() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 ENABLE QRESYNC",
+				"* ENABLED QRESYNC",
+				"0002 OK ENABLE completed"));
+		commands.add(select("0003", "(QRESYNC (1 12))", 9));
+
+		commands.add(new Command("0004 UID STORE 6:7 +FLAGS.SILENT (\\Deleted)",
+				"0004 OK Store completed"));
+		commands.add(new Command("0005 EXPUNGE",
+				"* VANISHED 6:7",
+				"0005 OK Expunge complete"));
+		commands.add(new Command("0006 UID FETCH 1:* (FLAGS) (CHANGEDSINCE 12 VANISHED)",
+				"* VANISHED (EARLIER) 5:7",
+				"0006 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+}
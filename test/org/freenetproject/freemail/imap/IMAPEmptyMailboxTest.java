@@ -34,7 +34,7 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 FETCH 1:* (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
@@ -55,7 +55,7 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 UID FETCH 1:* (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
@@ -76,7 +76,7 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 UID STORE 1 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
@@ -97,7 +97,7 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 UID IllegalCommand arg1 arg2 arg3");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
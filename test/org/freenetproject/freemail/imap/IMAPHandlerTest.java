@@ -34,12 +34,13 @@ import org.junit.Test;
 
 import fakes.ConfigurableAccountManager;
 import fakes.FakeSocket;
+import utils.TextProtocolTester.Command;
 
 public class IMAPHandlerTest extends IMAPTestWithMessages {
 	@Test
 	public void imapGreeting() throws IOException {
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 
 		runSimpleTest(new LinkedList<String>(), expectedResponse);
 	}
@@ -50,7 +51,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 
 		runSimpleTest(commands, expectedResponse);
@@ -126,7 +127,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0002 SELECT ShouldNotExist\r\n");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("0002 NO No such mailbox");
 
@@ -139,7 +140,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 NoSuchCommand");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 NO Sorry - not implemented");
 
 		runSimpleTest(commands, expectedResponse);
@@ -159,7 +160,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 
 		int lineNum = 0;
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("* BYE");
 		expectedResponse.add("0001 OK Bye");
 		for(String response : expectedResponse) {
@@ -193,8 +194,8 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 CAPABILITY");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
-		expectedResponse.add("* CAPABILITY IMAP4rev1 CHILDREN NAMESPACE");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE");
 		expectedResponse.add("0001 OK Capability completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -206,7 +207,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 NOOP");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK NOOP completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -218,7 +219,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -230,7 +231,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME);
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -306,6 +307,18 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		runSimpleTest(commands, expectedResponse);
 	}
 
+	@Test
+	public void loginWithLiteral() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.add(new Command("0001 LOGIN {" + IMAP_USERNAME.length() + "}",
+		                         "+ OK"));
+		commands.add(new Command(IMAP_USERNAME + " test",
+		                         "0001 OK Logged in"));
+
+		runSimpleTest(commands);
+	}
+
 	@Test
 	public void literalWithoutEndingLinebreak() throws IOException {
 		List<String> commands = new LinkedList<String>();
@@ -322,7 +335,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0004 ShouldNotRun");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("+ OK");
 		expectedResponse.add("0002 OK APPEND completed");
@@ -398,4 +411,22 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	@Test
+	public void statusCountsFollowFlagChanges() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 STATUS INBOX (MESSAGES RECENT UNSEEN UIDNEXT)",
+				"* STATUS INBOX (MESSAGES 9 RECENT 9 UNSEEN 9 UIDNEXT 11)",
+				"0002 OK STATUS completed"));
+		commands.addAll(selectInboxSequence("0003"));
+		commands.add(new Command("0004 STORE 1:2 +FLAGS.SILENT (\\Seen)",
+				"0004 OK Store completed"));
+		commands.add(new Command("0005 STATUS INBOX (MESSAGES RECENT UNSEEN UIDNEXT)",
+				"* STATUS INBOX (MESSAGES 9 RECENT 0 UNSEEN 7 UIDNEXT 11)",
+				"0005 OK STATUS completed"));
+
+		runSimpleTest(commands);
+	}
 }
@@ -0,0 +1,113 @@
+/*
+ * IMAPIdleTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+import org.junit.Test;
+
+import utils.TextProtocolTester.Command;
+
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
+
+public class IMAPIdleTest extends IMAPTestWithMessages {
+	@Test
+	public void idleWithoutChanges() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 IDLE", "+ idling"));
+		commands.add(new Command("DONE", "0003 OK IDLE terminated"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void idleEndedWithoutDone() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 IDLE", "+ idling"));
+		commands.add(new Command("0004 NOOP", "0003 BAD Expected DONE"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void idleReportsChangesFromOtherSessions() throws IOException, InterruptedException {
+		FakeSocket sock = new FakeSocket();
+		ConfigurableAccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+		IMAPHandler handler = new IMAPHandler(accManager, sock);
+		Thread imapThread = new Thread(handler);
+		imapThread.start();
+
+		try {
+			PrintWriter out = new PrintWriter(sock.getOutputStreamOtherSide());
+			BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+
+			in.readLine();
+			send(out, "0001 LOGIN " + IMAP_USERNAME + " test\r\n");
+			assertEquals("0001 OK Logged in", readTaggedResponse(in));
+			send(out, "0002 SELECT INBOX\r\n");
+			assertEquals("0002 OK [READ-WRITE] Done", readTaggedResponse(in));
+
+			send(out, "0003 IDLE\r\n");
+			assertEquals("+ idling", in.readLine());
+
+			//Change the inbox the way another session or the SMTP server would
+			MessageBank inbox = accManager.authenticate(BASE64_USERNAME, "").getMessageBank();
+			MailMessage seen = inbox.listMessages().get(2);
+			seen.flags.set("\\Seen", true);
+			seen.storeFlags();
+			assertEquals("* 2 FETCH (FLAGS (\\Seen))", in.readLine());
+
+			inbox.listMessages().get(1).delete();
+			assertEquals("* 1 EXPUNGE", in.readLine());
+
+			MailMessage m = inbox.createMessage();
+			m.addHeader("Subject", "New message");
+			m.writeHeadersAndGetStream();
+			m.commit();
+			assertEquals("* 9 EXISTS", in.readLine());
+			assertEquals("* 1 RECENT", in.readLine());
+
+			send(out, "DONE\r\n");
+			assertEquals("0003 OK IDLE terminated", in.readLine());
+		} finally {
+			handler.kill();
+			sock.close();
+			imapThread.join();
+		}
+	}
+}
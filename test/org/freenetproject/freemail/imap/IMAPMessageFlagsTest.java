@@ -0,0 +1,65 @@
+/*
+ * IMAPMessageFlagsTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IMAPMessageFlagsTest {
+	@Test
+	public void shortFlagRoundTrip() {
+		IMAPMessageFlags flags = new IMAPMessageFlags("RXS");
+		assertEquals("SXR", flags.getShortFlagString());
+		assertEquals("\\Seen \\Deleted \\Recent", flags.getFlags());
+		assertEquals(IMAPMessageFlags.SEEN | IMAPMessageFlags.DELETED | IMAPMessageFlags.RECENT, flags.getBits());
+	}
+
+	@Test
+	public void unknownShortFlagsAreIgnored() {
+		assertEquals("SA", new IMAPMessageFlags("S?A,z").getShortFlagString());
+	}
+
+	@Test
+	public void setIsCaseInsensitive() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.set("\\SEEN", true);
+		assertTrue(flags.get("\\seen"));
+		assertEquals("\\Seen", flags.getFlags());
+	}
+
+	@Test
+	public void settingTwiceThenClearing() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.set("\\Flagged", true);
+		flags.set("\\Flagged", true);
+		flags.set("\\Flagged", false);
+		assertFalse(flags.get("\\Flagged"));
+		assertEquals("", flags.getShortFlagString());
+	}
+
+	@Test
+	public void customFlagsAreIgnored() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.set("$Label1", true);
+		assertFalse(flags.get("$Label1"));
+		assertEquals(0, flags.getBits());
+	}
+}
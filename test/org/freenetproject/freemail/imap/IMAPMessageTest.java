@@ -76,4 +76,39 @@ public class IMAPMessageTest {
 		assertEquals("(\\Seen", msg.args[1]);
 		assertEquals("custom)", msg.args[2]);
 	}
+
+	@Test
+	public void parseSectionWithSpaces() throws IMAPBadMessageException {
+		IMAPMessage msg = new IMAPMessage("0003 FETCH 1 (UID BODY.PEEK[HEADER.FIELDS (FROM TO)]<0.100>)");
+		assertEquals(3, msg.args.length);
+		assertEquals("(UID", msg.args[1]);
+		assertEquals("BODY.PEEK[HEADER.FIELDS (FROM TO)]<0.100>)", msg.args[2]);
+	}
+
+	@Test
+	public void parseQuotedStringWithEscapedQuote() throws IMAPBadMessageException {
+		IMAPMessage msg = new IMAPMessage("0003 LOGIN \"a \\\" b\" c");
+		assertEquals(2, msg.args.length);
+		assertEquals("\"a \\\" b\"", msg.args[0]);
+		assertEquals("c", msg.args[1]);
+	}
+
+	@Test
+	public void parseLiteral() throws IMAPBadMessageException {
+		IMAPMessage msg = new IMAPMessage("0003 APPEND INBOX {23}");
+		assertEquals("{23}", msg.args[1]);
+		assertEquals(23, msg.literalLength);
+		assertTrue(msg.literalSync);
+
+		msg = new IMAPMessage("0003 APPEND INBOX {23+}");
+		assertEquals(23, msg.literalLength);
+		assertFalse(msg.literalSync);
+	}
+
+	@Test
+	public void literalMarkerMustEndTheLine() throws IMAPBadMessageException {
+		IMAPMessage msg = new IMAPMessage("0003 SEARCH SUBJECT {23} ALL");
+		assertEquals(-1, msg.literalLength);
+		assertEquals("{23}", msg.args[1]);
+	}
 }
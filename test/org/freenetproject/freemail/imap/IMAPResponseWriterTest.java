@@ -0,0 +1,91 @@
+/**
+ * IMAPResponseWriterTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IMAPResponseWriterTest {
+	@Test
+	public void nothingIsSentBeforeFlush() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		writer.print("* ").print(1).print(" FETCH (UID ").print(4).print(')').crlf();
+		assertEquals(0, out.size());
+
+		writer.flush();
+		assertEquals("* 1 FETCH (UID 4)\r\n", out.toString("US-ASCII"));
+	}
+
+	@Test
+	public void numbers() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		writer.print(0).print(' ').print(9).print(' ').print(10).print(' ').print(-123)
+				.print(' ').print(Long.MAX_VALUE).print(' ').print(Long.MIN_VALUE);
+		writer.flush();
+
+		assertEquals("0 9 10 -123 " + Long.MAX_VALUE + " " + Long.MIN_VALUE, out.toString("US-ASCII"));
+	}
+
+	@Test
+	public void nonAsciiIsEncodedAsUTF8() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		String text = "abc \u00e6\u00f8\u00e5 def";
+		writer.print(text);
+		writer.flush();
+
+		assertArrayEquals(text.getBytes("UTF-8"), out.toByteArray());
+	}
+
+	@Test
+	public void outputLargerThanBuffer() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		StringBuilder expected = new StringBuilder();
+		for(int i = 0; i < 20000; i++) {
+			writer.print("* ").print(i).print(" FETCH (FLAGS (\\Seen))").crlf();
+			expected.append("* " + i + " FETCH (FLAGS (\\Seen))\r\n");
+		}
+
+		byte[] data = new byte[200 * 1024];
+		Arrays.fill(data, (byte)'x');
+		writer.write(data);
+		expected.append(new String(data, "US-ASCII"));
+
+		writer.print("end");
+		expected.append("end");
+
+		//Full buffers are sent as they fill up
+		assertTrue(out.size() > 0);
+
+		writer.flush();
+		assertEquals(expected.toString(), out.toString("US-ASCII"));
+	}
+}
@@ -58,6 +58,55 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 		runSimpleTest(commands, expectedResponse);
 	}
 
+	@Test
+	public void sentDateFallsBackToInternalDate() throws IOException {
+		//The test messages have no Date header
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH SENTSINCE 1-Jan-2000");
+		commands.add("0004 SEARCH SENTBEFORE 1-Jan-2000");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
+		expectedResponse.add("0003 OK Search completed");
+		expectedResponse.add("* SEARCH");
+		expectedResponse.add("0004 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchForUnknownKeyword() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH KEYWORD $Junk");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchWithoutUnknownKeyword() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH UNKEYWORD $Junk");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
 	@Test
 	public void searchWithNoMatches() throws IOException {
 		List<String> commands = new LinkedList<String>();
@@ -113,4 +162,143 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands);
 	}
+
+	@Test
+	public void searchWithOrNotAndNestedParentheses() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 UID SEARCH OR SUBJECT \"message 1\" (UID 7:8 (NOT SEEN))");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 2 7 8");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchWithSequenceSet() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH UNSEEN 2:4,8:* NOT 3");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 2 4 8 9");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchWithUnbalancedParentheses() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SEARCH (ALL (OLD)",
+				"0003 BAD Unbalanced parentheses in search criteria"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void searchTextForWord() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH TEXT imap");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchTextForPhrase() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 UID SEARCH TEXT \"ssage 3\"");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 4");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchBodyIgnoresHeaders() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH BODY imap");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void esearchMinMaxCount() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH RETURN (MIN MAX COUNT) UNDELETED",
+		                         "* ESEARCH (TAG \"0003\") MIN 1 MAX 9 COUNT 9",
+		                         "0003 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void uidEsearchDefaultsToAll() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 UID SEARCH RETURN () UNDELETED",
+		                         "* ESEARCH (TAG \"0003\") UID ALL 1:4,6:10",
+		                         "0003 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void esearchWithoutMatches() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH RETURN (ALL COUNT MIN) DELETED",
+		                         "* ESEARCH (TAG \"0003\") COUNT 0",
+		                         "0003 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void esearchWithUnknownOption() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH RETURN (MIN SAVE) ALL",
+		                         "0003 BAD Unknown result option SAVE"));
+
+		runSimpleTest(commands);
+	}
 }
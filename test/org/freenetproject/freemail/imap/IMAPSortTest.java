@@ -0,0 +1,205 @@
+/**
+ * IMAPSortTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.FreemailAccount;
+import org.freenetproject.freemail.MailMessage;
+import org.junit.Test;
+
+import utils.TextProtocolTester.Command;
+
+import fakes.ConfigurableAccountManager;
+
+/**
+ * Adds four messages with uids 11 to 14 (sequence numbers 10 to 13) to the test messages:
+ * <pre>
+ * uid 11: "Re: Beta" from carol, 17 Oct, a reply to uid 13
+ * uid 12: "Alpha" from bob, 16 Oct
+ * uid 13: "Beta" from alice, 15 Oct
+ * uid 14: "[list] Fwd: alpha" from dave, 18 Oct
+ * </pre>
+ */
+public class IMAPSortTest extends IMAPTestWithMessages {
+	@Override
+	public void before() {
+		super.before();
+
+		AccountManager temp = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+		FreemailAccount account = temp.authenticate(BASE64_USERNAME, "");
+		addMessage(account, "Re: Beta", "Carol <carol@example.com>", "Mon, 17 Oct 2011 10:00:00 +0000", "<b2@x>", "<b1@x>");
+		addMessage(account, "Alpha", "bob@example.com", "Sun, 16 Oct 2011 10:00:00 +0000", "<a1@x>", null);
+		addMessage(account, "Beta", "Alice <alice@example.com>", "Sat, 15 Oct 2011 10:00:00 +0000", "<b1@x>", null);
+		addMessage(account, "[list] Fwd: alpha", "dave@example.com", "Tue, 18 Oct 2011 10:00:00 +0000", "<a2@x>", null);
+	}
+
+	private static void addMessage(FreemailAccount account, String subject, String from, String date, String id, String references) {
+		MailMessage m = account.getMessageBank().createMessage();
+		m.addHeader("Subject", subject);
+		m.addHeader("From", from);
+		m.addHeader("Date", date);
+		m.addHeader("Message-ID", id);
+		if(references != null) {
+			m.addHeader("References", references);
+		}
+		try {
+			m.writeHeadersAndGetStream();
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+		m.commit();
+	}
+
+	private static List<Command> selectSequence(String tag) {
+		List<Command> commands = new LinkedList<Command>();
+		commands.add(new Command(tag + " SELECT INBOX",
+		                         "* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)",
+		                         "* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited",
+		                         "* 13 EXISTS",
+		                         "* 13 RECENT",
+		                         "* OK [UIDVALIDITY 1] Ok",
+		                         tag + " OK [READ-WRITE] Done"));
+		return commands;
+	}
+
+	@Test
+	public void sortByDate() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 SORT (DATE) UTF-8 UID 11:*",
+		                         "* SORT 12 11 10 13",
+		                         "0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void uidSortBySubject() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 UID SORT (SUBJECT) US-ASCII UID 11:*",
+		                         "* SORT 12 14 11 13",
+		                         "0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortByReverseFrom() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 SORT (REVERSE FROM) UTF-8 UID 11:*",
+		                         "* SORT 13 10 11 12",
+		                         "0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortBySubjectThenReverseArrival() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 UID SORT (SUBJECT REVERSE ARRIVAL) UTF-8 UID 11:*",
+		                         "* SORT 14 12 13 11",
+		                         "0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithInvalidCriteria() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 SORT (REVERSE) UTF-8 ALL",
+		                         "0003 BAD Invalid sort criteria"));
+		commands.add(new Command("0004 SORT (COLOUR) UTF-8 ALL",
+		                         "0004 BAD Invalid sort criteria"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithUnsupportedCharset() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 SORT (DATE) ISO-8859-1 ALL",
+		                         "0003 NO [BADCHARSET (UTF-8 US-ASCII)] Unsupported charset"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void threadByOrderedSubject() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 THREAD ORDEREDSUBJECT UTF-8 UID 11:*",
+		                         "* THREAD (12 10)(11 13)",
+		                         "0003 OK Thread completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void uidThreadByReferences() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 UID THREAD REFERENCES UTF-8 UID 11:*",
+		                         "* THREAD (13 11)(12 14)",
+		                         "0003 OK Thread completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void threadWithUnknownAlgorithm() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectSequence("0002"));
+		commands.add(new Command("0003 THREAD REFS UTF-8 ALL",
+		                         "0003 BAD Unsupported threading algorithm"));
+
+		runSimpleTest(commands);
+	}
+}
@@ -75,7 +75,7 @@ public class IMAPStateCheckSelectedTest extends IMAPTestWithMessages {
 		commands.add("0002 " + command);
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("0002 NO No mailbox selected");
 
@@ -42,7 +42,7 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 	protected static final List<String> INITIAL_RESPONSES;
 	static {
 		List<String> backing = new LinkedList<String>();
-		backing.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		backing.add("* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick.");
 		backing.add("0001 OK Logged in");
 		backing.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		backing.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
@@ -55,7 +55,7 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 
 	protected static List<Command> connectSequence() {
 		List<Command> commands = new LinkedList<Command>();
-		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick."));
+		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 LITERAL+ CHILDREN NAMESPACE IDLE ENABLE CONDSTORE QRESYNC MULTIAPPEND ESEARCH SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES COMPRESS=DEFLATE] Freemail ready - hit me with your rhythm stick."));
 		return commands;
 	}
 
@@ -0,0 +1,126 @@
+/*
+ * MailboxSnapshotTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+import org.junit.Test;
+
+import fakes.ConfigurableAccountManager;
+
+public class MailboxSnapshotTest extends IMAPTestWithMessages {
+	private MessageBank getInbox() {
+		return new ConfigurableAccountManager(accountManagerDir, false, accountDirs)
+				.authenticate(BASE64_USERNAME, "").getMessageBank();
+	}
+
+	@Test
+	public void unchangedFolderHasNoUpdates() {
+		MailboxSnapshot snapshot = new MailboxSnapshot(getInbox());
+		assertEquals(9, snapshot.size());
+		assertEquals(10, snapshot.lastUid());
+		assertEquals(Collections.emptyList(), snapshot.update());
+	}
+
+	@Test
+	public void sequenceNumbersAreStableUntilUpdate() {
+		MessageBank inbox = getInbox();
+		MailboxSnapshot snapshot = new MailboxSnapshot(inbox);
+
+		inbox.listMessages().get(3).delete();
+
+		List<MailMessage> selected = snapshot.select(SequenceSet.parse("2:4", 9), false);
+		assertEquals(2, selected.size());
+		assertEquals(2, selected.get(0).getSeqNum());
+		assertEquals(4, selected.get(1).getSeqNum());
+		assertEquals(4, selected.get(1).getUID());
+	}
+
+	@Test
+	public void updateReportsExpungeAndExists() throws FileNotFoundException {
+		MessageBank inbox = getInbox();
+		MailboxSnapshot snapshot = new MailboxSnapshot(inbox);
+
+		//Remove seq 3 and seq 7, then add a new message
+		inbox.listMessages().get(3).delete();
+		inbox.listMessages().get(8).delete();
+		MailMessage m = inbox.createMessage();
+		m.addHeader("Subject", "New message");
+		m.writeHeadersAndGetStream();
+		m.commit();
+		m.flags.set("\\Recent", true);
+		m.storeFlags();
+
+		assertEquals(Arrays.asList("3 EXPUNGE", "6 EXPUNGE", "8 EXISTS", "1 RECENT"), snapshot.update());
+		assertEquals(8, snapshot.size());
+		assertEquals(m.getUID(), snapshot.lastUid());
+		assertEquals(Collections.emptyList(), snapshot.update());
+
+		//The session that reported the message cleared \Recent
+		assertFalse(inbox.getMessage(m.getUID(), 8).flags.get("\\Recent"));
+	}
+
+	@Test
+	public void addedMessagesAreAppended() throws FileNotFoundException {
+		MessageBank inbox = getInbox();
+		MailboxSnapshot snapshot = new MailboxSnapshot(inbox);
+
+		List<MailMessage> added = new ArrayList<MailMessage>();
+		for(int i = 0; i < 2; i++) {
+			MailMessage m = inbox.createMessage();
+			m.addHeader("Subject", "New message " + i);
+			m.writeHeadersAndGetStream();
+			m.commit();
+			added.add(m);
+		}
+		//Messages that are older than the snapshot are left for update()
+		added.add(0, inbox.listMessages().get(4));
+
+		snapshot.added(added);
+		assertEquals(11, snapshot.size());
+		assertEquals(added.get(2).getUID(), snapshot.lastUid());
+
+		List<MailMessage> selected = snapshot.select(SequenceSet.parse("10:11", 11), false);
+		assertEquals(2, selected.size());
+		assertEquals(added.get(1).getUID(), selected.get(0).getUID());
+		assertEquals(added.get(2).getUID(), selected.get(1).getUID());
+	}
+
+	@Test
+	public void selectByUid() {
+		MailboxSnapshot snapshot = new MailboxSnapshot(getInbox());
+
+		List<MailMessage> selected = snapshot.select(SequenceSet.parse("4:6,10:20", 10), true);
+		assertEquals(3, selected.size());
+		assertEquals(4, selected.get(0).getUID());
+		assertEquals(6, selected.get(1).getUID());
+		assertEquals(5, selected.get(1).getSeqNum());
+		assertEquals(10, selected.get(2).getUID());
+		assertEquals(9, selected.get(2).getSeqNum());
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * SequenceSetTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+public class SequenceSetTest {
+	@Test
+	public void rangesAreSortedAndMerged() {
+		SequenceSet set = SequenceSet.parse("9:7,1,3:4,2,20:*", 25);
+		assertEquals(3, set.rangeCount());
+		assertEquals(1, set.rangeStart(0));
+		assertEquals(4, set.rangeEnd(0));
+		assertEquals(7, set.rangeStart(1));
+		assertEquals(9, set.rangeEnd(1));
+		assertEquals(20, set.rangeStart(2));
+		assertEquals(25, set.rangeEnd(2));
+	}
+
+	@Test
+	public void contains() {
+		SequenceSet set = SequenceSet.parse("2:4,10,*", 100);
+		assertFalse(set.contains(1));
+		assertTrue(set.contains(2));
+		assertTrue(set.contains(4));
+		assertFalse(set.contains(5));
+		assertTrue(set.contains(10));
+		assertFalse(set.contains(99));
+		assertTrue(set.contains(100));
+		assertFalse(set.contains(101));
+	}
+
+	@Test
+	public void largeRangeIsOneRange() {
+		SequenceSet set = SequenceSet.parse("1:*", Integer.MAX_VALUE);
+		assertEquals(1, set.rangeCount());
+		assertTrue(set.contains(Integer.MAX_VALUE));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void tooManyColons() {
+		SequenceSet.parse("1:2:3", 10);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void emptyRange() {
+		SequenceSet.parse("1,,2", 10);
+	}
+
+	@Test
+	public void fromBitSet() {
+		BitSet bits = new BitSet();
+		bits.set(1, 5);
+		bits.set(6);
+		bits.set(8, 11);
+		assertEquals("1:4,6,8:10", SequenceSet.of(bits).toString());
+	}
+
+	@Test
+	public void fromEmptyBitSet() {
+		assertNull(SequenceSet.of(new BitSet()));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * FileUtilsTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class FileUtilsTest {
+	private static final String TEST_DIR = "fileutilstest";
+
+	private File dir;
+
+	@Before
+	public void before() {
+		dir = new File(TEST_DIR);
+		if(dir.exists()) {
+			System.out.println("WARNING: Test directory exists, deleting");
+			Utils.delete(dir);
+		}
+
+		if(!dir.mkdir()) {
+			System.out.println("WARNING: Could not create test directory, tests will probably fail");
+		}
+	}
+
+	@After
+	public void after() {
+		Utils.delete(dir);
+	}
+
+	@Test
+	public void replaceExistingFile() throws IOException {
+		File source = write("source", "new");
+		File target = write("target", "old");
+
+		FileUtils.replace(source, target);
+
+		assertFalse(source.exists());
+		assertEquals("new", read(target));
+		assertEquals(1, dir.list().length);
+	}
+
+	@Test
+	public void replaceMissingFile() throws IOException {
+		File source = write("source", "new");
+		File target = new File(dir, "target");
+
+		FileUtils.replace(source, target);
+
+		assertFalse(source.exists());
+		assertEquals("new", read(target));
+	}
+
+	@Test
+	public void targetKeptIfSourceMissing() throws IOException {
+		File source = new File(dir, "source");
+		File target = write("target", "old");
+
+		try {
+			FileUtils.replace(source, target);
+			fail("Expected IOException");
+		} catch(IOException e) {
+			//Expected
+		}
+
+		assertEquals("old", read(target));
+		assertEquals(1, dir.list().length);
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int)in.length()];
+			in.readFully(data);
+			return new String(data, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * VirtualThreadsTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+	@Test
+	public void factoryOnlyReturnedWhenSupported() {
+		ThreadFactory factory = VirtualThreads.newFactory("Test thread");
+		if(VirtualThreads.isSupported()) {
+			assertNotNull(factory);
+		} else {
+			assertNull(factory);
+		}
+	}
+
+	@Test
+	public void factoryThreadsRunTasks() throws InterruptedException {
+		Assume.assumeTrue(VirtualThreads.isSupported());
+
+		final CountDownLatch ran = new CountDownLatch(2);
+		ThreadFactory factory = VirtualThreads.newFactory("Test thread");
+		Thread first = factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		Thread second = factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		first.start();
+		second.start();
+
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+		assertEquals("Test thread 0", first.getName());
+		assertEquals("Test thread 1", second.getName());
+	}
+}